@@ -0,0 +1,54 @@
+package edu.uci.ics.luci.lucicabinet;
+
+import java.io.Serializable;
+
+/**
+ * What LUCICabinetMap.update did to an entry: the value it had and the value the Remapper gave it. A remote database
+ * gets both back from its LUCI_Butler, so the Remapper doesn't have to be run again to find out what was stored.
+ *
+ * V is the value type
+ */
+public class Change<V> implements Serializable{
+
+	/**
+	 *
+	 */
+	private static final long serialVersionUID = 5530987368427183625L;
+
+	private final V oldValue;
+	private final V newValue;
+
+	/**
+	 * @param oldValue the value the entry had, or null if there was no entry
+	 * @param newValue the value the entry has now, or null if it was removed or there still isn't one
+	 */
+	public Change(V oldValue,V newValue){
+		this.oldValue = oldValue;
+		this.newValue = newValue;
+	}
+
+	/**
+	 * @return the value the entry had, or null if there was no entry
+	 */
+	public V getOldValue(){
+		return oldValue;
+	}
+
+	/**
+	 * @return the value the entry has now, or null if there is no entry
+	 */
+	public V getNewValue(){
+		return newValue;
+	}
+
+	/**
+	 * @return false if the entry was left as it was, so nothing was written
+	 */
+	public boolean isChanged(){
+		return (oldValue == null) ? (newValue != null) : !oldValue.equals(newValue);
+	}
+
+	public String toString(){
+		return "Change("+oldValue+","+newValue+")";
+	}
+}
@@ -0,0 +1,15 @@
+package edu.uci.ics.luci.lucicabinet;
+
+/**
+ * Thrown when a LUCI_Butler reports that a command failed while it was being run, for example because the database
+ * or an IteratorWorker threw an exception. The connection was working, so sending the command again would only fail
+ * the same way, and it is not retried or replayed the way a command lost with the connection is.
+ */
+public class CommandFailedException extends RuntimeException{
+
+	private static final long serialVersionUID = -2092710366823450154L;
+
+	public CommandFailedException(String message){
+		super(message);
+	}
+}
@@ -0,0 +1,184 @@
+package edu.uci.ics.luci.lucicabinet;
+
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import edu.uci.ics.luci.lucicabinet.LUCI_Butler.Lane;
+import edu.uci.ics.luci.lucicabinet.LUCI_Butler.ServerCommands;
+
+/**
+ * Decides when a command sent to a LUCI_Butler may run. Commands are sorted into lanes: point operations, which
+ * touch a few keys, and bulk operations (iterate, scan and clear), which walk or rewrite the whole database and hold
+ * its locks while they do.
+ *
+ * <p>
+ * Each lane has a limit on how many of its commands run at once across all connections, a thread priority that
+ * they run at, and a limit on how many of them may wait for a slot. Keeping the bulk lane narrow and at a low
+ * priority stops an analytics job from filling the engine locks and the CPUs, so point operations from other
+ * clients keep their latency. A command that would have to wait behind too many others is turned away, so that an
+ * overloaded LUCI_Butler sheds load instead of queuing it without bound.
+ *
+ * <p>
+ * Every connection already has its own handler thread, so a command runs on that thread once its lane lets it in,
+ * rather than being handed to another thread. Scans stream from the handler's connection as they go, and a point
+ * operation doesn't pay for a hand off.
+ */
+class CommandScheduler{
+
+	/**
+	 * A command that has been let into its lane
+	 */
+	static class Ticket{
+		private final Lane lane;
+		private final Semaphore slots;
+		private final int previousPriority;
+
+		private Ticket(Lane lane,Semaphore slots,int previousPriority){
+			this.lane = lane;
+			this.slots = slots;
+			this.previousPriority = previousPriority;
+		}
+	}
+
+	private final int[] limits = new int[Lane.values().length];
+	private final int[] priorities = new int[Lane.values().length];
+	private final int[] queueLimits = new int[Lane.values().length];
+	private final Semaphore[] slots = new Semaphore[Lane.values().length];
+	private final AtomicInteger[] running = new AtomicInteger[Lane.values().length];
+	private final AtomicInteger[] waiting = new AtomicInteger[Lane.values().length];
+
+	CommandScheduler(){
+		for(Lane lane:Lane.values()){
+			running[lane.ordinal()] = new AtomicInteger(0);
+			waiting[lane.ordinal()] = new AtomicInteger(0);
+		}
+		configure(Lane.POINT,0,Thread.NORM_PRIORITY);
+		configure(Lane.BULK,4,Thread.MIN_PRIORITY);
+		setQueueLimit(Lane.POINT,1000);
+		setQueueLimit(Lane.BULK,16);
+	}
+
+	/**
+	 * @return the lane a command runs in, or null for commands which aren't limited. A subscription lasts as long as
+	 * its connection, statistics should be available however busy the LUCI_Butler is, and cancelling an iteration
+	 * frees up the bulk lane, so it mustn't wait behind it.
+	 */
+	static Lane laneOf(ServerCommands command){
+		if(command.equals(ServerCommands.ITERATE) || command.equals(ServerCommands.SCAN) ||
+				command.equals(ServerCommands.CLEAR)){
+			return Lane.BULK;
+		}
+		if(command.equals(ServerCommands.SUBSCRIBE) || command.equals(ServerCommands.STATS) ||
+				command.equals(ServerCommands.CLOSE) || command.equals(ServerCommands.IDENTIFY) ||
+				command.equals(ServerCommands.ITERATE_CANCEL)){
+			return null;
+		}
+		return Lane.POINT;
+	}
+
+	/**
+	 * Change a lane. Commands already let in keep the slot they were given.
+	 * @param lane the lane to change
+	 * @param concurrency the most commands of the lane that run at once, 0 for no limit
+	 * @param priority the thread priority commands of the lane run at
+	 */
+	synchronized void configure(Lane lane,int concurrency,int priority){
+		if(concurrency < 0){
+			throw new IllegalArgumentException("Lane concurrency must not be negative:"+concurrency);
+		}
+		if((priority < Thread.MIN_PRIORITY) || (priority > Thread.MAX_PRIORITY)){
+			throw new IllegalArgumentException("Lane priority out of range:"+priority);
+		}
+		limits[lane.ordinal()] = concurrency;
+		priorities[lane.ordinal()] = priority;
+		slots[lane.ordinal()] = (concurrency == 0) ? null : new Semaphore(concurrency,true);
+	}
+
+	/**
+	 * @param lane the lane to change
+	 * @param queueLimit the most commands of the lane that may wait for a slot, 0 for no limit
+	 */
+	synchronized void setQueueLimit(Lane lane,int queueLimit){
+		if(queueLimit < 0){
+			throw new IllegalArgumentException("Lane queue limit must not be negative:"+queueLimit);
+		}
+		queueLimits[lane.ordinal()] = queueLimit;
+	}
+
+	synchronized int getQueueLimit(Lane lane){
+		return queueLimits[lane.ordinal()];
+	}
+
+	synchronized int getConcurrency(Lane lane){
+		return limits[lane.ordinal()];
+	}
+
+	synchronized int getPriority(Lane lane){
+		return priorities[lane.ordinal()];
+	}
+
+	/**
+	 * Wait until a command may run in a lane, then raise or lower the priority of the calling thread to the lane's.
+	 * @return a ticket to give back to leave when the command is done, or null if too many commands are already
+	 * waiting in the lane
+	 */
+	Ticket enter(Lane lane) throws InterruptedException{
+		Semaphore s;
+		int priority;
+		int queueLimit;
+		synchronized(this){
+			s = slots[lane.ordinal()];
+			priority = priorities[lane.ordinal()];
+			queueLimit = queueLimits[lane.ordinal()];
+		}
+
+		if((s != null) && !s.tryAcquire()){
+			int queued = waiting[lane.ordinal()].incrementAndGet();
+			try{
+				if((queueLimit > 0) && (queued > queueLimit)){
+					return null;
+				}
+				s.acquire();
+			}
+			finally{
+				waiting[lane.ordinal()].decrementAndGet();
+			}
+		}
+		running[lane.ordinal()].incrementAndGet();
+
+		Thread t = Thread.currentThread();
+		Ticket ticket = new Ticket(lane,s,t.getPriority());
+		if(priority != ticket.previousPriority){
+			t.setPriority(priority);
+		}
+		return ticket;
+	}
+
+	/**
+	 * Give back a command's slot in its lane and put the calling thread's priority back
+	 */
+	void leave(Ticket ticket){
+		Thread t = Thread.currentThread();
+		if(t.getPriority() != ticket.previousPriority){
+			t.setPriority(ticket.previousPriority);
+		}
+		running[ticket.lane.ordinal()].decrementAndGet();
+		if(ticket.slots != null){
+			ticket.slots.release();
+		}
+	}
+
+	/**
+	 * @return how many commands of a lane are running
+	 */
+	int running(Lane lane){
+		return running[lane.ordinal()].get();
+	}
+
+	/**
+	 * @return how many commands are waiting for a slot in a lane
+	 */
+	int waiting(Lane lane){
+		return waiting[lane.ordinal()].get();
+	}
+}
@@ -0,0 +1,275 @@
+package edu.uci.ics.luci.lucicabinet;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.lang.reflect.InvocationTargetException;
+import java.net.InetSocketAddress;
+import java.net.Socket;
+import java.net.SocketAddress;
+import java.net.SocketException;
+import java.net.UnknownHostException;
+import java.nio.channels.Channels;
+import java.nio.channels.ServerSocketChannel;
+import java.nio.channels.SocketChannel;
+
+/**
+ * One connection between a LUCI_Butler and a client, either over TCP or over a Unix domain socket. A Unix domain
+ * socket skips the TCP stack, which is faster when the client is on the same host as the LUCI_Butler.
+ *
+ * <p>
+ * Unix domain socket channels only exist in Java 16 and later. They are reached by reflection so that everything
+ * else still builds and runs on older JVMs, where asking for a Unix domain socket throws an
+ * UnsupportedOperationException.
+ */
+class Connection{
+
+	private static final String UNIX_ADDRESS = "java.net.UnixDomainSocketAddress";
+
+	private Socket socket = null;
+	private SocketChannel channel = null;
+	private SocketAddress remote = null;
+	private InputStream in = null;
+	private OutputStream out = null;
+
+	Connection(Socket socket){
+		this.socket = socket;
+		this.remote = socket.getRemoteSocketAddress();
+	}
+
+	/**
+	 * @param channel a connected Unix domain socket channel
+	 * @param remote where it is connected to
+	 */
+	Connection(SocketChannel channel,SocketAddress remote){
+		this.channel = channel;
+		this.remote = remote;
+	}
+
+	/**
+	 * Connect to a LUCI_Butler
+	 * @param endpoint an InetSocketAddress or a Unix domain socket address, see unixAddress
+	 * @param timeout how long to wait to connect and for each read, in milliseconds, 0 to wait forever
+	 */
+	static Connection open(SocketAddress endpoint,int timeout) throws IOException{
+		if(isUnix(endpoint)){
+			SocketChannel c = (SocketChannel) invoke(SocketChannel.class,"open",null,unixFamily());
+			try{
+				c.connect(endpoint);
+			} catch (IOException e) {
+				c.close();
+				throw e;
+			}
+			return new Connection(c,endpoint);
+		}
+
+		InetSocketAddress address = (InetSocketAddress) endpoint;
+		if(address.isUnresolved()){
+			/* The name may resolve now even if it didn't when the address was made */
+			address = new InetSocketAddress(address.getHostName(),address.getPort());
+			if(address.isUnresolved()){
+				throw new UnknownHostException(address.getHostName());
+			}
+		}
+		Socket s = new Socket();
+		try{
+			s.connect(address,timeout);
+			/* Writes are flushed explicitly once per command or batch, so don't let Nagle hold them back */
+			s.setTcpNoDelay(true);
+			s.setSoTimeout(timeout);
+		} catch (IOException e) {
+			s.close();
+			throw e;
+		}
+		return new Connection(s);
+	}
+
+	/**
+	 * @return true if this JVM can use Unix domain sockets
+	 */
+	static boolean isUnixSupported(){
+		try{
+			Class.forName(UNIX_ADDRESS);
+			return true;
+		} catch (ClassNotFoundException e) {
+			return false;
+		}
+	}
+
+	static boolean isUnix(SocketAddress address){
+		return address.getClass().getName().equals(UNIX_ADDRESS);
+	}
+
+	/**
+	 * @param path the file of a Unix domain socket
+	 * @return the address to connect to it
+	 */
+	static SocketAddress unixAddress(String path){
+		try {
+			return (SocketAddress) invoke(Class.forName(UNIX_ADDRESS),"of",null,path);
+		} catch (ClassNotFoundException e) {
+			throw new UnsupportedOperationException("Unix domain sockets need Java 16 or later");
+		} catch (IOException e) {
+			throw new RuntimeException("Unable to make a Unix domain socket address for "+path+":"+e);
+		}
+	}
+
+	/**
+	 * Start listening on a Unix domain socket. A file left behind by an earlier listener is replaced.
+	 * @param path the file of the Unix domain socket
+	 * @return a channel to accept connections from
+	 */
+	static ServerSocketChannel listen(String path) throws IOException{
+		SocketAddress address = unixAddress(path);
+		new File(path).delete();
+		ServerSocketChannel c = (ServerSocketChannel) invoke(ServerSocketChannel.class,"open",null,unixFamily());
+		try{
+			invoke(ServerSocketChannel.class,"bind",c,address);
+		} catch (IOException e) {
+			c.close();
+			throw e;
+		}
+		return c;
+	}
+
+	private static Object unixFamily(){
+		try {
+			return Class.forName("java.net.StandardProtocolFamily").getField("UNIX").get(null);
+		} catch (Exception e) {
+			throw new UnsupportedOperationException("Unix domain sockets need Java 16 or later");
+		}
+	}
+
+	/**
+	 * Call a method which takes one parameter by name, unwrapping what it throws
+	 */
+	private static Object invoke(Class<?> c,String name,Object target,Object parameter) throws IOException{
+		try {
+			for(java.lang.reflect.Method m:c.getMethods()){
+				Class<?>[] types = m.getParameterTypes();
+				if(m.getName().equals(name) && (types.length == 1) && types[0].isInstance(parameter)){
+					return m.invoke(target,parameter);
+				}
+			}
+		} catch (IllegalAccessException e) {
+			throw new UnsupportedOperationException("Unable to use Unix domain sockets:"+e);
+		} catch (InvocationTargetException e) {
+			Throwable cause = e.getCause();
+			if(cause instanceof IOException){
+				throw (IOException) cause;
+			}
+			if(cause instanceof RuntimeException){
+				throw (RuntimeException) cause;
+			}
+			throw new RuntimeException("Unable to use Unix domain sockets:"+cause);
+		}
+		throw new UnsupportedOperationException("Unix domain sockets need Java 16 or later");
+	}
+
+	/**
+	 * @return a readable name for an endpoint, host:port or the path of a Unix domain socket
+	 */
+	static String describe(SocketAddress address){
+		if(address instanceof InetSocketAddress){
+			InetSocketAddress a = (InetSocketAddress) address;
+			return a.getHostName()+":"+a.getPort();
+		}
+		return String.valueOf(address);
+	}
+
+
+	synchronized InputStream getInputStream() throws IOException{
+		if(in == null){
+			in = (channel != null) ? Channels.newInputStream(channel) : socket.getInputStream();
+		}
+		return in;
+	}
+
+	synchronized OutputStream getOutputStream() throws IOException{
+		if(out == null){
+			out = (channel != null) ? Channels.newOutputStream(channel) : socket.getOutputStream();
+		}
+		return out;
+	}
+
+	boolean isUnix(){
+		return channel != null;
+	}
+
+	/**
+	 * @return where the other end of the connection is, for access control. Unix domain sockets are "unix".
+	 */
+	String getSource(){
+		if(channel != null){
+			return "unix";
+		}
+		return socket.getInetAddress().toString();
+	}
+
+	SocketAddress getRemoteAddress(){
+		return remote;
+	}
+
+	/**
+	 * @return where this end of the connection is, or null for a Unix domain socket
+	 */
+	SocketAddress getLocalAddress(){
+		if(socket != null){
+			return socket.getLocalSocketAddress();
+		}
+		return null;
+	}
+
+	/**
+	 * Name a TCP connection by its two ends, the same way from either end, so that both ends can find it when they
+	 * are in the same JVM.
+	 * @param from the address of the client end
+	 * @param to the address of the LUCI_Butler end
+	 * @return the name, or null if either end isn't a TCP address
+	 */
+	static String pair(SocketAddress from,SocketAddress to){
+		if(!(from instanceof InetSocketAddress) || !(to instanceof InetSocketAddress)){
+			return null;
+		}
+		InetSocketAddress f = (InetSocketAddress) from;
+		InetSocketAddress t = (InetSocketAddress) to;
+		if((f.getAddress() == null) || (t.getAddress() == null)){
+			return null;
+		}
+		return f.getAddress().getHostAddress()+":"+f.getPort()+"->"+t.getAddress().getHostAddress()+":"+t.getPort();
+	}
+
+	void setNoDelay() throws SocketException{
+		if(socket != null){
+			socket.setTcpNoDelay(true);
+		}
+	}
+
+	/**
+	 * Limit how long a read waits. Reads from Unix domain sockets can't time out, so this only applies to TCP.
+	 * Closing the connection from another thread stops a read in both cases.
+	 * @param timeout in milliseconds, 0 to wait forever
+	 */
+	void setReadTimeout(int timeout) throws SocketException{
+		if((socket != null) && !socket.isClosed()){
+			socket.setSoTimeout(timeout);
+		}
+	}
+
+	boolean isClosed(){
+		if(channel != null){
+			return !channel.isOpen();
+		}
+		return socket.isClosed();
+	}
+
+	void close() throws IOException{
+		if(channel != null){
+			channel.close();
+		}
+		else{
+			socket.close();
+		}
+	}
+}
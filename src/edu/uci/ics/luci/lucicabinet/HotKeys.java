@@ -0,0 +1,187 @@
+package edu.uci.ics.luci.lucicabinet;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/**
+ * Counts how often keys are used in a fixed amount of memory and keeps track of the most used ones, see
+ * LUCICabinetMap_Shard.setHotKeyTracking.
+ *
+ * <p>
+ * The counts are kept in a count-min sketch: a few rows of counters, each row with its own hash of the key. Using a
+ * key adds one to its counter in every row and its count is the smallest of those counters. That is never less
+ * than the true count, and is more only by the keys that share all of its counters, which for a wide enough sketch
+ * is a small fraction of all the uses. Keys whose count beats the coldest of the hottest keys so far replace it.
+ *
+ * <p>
+ * Every counter is halved each time the half life's worth of uses have been counted, so the hottest keys are those
+ * of the recent traffic rather than of all time. Counting doesn't lock, and uses counted while the counters are being
+ * halved may be lost, so the counts are estimates.
+ *
+ * K is the key type
+ */
+public class HotKeys<K>{
+
+	private static final int DEPTH = 4;
+	public static final long DEFAULT_HALF_LIFE = 100000;
+
+	private final int topK;
+	private final int width;
+	private final long halfLife;
+	private final AtomicLongArray counts;
+	private final AtomicLong uses = new AtomicLong(0);
+
+	/* The hottest keys so far and their counts when they were last used, at most topK of them */
+	private final ConcurrentHashMap<K,Long> top;
+	/* The smallest count in top once it is full, which a key has to beat to get in */
+	private volatile long floor = 0;
+
+	/**
+	 * @param topK how many of the hottest keys to keep track of
+	 */
+	public HotKeys(int topK){
+		this(topK,Math.max(1024,topK*64),DEFAULT_HALF_LIFE);
+	}
+
+	/**
+	 * @param topK how many of the hottest keys to keep track of
+	 * @param width how many counters are in each row of the sketch. The counts are off by about the total number of
+	 * uses over the width at most.
+	 * @param halfLife how many uses are counted between halvings of the counts
+	 */
+	public HotKeys(int topK,int width,long halfLife){
+		if(topK < 1){
+			throw new IllegalArgumentException("At least one hot key has to be tracked:"+topK);
+		}
+		if(width < 1){
+			throw new IllegalArgumentException("The sketch must be at least one counter wide:"+width);
+		}
+		if(halfLife < 1){
+			throw new IllegalArgumentException("The half life must be at least one use:"+halfLife);
+		}
+		this.topK = topK;
+		this.width = width;
+		this.halfLife = halfLife;
+		counts = new AtomicLongArray(DEPTH*width);
+		top = new ConcurrentHashMap<K,Long>(topK*2);
+	}
+
+	private int index(long hash,int row){
+		return (row*width) + (int) ((ShardFunction.mix(hash + row*0x9e3779b97f4a7c15L) >>> 1) % width);
+	}
+
+	/**
+	 * Count a use of a key
+	 */
+	@SuppressWarnings("unchecked")
+	public void record(Object key){
+		if(key == null){
+			return;
+		}
+		long hash = key.hashCode();
+		long count = Long.MAX_VALUE;
+		for(int row = 0; row < DEPTH; row++){
+			count = Math.min(count,counts.incrementAndGet(index(hash,row)));
+		}
+
+		/* A key already among the hottest just has its count updated */
+		if((top.replace((K) key,count) == null) && ((count > floor) || (top.size() < topK))){
+			admit((K) key,count);
+		}
+
+		if((uses.incrementAndGet() % halfLife) == 0){
+			decay();
+		}
+	}
+
+	private synchronized void admit(K key,long count){
+		top.put(key,count);
+		if(top.size() > topK){
+			K coldest = null;
+			long least = Long.MAX_VALUE;
+			for(Map.Entry<K,Long> e:top.entrySet()){
+				if(e.getValue() < least){
+					least = e.getValue();
+					coldest = e.getKey();
+				}
+			}
+			top.remove(coldest);
+		}
+		if(top.size() >= topK){
+			long least = Long.MAX_VALUE;
+			for(Long c:top.values()){
+				least = Math.min(least,c);
+			}
+			floor = least;
+		}
+	}
+
+	private synchronized void decay(){
+		for(int i = 0; i < counts.length(); i++){
+			counts.set(i,counts.get(i) >>> 1);
+		}
+		for(Map.Entry<K,Long> e:top.entrySet()){
+			e.setValue(e.getValue() >>> 1);
+		}
+		floor >>>= 1;
+	}
+
+	/**
+	 * @return how many times a key has been used, as far as the sketch can tell
+	 */
+	public long estimate(Object key){
+		long hash = key.hashCode();
+		long count = Long.MAX_VALUE;
+		for(int row = 0; row < DEPTH; row++){
+			count = Math.min(count,counts.get(index(hash,row)));
+		}
+		return count;
+	}
+
+	/**
+	 * @return true if a key is one of the hottest keys
+	 */
+	public boolean isHot(Object key){
+		return (key != null) && top.containsKey(key);
+	}
+
+	/**
+	 * @return the hottest keys and how many times each has been used, hottest first
+	 */
+	public Map<K,Long> getTop(){
+		final Map<K,Long> estimates = new HashMap<K,Long>();
+		for(K key:top.keySet()){
+			estimates.put(key,estimate(key));
+		}
+		List<K> sorted = new ArrayList<K>(estimates.keySet());
+		Collections.sort(sorted,new Comparator<K>(){
+			public int compare(K a, K b) {
+				return estimates.get(b).compareTo(estimates.get(a));
+			}
+		});
+		Map<K,Long> ret = new LinkedHashMap<K,Long>();
+		for(K key:sorted){
+			ret.put(key,estimates.get(key));
+		}
+		return ret;
+	}
+
+	/**
+	 * @return how many uses have been counted in all
+	 */
+	public long getUses(){
+		return uses.get();
+	}
+
+	public int getTopK(){
+		return topK;
+	}
+}
@@ -0,0 +1,140 @@
+package edu.uci.ics.luci.lucicabinet;
+
+import java.nio.ByteBuffer;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.TimeUnit;
+
+import edu.uci.ics.luci.lucicabinet.LUCI_Butler.ServerResponse;
+
+/**
+ * Keeps track of which keys each near cache subscriber of a LUCI_Butler might have cached, and queues up
+ * invalidations for them when those keys are written.
+ *
+ * <p>
+ * Memory is bounded. When a subscriber is tracking too many keys, or has too many invalidations waiting to be sent,
+ * everything it is tracking is forgotten and it is told to invalidate its whole cache instead.
+ */
+class InvalidationTracker{
+
+	/** Put on a subscriber's queue when it is unsubscribed */
+	static final Object END = new Object();
+
+	private static class Subscriber{
+		Set<ByteBuffer> keys = new HashSet<ByteBuffer>();
+		LinkedBlockingQueue<Object> queue = new LinkedBlockingQueue<Object>();
+	}
+
+	private final int maxTrackedKeys;
+	private final int maxQueuedInvalidations;
+	private Map<Long,Subscriber> subscribers = new HashMap<Long,Subscriber>();
+	private long nextId = 1;
+
+	/**
+	 * @param maxTrackedKeys the most keys that are remembered for one subscriber
+	 * @param maxQueuedInvalidations the most invalidations that can be waiting to be sent to one subscriber
+	 */
+	InvalidationTracker(int maxTrackedKeys,int maxQueuedInvalidations){
+		this.maxTrackedKeys = maxTrackedKeys;
+		this.maxQueuedInvalidations = maxQueuedInvalidations;
+	}
+
+	/**
+	 * @return the id of a new subscriber
+	 */
+	synchronized long subscribe(){
+		long id = nextId++;
+		subscribers.put(id,new Subscriber());
+		return id;
+	}
+
+	synchronized void unsubscribe(long id){
+		Subscriber s = subscribers.remove(id);
+		if(s != null){
+			s.queue.add(END);
+		}
+	}
+
+	synchronized boolean hasSubscribers(){
+		return !subscribers.isEmpty();
+	}
+
+	synchronized int subscriberCount(){
+		return subscribers.size();
+	}
+
+	/**
+	 * @return how many invalidations are waiting to be sent, over all subscribers
+	 */
+	synchronized int queued(){
+		int ret = 0;
+		for(Subscriber s:subscribers.values()){
+			ret += s.queue.size();
+		}
+		return ret;
+	}
+
+	/**
+	 * Remember that a subscriber may be about to cache a key.  This has to be called before the key is read
+	 * from the database so that a write which races with the read is not missed.
+	 */
+	synchronized void track(long id,byte[] key){
+		Subscriber s = subscribers.get(id);
+		if(s != null){
+			if(s.keys.size() >= maxTrackedKeys){
+				reset(s);
+			}
+			s.keys.add(ByteBuffer.wrap(key));
+		}
+	}
+
+	/**
+	 * A key was written, tell everyone who might have it cached.
+	 */
+	synchronized void invalidate(byte[] key){
+		ByteBuffer k = ByteBuffer.wrap(key);
+		for(Subscriber s:subscribers.values()){
+			if(s.keys.remove(k)){
+				if(s.queue.size() >= maxQueuedInvalidations){
+					reset(s);
+				}
+				else{
+					s.queue.add(key);
+				}
+			}
+		}
+	}
+
+	/**
+	 * Everything may have been written, tell everyone to drop their whole cache.
+	 */
+	synchronized void invalidateAll(){
+		for(Subscriber s:subscribers.values()){
+			reset(s);
+		}
+	}
+
+	private void reset(Subscriber s){
+		s.keys.clear();
+		s.queue.clear();
+		s.queue.add(ServerResponse.INVALIDATE_ALL);
+	}
+
+	/**
+	 * Wait for the next thing to send to a subscriber.
+	 * @return a key as a byte[], ServerResponse.INVALIDATE_ALL, END, or null if nothing turned up in time
+	 */
+	Object next(long id,long timeout) throws InterruptedException{
+		Subscriber s = null;
+		synchronized(this){
+			s = subscribers.get(id);
+		}
+		if(s == null){
+			return END;
+		}
+		return s.queue.poll(timeout,TimeUnit.MILLISECONDS);
+	}
+}
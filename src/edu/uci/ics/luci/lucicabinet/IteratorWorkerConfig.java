@@ -13,5 +13,16 @@ public class IteratorWorkerConfig implements Serializable{
 	 * 
 	 */
 	private static final long serialVersionUID = 8114485234082169291L;
+	
+	/**
+	 * A database made of several databases, like LUCICabinetMap_Shard, runs the pieces of an iteration on all of them
+	 * at once, each with its own copy of the config, just as a remote database gets its own copy. A config which has
+	 * to be the same object for every piece, because it keeps the running state of the iteration or passes entries on
+	 * as they are found, should return false so that the pieces are run one after another with this config.
+	 * @return true if the pieces of an iteration can run at the same time on copies of this config
+	 */
+	public boolean isParallel(){
+		return true;
+	}
 
 }
@@ -1,9 +1,17 @@
 package edu.uci.ics.luci.lucicabinet;
 
 import java.io.Serializable;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.SortedMap;
+import java.util.TreeMap;
 import java.util.concurrent.locks.ReentrantReadWriteLock;
 
 import tokyocabinet.BDB;
+import tokyocabinet.BDBCMP;
+import tokyocabinet.BDBCUR;
 import tokyocabinet.Util;
 
 /**
@@ -17,6 +25,19 @@ public class LUCICabinetBDB<K extends Serializable,V extends Serializable> exten
 	private BDB bdb = null;
 	private ReentrantReadWriteLock rwlock = null;
 	private boolean optimize = true;
+	private boolean ordered = false;
+	private String fileName = null;
+	
+	/**
+	 * Keeps the records of the B-Tree in the natural order of their keys rather than the order of their serialized
+	 * bytes, which for most keys is not the same.
+	 */
+	private static class KeyOrder implements BDBCMP{
+		@SuppressWarnings("unchecked")
+		public int compare(byte[] a, byte[] b) {
+			return ((Comparable<Object>) Util.deserialize(a)).compareTo(Util.deserialize(b));
+		}
+	}
 
 	/** Open the database stored at the filePathName indicated.
 	 *  If the file doesn't exist it will be created. 
@@ -29,13 +50,31 @@ public class LUCICabinetBDB<K extends Serializable,V extends Serializable> exten
 	 * @param optimize if true, then the database will always return null for put and remove operations
 	 */
 	public LUCICabinetBDB(String filePathAndName,boolean optimize){
+		this(filePathAndName,optimize,false);
+	}
+	
+	/** Open the database stored at the filePathName indicated, as LUCICabinetBDB(filePathAndName,optimize) does.
+	 * If <param>ordered</param> is true the records are kept in the natural order of their keys, which must be
+	 * Comparable, so that getRange can be used. Comparing keys means deserializing them, which makes writes slower.
+	 * A file must always be opened with the same <param>ordered</param> setting or the B-Tree will be damaged.
+	 * 
+	 * @param filePathAndName The name of the file to open, e.g."eraseme.tcb"
+	 * @param optimize if true, then the database will always return null for put and remove operations
+	 * @param ordered if true, then the records are kept in key order
+	 */
+	public LUCICabinetBDB(String filePathAndName,boolean optimize,boolean ordered){
 		super();
 		bdb = new BDB();
 		rwlock = new ReentrantReadWriteLock(true);
 		this.optimize = optimize;
+		this.ordered = ordered;
+		this.fileName = filePathAndName;
 		
 		rwlock.writeLock().lock();
 		try{
+			if(ordered && !bdb.setcmpfunc(new KeyOrder())){
+				throw new RuntimeException("Error setting the key order of a tokyo cabinet database, code:"+bdb.ecode()+":"+bdb.errmsg());
+			}
 			if(bdb.open(filePathAndName,BDB.OWRITER | BDB.OCREAT)){
 				return;
 			}
@@ -121,6 +160,112 @@ public class LUCICabinetBDB<K extends Serializable,V extends Serializable> exten
 	
 	
 	
+	/**
+	 * Change the value of a key to what a Remapper makes of it while holding the write lock, so no other write can
+	 * come between reading the value and writing the new one. Always returns the change, even if optimize is true.
+	 * Nothing is written if the value stays the same.
+	 * @param key the key to change
+	 * @param remapper given the key and its value, or null if it has none, gives the new value, or null to remove it
+	 * @return the value the key had before and the value it has now
+	 */
+	@SuppressWarnings("unchecked")
+	@Override
+	public Change<V> update(K key,Remapper<? super K,V> remapper){
+		byte[] k = Util.serialize(key);
+		rwlock.writeLock().lock();
+		try{
+			byte[] raw = bdb.get(k);
+			V old = (raw == null) ? null : (V) Util.deserialize(raw);
+			Change<V> change = new Change<V>(old,remapper.remap(key,old));
+			if(!change.isChanged()){
+				return change;
+			}
+			if(change.getNewValue() != null){
+				if(!bdb.put(k,Util.serialize(change.getNewValue()))){
+					throw new RuntimeException("Error putting an element in tokyo cabinet database, code:"+bdb.ecode());
+				}
+			}
+			else{
+				if(!bdb.out(k)){
+					throw new RuntimeException("Error removing element from tokyo cabinet database, code:"+bdb.ecode());
+				}
+			}
+			return change;
+		}
+		finally{
+			rwlock.writeLock().unlock();
+		}
+	}
+	
+	
+	
+	/**
+	 * Put many entries into the database while holding the write lock once.
+	 * @param map the entries to put
+	 */
+	@Override
+	public void putAll(Map<? extends K,? extends V> map){
+		rwlock.writeLock().lock();
+		try{
+			for(Entry<? extends K, ? extends V> e:map.entrySet()){
+				if (!bdb.put(Util.serialize(e.getKey()),Util.serialize(e.getValue()))){
+					throw new RuntimeException("Error putting an element in tokyo cabinet database, code:"+bdb.ecode());
+				}
+			}
+		}
+		finally{
+			rwlock.writeLock().unlock();
+		}
+	}
+	
+	
+	
+	/**
+	 * Apply a batch of puts and removes while holding the write lock once. The whole batch is applied inside
+	 * a single tokyo cabinet transaction so either all of it is written or none of it is.
+	 * @param batch the operations to apply in order
+	 */
+	@Override
+	public void apply(WriteBatch<K,V> batch){
+		rwlock.writeLock().lock();
+		try{
+			if(!bdb.tranbegin()){
+				throw new RuntimeException("Error starting a transaction in tokyo cabinet database, code:"+bdb.ecode());
+			}
+			boolean committed = false;
+			try{
+				for(WriteBatch.Operation<K,V> op:batch.getOperations()){
+					if(op.remove){
+						if(!bdb.out(Util.serialize(op.key))){
+							if(bdb.ecode() != BDB.ENOREC){
+								throw new RuntimeException("Error removing element from tokyo cabinet database, code:"+bdb.ecode());
+							}
+						}
+					}
+					else{
+						if (!bdb.put(Util.serialize(op.key),Util.serialize(op.value))){
+							throw new RuntimeException("Error putting an element in tokyo cabinet database, code:"+bdb.ecode());
+						}
+					}
+				}
+				if(!bdb.trancommit()){
+					throw new RuntimeException("Error committing a transaction in tokyo cabinet database, code:"+bdb.ecode());
+				}
+				committed = true;
+			}
+			finally{
+				if(!committed){
+					bdb.tranabort();
+				}
+			}
+		}
+		finally{
+			rwlock.writeLock().unlock();
+		}
+	}
+	
+	
+	
 	/** Get an entry from the database
 	 * 
 	 * @param key
@@ -147,6 +292,144 @@ public class LUCICabinetBDB<K extends Serializable,V extends Serializable> exten
 	
 	
 	
+	/** Get many entries from the database while holding the read lock once.
+	 * 
+	 * @param keys the keys to look up
+	 * @return a map from each key that has a value in the database to that value. Keys without an entry are left out.
+	 */
+	@SuppressWarnings("unchecked")
+	@Override
+	public Map<K,V> getAll(Collection<? extends K> keys){
+		Map<K,V> ret = new HashMap<K,V>(keys.size());
+		rwlock.readLock().lock();
+		try{
+			for(K key:keys){
+				byte[] value = bdb.get(Util.serialize(key));
+				if(value != null){
+					V v = (V) Util.deserialize(value);
+					if(v != null){
+						ret.put(key,v);
+					}
+				}
+			}
+		}
+		finally{
+			rwlock.readLock().unlock();
+		}
+		return(ret);
+	}
+	
+	
+	
+	/** Get the entries whose keys fall in a range, in key order, with a B-Tree cursor. The database must have been
+	 * opened with its keys in order.
+	 * @param from the lowest key, null to start at the first key
+	 * @param fromInclusive true if an entry whose key is <param>from</param> is wanted
+	 * @param to the key to stop before, null to go on to the last key
+	 * @param max the most entries to return
+	 * @return the entries in key order
+	 */
+	@SuppressWarnings("unchecked")
+	@Override
+	public SortedMap<K,V> getRange(K from,boolean fromInclusive,K to,int max){
+		if(!ordered){
+			throw new UnsupportedOperationException("This LUCICabinetBDB wasn't opened with its keys in order");
+		}
+		SortedMap<K,V> ret = new TreeMap<K,V>();
+		rwlock.readLock().lock();
+		try{
+			BDBCUR cursor = new BDBCUR(bdb);
+			boolean on = (from == null) ? cursor.first() : cursor.jump(Util.serialize(from));
+			while(on && (ret.size() < max)){
+				K key = (K) Util.deserialize(cursor.key());
+				if((to != null) && (((Comparable<Object>) key).compareTo(to) >= 0)){
+					break;
+				}
+				if(fromInclusive || (from == null) || (((Comparable<Object>) key).compareTo(from) != 0)){
+					ret.put(key,(V) Util.deserialize(cursor.val()));
+				}
+				on = cursor.next();
+			}
+		}
+		finally{
+			rwlock.readLock().unlock();
+		}
+		return(ret);
+	}
+	
+	
+	
+	/** Get the stored bytes of an entry without deserializing anything
+	 * 
+	 * @param key the serialized key
+	 * @return the serialized value. null if there is no entry
+	 */
+	@Override
+	public byte[] getRaw(byte[] key){
+		rwlock.readLock().lock();
+		try{
+			return bdb.get(key);
+		}
+		finally{
+			rwlock.readLock().unlock();
+		}
+	}
+	
+	
+	
+	/**
+	 * Store the bytes of an entry without deserializing anything
+	 * @param key the serialized key
+	 * @param value the serialized value
+	 * @return the serialized value previously associated with key, or null if optimize is true
+	 */
+	@Override
+	public byte[] putRaw(byte[] key,byte[] value){
+		byte[] ret = null;
+		rwlock.writeLock().lock();
+		try{
+			if(!optimize){
+				ret = bdb.get(key);
+			}
+			if (!bdb.put(key,value)){
+				throw new RuntimeException("Error putting an element in tokyo cabinet database, code:"+bdb.ecode());
+			}
+		}
+		finally{
+			rwlock.writeLock().unlock();
+		}
+		return ret;
+	}
+	
+	
+	
+	/**
+	 * Remove an entry without deserializing anything.  If the record doesn't exist nothing happens.
+	 * @param key the serialized key
+	 * @return the serialized value that was removed, or null if optimize is true
+	 */
+	@Override
+	public byte[] removeRaw(byte[] key){
+		byte[] ret = null;
+		rwlock.writeLock().lock();
+		try{
+			if(!optimize){
+				ret = bdb.get(key);
+			}
+			if(!bdb.out(key)){
+				if(bdb.ecode() != BDB.ENOREC){
+					throw new RuntimeException("Error removing element from tokyo cabinet database, code:"+bdb.ecode());
+				}
+			}
+		}
+		finally{
+			rwlock.writeLock().unlock();
+		}
+		return ret;
+	}
+	
+	
+	
 	/** Iterate over the entries in the database and call the appropriate methods in <param>iwClass</param>
 	 * to do work.  See IteratorWorker for details on how the iteration works.
 	 * @param iwClass the class to instantiate to do the work
@@ -154,8 +437,22 @@ public class LUCICabinetBDB<K extends Serializable,V extends Serializable> exten
 	 * @throws IllegalAccessException 
 	 * @throws InstantiationException 
 	 */
-	@SuppressWarnings("unchecked")
 	public IteratorWorker<K,V> iterate(Class<? extends IteratorWorker<K,V>> iwClass,IteratorWorkerConfig iwConfig) throws InstantiationException, IllegalAccessException{
+		return(iterate(iwClass,iwConfig,new StopSignal()));
+	}
+	
+	
+	/** Iterate over the entries in the database as one piece of an iteration spread over several databases, see
+	 * LUCICabinetMap.iterate.
+	 * @param iwClass the class to instantiate to do the work
+	 * @param iwConfig any configuration parameters to pass to iwClass after it is instantiated during initialization
+	 * @param stop checked before each entry, and given if the IteratorWorker asks to stop
+	 * @throws IllegalAccessException 
+	 * @throws InstantiationException 
+	 */
+	@SuppressWarnings("unchecked")
+	@Override
+	public IteratorWorker<K,V> iterate(Class<? extends IteratorWorker<K,V>> iwClass,IteratorWorkerConfig iwConfig,StopSignal stop) throws InstantiationException, IllegalAccessException{
 		
 		IteratorWorker<K,V> iw = iwClass.newInstance();
 		
@@ -168,16 +465,18 @@ public class LUCICabinetBDB<K extends Serializable,V extends Serializable> exten
 			rwlock.writeLock().unlock();
 		}
 		
+		boolean asked = false;
 		try{
 			boolean x = bdb.iterinit();
 			boolean keepGoing = true;
 			if(x){
 				byte[] _key;
-				while (keepGoing && ((_key = bdb.iternext()) != null)) {
+				while (keepGoing && !stop.isStopped() && ((_key = bdb.iternext()) != null)) {
 					K key = (K) Util.deserialize(_key);
 					V value = (V) Util.deserialize(bdb.get(_key));
 					if(iw.iterate(key,value)){
 						keepGoing = false;
+						asked = true;
 					}
 				}
 			}
@@ -186,6 +485,11 @@ public class LUCICabinetBDB<K extends Serializable,V extends Serializable> exten
 			rwlock.readLock().unlock();
 		}
 		
+		/* Outside the lock, the listeners may go over the network */
+		if(asked){
+			stop.stop();
+		}
+		
 		rwlock.writeLock().lock();
 		try{
 			iw.shutdown(this);
@@ -199,6 +503,47 @@ public class LUCICabinetBDB<K extends Serializable,V extends Serializable> exten
 	
 	
 	
+	/**
+	 * Get the next chunk of a scan, see LUCICabinetMap.scanChunk. A B-Tree cursor jumps straight to the last key, or
+	 * to the key after it if it has been removed, so nothing before it is read again.
+	 * @param from where the last chunk ended, null to start at the beginning
+	 * @param max the most entries to collect
+	 * @return the entries in key order, marked as the last chunk if there were fewer than <param>max</param> left
+	 */
+	@SuppressWarnings("unchecked")
+	@Override
+	ScanChunk<K,V> scanChunk(ScanCursor from,int max){
+		ScanChunk<K,V> ret = new ScanChunk<K,V>((from == null) ? 0 : from.getPosition(),max);
+		rwlock.readLock().lock();
+		try{
+			BDBCUR cursor = new BDBCUR(bdb);
+			boolean on;
+			if((from == null) || (from.getLastKey() == null)){
+				on = cursor.first();
+				for(long i = 0; on && (from != null) && (i < from.getPosition()); i++){
+					on = cursor.next();
+				}
+			}
+			else{
+				byte[] last = Util.serialize(from.getLastKey());
+				on = cursor.jump(last);
+				if(on && Arrays.equals(cursor.key(),last)){
+					on = cursor.next();
+				}
+			}
+			while(on && (ret.size() < max)){
+				ret.add((K) Util.deserialize(cursor.key()),(V) Util.deserialize(cursor.val()));
+				on = cursor.next();
+			}
+		}
+		finally{
+			rwlock.readLock().unlock();
+		}
+		ret.last = (ret.size() < max);
+		return(ret);
+	}
+	
+	
 	/**
 	 *  Close the database. This must be done to ensure database is not damaged on disk after being opened.
 	 */
@@ -219,6 +564,44 @@ public class LUCICabinetBDB<K extends Serializable,V extends Serializable> exten
 	
 	
 	
+	/**
+	 * Statistics from tokyo cabinet. There is no cheap way to measure fragmentation, so file_bytes_per_record stands
+	 * in for it: it grows when removed records leave space behind that hasn't been reused.
+	 * @return records, file_size_bytes, file_bytes_per_record and lock_waiters, the number of threads waiting for
+	 * the lock on the database
+	 */
+	@Override
+	public Map<String,Long> getEngineStats(){
+		Map<String,Long> ret = new HashMap<String,Long>();
+		rwlock.readLock().lock();
+		try{
+			long records = bdb.rnum();
+			long size = bdb.fsiz();
+			ret.put("records",records);
+			ret.put("file_size_bytes",size);
+			ret.put("file_bytes_per_record",(records == 0) ? 0 : size / records);
+		}
+		finally{
+			rwlock.readLock().unlock();
+		}
+		ret.put("lock_waiters",(long) rwlock.getQueueLength());
+		return(ret);
+	}
+	
+	
+	
+	/**
+	 * Read ahead through the file from its start, so that the B-Tree's pages are in the operating system's page cache.
+	 * @param maxBytes the most of the file to read
+	 * @return how many bytes were read
+	 */
+	@Override
+	public long warmUp(long maxBytes){
+		return readAhead(fileName,maxBytes);
+	}
+	
+	
+	
 	/**
 	 * Return the number of records in the database.
 	 */
@@ -6,6 +6,9 @@ import static org.junit.Assert.fail;
 
 import java.io.IOException;
 import java.net.UnknownHostException;
+import java.util.Iterator;
+import java.util.Map;
+import java.util.SortedMap;
 
 import org.apache.log4j.BasicConfigurator;
 import org.junit.After;
@@ -228,4 +231,45 @@ public class LUCICabinetBDB_Remote_Test {
 		System.out.println(""+(duration/(2*((threadnumber*10*number)+(threadnumber*10*number))))+" milliseconds per operation");
 		testIterate();
 	}
-}
\ No newline at end of file
+	
+	
+	@Test
+	public void testRange() {
+		LUCICabinetBDB<Integer,String> ordered = new LUCICabinetBDB<Integer,String>("erasemeOrderedRemote.tcb",false,true);
+		butler.addDatabase("ordered",ordered);
+		LUCICabinetMap_Remote<Integer,String> remote = bdbl_remote.database("ordered",false);
+		remote.clear();
+		for(Integer key=-100; key< 100; key++){
+			remote.put(key,"foo"+key);
+		}
+		
+		SortedMap<Integer,String> page = remote.getRange(-10,false,10,100);
+		assertEquals(19,page.size());
+		assertEquals(Integer.valueOf(-9),page.firstKey());
+		assertEquals(Integer.valueOf(9),page.lastKey());
+		
+		/* A round trip for each page of 16 */
+		Iterator<Map.Entry<Integer,String>> range = remote.range(-100,null,16);
+		Integer expected = -100;
+		while(range.hasNext()){
+			Map.Entry<Integer,String> e = range.next();
+			assertEquals(expected,e.getKey());
+			assertEquals("foo"+expected,e.getValue());
+			expected++;
+		}
+		assertEquals(Integer.valueOf(100),expected);
+		
+		remote.clear();
+		butler.removeDatabase("ordered");
+		ordered.close();
+		
+		/* The default database doesn't keep its keys in order */
+		try{
+			bdbl_remote.getRange(0,true,10,10);
+			fail("The database wasn't opened with its keys in order");
+		}
+		catch(RuntimeException e){
+			/* Expected */
+		}
+	}
+}
@@ -4,6 +4,12 @@ import static org.junit.Assert.assertEquals;
 import static org.junit.Assert.assertTrue;
 import static org.junit.Assert.fail;
 
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.Map;
+import java.util.Set;
+import java.util.SortedMap;
+
 import org.apache.log4j.BasicConfigurator;
 import org.junit.After;
 import org.junit.AfterClass;
@@ -148,6 +154,56 @@ public class LUCICabinetBDB_Test {
 	}
 
 
+	@Test
+	public void testConditional() {
+		assertEquals(null,bdbl.putIfAbsent(1,"foo"));
+		assertEquals("foo",bdbl.putIfAbsent(1,"bar"));
+		assertEquals("foo",bdbl.get(1));
+		
+		assertTrue(!bdbl.replace(1,"bar","baz"));
+		assertTrue(bdbl.replace(1,"foo","baz"));
+		assertEquals("baz",bdbl.replace(1,"qux"));
+		assertEquals(null,bdbl.replace(2,"qux"));
+		assertEquals(null,bdbl.get(2));
+		
+		assertTrue(!bdbl.remove(1,"baz"));
+		assertTrue(bdbl.remove(1,"qux"));
+		assertEquals(0,bdbl.size());
+		
+		assertEquals("a",bdbl.mergeAtomic(3,"a",new LUCICabinetHDB_Test.Concat()));
+		assertEquals("ab",bdbl.mergeAtomic(3,"b",new LUCICabinetHDB_Test.Concat()));
+		assertEquals("ab",bdbl.get(3));
+		bdbl.remove(3);
+	}
+	
+	@Test
+	public void testScanChunk() {
+		for(Integer key=0; key< 1000; key++){
+			bdbl.put(key,"foo"+key);
+		}
+		
+		Set<Integer> seen = new HashSet<Integer>();
+		ScanCursor cursor = null;
+		ScanChunk<Integer,String> chunk = null;
+		do{
+			chunk = bdbl.scanChunk(cursor,64);
+			for(int i = 0; i < chunk.size(); i++){
+				assertEquals("foo"+chunk.keys.get(i),chunk.values.get(i));
+				assertTrue(seen.add(chunk.keys.get(i)));
+			}
+			if(chunk.size() > 0){
+				cursor = new ScanCursor(chunk.position+chunk.size(),chunk.keys.get(chunk.size()-1));
+			}
+			
+			/* The cursor jumps to the key after the last one when the last one has gone */
+			if(seen.size() == 320){
+				bdbl.remove(cursor.getLastKey());
+			}
+		}while(!chunk.last);
+		assertEquals(1000,seen.size());
+		assertEquals(999,bdbl.size());
+	}
+	
 	@SuppressWarnings("unchecked")
 	@Test
 	public void testIterate() {
@@ -222,4 +278,59 @@ public class LUCICabinetBDB_Test {
 		System.out.println(""+(duration/((threadnumber*10*number)+(threadnumber*10*number)))+" milliseconds per operation");
 		testIterate();
 	}
+	
+	
+	@Test
+	public void testRange() {
+		LUCICabinetBDB<Integer,String> ordered = new LUCICabinetBDB<Integer,String>("erasemeOrdered.tcb",false,true);
+		ordered.clear();
+		
+		/* Negative numbers serialize to bytes that sort after the positive ones */
+		for(Integer key=-100; key< 100; key++){
+			ordered.put(key,"foo"+key);
+		}
+		
+		SortedMap<Integer,String> page = ordered.getRange(-10,true,10,100);
+		assertEquals(20,page.size());
+		assertEquals(Integer.valueOf(-10),page.firstKey());
+		assertEquals(Integer.valueOf(9),page.lastKey());
+		assertEquals("foo-10",page.get(-10));
+		
+		page = ordered.getRange(-10,false,null,5);
+		assertEquals(5,page.size());
+		assertEquals(Integer.valueOf(-9),page.firstKey());
+		assertEquals(Integer.valueOf(-5),page.lastKey());
+		
+		assertEquals(0,ordered.getRange(100,true,null,5).size());
+		
+		/* Read in pages of 7, which don't divide the range */
+		Iterator<Map.Entry<Integer,String>> range = ordered.range(-50,50,7);
+		Integer expected = -50;
+		while(range.hasNext()){
+			Map.Entry<Integer,String> e = range.next();
+			assertEquals(expected,e.getKey());
+			assertEquals("foo"+expected,e.getValue());
+			expected++;
+		}
+		assertEquals(Integer.valueOf(50),expected);
+		
+		range = ordered.range(null,null,64);
+		int count = 0;
+		while(range.hasNext()){
+			range.next();
+			count++;
+		}
+		assertEquals(200,count);
+		
+		ordered.clear();
+		ordered.close();
+		
+		try{
+			bdbl.getRange(0,true,10,10);
+			fail("The database wasn't opened with its keys in order");
+		}
+		catch(UnsupportedOperationException e){
+			/* Expected */
+		}
+	}
 }
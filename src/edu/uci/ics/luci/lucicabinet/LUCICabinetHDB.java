@@ -1,6 +1,10 @@
 package edu.uci.ics.luci.lucicabinet;
 
 import java.io.Serializable;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.HashMap;
+import java.util.Map;
 import java.util.concurrent.locks.ReentrantReadWriteLock;
 
 import tokyocabinet.HDB;
@@ -17,6 +21,12 @@ public class LUCICabinetHDB<K extends Serializable,V extends Serializable> exten
 	private HDB hdb = null;
 	private ReentrantReadWriteLock rwlock = null;
 	private boolean optimize = true;
+	private String fileName = null;
+	
+	/** The database has one iterator, which scans and iterations take turns with */
+	private final Object iteratorLock = new Object();
+	/** The serialized key the iterator last stopped at in a scan, null if something else has moved it since */
+	private byte[] scanKey = null;
 
 	/** Open the database stored at the filePathName indicated.
 	 *  If the file doesn't exist it will be created. 
@@ -29,13 +39,33 @@ public class LUCICabinetHDB<K extends Serializable,V extends Serializable> exten
 	 * @param optimize if true, then the database will always return null for put and remove operations
 	 */
 	public LUCICabinetHDB(String filePathAndName,boolean optimize) {
+		this(filePathAndName,optimize,0);
+	}
+	
+	/** Open the database stored at the filePathName indicated, as LUCICabinetHDB(filePathAndName,optimize) does,
+	 * with more or less of the file memory mapped. The mapped part of the file starts with the hash bucket array,
+	 * so a large database is faster when the map covers all of the buckets.
+	 * 
+	 * @param filePathAndName The name of the file to open, e.g."eraseme.tch"
+	 * @param optimize if true, then the database will always return null for put and remove operations
+	 * @param mappedBytes how many bytes of the file to memory map, 0 for tokyo cabinet's default of 64MB
+	 */
+	public LUCICabinetHDB(String filePathAndName,boolean optimize,long mappedBytes) {
 		super();
 		hdb = new HDB();
 		rwlock = new ReentrantReadWriteLock(true);
 		this.optimize = optimize;
+		this.fileName = filePathAndName;
+		
+		if(mappedBytes < 0){
+			throw new IllegalArgumentException("The memory mapped size must not be negative:"+mappedBytes);
+		}
 		
 		rwlock.writeLock().lock();
 		try{
+			if((mappedBytes > 0) && !hdb.setxmsiz(mappedBytes)){
+				throw new RuntimeException("Error setting the memory mapped size of a tokyo cabinet database, code:"+hdb.ecode()+":"+hdb.errmsg());
+			}
 			if(hdb.open(filePathAndName,HDB.OWRITER | HDB.OCREAT)){
 				return;
 			}
@@ -120,6 +150,112 @@ public class LUCICabinetHDB<K extends Serializable,V extends Serializable> exten
 	
 	
 	
+	/**
+	 * Change the value of a key to what a Remapper makes of it while holding the write lock, so no other write can
+	 * come between reading the value and writing the new one. Always returns the change, even if optimize is true.
+	 * Nothing is written if the value stays the same.
+	 * @param key the key to change
+	 * @param remapper given the key and its value, or null if it has none, gives the new value, or null to remove it
+	 * @return the value the key had before and the value it has now
+	 */
+	@SuppressWarnings("unchecked")
+	@Override
+	public Change<V> update(K key,Remapper<? super K,V> remapper){
+		byte[] k = Util.serialize(key);
+		rwlock.writeLock().lock();
+		try{
+			byte[] raw = hdb.get(k);
+			V old = (raw == null) ? null : (V) Util.deserialize(raw);
+			Change<V> change = new Change<V>(old,remapper.remap(key,old));
+			if(!change.isChanged()){
+				return change;
+			}
+			if(change.getNewValue() != null){
+				if(!hdb.put(k,Util.serialize(change.getNewValue()))){
+					throw new RuntimeException("Error putting an element in tokyo cabinet database, code:"+hdb.ecode());
+				}
+			}
+			else{
+				if(!hdb.out(k)){
+					throw new RuntimeException("Error removing element from tokyo cabinet database, code:"+hdb.ecode());
+				}
+			}
+			return change;
+		}
+		finally{
+			rwlock.writeLock().unlock();
+		}
+	}
+	
+	
+	
+	/**
+	 * Put many entries into the database while holding the write lock once.
+	 * @param map the entries to put
+	 */
+	@Override
+	public void putAll(Map<? extends K,? extends V> map){
+		rwlock.writeLock().lock();
+		try{
+			for(Entry<? extends K, ? extends V> e:map.entrySet()){
+				if (!hdb.put(Util.serialize(e.getKey()),Util.serialize(e.getValue()))){
+					throw new RuntimeException("Error putting an element in tokyo cabinet database, code:"+hdb.ecode());
+				}
+			}
+		}
+		finally{
+			rwlock.writeLock().unlock();
+		}
+	}
+	
+	
+	
+	/**
+	 * Apply a batch of puts and removes while holding the write lock once. The whole batch is applied inside
+	 * a single tokyo cabinet transaction so either all of it is written or none of it is.
+	 * @param batch the operations to apply in order
+	 */
+	@Override
+	public void apply(WriteBatch<K,V> batch){
+		rwlock.writeLock().lock();
+		try{
+			if(!hdb.tranbegin()){
+				throw new RuntimeException("Error starting a transaction in tokyo cabinet database, code:"+hdb.ecode());
+			}
+			boolean committed = false;
+			try{
+				for(WriteBatch.Operation<K,V> op:batch.getOperations()){
+					if(op.remove){
+						if(!hdb.out(Util.serialize(op.key))){
+							if(hdb.ecode() != HDB.ENOREC){
+								throw new RuntimeException("Error removing element from tokyo cabinet database, code:"+hdb.ecode());
+							}
+						}
+					}
+					else{
+						if (!hdb.put(Util.serialize(op.key),Util.serialize(op.value))){
+							throw new RuntimeException("Error putting an element in tokyo cabinet database, code:"+hdb.ecode());
+						}
+					}
+				}
+				if(!hdb.trancommit()){
+					throw new RuntimeException("Error committing a transaction in tokyo cabinet database, code:"+hdb.ecode());
+				}
+				committed = true;
+			}
+			finally{
+				if(!committed){
+					hdb.tranabort();
+				}
+			}
+		}
+		finally{
+			rwlock.writeLock().unlock();
+		}
+	}
+	
+	
+	
 	/** Get an entry from the database
 	 * 
 	 * @param key
@@ -146,6 +282,106 @@ public class LUCICabinetHDB<K extends Serializable,V extends Serializable> exten
 	
 	
 	
+	/** Get many entries from the database while holding the read lock once.
+	 * 
+	 * @param keys the keys to look up
+	 * @return a map from each key that has a value in the database to that value. Keys without an entry are left out.
+	 */
+	@SuppressWarnings("unchecked")
+	@Override
+	public Map<K,V> getAll(Collection<? extends K> keys){
+		Map<K,V> ret = new HashMap<K,V>(keys.size());
+		rwlock.readLock().lock();
+		try{
+			for(K key:keys){
+				byte[] value = hdb.get(Util.serialize(key));
+				if(value != null){
+					V v = (V) Util.deserialize(value);
+					if(v != null){
+						ret.put(key,v);
+					}
+				}
+			}
+		}
+		finally{
+			rwlock.readLock().unlock();
+		}
+		return(ret);
+	}
+	
+	
+	
+	/** Get the stored bytes of an entry without deserializing anything
+	 * 
+	 * @param key the serialized key
+	 * @return the serialized value. null if there is no entry
+	 */
+	@Override
+	public byte[] getRaw(byte[] key){
+		rwlock.readLock().lock();
+		try{
+			return hdb.get(key);
+		}
+		finally{
+			rwlock.readLock().unlock();
+		}
+	}
+	
+	
+	
+	/**
+	 * Store the bytes of an entry without deserializing anything
+	 * @param key the serialized key
+	 * @param value the serialized value
+	 * @return the serialized value previously associated with key, or null if optimize is true
+	 */
+	@Override
+	public byte[] putRaw(byte[] key,byte[] value){
+		byte[] ret = null;
+		rwlock.writeLock().lock();
+		try{
+			if(!optimize){
+				ret = hdb.get(key);
+			}
+			if (!hdb.put(key,value)){
+				throw new RuntimeException("Error putting an element in tokyo cabinet database, code:"+hdb.ecode());
+			}
+		}
+		finally{
+			rwlock.writeLock().unlock();
+		}
+		return ret;
+	}
+	
+	
+	
+	/**
+	 * Remove an entry without deserializing anything.  If the record doesn't exist nothing happens.
+	 * @param key the serialized key
+	 * @return the serialized value that was removed, or null if optimize is true
+	 */
+	@Override
+	public byte[] removeRaw(byte[] key){
+		byte[] ret = null;
+		rwlock.writeLock().lock();
+		try{
+			if(!optimize){
+				ret = hdb.get(key);
+			}
+			if(!hdb.out(key)){
+				if(hdb.ecode() != HDB.ENOREC){
+					throw new RuntimeException("Error removing element from tokyo cabinet database, code:"+hdb.ecode());
+				}
+			}
+		}
+		finally{
+			rwlock.writeLock().unlock();
+		}
+		return ret;
+	}
+	
+	
+	
 	/** Iterate over the entries in the database and call the appropriate methods in <param>iwClass</param>
 	 * to do work.  See IteratorWorker for details on how the iteration works.
 	 * @param iwClass the class to instantiate to do the work
@@ -153,8 +389,22 @@ public class LUCICabinetHDB<K extends Serializable,V extends Serializable> exten
 	 * @throws IllegalAccessException 
 	 * @throws InstantiationException 
 	 */
-	@SuppressWarnings("unchecked")
 	public IteratorWorker<K,V> iterate(Class<? extends IteratorWorker<K,V>> iwClass,IteratorWorkerConfig iwConfig) throws InstantiationException, IllegalAccessException{
+		return(iterate(iwClass,iwConfig,new StopSignal()));
+	}
+	
+	
+	/** Iterate over the entries in the database as one piece of an iteration spread over several databases, see
+	 * LUCICabinetMap.iterate.
+	 * @param iwClass the class to instantiate to do the work
+	 * @param iwConfig any configuration parameters to pass to iwClass after it is instantiated during initialization
+	 * @param stop checked before each entry, and given if the IteratorWorker asks to stop
+	 * @throws IllegalAccessException 
+	 * @throws InstantiationException 
+	 */
+	@SuppressWarnings("unchecked")
+	@Override
+	public IteratorWorker<K,V> iterate(Class<? extends IteratorWorker<K,V>> iwClass,IteratorWorkerConfig iwConfig,StopSignal stop) throws InstantiationException, IllegalAccessException{
 		
 		IteratorWorker<K,V> iw = iwClass.newInstance();
 		
@@ -167,16 +417,21 @@ public class LUCICabinetHDB<K extends Serializable,V extends Serializable> exten
 			rwlock.writeLock().unlock();
 		}
 		
+		boolean asked = false;
 		try{
-			boolean x = hdb.iterinit();
-			boolean keepGoing = true;
-			if(x){
-				byte[] _key;
-				while (keepGoing && ((_key = hdb.iternext()) != null)) {
-					K key = (K) Util.deserialize(_key);
-					V value = (V) Util.deserialize(hdb.get(_key));
-					if(iw.iterate(key,value)){
-						keepGoing = false;
+			synchronized(iteratorLock){
+				scanKey = null;
+				boolean x = hdb.iterinit();
+				boolean keepGoing = true;
+				if(x){
+					byte[] _key;
+					while (keepGoing && !stop.isStopped() && ((_key = hdb.iternext()) != null)) {
+						K key = (K) Util.deserialize(_key);
+						V value = (V) Util.deserialize(hdb.get(_key));
+						if(iw.iterate(key,value)){
+							keepGoing = false;
+							asked = true;
+						}
 					}
 				}
 			}
@@ -185,6 +440,11 @@ public class LUCICabinetHDB<K extends Serializable,V extends Serializable> exten
 			rwlock.readLock().unlock();
 		}
 		
+		/* Outside the lock, the listeners may go over the network */
+		if(asked){
+			stop.stop();
+		}
+		
 		rwlock.writeLock().lock();
 		try{
 			iw.shutdown(this);
@@ -198,6 +458,65 @@ public class LUCICabinetHDB<K extends Serializable,V extends Serializable> exten
 	
 	
 	
+	/**
+	 * Get the next chunk of a scan, see LUCICabinetMap.scanChunk. The iterator is left where the chunk ended, so the
+	 * next chunk carries on from there unless something else has used the iterator in between. Otherwise the
+	 * iterator is started again and run past the last key without reading any values, or past as many entries as
+	 * the cursor has seen if the last key has been removed.
+	 * @param from where the last chunk ended, null to start at the beginning
+	 * @param max the most entries to collect
+	 * @return the entries, marked as the last chunk if there were fewer than <param>max</param> left
+	 */
+	@SuppressWarnings("unchecked")
+	@Override
+	ScanChunk<K,V> scanChunk(ScanCursor from,int max){
+		ScanChunk<K,V> ret = new ScanChunk<K,V>((from == null) ? 0 : from.getPosition(),max);
+		rwlock.readLock().lock();
+		try{
+			synchronized(iteratorLock){
+				byte[] last = ((from == null) || (from.getLastKey() == null)) ? null : Util.serialize(from.getLastKey());
+				if((last == null) || (scanKey == null) || !Arrays.equals(last,scanKey)){
+					scanKey = null;
+					hdb.iterinit();
+					if(from != null){
+						skipTo(last,from.getPosition());
+					}
+				}
+				byte[] _key;
+				while((ret.size() < max) && ((_key = hdb.iternext()) != null)){
+					ret.add((K) Util.deserialize(_key),(V) Util.deserialize(hdb.get(_key)));
+					scanKey = _key;
+				}
+			}
+		}
+		finally{
+			rwlock.readLock().unlock();
+		}
+		ret.last = (ret.size() < max);
+		return(ret);
+	}
+	
+	
+	/**
+	 * Move the iterator just past a key, or past <param>position</param> entries if the key isn't there. Called
+	 * holding the iterator lock after iterinit.
+	 */
+	private void skipTo(byte[] last,long position){
+		if(last != null){
+			byte[] _key;
+			while((_key = hdb.iternext()) != null){
+				if(Arrays.equals(_key,last)){
+					return;
+				}
+			}
+			hdb.iterinit();
+		}
+		for(long i = 0; (i < position) && (hdb.iternext() != null); i++){
+			/* Skip */
+		}
+	}
+	
+	
 	/**
 	 *  Close the database. This must be done to ensure database is not damaged on disk after being opened.
 	 */
@@ -218,6 +537,45 @@ public class LUCICabinetHDB<K extends Serializable,V extends Serializable> exten
 	
 	
 	
+	/**
+	 * Statistics from tokyo cabinet. There is no cheap way to measure fragmentation, so file_bytes_per_record stands
+	 * in for it: it grows when removed records leave space behind that hasn't been reused.
+	 * @return records, file_size_bytes, file_bytes_per_record and lock_waiters, the number of threads waiting for
+	 * the lock on the database
+	 */
+	@Override
+	public Map<String,Long> getEngineStats(){
+		Map<String,Long> ret = new HashMap<String,Long>();
+		rwlock.readLock().lock();
+		try{
+			long records = hdb.rnum();
+			long size = hdb.fsiz();
+			ret.put("records",records);
+			ret.put("file_size_bytes",size);
+			ret.put("file_bytes_per_record",(records == 0) ? 0 : size / records);
+		}
+		finally{
+			rwlock.readLock().unlock();
+		}
+		ret.put("lock_waiters",(long) rwlock.getQueueLength());
+		return(ret);
+	}
+	
+	
+	
+	/**
+	 * Read ahead through the file from its start, which is the header and then the hash bucket array, so that
+	 * lookups don't each wait on the disk for their bucket.
+	 * @param maxBytes the most of the file to read
+	 * @return how many bytes were read
+	 */
+	@Override
+	public long warmUp(long maxBytes){
+		return readAhead(fileName,maxBytes);
+	}
+	
+	
+	
 	/**
 	 * @return the number of records in the database.
 	 */
@@ -241,6 +599,9 @@ public class LUCICabinetHDB<K extends Serializable,V extends Serializable> exten
 		rwlock.writeLock().lock();
 		try{
 			hdb.vanish();
+			synchronized(iteratorLock){
+				scanKey = null;
+			}
 		}
 		finally{
 			rwlock.writeLock().unlock();
@@ -2,7 +2,9 @@ package edu.uci.ics.luci.lucicabinet;
 
 import java.io.IOException;
 import java.io.Serializable;
+import java.net.SocketAddress;
 import java.net.UnknownHostException;
+import java.util.List;
 
 import org.apache.log4j.Logger;
 
@@ -36,5 +38,24 @@ public class LUCICabinetHDB_Remote<K extends Serializable,V extends Serializable
 	public LUCICabinetHDB_Remote(String host,Integer port,boolean optimize) throws UnknownHostException, IOException {
 		super(host,port,optimize);
 	}
+	
+	/**
+	 *  This method opens a socket connection and read/write stream to the first of the remote servers running a
+	 *  LUCI_Butler service that answers. The others are failed over to if the connection is lost.
+	 * @param endpoints The remote hosts and ports, or Unix domain sockets, to connect to, in order of preference
+	 */
+	public LUCICabinetHDB_Remote(List<? extends SocketAddress> endpoints,boolean optimize) {
+		super(endpoints,optimize);
+	}
+	
+	/**
+	 *  This method opens a socket connection to the first of the remote servers running a LUCI_Butler service that
+	 *  answers, and uses one of the databases it serves, see LUCI_Butler.addDatabase.
+	 * @param endpoints The remote hosts and ports, or Unix domain sockets, to connect to, in order of preference
+	 * @param database The name the database was added to the LUCI_Butler with
+	 */
+	public LUCICabinetHDB_Remote(List<? extends SocketAddress> endpoints,String database,boolean optimize) {
+		super(endpoints,database,optimize);
+	}
 
 }
\ No newline at end of file
@@ -4,8 +4,23 @@ import static org.junit.Assert.assertEquals;
 import static org.junit.Assert.assertTrue;
 import static org.junit.Assert.fail;
 
+import java.io.BufferedReader;
 import java.io.IOException;
+import java.io.InputStreamReader;
+import java.io.ObjectInputStream;
+import java.io.ObjectOutputStream;
+import java.net.InetSocketAddress;
+import java.net.SocketAddress;
+import java.net.ServerSocket;
+import java.net.Socket;
 import java.net.UnknownHostException;
+import java.util.ArrayList;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.atomic.AtomicInteger;
 
 import org.apache.log4j.BasicConfigurator;
 import org.junit.After;
@@ -15,6 +30,7 @@ import org.junit.BeforeClass;
 import org.junit.Test;
 
 import edu.uci.ics.luci.lucicabinet.library.IteratorWorkerCountEntries;
+import edu.uci.ics.luci.lucicabinet.library.TokenBucketRateLimiter;
 
 
 public class LUCICabinetHDB_Remote_Test {
@@ -141,6 +157,932 @@ public class LUCICabinetHDB_Remote_Test {
 	}
 
 
+	@Test
+	public void testRaw() {
+		byte[] key = Serialization.serialize(Integer.valueOf(7));
+		hdb_remote.putRaw(key,Serialization.serialize("foo7"));
+		
+		/* Raw and typed access see the same entries */
+		assertEquals("foo7",hdbl.get(7));
+		assertEquals("foo7",hdb_remote.get(7));
+		assertEquals("foo7",Serialization.deserialize(hdb_remote.getRaw(key)));
+		
+		hdb_remote.put(8,"foo8");
+		assertEquals("foo8",Serialization.deserialize(hdbl.getRaw(Serialization.serialize(Integer.valueOf(8)))));
+		
+		hdb_remote.removeRaw(key);
+		assertTrue(hdb_remote.getRaw(key) == null);
+		assertTrue(hdb_remote.get(7) == null);
+		
+		hdb_remote.clear();
+	}
+
+
+	@Test
+	public void testNearCache() {
+		LUCICabinetHDB_Remote<Integer,String> other = null;
+		try{
+			other = new LUCICabinetHDB_Remote<Integer,String>("localhost",8181,false);
+		} catch (UnknownHostException e) {
+			fail("This shouldn't throw an exception"+e);
+		} catch (IOException e) {
+			fail("This shouldn't throw an exception"+e);
+		} catch(RuntimeException e){
+			fail("This shouldn't throw an exception"+e);
+		}
+		
+		NearCache cache = hdb_remote.enableNearCache(100,60000);
+		other.put(1,"foo1");
+		
+		assertEquals("foo1",hdb_remote.get(1));
+		assertEquals("foo1",hdb_remote.get(1));
+		assertEquals("foo1",hdb_remote.get(1));
+		assertEquals(2,cache.getHits());
+		assertEquals(1,cache.getMisses());
+		
+		/* A write from another connection is pushed to this one */
+		other.put(1,"bar1");
+		long start = System.currentTimeMillis();
+		while((cache.size() > 0) && (System.currentTimeMillis()-start < 5000)){
+			try {
+				Thread.sleep(10);
+			} catch (InterruptedException e) {
+				fail("This shouldn't be interrupted"+e);
+			}
+		}
+		assertEquals("bar1",hdb_remote.get(1));
+		
+		/* A local write doesn't wait for the server */
+		hdb_remote.put(1,"baz1");
+		assertEquals("baz1",hdb_remote.get(1));
+		
+		/* A putIfAbsent or replace that changes nothing doesn't drop the value from any cache. These keys are written
+		 * before this connection gets them, so there are no invalidations of them still on their way to it. */
+		other.put(2,"foo2");
+		other.put(3,"foo3");
+		assertEquals("foo2",hdb_remote.get(2));
+		assertEquals("foo3",hdb_remote.get(3));
+		assertEquals("foo3",hdb_remote.putIfAbsent(3,"qux3"));
+		assertEquals("foo3",other.putIfAbsent(3,"qux3"));
+		assertTrue(!other.replace(3,"qux3","quux3"));
+		/* Invalidations arrive in order, so once this one is here any for the key above would be too */
+		other.put(2,"bar2");
+		start = System.currentTimeMillis();
+		while(!"bar2".equals(hdb_remote.get(2)) && (System.currentTimeMillis()-start < 5000)){
+			try {
+				Thread.sleep(10);
+			} catch (InterruptedException e) {
+				fail("This shouldn't be interrupted"+e);
+			}
+		}
+		assertEquals("bar2",hdb_remote.get(2));
+		long hits = cache.getHits();
+		assertEquals("foo3",hdb_remote.get(3));
+		assertEquals(hits+1,cache.getHits());
+		
+		/* The cache stays bounded */
+		for(Integer key=0; key< 1000; key++){
+			other.put(key,"foo"+key);
+		}
+		for(Integer key=0; key< 1000; key++){
+			assertEquals("foo"+key,hdb_remote.get(key));
+		}
+		assertTrue(cache.size() <= 100);
+		
+		other.close();
+		hdb_remote.clear();
+	}
+
+
+	@Test
+	public void testTimeout() {
+		/* A server which says hello and then never answers */
+		final List<Socket> accepted = new ArrayList<Socket>();
+		ServerSocket stuck = null;
+		try {
+			stuck = new ServerSocket(8182);
+		} catch (IOException e) {
+			fail("This shouldn't throw an exception"+e);
+		}
+		final ServerSocket server = stuck;
+		Thread t = new Thread(new Runnable(){
+			public void run() {
+				try {
+					while(true){
+						Socket s = server.accept();
+						synchronized(accepted){
+							accepted.add(s);
+						}
+						ObjectOutputStream out = new ObjectOutputStream(s.getOutputStream());
+						out.writeObject(LUCI_Butler.ServerResponse.CONNECTION_OKAY_UNOPTIMIZE);
+						out.flush();
+					}
+				} catch (IOException e) {
+					/* Closed */
+				}
+			}
+		});
+		t.setDaemon(true);
+		t.start();
+		
+		LUCICabinetHDB_Remote<Integer,String> remote = null;
+		try{
+			remote = new LUCICabinetHDB_Remote<Integer,String>("localhost",8182,false);
+		} catch (UnknownHostException e) {
+			fail("This shouldn't throw an exception"+e);
+		} catch (IOException e) {
+			fail("This shouldn't throw an exception"+e);
+		}
+		remote.setTimeout(5000);
+		
+		long start = System.currentTimeMillis();
+		try{
+			remote.get(1,200);
+			fail("This should have timed out");
+		} catch(RuntimeException e){
+			/* Expected */
+		}
+		assertTrue(System.currentTimeMillis()-start < 2000);
+		assertTrue(!remote.isHealthy());
+		
+		/* The next call gets a new connection, which times out too */
+		try{
+			remote.get(1,200);
+			fail("This should have timed out");
+		} catch(RuntimeException e){
+			/* Expected */
+		}
+		synchronized(accepted){
+			assertEquals(2,accepted.size());
+		}
+		
+		remote.setTimeout(200);
+		remote.close();
+		try {
+			server.close();
+			synchronized(accepted){
+				for(Socket s:accepted){
+					s.close();
+				}
+			}
+		} catch (IOException e) {
+			fail("This shouldn't throw an exception"+e);
+		}
+	}
+	
+	
+	@Test
+	public void testQueueLimit() {
+		/* A server which says hello and then never answers, so everything after the first write stays queued */
+		final List<Socket> accepted = new ArrayList<Socket>();
+		ServerSocket stuck = null;
+		try {
+			stuck = new ServerSocket(8182);
+		} catch (IOException e) {
+			fail("This shouldn't throw an exception"+e);
+		}
+		final ServerSocket server = stuck;
+		Thread t = new Thread(new Runnable(){
+			public void run() {
+				try {
+					while(true){
+						Socket s = server.accept();
+						synchronized(accepted){
+							accepted.add(s);
+						}
+						ObjectOutputStream out = new ObjectOutputStream(s.getOutputStream());
+						out.writeObject(LUCI_Butler.ServerResponse.CONNECTION_OKAY_UNOPTIMIZE);
+						out.flush();
+					}
+				} catch (IOException e) {
+					/* Closed */
+				}
+			}
+		});
+		t.setDaemon(true);
+		t.start();
+		
+		LUCICabinetHDB_Remote<Integer,String> remote = null;
+		try{
+			remote = new LUCICabinetHDB_Remote<Integer,String>("localhost",8182,false);
+		} catch (UnknownHostException e) {
+			fail("This shouldn't throw an exception"+e);
+		} catch (IOException e) {
+			fail("This shouldn't throw an exception"+e);
+		}
+		remote.setTimeout(3000);
+		remote.setBatchSize(1);
+		assertEquals(10000,remote.getQueueLimit());
+		assertEquals(LUCICabinetMap_Remote.QueuePolicy.BLOCK,remote.getQueuePolicy());
+		
+		final AtomicInteger high = new AtomicInteger(0);
+		remote.setQueueListener(new QueueListener(){
+			@Override
+			public void highWater(LUCICabinetMap_Remote<?,?> map,int depth) {
+				high.incrementAndGet();
+			}
+		},2);
+		remote.setQueueLimit(3,LUCICabinetMap_Remote.QueuePolicy.FAIL_FAST);
+		
+		/* The first write is taken by the worker thread, which waits for the reply */
+		remote.putAsync(0,"stuck");
+		for(int i = 1; i <= 3; i++){
+			remote.putAsync(i,"queued");
+		}
+		assertEquals(3,remote.getQueueDepth());
+		assertEquals(3,remote.getQueuePeak());
+		assertEquals(1,high.get());
+		try{
+			remote.putAsync(4,"rejected");
+			fail("The queue should have been full");
+		} catch(RejectedExecutionException e){
+			/* Expected */
+		}
+		assertEquals(1,remote.getQueueRejections());
+		assertEquals(1,remote.getFailedWrites());
+		
+		/* Dropping the oldest keeps the newest */
+		remote.setQueueLimit(3,LUCICabinetMap_Remote.QueuePolicy.DROP_OLDEST);
+		remote.putAsync(5,"dropping");
+		assertEquals(3,remote.getQueueDepth());
+		assertEquals(1,remote.getQueueDrops());
+		assertEquals(2,remote.getFailedWrites());
+		
+		/* Waiting for room gives up after the timeout */
+		remote.setQueueLimit(3,LUCICabinetMap_Remote.QueuePolicy.BLOCK);
+		remote.setTimeout(300);
+		long start = System.currentTimeMillis();
+		try{
+			remote.putAsync(6,"blocked");
+			fail("The queue should have stayed full");
+		} catch(RejectedExecutionException e){
+			/* Expected */
+		}
+		assertTrue(System.currentTimeMillis()-start >= 250);
+		assertEquals(2,remote.getQueueRejections());
+		
+		remote.setReconnectAttempts(0);
+		remote.setTimeout(100);
+		remote.close();
+		try {
+			server.close();
+			synchronized(accepted){
+				for(Socket s:accepted){
+					s.close();
+				}
+			}
+		} catch (IOException e) {
+			fail("This shouldn't throw an exception"+e);
+		}
+	}
+	
+	
+	@Test
+	public void testFailover() {
+		/* A server which says hello and then dies on the first command it gets */
+		ServerSocket dying = null;
+		try {
+			dying = new ServerSocket(8183);
+		} catch (IOException e) {
+			fail("This shouldn't throw an exception"+e);
+		}
+		final ServerSocket server = dying;
+		Thread t = new Thread(new Runnable(){
+			public void run() {
+				try {
+					Socket s = server.accept();
+					ObjectOutputStream out = new ObjectOutputStream(s.getOutputStream());
+					out.writeObject(LUCI_Butler.ServerResponse.CONNECTION_OKAY_UNOPTIMIZE);
+					out.flush();
+					ObjectInputStream in = new ObjectInputStream(s.getInputStream());
+					in.readObject();
+					server.close();
+					s.close();
+				} catch (IOException e) {
+					/* Closed */
+				} catch (ClassNotFoundException e) {
+					/* Closed */
+				}
+			}
+		});
+		t.setDaemon(true);
+		t.start();
+		
+		List<InetSocketAddress> endpoints = new ArrayList<InetSocketAddress>();
+		endpoints.add(new InetSocketAddress("localhost",8183));
+		endpoints.add(new InetSocketAddress("localhost",8181));
+		LUCICabinetHDB_Remote<Integer,String> remote = new LUCICabinetHDB_Remote<Integer,String>(endpoints,false);
+		assertEquals(8183,((InetSocketAddress) remote.getEndpoint()).getPort());
+		
+		/* The batch is lost with the first server and replayed on the second */
+		remote.putAsync(1,"one");
+		remote.putAsync(2,"two");
+		remote.flush();
+		assertEquals("one",remote.get(1));
+		assertEquals("two",hdbl.get(2));
+		assertEquals(8181,((InetSocketAddress) remote.getEndpoint()).getPort());
+		assertEquals(0,remote.getFailedWrites());
+		assertTrue(remote.isHealthy());
+		
+		remote.close();
+		try {
+			server.close();
+		} catch (IOException e) {
+			fail("This shouldn't throw an exception"+e);
+		}
+	}
+	
+	
+	/**
+	 * A database which fails every batch of writes and every iteration, as a full disk or a bug would
+	 */
+	public static class FailingHDB extends LUCICabinetHDB<Integer,String>{
+		
+		public FailingHDB(String filePathAndName,boolean optimize) {
+			super(filePathAndName,optimize);
+		}
+		
+		@Override
+		public void apply(WriteBatch<Integer,String> batch){
+			throw new RuntimeException("Failing a batch");
+		}
+		
+		@Override
+		public IteratorWorker<Integer,String> iterate(Class<? extends IteratorWorker<Integer,String>> iwClass,IteratorWorkerConfig iwConfig,StopSignal stop) throws InstantiationException, IllegalAccessException{
+			throw new RuntimeException("Failing an iteration");
+		}
+	}
+	
+	@SuppressWarnings("unchecked")
+	@Test
+	public void testCommandFailed() {
+		FailingHDB failing = new FailingHDB("erasemeFailing.tch",false);
+		LUCI_Butler<Integer,String> failingButler = new LUCI_Butler<Integer,String>(failing,8185,new TestAccessControl());
+		failingButler.initialize();
+		LUCICabinetHDB_Remote<Integer,String> remote = null;
+		try{
+			remote = new LUCICabinetHDB_Remote<Integer,String>("localhost",8185,false);
+		} catch (UnknownHostException e) {
+			fail("This shouldn't throw an exception"+e);
+		} catch (IOException e) {
+			fail("This shouldn't throw an exception"+e);
+		}
+		
+		remote.setInProcess(false);
+		
+		/* A command which fails on the server isn't sent again, the way one lost with the connection is */
+		try{
+			remote.iterate((Class<? extends IteratorWorker<Integer, String>>) IteratorWorkerCountEntries.class,null);
+			fail("The iteration fails on the server");
+		} catch (CommandFailedException e) {
+			/* Expected */
+		} catch (InstantiationException e) {
+			fail("This shouldn't throw an exception"+e);
+		} catch (IllegalAccessException e) {
+			fail("This shouldn't throw an exception"+e);
+		}
+		assertEquals(1,failingButler.getStats().getCount("ITERATE"));
+		
+		/* Nor is a batch of asynchronous writes replayed */
+		remote.putAsync(1,"one");
+		remote.putAsync(2,"two");
+		remote.flush();
+		assertEquals(null,remote.get(1));
+		assertEquals(2,remote.getFailedWrites());
+		assertEquals(1,failingButler.getStats().getCount("BATCH"));
+		assertTrue(remote.isHealthy());
+		
+		remote.close();
+		failingButler.shutdown();
+		failing.close();
+	}
+
+
+	@Test
+	public void testUnixSocket() {
+		if(!Connection.isUnixSupported()){
+			return;
+		}
+		butler.initializeUnixSocket("eraseme.sock");
+		
+		List<SocketAddress> endpoints = new ArrayList<SocketAddress>();
+		endpoints.add(LUCICabinetMap_Remote.unixSocket("eraseme.sock"));
+		LUCICabinetHDB_Remote<Integer,String> remote = new LUCICabinetHDB_Remote<Integer,String>(endpoints,false);
+		assertTrue(remote.isHealthy());
+		
+		remote.clear();
+		for(Integer key=0; key< 100; key++){
+			remote.put(key,"foo"+key);
+		}
+		for(Integer key=0; key< 100; key++){
+			assertEquals("foo"+key,remote.get(key));
+			assertEquals("foo"+key,hdb_remote.get(key));
+		}
+		
+		int count = 0;
+		ScanIterator<Integer,String> scan = remote.scan(null,7,2);
+		while(scan.hasNext()){
+			scan.next();
+			count++;
+		}
+		assertEquals(100,count);
+		
+		remote.close();
+	}
+
+
+	@Test
+	public void testNamedDatabases() {
+		LUCICabinetHDB<Integer,String> other = new LUCICabinetHDB<Integer,String>("eraseme_named.tch",false);
+		butler.addDatabase("named",other);
+		try{
+			butler.addDatabase("named",other);
+			fail("The same name can't be added twice");
+		}
+		catch(RuntimeException e){
+		}
+		assertTrue(butler.getDatabaseNames().contains("named"));
+		
+		/* Both databases over the one connection, with their operations interleaved */
+		LUCICabinetMap_Remote<Integer,String> named = hdb_remote.database("named",false);
+		assertEquals("named",named.getDatabase());
+		hdb_remote.clear();
+		named.clear();
+		for(Integer key=0; key< 100; key++){
+			hdb_remote.put(key,"foo"+key);
+			named.put(key,"bar"+key);
+			named.putAsync(key+100,"bar"+key);
+		}
+		named.flush();
+		for(Integer key=0; key< 100; key++){
+			assertEquals("foo"+key,hdb_remote.get(key));
+			assertEquals("bar"+key,named.get(key));
+			assertEquals("foo"+key,hdbl.get(key));
+			assertEquals("bar"+key,other.get(key));
+		}
+		assertEquals(100L,(long)hdb_remote.sizeLong());
+		assertEquals(200L,(long)named.sizeLong());
+		
+		int count = 0;
+		ScanIterator<Integer,String> scan = named.scan(null,7,2);
+		while(scan.hasNext()){
+			assertTrue(scan.next().getValue().startsWith("bar"));
+			count++;
+		}
+		assertEquals(200,count);
+		
+		LUCI_ButlerStats stats = named.getStats();
+		assertEquals(200L,(long)stats.getEngineStats("named").get("records"));
+		assertEquals(100L,(long)stats.getEngineStats().get("records"));
+		assertTrue(stats.toOpenMetrics().contains("luci_butler_engine_records{database=\"named\"} 200\n"));
+		
+		/* A map can also be opened straight onto a named database */
+		List<SocketAddress> endpoints = new ArrayList<SocketAddress>();
+		endpoints.add(new InetSocketAddress("localhost",8181));
+		LUCICabinetHDB_Remote<Integer,String> direct = new LUCICabinetHDB_Remote<Integer,String>(endpoints,"named",false);
+		assertEquals("bar"+5,direct.get(5));
+		direct.close();
+		
+		try{
+			hdb_remote.database("named",true);
+			fail("The optimize setting has to match");
+		}
+		catch(RuntimeException e){
+		}
+		
+		/* Closing a view leaves the connection open */
+		named.close();
+		assertEquals("foo"+5,hdb_remote.get(5));
+		
+		hdb_remote.setReconnectAttempts(0);
+		try{
+			hdb_remote.database("missing",false);
+			fail("There is no database with that name");
+		}
+		catch(RuntimeException e){
+		}
+		assertEquals("foo"+5,hdb_remote.get(5));
+		
+		assertEquals(other,butler.removeDatabase("named"));
+		other.close();
+	}
+
+
+	@Test
+	public void testLanes() {
+		butler.configureLane(LUCI_Butler.Lane.BULK,1,Thread.MIN_PRIORITY);
+		assertEquals(1,butler.getLaneConcurrency(LUCI_Butler.Lane.BULK));
+		
+		hdb_remote.clear();
+		for(Integer key=0; key< 100; key++){
+			hdb_remote.put(key,"foo"+key);
+		}
+		
+		/* A scan holds the only bulk slot until it is closed */
+		ScanIterator<Integer,String> scan = hdb_remote.scan(null,1,1);
+		assertTrue(scan.hasNext());
+		
+		List<SocketAddress> endpoints = new ArrayList<SocketAddress>();
+		endpoints.add(new InetSocketAddress("localhost",8181));
+		final LUCICabinetHDB_Remote<Integer,String> other = new LUCICabinetHDB_Remote<Integer,String>(endpoints,false);
+		final List<Throwable> problems = new ArrayList<Throwable>();
+		Thread t = new Thread(new Runnable(){
+			public void run() {
+				try{
+					other.clear();
+				}
+				catch(Throwable e){
+					problems.add(e);
+				}
+			}
+		});
+		t.start();
+		
+		try {
+			Thread.sleep(200);
+		} catch (InterruptedException e) {
+			fail("This shouldn't throw an exception"+e);
+		}
+		assertTrue(t.isAlive());
+		LUCI_ButlerStats stats = hdb_remote.getStats();
+		assertEquals(1,stats.getLaneRunning(LUCI_Butler.Lane.BULK));
+		assertEquals(1,stats.getLaneWaiting(LUCI_Butler.Lane.BULK));
+		
+		/* Once the queue is full, more bulk work is turned away rather than queued */
+		butler.setLaneQueueLimit(LUCI_Butler.Lane.BULK,1);
+		LUCICabinetHDB_Remote<Integer,String> third = new LUCICabinetHDB_Remote<Integer,String>(endpoints,false);
+		third.setReconnectAttempts(0);
+		try{
+			third.clear();
+			fail("The bulk lane is full");
+		}
+		catch(ServerBusyException e){
+		}
+		assertTrue(third.isHealthy());
+		assertEquals(1,hdb_remote.getStats().getRejections("CLEAR"));
+		third.close();
+		
+		/* Point operations go straight past */
+		for(Integer key=0; key< 100; key++){
+			assertEquals("foo"+key,hdb_remote.get(key));
+		}
+		
+		scan.close();
+		try {
+			t.join(10000);
+		} catch (InterruptedException e) {
+			fail("This shouldn't throw an exception"+e);
+		}
+		assertTrue(!t.isAlive());
+		assertTrue(problems.isEmpty());
+		assertEquals(0L,(long)hdb_remote.sizeLong());
+		other.close();
+	}
+
+
+	@Test
+	public void testRateLimit() {
+		TokenBucketRateLimiter limiter = new TokenBucketRateLimiter(20,5);
+		limiter.setLimit("fast",100000,100000);
+		butler.setRateLimiter(limiter);
+		
+		List<SocketAddress> endpoints = new ArrayList<SocketAddress>();
+		endpoints.add(new InetSocketAddress("localhost",8181));
+		LUCICabinetHDB_Remote<Integer,String> slow = new LUCICabinetHDB_Remote<Integer,String>(endpoints,false);
+		slow.setClientId("slow");
+		hdb_remote.setClientId("fast");
+		assertEquals("slow",slow.getClientId());
+		
+		hdb_remote.clear();
+		for(Integer key=0; key< 100; key++){
+			hdb_remote.put(key,"foo"+key);
+		}
+		
+		/* The slow client is turned away once its burst is used up, and gets through by backing off */
+		for(Integer key=0; key< 20; key++){
+			assertEquals("foo"+key,slow.get(key));
+		}
+		assertTrue(hdb_remote.getStats().getRejections("GET_RAW") > 0);
+		assertTrue(slow.isHealthy());
+		
+		/* Without retries the busy response comes straight back */
+		slow.setReconnectAttempts(0);
+		boolean turnedAway = false;
+		for(Integer key=0; (key < 20) && !turnedAway; key++){
+			try{
+				slow.get(key);
+			}
+			catch(ServerBusyException e){
+				turnedAway = true;
+			}
+		}
+		assertTrue(turnedAway);
+		
+		/* Other clients aren't held up */
+		hdb_remote.setReconnectAttempts(0);
+		for(Integer key=0; key< 100; key++){
+			assertEquals("foo"+key,hdb_remote.get(key));
+		}
+		
+		butler.setRateLimiter(null);
+		slow.close();
+	}
+
+
+	@Test
+	public void testStats() {
+		hdb_remote.clear();
+		for(Integer key=0; key< 100; key++){
+			hdb_remote.putSync(key,"foo"+key);
+			hdb_remote.get(key);
+		}
+		
+		LUCI_ButlerStats stats = hdb_remote.getStats();
+		assertEquals(100,stats.getCount("GET_RAW"));
+		assertEquals(100,stats.getCount("PUT_RAW"));
+		assertEquals(0,stats.getFailures("GET_RAW"));
+		assertTrue(stats.getLatencyPercentile("GET_RAW",50) <= stats.getLatencyPercentile("GET_RAW",99));
+		assertTrue(stats.getActiveConnections() >= 1);
+		assertTrue(stats.getBytesIn() > 0);
+		assertTrue(stats.getBytesOut() > 0);
+		assertEquals(1,stats.getInFlight());
+		assertEquals(100L,(long)stats.getEngineStats().get("records"));
+		
+		/* Every latency falls inside the bucket it is counted in */
+		for(long micros = 0; micros < 100000; micros += 7){
+			int b = LUCI_ButlerStats.bucket(micros);
+			assertTrue(micros <= LUCI_ButlerStats.bucketLimit(b));
+			assertTrue((b == 0) || (micros > LUCI_ButlerStats.bucketLimit(b-1)));
+		}
+		
+		butler.startMetricsEndpoint(8184);
+		StringBuilder page = new StringBuilder();
+		try {
+			Socket s = new Socket("localhost",8184);
+			s.getOutputStream().write("GET /metrics HTTP/1.0\r\n\r\n".getBytes("US-ASCII"));
+			s.getOutputStream().flush();
+			BufferedReader in = new BufferedReader(new InputStreamReader(s.getInputStream(),"UTF-8"));
+			String line;
+			while((line = in.readLine()) != null){
+				page.append(line+"\n");
+			}
+			s.close();
+		} catch (IOException e) {
+			fail("This shouldn't throw an exception"+e);
+		}
+		assertTrue(page.toString().startsWith("HTTP/1.0 200 OK"));
+		assertTrue(page.toString().contains("luci_butler_commands_total{command=\"GET_RAW\"} 100\n"));
+		assertTrue(page.toString().contains("luci_butler_engine_records 100\n"));
+		assertTrue(page.toString().endsWith("# EOF\n"));
+	}
+
+
+	@Test
+	public void testInProcess() {
+		/* The butler is in this JVM, so operations skip the socket */
+		assertTrue(hdb_remote.isInProcess());
+		hdb_remote.clear();
+		long bytesIn = butler.getStats().getBytesIn();
+		for(Integer key=0; key< 100; key++){
+			hdb_remote.putSync(key,"foo"+key);
+			assertEquals("foo"+key,hdb_remote.get(key));
+		}
+		hdb_remote.putAsync(100,"async");
+		assertEquals("async",hdb_remote.get(100));
+		assertEquals(101L,(long)hdb_remote.sizeLong());
+		
+		/* They are still counted by the butler, but nothing was sent */
+		LUCI_ButlerStats stats = butler.getStats();
+		assertEquals(101,stats.getCount("GET_RAW"));
+		assertEquals(100,stats.getCount("PUT_RAW"));
+		assertEquals(1,stats.getCount("BATCH"));
+		assertEquals(bytesIn,stats.getBytesIn());
+		
+		/* And still rate limited */
+		butler.setRateLimiter(new TokenBucketRateLimiter(1,1));
+		hdb_remote.setReconnectAttempts(0);
+		hdb_remote.get(0);
+		try{
+			hdb_remote.get(0);
+			fail("The rate limit should have turned this away");
+		}
+		catch(ServerBusyException e){
+		}
+		butler.setRateLimiter(null);
+		
+		/* The same operations over the socket */
+		hdb_remote.setInProcess(false);
+		assertTrue(!hdb_remote.isInProcess());
+		for(Integer key=0; key< 100; key++){
+			assertEquals("foo"+key,hdb_remote.get(key));
+		}
+		assertTrue(butler.getStats().getBytesIn() > bytesIn);
+		
+		hdb_remote.setInProcess(true);
+		assertTrue(hdb_remote.isInProcess());
+		assertEquals("async",hdb_remote.get(100));
+		
+		/* A map on a named database uses the connection's end too */
+		LUCICabinetHDB<Integer,String> other = new LUCICabinetHDB<Integer,String>("eraseme_inprocess.tch",false);
+		other.clear();
+		butler.addDatabase("other",other);
+		LUCICabinetMap_Remote<Integer,String> view = hdb_remote.database("other",false);
+		view.put(1,"other");
+		assertEquals("other",other.get(1));
+		assertEquals("foo1",hdb_remote.get(1));
+		view.close();
+		butler.removeDatabase("other");
+		other.close();
+	}
+
+
+	/**
+	 * Counts in a String, run by the LUCI_Butler
+	 */
+	public static class Increment implements Remapper<Integer,String>{
+		private static final long serialVersionUID = -3320725096394727166L;
+		
+		public String remap(Integer key,String value){
+			return Integer.toString((value == null) ? 1 : Integer.parseInt(value) + 1);
+		}
+	}
+	
+	/**
+	 * Gives a different value every time it is run, to show how many times it was
+	 */
+	public static class CountCalls implements Remapper<Integer,String>{
+		private static final long serialVersionUID = 2467359188112618213L;
+		
+		public static final AtomicInteger calls = new AtomicInteger(0);
+		
+		public String remap(Integer key,String value){
+			return Integer.toString(calls.incrementAndGet());
+		}
+	}
+	
+	@Test
+	public void testConditional() {
+		/* Over the socket, as a client somewhere else would be */
+		hdb_remote.setInProcess(false);
+		hdb_remote.clear();
+		
+		assertEquals(null,hdb_remote.putIfAbsent(1,"foo"));
+		assertEquals("foo",hdb_remote.putIfAbsent(1,"bar"));
+		assertTrue(!hdb_remote.replace(1,"bar","baz"));
+		assertTrue(hdb_remote.replace(1,"foo","baz"));
+		assertEquals("baz",hdbl.get(1));
+		assertTrue(!hdb_remote.remove(1,"foo"));
+		assertTrue(hdb_remote.remove(1,"baz"));
+		assertEquals(null,hdbl.get(1));
+		assertEquals("a",hdb_remote.mergeAtomic(2,"a",new LUCICabinetHDB_Test.Concat()));
+		assertEquals("ab",hdb_remote.mergeAtomic(2,"b",new LUCICabinetHDB_Test.Concat()));
+		assertEquals("ab",hdbl.get(2));
+		
+		/* Several clients counting at once, one round trip for each count */
+		final AtomicInteger failures = new AtomicInteger(0);
+		Thread[] t = new Thread[4];
+		for(int i = 0; i < t.length; i++){
+			t[i] = new Thread(new Runnable(){
+				public void run() {
+					LUCICabinetHDB_Remote<Integer,String> client = null;
+					try{
+						client = new LUCICabinetHDB_Remote<Integer,String>("localhost",8181,false);
+						client.setInProcess(false);
+						for(int j = 0; j < 250; j++){
+							client.computeAtomic(7,new Increment());
+						}
+					}
+					catch(Exception e){
+						failures.incrementAndGet();
+					}
+					finally{
+						if(client != null){
+							client.close();
+						}
+					}
+				}
+			});
+			t[i].start();
+		}
+		for(int i = 0; i < t.length; i++){
+			try {
+				t[i].join();
+			} catch (InterruptedException e) {
+				fail("This shouldn't be interrupted"+e);
+			}
+		}
+		assertEquals(0,failures.get());
+		assertEquals("1000",hdb_remote.get(7));
+		assertEquals("1001",hdb_remote.computeAtomic(7,new Increment()));
+		/* Each conditional operation above was one UPDATE too */
+		assertEquals(8+1001,butler.getStats().getCount("UPDATE"));
+		
+		/* A Remapper which fails on the LUCI_Butler fails here, and leaves the entry alone */
+		hdb_remote.put(8,"eight");
+		try{
+			hdb_remote.computeAtomic(8,new Increment());
+			fail("\"eight\" isn't a number");
+		}
+		catch(RuntimeException e){
+			/* Expected */
+		}
+		assertEquals("eight",hdb_remote.get(8));
+		
+		/* The value computed comes back from the LUCI_Butler, the Remapper isn't run again here */
+		CountCalls.calls.set(0);
+		assertEquals("1",hdb_remote.computeAtomic(9,new CountCalls()));
+		assertEquals(1,CountCalls.calls.get());
+		assertEquals("1",hdbl.get(9));
+		
+		/* The same in the same JVM */
+		hdb_remote.setInProcess(true);
+		assertEquals("1002",hdb_remote.computeAtomic(7,new Increment()));
+		assertEquals("1002",hdb_remote.putIfAbsent(7,"foo"));
+		
+		hdb_remote.clear();
+	}
+	
+	
+	@Test
+	public void testBatchedAsync() {
+		hdb_remote.setBatchSize(100);
+
+		/* 1050 is not a multiple of the batch size so the last batch has to be flushed by the sync call */
+		for(Integer key=0; key< 1050; key++){
+			String value = "foo"+key;
+			hdb_remote.putAsync(key,value);
+		}
+		assertEquals(1050,hdb_remote.size());
+
+		for(Integer key=0; key< 1050; key++){
+			String x = (String) hdb_remote.get(key);
+			assertEquals("foo"+key,x);
+		}
+
+		for(Integer key=0; key< 1050; key+=2){
+			hdb_remote.removeAsync(key);
+		}
+
+		/* Nothing should be left waiting once the linger time has passed */
+		try {
+			Thread.sleep(1000);
+		} catch (InterruptedException e) {
+			fail("This shouldn't be interrupted"+e);
+		}
+		assertEquals(525,hdbl.size());
+
+		for(Integer key=0; key< 1050; key++){
+			String x = hdb_remote.get(key);
+			if(key % 2 == 0){
+				assertTrue(x == null);
+			}
+			else{
+				assertEquals("foo"+key,x);
+			}
+		}
+		hdb_remote.clear();
+	}
+
+
+	@Test
+	public void testScan() {
+		for(Integer key=0; key< 1000; key++){
+			hdb_remote.put(key,"foo"+key);
+		}
+		
+		/* Read part of the way, stop, then resume from the cursor */
+		Set<Integer> seen = new HashSet<Integer>();
+		ScanIterator<Integer,String> scan = hdb_remote.scan(null,50,2);
+		for(int i = 0; i < 321; i++){
+			assertTrue(scan.hasNext());
+			Map.Entry<Integer,String> e = scan.next();
+			assertEquals("foo"+e.getKey(),e.getValue());
+			assertTrue(seen.add(e.getKey()));
+		}
+		ScanCursor cursor = scan.getCursor();
+		assertEquals(321,cursor.getPosition());
+
+		/* The server is waiting for credit, which doesn't keep writers out */
+		long start = System.currentTimeMillis();
+		hdb_remote.put(5000,"foo5000");
+		hdb_remote.remove(5000);
+		assertTrue(System.currentTimeMillis()-start < 10000);
+		scan.close();
+		assertTrue(!scan.hasNext());
+		
+		scan = hdb_remote.scan(cursor,50,2);
+		while(scan.hasNext()){
+			Map.Entry<Integer,String> e = scan.next();
+			assertEquals("foo"+e.getKey(),e.getValue());
+			assertTrue(seen.add(e.getKey()));
+		}
+		scan.close();
+		assertEquals(1000,seen.size());
+		
+		hdb_remote.clear();
+	}
+
+
 	@SuppressWarnings("unchecked")
 	@Test
 	public void testIterate() {
@@ -4,6 +4,9 @@ import static org.junit.Assert.assertEquals;
 import static org.junit.Assert.assertTrue;
 import static org.junit.Assert.fail;
 
+import java.util.HashSet;
+import java.util.Set;
+
 import org.apache.log4j.BasicConfigurator;
 import org.junit.After;
 import org.junit.AfterClass;
@@ -13,6 +16,7 @@ import org.junit.Test;
 
 import edu.uci.ics.luci.lucicabinet.library.IteratorWorkerCountEntries;
 import edu.uci.ics.luci.lucicabinet.library.IteratorWorkerRemoveAll;
+import edu.uci.ics.luci.lucicabinet.library.RemapperAdd;
 
 public class LUCICabinetHDB_Test {
 
@@ -148,6 +152,98 @@ public class LUCICabinetHDB_Test {
 	}
 
 
+	/**
+	 * Joins the value given to merge onto the end of the value there
+	 */
+	public static class Concat implements Remapper<String,String>{
+		private static final long serialVersionUID = 8129476028147393262L;
+		
+		public String remap(String value,String more){
+			return value+more;
+		}
+	}
+	
+	@Test
+	public void testConditional() {
+		assertEquals(null,hdbl.putIfAbsent(1,"foo"));
+		assertEquals("foo",hdbl.putIfAbsent(1,"bar"));
+		assertEquals("foo",hdbl.get(1));
+		
+		assertTrue(!hdbl.replace(1,"bar","baz"));
+		assertTrue(hdbl.replace(1,"foo","baz"));
+		assertEquals("baz",hdbl.replace(1,"qux"));
+		assertEquals(null,hdbl.replace(2,"qux"));
+		assertEquals(null,hdbl.get(2));
+		
+		assertTrue(!hdbl.remove(1,"baz"));
+		assertTrue(hdbl.remove(1,"qux"));
+		assertEquals(0,hdbl.size());
+		
+		assertEquals("a",hdbl.mergeAtomic(3,"a",new Concat()));
+		assertEquals("ab",hdbl.mergeAtomic(3,"b",new Concat()));
+		assertEquals("ab",hdbl.get(3));
+		
+		/* A counter moved on from many threads at once doesn't lose any counts, even when optimized */
+		final LUCICabinetHDB<String,Long> counters = new LUCICabinetHDB<String,Long>("erasemeCounters.tch",true);
+		counters.clear();
+		Thread[] t = new Thread[8];
+		for(int i = 0; i < t.length; i++){
+			t[i] = new Thread(new Runnable(){
+				public void run() {
+					for(int j = 0; j < 500; j++){
+						counters.computeAtomic("hits",new RemapperAdd<String>(1));
+					}
+				}
+			});
+			t[i].start();
+		}
+		for(int i = 0; i < t.length; i++){
+			try {
+				t[i].join();
+			} catch (InterruptedException e) {
+				fail("This shouldn't be interrupted"+e);
+			}
+		}
+		assertEquals(Long.valueOf(4000),counters.get("hits"));
+		assertEquals(Long.valueOf(4010),counters.computeAtomic("hits",new RemapperAdd<String>(10)));
+		Change<Long> change = counters.update("hits",new RemapperAdd<String>(-4010));
+		assertEquals(Long.valueOf(4010),change.getOldValue());
+		assertEquals(Long.valueOf(0),change.getNewValue());
+		assertEquals(Long.valueOf(0),counters.get("hits"));
+		counters.clear();
+		counters.close();
+	}
+	
+	@SuppressWarnings("unchecked")
+	@Test
+	public void testScanChunk() throws InstantiationException, IllegalAccessException {
+		for(Integer key=0; key< 1000; key++){
+			hdbl.put(key,"foo"+key);
+		}
+		
+		Set<Integer> seen = new HashSet<Integer>();
+		ScanCursor cursor = null;
+		ScanChunk<Integer,String> chunk = null;
+		do{
+			chunk = hdbl.scanChunk(cursor,64);
+			assertEquals(seen.size(),chunk.position);
+			for(int i = 0; i < chunk.size(); i++){
+				assertEquals("foo"+chunk.keys.get(i),chunk.values.get(i));
+				assertTrue(seen.add(chunk.keys.get(i)));
+			}
+			if(chunk.size() > 0){
+				cursor = new ScanCursor(chunk.position+chunk.size(),chunk.keys.get(chunk.size()-1));
+			}
+			
+			/* Another iteration moves the iterator, and the next chunk finds its place again by key */
+			if(seen.size() == 320){
+				IteratorWorkerCountEntries<Integer,String> iw = (IteratorWorkerCountEntries<Integer,String>) hdbl.iterate((Class<? extends IteratorWorker<Integer, String>>) IteratorWorkerCountEntries.class,null);
+				assertEquals(1000,iw.count);
+			}
+		}while(!chunk.last);
+		assertEquals(1000,seen.size());
+	}
+	
 	@SuppressWarnings("unchecked")
 	@Test
 	public void testIterate() {
@@ -1,9 +1,16 @@
 package edu.uci.ics.luci.lucicabinet;
 
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
 import java.io.Serializable;
 import java.util.Collection;
+import java.util.HashMap;
+import java.util.Iterator;
 import java.util.Map;
 import java.util.Set;
+import java.util.SortedMap;
+import java.util.concurrent.ConcurrentMap;
 
 import org.apache.log4j.Logger;
 
@@ -16,8 +23,12 @@ import edu.uci.ics.luci.lucicabinet.library.IteratorWorkerFindValue.FindValueCon
 /**
  * The abstract class for the databases that luci-cabinet synchronizes over
  *
+ * <p>
+ * The conditional operations of ConcurrentMap, and computeAtomic and mergeAtomic, are all made from update, which
+ * changes one entry with a Remapper as one step, see update. computeAtomic and mergeAtomic aren't called compute and
+ * merge so that they don't overload Map's, which take a BiFunction, and a call with a lambda isn't ambiguous.
  */
-public abstract class LUCICabinetMap<K extends Serializable,V extends Serializable> implements Map<K,V>{
+public abstract class LUCICabinetMap<K extends Serializable,V extends Serializable> implements ConcurrentMap<K,V>{
 	
 	public abstract boolean getOptimize();
 	public abstract void setOptimize(boolean optimize);
@@ -30,6 +41,17 @@ public abstract class LUCICabinetMap<K extends Serializable,V extends Serializab
 	
 	public abstract IteratorWorker<K,V> iterate(Class<? extends IteratorWorker<K,V>> iw,IteratorWorkerConfig iwc) throws InstantiationException, IllegalAccessException;
 	
+	/**
+	 * Iterate as iterate(iw,iwc) does, as one piece of an iteration that is spread over several databases. The
+	 * iteration gives up at the next entry once <param>stop</param> is given, and gives it itself when the
+	 * IteratorWorker asks to stop, so the other pieces don't scan the rest of their databases. Databases which can't
+	 * be stopped from outside should override this, by default the signal is ignored.
+	 * @param stop shared by all the pieces of the iteration
+	 */
+	public IteratorWorker<K,V> iterate(Class<? extends IteratorWorker<K,V>> iw,IteratorWorkerConfig iwc,StopSignal stop) throws InstantiationException, IllegalAccessException{
+		return iterate(iw,iwc);
+	}
+	
 	public abstract Long sizeLong();
 	
 	public abstract void close();
@@ -117,6 +139,331 @@ public abstract class LUCICabinetMap<K extends Serializable,V extends Serializab
 		}
 	}
 
+	/**
+	 * Get many entries at once. Databases which can do better than one get at a time should override this.
+	 * @param keys the keys to look up
+	 * @return a map from each key that has a value in the database to that value. Keys without an entry are left out.
+	 */
+	public Map<K,V> getAll(Collection<? extends K> keys){
+		Map<K,V> ret = new HashMap<K,V>(keys.size());
+		for(K key:keys){
+			V value = get(key);
+			if(value != null){
+				ret.put(key,value);
+			}
+		}
+		return(ret);
+	}
+
+	/**
+	 * Get the entries whose keys fall in a range, in the natural order of the keys, which must be Comparable. Only
+	 * databases which keep their keys in order can do this, see LUCICabinetBDB, the others throw
+	 * UnsupportedOperationException.
+	 * @param from the lowest key, null to start at the first key
+	 * @param fromInclusive true if an entry whose key is <param>from</param> is wanted
+	 * @param to the key to stop before, null to go on to the last key
+	 * @param max the most entries to return
+	 * @return the entries in key order
+	 */
+	public SortedMap<K,V> getRange(K from,boolean fromInclusive,K to,int max){
+		throw new UnsupportedOperationException(getClass().getSimpleName()+" doesn't keep its keys in order");
+	}
+
+	/**
+	 * Read the entries whose keys are at least <param>from</param> and less than <param>to</param>, in key order. They
+	 * are fetched with getRange a page at a time as they are read, so the whole range is never held at once and no
+	 * lock is held between pages. Entries written behind the iterator while it is being read are missed.
+	 * @param from the lowest key, null to start at the first key
+	 * @param to the key to stop before, null to go on to the last key
+	 * @param pageSize how many entries to fetch at a time
+	 */
+	public Iterator<Map.Entry<K,V>> range(K from,K to,int pageSize){
+		return new RangeIterator<K,V>(this,from,true,to,pageSize);
+	}
+
+	/**
+	 * Get the next chunk of a scan, the entries which come after the last key of <param>from</param>. No lock is held
+	 * once the chunk has been collected, so a LUCI_Butler can wait for its client between chunks without holding up
+	 * writers. This collects the chunk with an iteration which skips everything up to the last key, and if the key
+	 * has gone it starts again and skips by position. Databases which can pick up a scan where it left off should
+	 * override this.
+	 * @param from where the last chunk ended, null to start at the beginning
+	 * @param max the most entries to collect
+	 * @return the entries, marked as the last chunk if there were fewer than <param>max</param> left
+	 */
+	@SuppressWarnings("unchecked")
+	ScanChunk<K,V> scanChunk(ScanCursor from,int max){
+		try {
+			ScanWorker<K,V> iw = (ScanWorker<K,V>) iterate((Class<? extends IteratorWorker<K, V>>) ScanWorker.class,new ScanWorker.ScanConfig(from,max));
+			if(iw.isSkipping()){
+				iw = (ScanWorker<K,V>) iterate((Class<? extends IteratorWorker<K, V>>) ScanWorker.class,new ScanWorker.ScanConfig(new ScanCursor(from.getPosition(),null),max));
+			}
+			return(iw.getChunk());
+		} catch (InstantiationException e) {
+			throw new RuntimeException("Unable to scan a database",e);
+		} catch (IllegalAccessException e) {
+			throw new RuntimeException("Unable to scan a database",e);
+		}
+	}
+
+	/**
+	 * Get an entry using the serialized form of its key, see Serialization. Databases which store bytes should
+	 * override this so that nothing needs to be deserialized.
+	 * @param key the serialized key
+	 * @return the serialized value, or null if there is no entry
+	 */
+	public byte[] getRaw(byte[] key){
+		V value = get(Serialization.deserialize(key));
+		if(value == null){
+			return null;
+		}
+		return Serialization.serialize(value);
+	}
+	
+	/**
+	 * Put an entry using the serialized forms of its key and value, see Serialization. Databases which store bytes
+	 * should override this so that nothing needs to be deserialized.
+	 * @param key the serialized key
+	 * @param value the serialized value
+	 * @return the serialized value previously associated with key, or null if optimize is true
+	 */
+	@SuppressWarnings("unchecked")
+	public byte[] putRaw(byte[] key,byte[] value){
+		V old = put((K) Serialization.deserialize(key),(V) Serialization.deserialize(value));
+		if(old == null){
+			return null;
+		}
+		return Serialization.serialize(old);
+	}
+	
+	/**
+	 * Remove an entry using the serialized form of its key, see Serialization. Databases which store bytes should
+	 * override this so that nothing needs to be deserialized.
+	 * @param key the serialized key
+	 * @return the serialized value that was removed, or null if optimize is true
+	 */
+	public byte[] removeRaw(byte[] key){
+		V old = remove(Serialization.deserialize(key));
+		if(old == null){
+			return null;
+		}
+		return Serialization.serialize(old);
+	}
+
+	/**
+	 * Statistics about the underlying database which are cheap enough to be gathered every few seconds. Databases
+	 * which know more about themselves should override this.
+	 * @return a map from the name of a statistic, e.g. "records", to its value
+	 */
+	public Map<String,Long> getEngineStats(){
+		Map<String,Long> ret = new HashMap<String,Long>();
+		ret.put("records",sizeLong());
+		return(ret);
+	}
+
+	/**
+	 * Change the value of a key to what a Remapper makes of it, as one step that no other write to the key can come
+	 * between, even when optimize is true. LUCICabinetHDB and LUCICabinetBDB lock the database while the Remapper
+	 * runs, and a remote database sends it to its LUCI_Butler, so that it takes one round trip. Databases which can
+	 * do it atomically override this. By default it is a get and then a put or remove, which isn't atomic. Nothing
+	 * is written if the Remapper gives back the value the key has, as a failed putIfAbsent or replace does.
+	 * @param key the key to change
+	 * @param remapper given the key and its value, or null if it has none, gives the new value, or null to remove it
+	 * @return the value the key had before and the value it has now
+	 */
+	public Change<V> update(K key,Remapper<? super K,V> remapper){
+		V old = get(key);
+		Change<V> change = new Change<V>(old,remapper.remap(key,old));
+		if(change.isChanged()){
+			if(change.getNewValue() != null){
+				put(key,change.getNewValue());
+			}
+			else{
+				remove(key);
+			}
+		}
+		return change;
+	}
+
+	/**
+	 * Put an entry only if there is no entry for the key, atomically, see update
+	 * @return the value the key already had, or null if the value was put
+	 */
+	public V putIfAbsent(K key,V value){
+		return update(key,new PutIfAbsent<V>(value)).getOldValue();
+	}
+
+	/**
+	 * Remove an entry only if it has a value, atomically, see update
+	 * @return true if it was removed
+	 */
+	@SuppressWarnings("unchecked")
+	public boolean remove(Object key,Object value){
+		if(value == null){
+			return false;
+		}
+		return value.equals(update((K) key,new ReplaceIf<V>(value,null)).getOldValue());
+	}
+
+	/**
+	 * Change the value of an entry only if it has a value, atomically, see update
+	 * @return true if it was changed
+	 */
+	public boolean replace(K key,V oldValue,V newValue){
+		if(oldValue == null){
+			return false;
+		}
+		return oldValue.equals(update(key,new ReplaceIf<V>(oldValue,newValue)).getOldValue());
+	}
+
+	/**
+	 * Change the value of an entry only if there is an entry for the key, atomically, see update
+	 * @return the value the key had, or null if there was no entry and nothing was changed
+	 */
+	public V replace(K key,V value){
+		return update(key,new Replace<V>(value)).getOldValue();
+	}
+
+	/**
+	 * Change the value of a key to what a Remapper makes of it, atomically, see update.
+	 * @param key the key to change
+	 * @param remapper given the key and its value, or null if it has none, gives the new value, or null to remove it
+	 * @return the value the key has now, or null if it has none
+	 */
+	public V computeAtomic(K key,Remapper<? super K,V> remapper){
+		return update(key,remapper).getNewValue();
+	}
+
+	/**
+	 * Put a value if there is no entry for the key, or else combine it with the value there, atomically, see update.
+	 * @param key the key to change
+	 * @param value the value to put or combine
+	 * @param combiner given the value there and <param>value</param> gives the new value, or null to remove the entry
+	 * @return the value the key has now, or null if it has none
+	 */
+	public V mergeAtomic(K key,V value,Remapper<? super V,V> combiner){
+		return update(key,new Merge<V>(value,combiner)).getNewValue();
+	}
+
+	/* The Remappers of the conditional operations, which are sent to a LUCI_Butler with the key */
+
+	private static class PutIfAbsent<V> implements Remapper<Object,V>{
+		private static final long serialVersionUID = 4119627304616786524L;
+		private final V value;
+
+		PutIfAbsent(V value){
+			this.value = value;
+		}
+
+		public V remap(Object key,V old){
+			return((old == null) ? value : old);
+		}
+	}
+
+	private static class ReplaceIf<V> implements Remapper<Object,V>{
+		private static final long serialVersionUID = -1740938815360627063L;
+		private final Object expected;
+		private final V value;
+
+		ReplaceIf(Object expected,V value){
+			this.expected = expected;
+			this.value = value;
+		}
+
+		public V remap(Object key,V old){
+			return(expected.equals(old) ? value : old);
+		}
+	}
+
+	private static class Replace<V> implements Remapper<Object,V>{
+		private static final long serialVersionUID = 2878340311795262207L;
+		private final V value;
+
+		Replace(V value){
+			this.value = value;
+		}
+
+		public V remap(Object key,V old){
+			return((old == null) ? null : value);
+		}
+	}
+
+	private static class Merge<V> implements Remapper<Object,V>{
+		private static final long serialVersionUID = -5519413417426093371L;
+		private final V value;
+		private final Remapper<? super V,V> combiner;
+
+		Merge(V value,Remapper<? super V,V> combiner){
+			this.value = value;
+			this.combiner = combiner;
+		}
+
+		public V remap(Object key,V old){
+			return((old == null) ? value : combiner.remap(old,value));
+		}
+	}
+
+	/**
+	 * Read ahead through the database's file so that the first operations after opening it don't each wait on a cold
+	 * disk. Databases with no file here, like the remote ones, do nothing.
+	 * @param maxBytes the most of the file to read
+	 * @return how many bytes were read
+	 */
+	public long warmUp(long maxBytes){
+		return 0;
+	}
+
+	/**
+	 * Read the start of a file and throw it away, which leaves it in the operating system's page cache
+	 * @return how many bytes were read, 0 if there is no such file yet
+	 */
+	protected static long readAhead(String fileName,long maxBytes){
+		File file = new File(fileName);
+		if(!file.isFile()){
+			return 0;
+		}
+		long read = 0;
+		FileInputStream in = null;
+		try{
+			in = new FileInputStream(file);
+			byte[] buffer = new byte[1 << 20];
+			int n;
+			while((read < maxBytes) && ((n = in.read(buffer,0,(int) Math.min(buffer.length,maxBytes - read))) > 0)){
+				read += n;
+			}
+		}
+		catch(IOException e){
+			throw new RuntimeException("Error reading ahead through "+fileName,e);
+		}
+		finally{
+			if(in != null){
+				try{
+					in.close();
+				}
+				catch(IOException e){
+					getLog().error("Error closing "+fileName+":"+e);
+				}
+			}
+		}
+		return read;
+	}
+
+	/**
+	 * Apply all the puts and removes in a batch, in order. Databases which can do better than one operation
+	 * at a time should override this.
+	 * @param batch the operations to apply
+	 */
+	public void apply(WriteBatch<K,V> batch){
+		for(WriteBatch.Operation<K,V> op:batch.getOperations()){
+			if(op.remove){
+				this.remove(op.key);
+			}
+			else{
+				this.put(op.key,op.value);
+			}
+		}
+	}
+
 	
 	@SuppressWarnings("unchecked")
 	public Collection<V> values(){
@@ -4,13 +4,34 @@ import java.io.IOException;
 import java.io.ObjectInputStream;
 import java.io.ObjectOutputStream;
 import java.io.Serializable;
-import java.net.Socket;
+import java.net.InetSocketAddress;
+import java.net.SocketAddress;
 import java.net.UnknownHostException;
+import java.net.SocketException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.SortedMap;
+import java.util.TreeMap;
+import java.util.UUID;
+import java.util.concurrent.CancellationException;
 import java.util.concurrent.ExecutionException;
 import java.util.concurrent.ExecutorService;
 import java.util.concurrent.Executors;
 import java.util.concurrent.Future;
+import java.util.concurrent.FutureTask;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.ThreadPoolExecutor;
 import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+import java.util.concurrent.atomic.AtomicLong;
 
 import org.apache.log4j.Level;
 import org.apache.log4j.Logger;
@@ -27,16 +48,120 @@ import edu.uci.ics.luci.lucicabinet.LUCI_Butler.ServerResponse;
  * database is offloaded to a worker queue so that methods should return quickly. To support this, when this class is "optimized", 
  * the put and remove interfaces behave differently than expected for Map as they return. If not "optimized" then they return
  * the overwritten or removed value.
+ * 
+ * <p>
+ * Asynchronous puts and removes are not sent one at a time. They are coalesced into a WriteBatch which is sent
+ * to the remote database as a single frame when it reaches the batch size, when it has waited for the batch linger
+ * time, or before any other operation is sent, so the order of operations is unchanged.
+ * 
+ * <p>
+ * Single key puts, gets and removes are serialized here and sent as raw bytes, so the LUCI_Butler passes them
+ * to and from the underlying database without deserializing them.
+ * 
+ * <p>
+ * An optional near cache (see enableNearCache) answers repeated gets locally. The LUCI_Butler pushes invalidations
+ * over a second connection whenever any client writes a key that this client may have cached.
+ * 
+ * <p>
+ * Blocking calls wait at most a timeout (see setTimeout), which is also used as the socket read timeout. When a
+ * call times out, the work queued behind it is cancelled, the connection is treated as broken, and a new connection
+ * is made before the next operation is sent.
+ * 
+ * <p>
+ * When a connection is lost, a new one is made before the next operation is sent, trying each endpoint in the order
+ * given and backing off between rounds (see setReconnectAttempts and setReconnectBackoff). Gets, sizes, iterations and
+ * clears are retried on the new connection. Asynchronous writes are replayed, and are counted by getFailedWrites and
+ * logged if they still can't be sent. Synchronous puts and removes are not retried, since the lost reply leaves it
+ * unknown whether they were applied, and throw an exception instead. A command which reaches the LUCI_Butler and
+ * fails there throws a CommandFailedException, or is counted by getFailedWrites if it was asynchronous, and is never
+ * sent again, since it would fail the same way.
+ * 
+ * <p>
+ * A LUCI_Butler which is overloaded, or which is limiting how much work this client may ask for (see RateLimiter and
+ * setClientId), sends a busy response instead of running a command. The command is sent again after a back off
+ * which doubles each time, as many times as a lost connection is retried. Asynchronous writes back off on the worker
+ * thread, which holds up everything else sent on the connection.
+ * 
+ * <p>
+ * The operations waiting to be sent on a connection are held in a queue with a limit (see setQueueLimit), so that a
+ * producer which is faster than the network can't fill the heap. What happens when it is full is set by a
+ * QueuePolicy: wait for room, fail straight away, or drop the oldest waiting asynchronous operation. A QueueListener
+ * can be told when the queue is getting full so that the producer can be slowed down before then.
+ * 
+ * <p>
+ * When the LUCI_Butler is in the same JVM, as it is when a service hosts one and also uses it through this class,
+ * most operations skip the object streams and the socket and are run directly on the LUCI_Butler's end of the
+ * connection (see setInProcess). They still go through the worker queue, so ordering and asynchronous writes behave
+ * the same.
+ * 
+ * <p>
+ * A LUCI_Butler can serve many named databases (see LUCI_Butler.addDatabase). A map can be opened on one of them, and
+ * database() gives more maps over the same connection, for example one per shard of a LUCICabinetMap_Shard. All the
+ * maps on a connection share its worker thread, so their operations are sent in the order they were requested.
  */
 public class LUCICabinetMap_Remote<K extends Serializable,V extends Serializable> extends LUCICabinetMap<K,V>{
 
+	/**
+	 * What happens to an operation when the queue of operations waiting to be sent is full, see setQueueLimit.
+	 * BLOCK waits for room, for at most the timeout. FAIL_FAST throws a RejectedExecutionException. DROP_OLDEST drops
+	 * the oldest asynchronous operation in the queue to make room, counting its writes in getFailedWrites, or waits
+	 * like BLOCK if everything in the queue has a caller waiting for it.
+	 */
+	public enum QueuePolicy {BLOCK, FAIL_FAST, DROP_OLDEST};
+
 	protected transient ExecutorService threadExecutor = null;
-	protected transient Socket clientSocket = null;
+	private transient Connection connection = null;
 	protected transient ObjectOutputStream oos = null;
 	protected transient ObjectInputStream ois = null;
 
 	protected boolean optimize = true;
 	
+	private List<SocketAddress> endpoints = null;
+	private transient SocketAddress endpoint = null;
+	
+	private WriteBatch<K,V> pending = null;
+	private int batchSize = 128;
+	private long batchLinger = 5;
+	protected transient ScheduledExecutorService lingerTimer = null;
+	private transient ScheduledFuture<?> lingerFlush = null;
+	
+	private NearCache nearCache = null;
+	private transient Connection subscription = null;
+	private transient SocketAddress subscribedTo = null;
+	private Long subscriber = null;
+	
+	private volatile long timeout = 60000;
+	private transient LinkedBlockingQueue<Runnable> queue = null;
+	private transient volatile boolean healthy = true;
+	
+	private volatile int reconnectAttempts = 5;
+	private volatile long reconnectBackoff = 50;
+	private static final long MAX_RECONNECT_BACKOFF = 5000;
+	private final AtomicLong failedWrites = new AtomicLong(0);
+	
+	/* The queue limit, policy and metrics are kept by the root and guarded by the queue's lock */
+	private int queueLimit = 10000;
+	private QueuePolicy queuePolicy = QueuePolicy.BLOCK;
+	private QueueListener queueListener = null;
+	private int highWater = 0;
+	private boolean aboveHighWater = false;
+	private int queuePeak = 0;
+	private long queueRejections = 0;
+	private long queueDrops = 0;
+	
+	/* The named database this map uses, null for the default database of the LUCI_Butler */
+	private String database = null;
+	/* The map which owns the connection, worker thread and reconnect settings. Views made by database() share them */
+	private transient LUCICabinetMap_Remote<K,V> root = this;
+	private transient List<LUCICabinetMap_Remote<K,V>> views = null;
+	/* The database the LUCI_Butler is using for the connection right now, only kept by the root */
+	private transient String selected = null;
+	/* Who this client says it is, for rate limits */
+	private volatile String clientId = null;
+	/* The LUCI_Butler end of the connection when it is in this JVM, only kept by the root */
+	private transient volatile LUCI_Butler.InProcess<K,V> inProcess = null;
+	private volatile boolean inProcessAllowed = true;
+	
 	private static transient volatile Logger log = null;
 	public static Logger getLog(){
 		if(log == null){
@@ -58,35 +183,351 @@ public class LUCICabinetMap_Remote<K extends Serializable,V extends Serializable
 	 * @param optimize if true, then the database will always return null for put and remove operations
 	 */
 	public LUCICabinetMap_Remote(String host,Integer port,boolean optimize) {
+		this(Collections.singletonList(new InetSocketAddress(host,port)),null,optimize);
+	}
+	
+	
+	/**
+	 * This method opens the connection to the remote LUCI_Butler service and uses one of the databases it serves.
+	 * @param host The remote host to connect to, e.g. "localhost", "192.128.1.20"
+	 * @param port The port that the remote host is listening on.
+	 * @param database The name the database was added to the LUCI_Butler with
+	 * @param optimize if true, then the database will always return null for put and remove operations
+	 */
+	public LUCICabinetMap_Remote(String host,Integer port,String database,boolean optimize) {
+		this(Collections.singletonList(new InetSocketAddress(host,port)),database,optimize);
+	}
+	
+	
+	/**
+	 * See LUCICabinetMap_Remote(List,String,boolean). The default database of the LUCI_Butler is used.
+	 * @param endpoints The remote endpoints to connect to, in order of preference
+	 * @param optimize if true, then the database will always return null for put and remove operations
+	 */
+	public LUCICabinetMap_Remote(List<? extends SocketAddress> endpoints,boolean optimize) {
+		this(endpoints,null,optimize);
+	}
+	
+	
+	/**
+	 * This method opens the connection to the first of the remote LUCI_Butler services that answers. 
+	 *  
+	 * <p>
+	 * Whenever the connection is lost the endpoints are tried again in order, so the first one is preferred and the
+	 * rest are fail overs.  They are expected to serve the same data, for example a restarted node and its replacement.
+	 * 
+	 * <p>
+	 * An endpoint is either an InetSocketAddress or the address of a Unix domain socket, see unixSocket. A client on
+	 * the same host as the LUCI_Butler can list its Unix domain socket first and fall back to TCP.
+	 * 
+	 * @param endpoints The remote endpoints to connect to, in order of preference
+	 * @param database The name the database was added to the LUCI_Butler with, null for its default database
+	 * @param optimize if true, then the database will always return null for put and remove operations
+	 */
+	public LUCICabinetMap_Remote(List<? extends SocketAddress> endpoints,String database,boolean optimize) {
 		super();
+		if((endpoints == null) || (endpoints.size() == 0)){
+			throw new IllegalArgumentException("At least one endpoint is needed");
+		}
 		this.optimize = optimize;
+		this.database = database;
+		this.endpoints = new ArrayList<SocketAddress>(endpoints);
+		this.endpoint = this.endpoints.get(0);
+		this.views = new ArrayList<LUCICabinetMap_Remote<K,V>>();
 		
-		threadExecutor = Executors.newSingleThreadExecutor();			
-		
-		try{
-			clientSocket = new Socket(host,port);
-		
-			oos = new ObjectOutputStream(clientSocket.getOutputStream());
+		queue = new LinkedBlockingQueue<Runnable>();
+		threadExecutor = new ThreadPoolExecutor(1,1,0L,TimeUnit.MILLISECONDS,queue){
+			@Override
+			protected void beforeExecute(Thread t,Runnable r){
+				dequeued();
+			}
+		};
+		lingerTimer = Executors.newSingleThreadScheduledExecutor(new ThreadFactory(){
+			public Thread newThread(Runnable r) {
+				Thread t = new Thread(r);
+				t.setName("LUCICabinetMap_Remote Batch Linger Thread");
+				t.setDaemon(true);
+				return t;
+			}
+		});
 		
-			ois = new ObjectInputStream(clientSocket.getInputStream());
+		/* If nothing answers now, the first operation tries again */
+		healthy = connectToAny();
+	}
+	
+	
+	/**
+	 * A view of another database on the same connection as root
+	 */
+	private LUCICabinetMap_Remote(LUCICabinetMap_Remote<K,V> root,String database,boolean optimize) {
+		super();
+		this.root = root;
+		this.database = database;
+		this.optimize = optimize;
+		this.endpoints = root.endpoints;
+		this.timeout = root.timeout;
+		this.batchSize = root.batchSize;
+		this.batchLinger = root.batchLinger;
+		this.queue = root.queue;
+		this.threadExecutor = root.threadExecutor;
+		this.lingerTimer = root.lingerTimer;
+	}
+	
+	
+	/**
+	 * Use another database served by the same LUCI_Butler over this connection. The map that is returned shares
+	 * the connection and worker thread of this one, so it costs no extra sockets or threads, and its operations are
+	 * sent in order with the operations of every other map on the connection. It has no near cache of its own.
+	 * <p>
+	 * Closing the returned map waits for its operations to finish but leaves the connection open. Closing the map
+	 * that opened the connection closes it for all of them.
+	 * @param name The name the database was added to the LUCI_Butler with, null for its default database
+	 * @param optimize if true, then the database will always return null for put and remove operations. This must
+	 * match the optimize setting of the database in the LUCI_Butler.
+	 * @return a map of the database
+	 */
+	public LUCICabinetMap_Remote<K,V> database(String name,boolean optimize){
+		if(root != this){
+			return root.database(name,optimize);
+		}
+		LUCICabinetMap_Remote<K,V> view = new LUCICabinetMap_Remote<K,V>(this,name,optimize);
+		synchronized(views){
+			view.adopt();
+			views.add(view);
+		}
 		
-			ServerResponse okay;
-			try {
-				okay = (ServerResponse) ois.readObject();
+		/* Find out now if the database isn't there, or doesn't match, even if the connection is already using it */
+		try{
+			view.call(view.new UseWrapper(),timeout,"use",true);
+		} catch (RuntimeException e) {
+			synchronized(views){
+				views.remove(view);
+			}
+			throw e;
+		}
+		return view;
+	}
+	
+	
+	/**
+	 * Pick up the connection of the root, which may have been replaced
+	 */
+	private void adopt(){
+		connection = root.connection;
+		oos = root.oos;
+		ois = root.ois;
+		endpoint = root.endpoint;
+	}
+	
+	
+	/**
+	 * Stop using the connection of the root, which is closing
+	 */
+	private synchronized void detach(){
+		flush();
+		threadExecutor = null;
+		lingerTimer = null;
+	}
+	
+	
+	/**
+	 * @return the name of the database this map uses, null for the default database of the LUCI_Butler
+	 */
+	public String getDatabase(){
+		return database;
+	}
+	
+	
+	/**
+	 * The address of a Unix domain socket that a LUCI_Butler is listening on, see LUCI_Butler.initializeUnixSocket.
+	 * Needs Java 16 or later.
+	 * @param path the file of the socket
+	 * @return an endpoint to connect to
+	 */
+	public static SocketAddress unixSocket(String path){
+		return Connection.unixAddress(path);
+	}
+	
+	
+	/**
+	 * Try each endpoint in order until one of them accepts a connection.
+	 * @return true if a connection was made
+	 */
+	private boolean connectToAny(){
+		for(SocketAddress endpoint:endpoints){
+			try{
+				connect(endpoint);
+				return true;
+			} catch (UnknownHostException e) {
+				getLog().log(Level.ERROR, "Unable to open "+endpoint+" for a connection",e);
+			} catch (IOException e) {
+				getLog().log(Level.ERROR, "Unable to open connection to "+endpoint,e);
+			} catch (RuntimeException e) {
+				getLog().log(Level.ERROR, "Unable to open connection to "+endpoint,e);
+			}
+			closeSocket();
+		}
+		return false;
+	}
+	
+	
+	/**
+	 * Open the connection to the LUCI_Butler and wait for it to say hello.
+	 */
+	private void connect(SocketAddress endpoint) throws IOException{
+		this.endpoint = endpoint;
+		inProcess = null;
+		connection = Connection.open(endpoint,(int) timeout);
+	
+		oos = new ObjectOutputStream(connection.getOutputStream());
+	
+		ois = new ObjectInputStream(connection.getInputStream());
+	
+		ServerResponse okay;
+		try {
+			okay = (ServerResponse) ois.readObject();
+			/* The handshake describes the default database, a named one is checked when it is selected */
+			if(database == null){
 				if(optimize && !okay.equals(ServerResponse.CONNECTION_OKAY_OPTIMIZE)){
 					throw new RuntimeException("Remote host did not send a connection okay signal");
 				}
 				if(!optimize && !okay.equals(ServerResponse.CONNECTION_OKAY_UNOPTIMIZE)){
 					throw new RuntimeException("Remote host did not send a connection okay signal");
 				}
-			} catch (ClassNotFoundException e) {
-				throw new IOException("Remote host did not send a connection okay signal"+e);
-			} 
-		} catch (UnknownHostException e) {
-			getLog().log(Level.ERROR, "Unable to open "+host+":"+port+" for a connection",e);
-		} catch (IOException e) {
-			getLog().log(Level.ERROR, "Unable to open connection",e);
+			}
+			else if(okay == null){
+				throw new RuntimeException("Remote host did not send a connection okay signal");
+			}
+		} catch (ClassNotFoundException e) {
+			throw new IOException("Remote host did not send a connection okay signal"+e);
+		} 
+		
+		/* A LUCI_Butler in this JVM has put its end of the connection where this end can find it before saying hello */
+		if(inProcessAllowed){
+			inProcess = lookUpInProcess();
+		}
+		
+		/* A new connection starts on the default database, and doesn't know who the client is */
+		selected = null;
+		if(clientId != null){
+			new IdentifyWrapper(clientId).run();
+		}
+		synchronized(views){
+			for(LUCICabinetMap_Remote<K,V> view:views){
+				view.adopt();
+			}
+		}
+	}
+	
+	
+	/**
+	 * @return the LUCI_Butler end of the connection of the root, if it is in this JVM
+	 */
+	@SuppressWarnings("unchecked")
+	private LUCI_Butler.InProcess<K,V> lookUpInProcess(){
+		Connection c = root.connection;
+		if(c == null){
+			return null;
+		}
+		return (LUCI_Butler.InProcess<K,V>) LUCI_Butler.inProcess(Connection.pair(c.getLocalAddress(),c.getRemoteAddress()));
+	}
+	
+	
+	private class IdentifyWrapper implements Runnable{
+		private String id;
+
+		IdentifyWrapper(String id){
+			this.id = id;
+		}
+		
+		public void run() {
+			LUCI_Butler.InProcess<K,V> direct = root.inProcess;
+			if(direct != null){
+				direct.identify(id);
+				return;
+			}
+			
+			try{
+				oos.writeObject(LUCI_Butler.ServerCommands.IDENTIFY);
+				oos.writeObject(id);
+				oos.flush();
+			} catch (IOException e) {
+				getLog().log(Level.ERROR, "Unable to write "+LUCI_Butler.ServerCommands.IDENTIFY+" command",e);
+			}
+			
+			checkForError(ois);
+		};
+	}
+	
+	
+	/**
+	 * Tell the LUCI_Butler who this client is, so that its rate limits are kept by id rather than by address. The id
+	 * is sent again whenever a new connection is made, and is shared by all the maps on the connection.
+	 * @param clientId the id, which the RateLimiter of the LUCI_Butler may have a limit for
+	 */
+	public synchronized void setClientId(String clientId){
+		if(clientId == null){
+			throw new IllegalArgumentException("A client id is needed");
+		}
+		root.clientId = clientId;
+		call(new IdentifyWrapper(clientId),timeout,"identify",true);
+	}
+	
+	
+	/**
+	 * @return who this client told the LUCI_Butler it is, or null if it hasn't
+	 */
+	public String getClientId(){
+		return root.clientId;
+	}
+	
+	
+	private class UseWrapper implements Runnable{
+		
+		public void run() {
+			Boolean remoteOptimize = null;
+			LUCI_Butler.InProcess<K,V> direct = root.inProcess;
+			if(direct != null){
+				remoteOptimize = direct.use(database);
+			}
+			else{
+				try{
+					oos.writeObject(LUCI_Butler.ServerCommands.USE);
+					oos.writeObject(database);
+					oos.flush();
+				} catch (IOException e) {
+					getLog().log(Level.ERROR, "Unable to write "+LUCI_Butler.ServerCommands.USE+" command",e);
+				}
+				
+				try {
+					remoteOptimize = (Boolean) readReply();
+				} catch (IOException e) {
+					getLog().log(Level.ERROR, "Unable to read a result from object input stream",e);
+				} catch (ClassNotFoundException e) {
+					getLog().log(Level.ERROR, "Unable to read a result from object input stream",e);
+				}
+				
+				checkForError(ois);
+			}
+			root.selected = database;
+			
+			if((remoteOptimize == null) || (remoteOptimize != optimize)){
+				throw new RuntimeException("Database "+database+" on "+Connection.describe(endpoint)+" is "+(optimize?"not ":"")+"optimized");
+			}
+		};
+	}
+	
+	
+	/**
+	 * Make sure the LUCI_Butler is using this map's database for the connection. This runs on the worker thread
+	 * ahead of each job.
+	 */
+	private void select(){
+		String current = root.selected;
+		if((database == null) ? (current == null) : database.equals(current)){
+			return;
 		}
+		new UseWrapper().run();
 	}
 	
 	
@@ -121,7 +562,7 @@ public class LUCICabinetMap_Remote<K extends Serializable,V extends Serializable
 			}
 			
 			checkForError(ois);
-			setOptimize(optimize);
+			LUCICabinetMap_Remote.this.optimize = optimize;
 		};
 	}
 	
@@ -132,14 +573,7 @@ public class LUCICabinetMap_Remote<K extends Serializable,V extends Serializable
 	public synchronized void setOptimize(boolean optimize){
 		
 		OptimizeWrapper wrapper = new OptimizeWrapper(optimize);
-		Future<?> f = threadExecutor.submit(wrapper);
-		try {
-			f.get();
-		} catch (InterruptedException e) {
-			getLog().log(Level.ERROR, "Interrupted while waiting for optimize to complete",e);
-		} catch (ExecutionException e) {
-			getLog().log(Level.ERROR, "Optimize failed",e);
-		}
+		call(wrapper,timeout,"optimize",true);
 	}
 	
 	
@@ -150,6 +584,49 @@ public class LUCICabinetMap_Remote<K extends Serializable,V extends Serializable
 	 */
 	@Override
 	public synchronized void close() {
+		
+		/* A view leaves the connection to the map that opened it */
+		if(root != this){
+			if(threadExecutor != null){
+				flush();
+				try{
+					call(new Runnable(){
+						public void run() {
+						}
+					},timeout,"earlier operations",true);
+				} catch(RuntimeException e){
+					getLog().log(Level.ERROR, "Operations on database "+database+" did not finish cleanly", e);
+				}
+				synchronized(root.views){
+					root.views.remove(this);
+				}
+				threadExecutor = null;
+				lingerTimer = null;
+			}
+			return;
+		}
+		
+		/* Send what the views still have waiting to be batched */
+		List<LUCICabinetMap_Remote<K,V>> detached;
+		synchronized(views){
+			detached = new ArrayList<LUCICabinetMap_Remote<K,V>>(views);
+			views.clear();
+		}
+		for(LUCICabinetMap_Remote<K,V> view:detached){
+			view.detach();
+		}
+		
+		/* Stop listening for invalidations, the server ends the subscription when this connection closes */
+		if(nearCache != null){
+			nearCache.disable();
+		}
+		
+		/* Send anything that is still waiting to be batched */
+		if (lingerTimer != null) {
+			lingerTimer.shutdownNow();
+			lingerTimer = null;
+		}
+		flush();
 
 		/* Let the current commands finish */
 		if (threadExecutor != null) {
@@ -167,14 +644,18 @@ public class LUCICabinetMap_Remote<K extends Serializable,V extends Serializable
 			threadExecutor = null;
 		}
 
-		/* Close the remote database */
-		if (oos != null) {
+		/* Close the remote database, unless the connection has already failed */
+		if ((oos != null) && healthy) {
 			try {
 				oos.writeObject(LUCI_Butler.ServerCommands.CLOSE);
 			} catch (IOException e) {
 				getLog().log( Level.ERROR, "Unable to write " + LUCI_Butler.ServerCommands.CLOSE + " command", e);
 			}
-			checkForError(ois);
+			try{
+				checkForError(ois);
+			} catch(RuntimeException e){
+				getLog().log( Level.ERROR, "Remote database did not close cleanly", e);
+			}
 		}
 
 		/* close the connections */
@@ -195,13 +676,20 @@ public class LUCICabinetMap_Remote<K extends Serializable,V extends Serializable
 		}
 
 		try {
-			if (clientSocket != null) {
-				clientSocket.close();
-				clientSocket = null;
+			if (connection != null) {
+				connection.close();
+				connection = null;
 			}
 		} catch (IOException e) {
 		}
 
+		try {
+			if (subscription != null) {
+				subscription.close();
+				subscription = null;
+			}
+		} catch (IOException e) {
+		}
 	}
 	
 	
@@ -222,31 +710,36 @@ public class LUCICabinetMap_Remote<K extends Serializable,V extends Serializable
 	
 	
 	private class RemoveWrapper implements Runnable{
-		private Object key;
-		public V result = null;
+		private byte[] key;
+		public byte[] result = null;
 
-		public RemoveWrapper(Object key){
+		public RemoveWrapper(byte[] key){
 			this.key = key;
 		}
 		
-		@SuppressWarnings("unchecked")
 		public void run() {
+			LUCI_Butler.InProcess<K,V> direct = root.inProcess;
+			if(direct != null){
+				result = direct.removeRaw(key);
+				return;
+			}
+			
 			try {
-				oos.writeObject(LUCI_Butler.ServerCommands.REMOVE);
+				oos.writeObject(LUCI_Butler.ServerCommands.REMOVE_RAW);
 			} catch (IOException e) {
-				getLog().log(Level.ERROR, "Unable to write "+LUCI_Butler.ServerCommands.REMOVE+" command",e);
+				getLog().log(Level.ERROR, "Unable to write "+LUCI_Butler.ServerCommands.REMOVE_RAW+" command",e);
 			}
 		
 			try {
 				oos.writeObject(key);
 				oos.flush();
 			} catch (IOException e) {
-				getLog().log(Level.ERROR, "Unable to write "+LUCI_Butler.ServerCommands.REMOVE+" command parameter",e);
+				getLog().log(Level.ERROR, "Unable to write "+LUCI_Butler.ServerCommands.REMOVE_RAW+" command parameter",e);
 			}
 			
 			if(!optimize){
 				try {
-					result = (V) ois.readObject();
+					result = (byte[]) readReply();
 				} catch (IOException e) {
 					getLog().log(Level.ERROR, "Unable to read a result from object input stream",e);
 				} catch (ClassNotFoundException e) {
@@ -265,7 +758,14 @@ public class LUCICabinetMap_Remote<K extends Serializable,V extends Serializable
 	 * @param key the entry to remove
 	 */
 	public synchronized void removeAsync(Object key) {
-		threadExecutor.execute(new RemoveWrapper(key));
+		evict(key);
+		if(batchSize > 1){
+			batch().remove(key);
+			batched();
+		}
+		else{
+			execute(new RemoveWrapper(Serialization.serialize(key)));
+		}
 	}
 	
 	/**
@@ -274,15 +774,29 @@ public class LUCICabinetMap_Remote<K extends Serializable,V extends Serializable
 	 * @return the value that was removed
 	 */
 	public synchronized V removeSync(Object key) {
+		return(removeSync(key,timeout));
+	}
+	
+	/**
+	 * An synchronous remove command. Runs on a separate thread, blocks until it is done or the timeout passes.
+	 * @param key the entry to remove
+	 * @param timeout how long to wait in milliseconds, 0 to wait forever
+	 * @return the value that was removed
+	 */
+	@SuppressWarnings("unchecked")
+	public synchronized V removeSync(Object key,long timeout) {
+		evict(key);
+		return (V) Serialization.deserialize(removeRawSync(Serialization.serialize(key),timeout));
+	}
+	
+	/**
+	 * An synchronous remove command using the serialized key. Runs on a separate thread, blocks until it is done.
+	 * @param key the serialized key of the entry to remove
+	 * @return the serialized value that was removed
+	 */
+	private byte[] removeRawSync(byte[] key,long timeout) {
 		RemoveWrapper iw = new RemoveWrapper(key);
-		Future<?> f = threadExecutor.submit(iw);
-		try {
-			f.get();
-		} catch (InterruptedException e) {
-			getLog().log(Level.ERROR, "Interrupted while waiting for remove to complete",e);
-		} catch (ExecutionException e) {
-			getLog().log(Level.ERROR, "Remove failed",e);
-		}
+		call(iw,timeout,"remove",false);
 		return iw.result;
 	}
 	
@@ -302,42 +816,66 @@ public class LUCICabinetMap_Remote<K extends Serializable,V extends Serializable
 		}
 	}
 	
+	/**
+	 * Remove an entry using its serialized key, see Serialization. The remote database never deserializes it.
+	 * This operation is blocking if optimize is set to false.
+	 * @param key the serialized key
+	 * @return the serialized value that was removed, or null if optimize is true
+	 */
+	@Override
+	public synchronized byte[] removeRaw(byte[] key){
+		evictRaw(key);
+		if(optimize){
+			execute(new RemoveWrapper(key));
+			return null;
+		}
+		else{
+			return(removeRawSync(key,timeout));
+		}
+	}
+	
 
 	private class PutWrapper implements Runnable{
-		private K key;
-		private V value;
-		public V result = null;
+		private byte[] key;
+		private byte[] value;
+		public byte[] result = null;
 
-		public PutWrapper(K key,V value){
+		public PutWrapper(byte[] key,byte[] value){
 			this.key = key;
 			this.value = value;
 		}
 		
-		@SuppressWarnings("unchecked")
 		public void run() {
+			LUCI_Butler.InProcess<K,V> direct = root.inProcess;
+			if(direct != null){
+				result = direct.putRaw(key,value);
+				return;
+			}
 			
 			try {
-				oos.writeObject(LUCI_Butler.ServerCommands.PUT);
+				oos.writeObject(LUCI_Butler.ServerCommands.PUT_RAW);
 			} catch (IOException e) {
-				getLog().log(Level.ERROR, "Unable to write "+LUCI_Butler.ServerCommands.PUT+" command",e);
+				getLog().log(Level.ERROR, "Unable to write "+LUCI_Butler.ServerCommands.PUT_RAW+" command",e);
 			}
 		
 			try {
 				oos.writeObject(key);
 			} catch (IOException e) {
-				getLog().log(Level.ERROR, "Unable to write "+LUCI_Butler.ServerCommands.PUT+" command parameter,key",e);
+				getLog().log(Level.ERROR, "Unable to write "+LUCI_Butler.ServerCommands.PUT_RAW+" command parameter,key",e);
 			}
 		
 			try {
 				oos.writeObject(value);
 				oos.flush();
+				/* Don't hold on to every key and value that has been sent */
+				oos.reset();
 			} catch (IOException e) {
-				getLog().log(Level.ERROR, "Unable to write "+LUCI_Butler.ServerCommands.PUT+" command parameter,value",e);
+				getLog().log(Level.ERROR, "Unable to write "+LUCI_Butler.ServerCommands.PUT_RAW+" command parameter,value",e);
 			}
 			
 			if(!optimize){
 				try {
-					result = (V) ois.readObject();
+					result = (byte[]) readReply();
 				} catch (IOException e) {
 					getLog().log(Level.ERROR, "Unable to read a result from object input stream",e);
 				} catch (ClassNotFoundException e) {
@@ -357,7 +895,14 @@ public class LUCICabinetMap_Remote<K extends Serializable,V extends Serializable
 	 * @param value
 	 */
 	public synchronized void putAsync(K key,V value) {
-		threadExecutor.execute(new PutWrapper(key,value));
+		evict(key);
+		if(batchSize > 1){
+			batch().put(key,value);
+			batched();
+		}
+		else{
+			execute(new PutWrapper(Serialization.serialize(key),Serialization.serialize(value)));
+		}
 	}
 	
 	/**
@@ -367,15 +912,29 @@ public class LUCICabinetMap_Remote<K extends Serializable,V extends Serializable
 	 * @return the overwritten value or null.
 	 */
 	public synchronized V putSync(K key, V value){
+		return(putSync(key,value,timeout));
+	}
+	
+	/**
+	 * A synchronous put command. Runs on a separate thread, blocks until it is done or the timeout passes.
+	 * @param key
+	 * @param value 
+	 * @param timeout how long to wait in milliseconds, 0 to wait forever
+	 * @return the overwritten value or null.
+	 */
+	@SuppressWarnings("unchecked")
+	public synchronized V putSync(K key, V value,long timeout){
+		evict(key);
+		return (V) Serialization.deserialize(putRawSync(Serialization.serialize(key),Serialization.serialize(value),timeout));
+	}
+	
+	/**
+	 * A synchronous put command using the serialized key and value. Runs on a separate thread, blocks until it is done.
+	 * @return the serialized overwritten value or null.
+	 */
+	private byte[] putRawSync(byte[] key, byte[] value,long timeout){
 		PutWrapper pw = new PutWrapper(key,value);
-		Future<?> f = threadExecutor.submit(pw);
-		try {
-			f.get();
-		} catch (InterruptedException e) {
-			getLog().log(Level.ERROR, "Interrupted while waiting for put to complete",e);
-		} catch (ExecutionException e) {
-			getLog().log(Level.ERROR, "Put failed",e);
-		}
+		call(pw,timeout,"put",false);
 		return(pw.result);
 	}
 	
@@ -396,32 +955,58 @@ public class LUCICabinetMap_Remote<K extends Serializable,V extends Serializable
 		}
 	}
 	
-
+	/**
+	 * Put an entry using its serialized key and value, see Serialization. The remote database never deserializes them.
+	 * If optimize is true, this is a non-blocking method. 
+	 * @param key the serialized key
+	 * @param value the serialized value
+	 * @return the serialized overwritten value, or null if optimize is true
+	 */
+	@Override
+	public synchronized byte[] putRaw(byte[] key,byte[] value){
+		evictRaw(key);
+		if(optimize){
+			execute(new PutWrapper(key,value));
+			return(null);
+		}
+		else{
+			return(putRawSync(key,value,timeout));
+		}
+	}
+	
+
 	private class GetWrapper implements Runnable{
-		private Object key;
-		public V result = null;
+		private byte[] key;
+		public byte[] result = null;
 
-		public GetWrapper(Object key){
+		public GetWrapper(byte[] key){
 			this.key = key;
 		}
 		
-		@SuppressWarnings("unchecked")
 		public void run() {
+			LUCI_Butler.InProcess<K,V> direct = root.inProcess;
+			if(direct != null){
+				result = direct.getRaw(key);
+				return;
+			}
+			
 			try{
-				oos.writeObject(LUCI_Butler.ServerCommands.GET);
+				oos.writeObject(LUCI_Butler.ServerCommands.GET_RAW);
 			} catch (IOException e) {
-				getLog().log(Level.ERROR, "Unable to write "+LUCI_Butler.ServerCommands.GET+" command",e);
+				getLog().log(Level.ERROR, "Unable to write "+LUCI_Butler.ServerCommands.GET_RAW+" command",e);
 			}
 			
 			try {
 				oos.writeObject(key);
 				oos.flush();
+				/* Don't hold on to every key that has been sent */
+				oos.reset();
 			} catch (IOException e) {
-				getLog().log(Level.ERROR, "Unable to write "+LUCI_Butler.ServerCommands.GET+" command parameter, key",e);
+				getLog().log(Level.ERROR, "Unable to write "+LUCI_Butler.ServerCommands.GET_RAW+" command parameter, key",e);
 			}
 			
 			try {
-				result = (V) ois.readObject();
+				result = (byte[]) readReply();
 			} catch (IOException e) {
 				getLog().log(Level.ERROR, "Unable to read a result from object input stream",e);
 			} catch (ClassNotFoundException e) {
@@ -440,7 +1025,7 @@ public class LUCICabinetMap_Remote<K extends Serializable,V extends Serializable
 	 * @param key the entry to get
 	 */
 	public synchronized void getAsync(K key) {
-		threadExecutor.execute(new GetWrapper(key));
+		execute(new GetWrapper(Serialization.serialize(key)));
 	}
 	
 	/**
@@ -448,16 +1033,7 @@ public class LUCICabinetMap_Remote<K extends Serializable,V extends Serializable
 	 * @param key the entry to get
 	 */
 	public synchronized V getSync(Object key) {
-		GetWrapper g = new GetWrapper(key);
-		Future<?> f = threadExecutor.submit(g);
-		try {
-			f.get();
-		} catch (InterruptedException e) {
-			getLog().log(Level.ERROR, "Interrupted while waiting for get to complete",e);
-		} catch (ExecutionException e) {
-			getLog().log(Level.ERROR, "Get failed",e);
-		}
-		return(g.result);
+		return(get(key,timeout));
 	}
 	
 
@@ -471,19 +1047,373 @@ public class LUCICabinetMap_Remote<K extends Serializable,V extends Serializable
 		return(getSync(key));
 	}
 	
+	
+	/** Get an entry from the database. This is a blocking method which forces all previous operations to be
+	 * completed before returning a value, or throws an exception if that takes longer than the timeout.
+	 * 
+	 * @param key
+	 * @param timeout how long to wait in milliseconds, 0 to wait forever
+	 * @return the value in the database. null if there is no entry
+	 */
+	@SuppressWarnings("unchecked")
+	public synchronized V get(Object key,long timeout){
+		return (V) Serialization.deserialize(getRaw(Serialization.serialize(key),timeout));
+	}
+	
+	
+	/** Get an entry using its serialized key, see Serialization. The remote database sends the stored bytes
+	 * without deserializing anything. This is a blocking method which forces all previous operations to be
+	 * completed before returning a value.
+	 * 
+	 * @param key the serialized key
+	 * @return the serialized value in the database. null if there is no entry
+	 */
+	@Override
+	public synchronized byte[] getRaw(byte[] key){
+		return(getRaw(key,timeout));
+	}
+	
+	
+	/** Get an entry using its serialized key, see Serialization. This is a blocking method which forces all previous
+	 * operations to be completed before returning a value, or throws an exception if that takes longer than the timeout.
+	 * 
+	 * @param key the serialized key
+	 * @param timeout how long to wait in milliseconds, 0 to wait forever
+	 * @return the serialized value in the database. null if there is no entry
+	 */
+	public synchronized byte[] getRaw(byte[] key,long timeout){
+		long epoch = 0;
+		if(nearCache != null){
+			byte[] cached = nearCache.get(key);
+			if(cached != null){
+				return(cached);
+			}
+			epoch = nearCache.epoch();
+		}
+		
+		GetWrapper g = new GetWrapper(key);
+		call(g,timeout,"get",true);
+		
+		if((nearCache != null) && (g.result != null)){
+			nearCache.put(key,g.result,epoch);
+		}
+		return(g.result);
+	}
+	
+
+	private class MultiGetWrapper implements Runnable{
+		private ArrayList<K> keys;
+		public Map<K,V> result = null;
+
+		public MultiGetWrapper(ArrayList<K> keys){
+			this.keys = keys;
+		}
+		
+		@SuppressWarnings("unchecked")
+		public void run() {
+			LUCI_Butler.InProcess<K,V> direct = root.inProcess;
+			if(direct != null){
+				result = direct.getAll(keys);
+				return;
+			}
+			
+			try{
+				oos.writeObject(LUCI_Butler.ServerCommands.MULTI_GET);
+			} catch (IOException e) {
+				getLog().log(Level.ERROR, "Unable to write "+LUCI_Butler.ServerCommands.MULTI_GET+" command",e);
+			}
+			
+			try {
+				oos.writeObject(keys);
+				oos.flush();
+				oos.reset();
+			} catch (IOException e) {
+				getLog().log(Level.ERROR, "Unable to write "+LUCI_Butler.ServerCommands.MULTI_GET+" command parameter, keys",e);
+			}
+			
+			try {
+				result = (Map<K,V>) readReply();
+			} catch (IOException e) {
+				getLog().log(Level.ERROR, "Unable to read a result from object input stream",e);
+			} catch (ClassNotFoundException e) {
+				getLog().log(Level.ERROR, "Unable to read a result from object input stream",e);
+			}
+			
+			checkForError(ois);
+		};
+	}
+	
+	
+	/** Get many entries from the database with one round trip. This is a blocking method which forces all previous
+	 * operations to be completed before returning.
+	 * 
+	 * @param keys the keys to look up
+	 * @return a map from each key that has a value in the database to that value. Keys without an entry are left out.
+	 */
+	@Override
+	public synchronized Map<K,V> getAll(Collection<? extends K> keys){
+		return(getAll(keys,timeout));
+	}
+	
+	
+	/** Get many entries from the database with one round trip. This is a blocking method which forces all previous
+	 * operations to be completed before returning, or throws an exception if that takes longer than the timeout.
+	 * 
+	 * @param keys the keys to look up
+	 * @param timeout how long to wait in milliseconds, 0 to wait forever
+	 * @return a map from each key that has a value in the database to that value. Keys without an entry are left out.
+	 */
+	public synchronized Map<K,V> getAll(Collection<? extends K> keys,long timeout){
+		MultiGetWrapper wrapper = new MultiGetWrapper(new ArrayList<K>(keys));
+		call(wrapper,timeout,"get",true);
+		if(wrapper.result == null){
+			return(new HashMap<K,V>());
+		}
+		return(wrapper.result);
+	}
+	
+	
+	private class RangeWrapper implements Runnable{
+		private K from;
+		private boolean fromInclusive;
+		private K to;
+		private int max;
+		public SortedMap<K,V> result = null;
+
+		public RangeWrapper(K from,boolean fromInclusive,K to,int max){
+			this.from = from;
+			this.fromInclusive = fromInclusive;
+			this.to = to;
+			this.max = max;
+		}
+		
+		@SuppressWarnings("unchecked")
+		public void run() {
+			LUCI_Butler.InProcess<K,V> direct = root.inProcess;
+			if(direct != null){
+				result = direct.getRange(from,fromInclusive,to,max);
+				return;
+			}
+			
+			try{
+				oos.writeObject(LUCI_Butler.ServerCommands.RANGE);
+			} catch (IOException e) {
+				getLog().log(Level.ERROR, "Unable to write "+LUCI_Butler.ServerCommands.RANGE+" command",e);
+			}
+			
+			try {
+				oos.writeObject(from);
+				oos.writeObject(Boolean.valueOf(fromInclusive));
+				oos.writeObject(to);
+				oos.writeObject(Integer.valueOf(max));
+				oos.flush();
+				oos.reset();
+			} catch (IOException e) {
+				getLog().log(Level.ERROR, "Unable to write "+LUCI_Butler.ServerCommands.RANGE+" command parameters",e);
+			}
+			
+			try {
+				result = (SortedMap<K,V>) readReply();
+			} catch (IOException e) {
+				getLog().log(Level.ERROR, "Unable to read a result from object input stream",e);
+			} catch (ClassNotFoundException e) {
+				getLog().log(Level.ERROR, "Unable to read a result from object input stream",e);
+			}
+			
+			checkForError(ois);
+		};
+	}
+	
+	
+	/** Get the entries whose keys fall in a range, in key order, with one round trip. The remote database must keep
+	 * its keys in order. This is a blocking method which forces all previous operations to be completed before
+	 * returning. range reads a longer range a page at a time, one round trip per page.
+	 * 
+	 * @param from the lowest key, null to start at the first key
+	 * @param fromInclusive true if an entry whose key is <param>from</param> is wanted
+	 * @param to the key to stop before, null to go on to the last key
+	 * @param max the most entries to return
+	 * @return the entries in key order
+	 */
+	@Override
+	public synchronized SortedMap<K,V> getRange(K from,boolean fromInclusive,K to,int max){
+		RangeWrapper wrapper = new RangeWrapper(from,fromInclusive,to,max);
+		call(wrapper,timeout,"getRange",true);
+		if(wrapper.result == null){
+			return(new TreeMap<K,V>());
+		}
+		return(wrapper.result);
+	}
+	
+	
+	private class UpdateWrapper implements Runnable{
+		private K key;
+		private Remapper<? super K,V> remapper;
+		public Change<V> result = null;
+
+		public UpdateWrapper(K key,Remapper<? super K,V> remapper){
+			this.key = key;
+			this.remapper = remapper;
+		}
+		
+		@SuppressWarnings("unchecked")
+		public void run() {
+			LUCI_Butler.InProcess<K,V> direct = root.inProcess;
+			if(direct != null){
+				result = direct.update(key,remapper);
+				return;
+			}
+			
+			try{
+				oos.writeObject(LUCI_Butler.ServerCommands.UPDATE);
+			} catch (IOException e) {
+				getLog().log(Level.ERROR, "Unable to write "+LUCI_Butler.ServerCommands.UPDATE+" command",e);
+			}
+			
+			try {
+				oos.writeObject(key);
+				oos.writeObject(remapper);
+				oos.flush();
+				oos.reset();
+			} catch (IOException e) {
+				getLog().log(Level.ERROR, "Unable to write "+LUCI_Butler.ServerCommands.UPDATE+" command parameters",e);
+			}
+			
+			try {
+				result = (Change<V>) readReply();
+			} catch (IOException e) {
+				getLog().log(Level.ERROR, "Unable to read a result from object input stream",e);
+			} catch (ClassNotFoundException e) {
+				getLog().log(Level.ERROR, "Unable to read a result from object input stream",e);
+			}
+			
+			checkForError(ois);
+		};
+	}
+	
+	
+	/** Change the value of a key to what a Remapper makes of it, atomically, with one round trip. The Remapper is
+	 * sent to the LUCI_Butler and run there while it holds the database's lock, so its class has to be on the
+	 * LUCI_Butler's classpath. This is a blocking method, even if optimize is true, which forces all previous
+	 * operations to be completed before returning. It isn't sent again if the connection is lost part way through,
+	 * since it may already have been done.
+	 * 
+	 * @param key the key to change
+	 * @param remapper given the key and its value, or null if it has none, gives the new value, or null to remove it
+	 * @return the value the key had before and the value it has now
+	 */
+	@Override
+	public synchronized Change<V> update(K key,Remapper<? super K,V> remapper){
+		UpdateWrapper wrapper = new UpdateWrapper(key,remapper);
+		try{
+			call(wrapper,timeout,"update",false);
+		}
+		finally{
+			/* A value that stayed the same can stay cached */
+			if((wrapper.result == null) || wrapper.result.isChanged()){
+				evict(key);
+			}
+		}
+		return(wrapper.result);
+	}
+	
+	
+	private class MultiPutWrapper implements Runnable{
+		private HashMap<K,V> entries;
+
+		public MultiPutWrapper(HashMap<K,V> entries){
+			this.entries = entries;
+		}
+		
+		public void run() {
+			LUCI_Butler.InProcess<K,V> direct = root.inProcess;
+			if(direct != null){
+				direct.putAll(entries);
+				return;
+			}
+			
+			try{
+				oos.writeObject(LUCI_Butler.ServerCommands.MULTI_PUT);
+			} catch (IOException e) {
+				getLog().log(Level.ERROR, "Unable to write "+LUCI_Butler.ServerCommands.MULTI_PUT+" command",e);
+			}
+			
+			try {
+				oos.writeObject(entries);
+				oos.flush();
+				oos.reset();
+			} catch (IOException e) {
+				getLog().log(Level.ERROR, "Unable to write "+LUCI_Butler.ServerCommands.MULTI_PUT+" command parameter, entries",e);
+			}
+			
+			checkForError(ois);
+		};
+	}
+	
+	
+	/**
+	 * Put many entries in the database with one round trip. If optimize is true, this is a non-blocking method.
+	 * @param map the entries to put
+	 */
+	@Override
+	public synchronized void putAll(Map<? extends K,? extends V> map){
+		for(K key:map.keySet()){
+			evict(key);
+		}
+		MultiPutWrapper wrapper = new MultiPutWrapper(new HashMap<K,V>(map));
+		if(optimize){
+			execute(wrapper);
+		}
+		else{
+			call(wrapper,timeout,"put",false);
+		}
+	}
+	
 
 	private class IterateWrapper implements Runnable{
 		IteratorWorker<K,V> result = null;
+		/* Whether the remote iteration gave its stop signal */
+		boolean stopped = false;
 		private Class<? extends IteratorWorker<K, V>> iw = null;
 		private IteratorWorkerConfig iwc = null;
+		private long readTimeout;
+		private String id = null;
 
-		public IterateWrapper(Class<? extends IteratorWorker<K, V>> iw, IteratorWorkerConfig iwc){
+		public IterateWrapper(Class<? extends IteratorWorker<K, V>> iw, IteratorWorkerConfig iwc,long readTimeout){
+			this(iw,iwc,readTimeout,null);
+		}
+		
+		/**
+		 * @param id what the iteration can be cancelled by, null if it can't be
+		 */
+		public IterateWrapper(Class<? extends IteratorWorker<K, V>> iw, IteratorWorkerConfig iwc,long readTimeout,String id){
 			this.iw = iw;
 			this.iwc = iwc;
+			this.readTimeout = readTimeout;
+			this.id = id;
 		}
 		
-		@SuppressWarnings("unchecked")
 		public void run() {
+			/* An iteration may be allowed longer than other operations */
+			try {
+				connection.setReadTimeout((int) readTimeout);
+			} catch (SocketException e) {
+				getLog().log(Level.ERROR, "Unable to set the socket timeout",e);
+			}
+			try{
+				iterate();
+			}
+			finally{
+				try {
+					connection.setReadTimeout((int) root.timeout);
+				} catch (SocketException e) {
+					getLog().log(Level.ERROR, "Unable to set the socket timeout",e);
+				}
+			}
+		}
+		
+		@SuppressWarnings("unchecked")
+		private void iterate() {
 			try {
 				oos.writeObject(LUCI_Butler.ServerCommands.ITERATE);
 			} catch (IOException e) {
@@ -498,13 +1428,22 @@ public class LUCICabinetMap_Remote<K extends Serializable,V extends Serializable
 			
 			try {
 				oos.writeObject(this.iwc);
-				oos.flush();
 			} catch (IOException e) {
 				getLog().log(Level.ERROR, "Unable to write "+LUCI_Butler.ServerCommands.ITERATE+" parameter, iwc",e);
 			}
+			
+			try {
+				oos.writeObject(this.id);
+				oos.flush();
+			} catch (IOException e) {
+				getLog().log(Level.ERROR, "Unable to write "+LUCI_Butler.ServerCommands.ITERATE+" parameter, id",e);
+			}
 
 			try {
-				result = (IteratorWorker<K,V>) ois.readObject();
+				result = (IteratorWorker<K,V>) readReply();
+				if(id != null){
+					stopped = (Boolean) ois.readObject();
+				}
 			} catch (IOException e) {
 				getLog().log(Level.ERROR, "Unable to read a result from object input stream",e);
 			} catch (ClassNotFoundException e) {
@@ -524,7 +1463,11 @@ public class LUCICabinetMap_Remote<K extends Serializable,V extends Serializable
 	 * @throws InstantiationException 
 	 */
 	public synchronized void iterateASync(Class<? extends IteratorWorker<K, V>> iwClass, IteratorWorkerConfig iwConfig) throws InstantiationException, IllegalAccessException {
-		threadExecutor.execute(new IterateWrapper(iwClass,iwConfig));
+		/* The IteratorWorker may write anything */
+		if(nearCache != null){
+			nearCache.invalidateAll();
+		}
+		execute(new IterateWrapper(iwClass,iwConfig,timeout));
 	}
 
 
@@ -537,15 +1480,27 @@ public class LUCICabinetMap_Remote<K extends Serializable,V extends Serializable
 	 * @throws InstantiationException 
 	 */
 	public synchronized IteratorWorker<K, V> iterateSync(Class<? extends IteratorWorker<K, V>> iwClass, IteratorWorkerConfig iwConfig) throws InstantiationException, IllegalAccessException {
-		IterateWrapper wrapper = new IterateWrapper(iwClass,iwConfig);
-		Future<?> f = threadExecutor.submit(wrapper);
-		try {
-			f.get();
-		} catch (InterruptedException e) {
-			getLog().log(Level.ERROR, "Interrupted while waiting for iterate to complete",e);
-		} catch (ExecutionException e) {
-			getLog().log(Level.ERROR, "Iterate failed",e);
+		return(iterateSync(iwClass,iwConfig,timeout));
+	}
+	
+	
+	/** Iterate over the entries in the database and call the appropriate methods in <param>iwClass</param>
+	 * to do work.  See IteratorWorker for details on how the iteration works. This is a blocking method which throws
+	 * an exception if the iteration takes longer than the timeout.
+	 * @param iwClass the class to instantiate to do the work
+	 * @param iwConfig any configuration parameters to pass to iwClass after it is instantiated during initialization
+	 * @param timeout how long to wait in milliseconds, 0 to wait forever
+	 * @return the IteratorWorker after the work is complete.  
+	 * @throws IllegalAccessException 
+	 * @throws InstantiationException 
+	 */
+	public synchronized IteratorWorker<K, V> iterateSync(Class<? extends IteratorWorker<K, V>> iwClass, IteratorWorkerConfig iwConfig,long timeout) throws InstantiationException, IllegalAccessException {
+		/* The IteratorWorker may write anything */
+		if(nearCache != null){
+			nearCache.invalidateAll();
 		}
+		IterateWrapper wrapper = new IterateWrapper(iwClass,iwConfig,timeout);
+		call(wrapper,timeout,"iterate",true);
 		return(wrapper.result);
 	}
 	
@@ -565,23 +1520,150 @@ public class LUCICabinetMap_Remote<K extends Serializable,V extends Serializable
 	}
 	
 	
-	private class SizeWrapper implements Runnable{
-		Long result = null;
-
-		public void run() {
-
-			try{
-				oos.writeObject(LUCI_Butler.ServerCommands.SIZE);
-				oos.flush();
-			} catch (IOException e) {
-				getLog().log(Level.ERROR, "Unable to write "+LUCI_Butler.ServerCommands.SIZE+" command",e);
+	/** Synchronously iterate over the entries in the database as one piece of an iteration spread over several
+	 * databases, see LUCICabinetMap.iterate. When the signal is given while the remote iteration is running, it is
+	 * cancelled over a separate connection, since this one is busy waiting for the answer.
+	 * @param iwClass the class to instantiate to do the work
+	 * @param iwConfig any configuration parameters to pass to iwClass after it is instantiated during initialization
+	 * @param stop shared by all the pieces of the iteration
+	 * @return the IteratorWorker after the work is complete.  
+	 * @throws IllegalAccessException 
+	 * @throws InstantiationException 
+	 */
+	@Override
+	public synchronized IteratorWorker<K, V> iterate(Class<? extends IteratorWorker<K, V>> iwClass, IteratorWorkerConfig iwConfig,StopSignal stop) throws InstantiationException, IllegalAccessException {
+		/* The IteratorWorker may write anything */
+		if(nearCache != null){
+			nearCache.invalidateAll();
+		}
+		final String id = UUID.randomUUID().toString();
+		IterateWrapper wrapper = new IterateWrapper(iwClass,iwConfig,timeout,id);
+		
+		/* Called on whichever thread gives the signal, which mustn't wait for this map */
+		final SocketAddress to = endpoint;
+		Runnable listener = new Runnable(){
+			public void run() {
+				cancelIteration(to,id);
 			}
-			
-			try {
-				result = (Long) ois.readObject();
-			} catch (IOException e) {
-				getLog().log(Level.ERROR, "Unable to read a result from object input stream",e);
-			} catch (ClassNotFoundException e) {
+		};
+		stop.whenStopped(listener);
+		try{
+			call(wrapper,timeout,"iterate",true);
+		}
+		finally{
+			stop.remove(listener);
+		}
+		
+		if(wrapper.stopped){
+			stop.stop();
+		}
+		return(wrapper.result);
+	}
+	
+	
+	/**
+	 * Cancel an iteration over a new connection. If the iteration hasn't started yet, it stops as soon as it does.
+	 * @param to the LUCI_Butler running the iteration
+	 * @param id what the iteration was given to be cancelled by
+	 */
+	private void cancelIteration(SocketAddress to,String id){
+		Connection c = null;
+		try{
+			c = Connection.open(to,(int) timeout);
+			ObjectOutputStream out = new ObjectOutputStream(c.getOutputStream());
+			ObjectInputStream in = new ObjectInputStream(c.getInputStream());
+			in.readObject();
+			
+			out.writeObject(LUCI_Butler.ServerCommands.ITERATE_CANCEL);
+			out.writeObject(id);
+			out.writeObject(LUCI_Butler.ServerCommands.CLOSE);
+			out.flush();
+			
+			Object cancelled = in.readObject();
+			if(!ServerResponse.COMMAND_SUCCESSFUL.equals(cancelled)){
+				getLog().log(Level.ERROR, "Unable to cancel an iteration on "+Connection.describe(to)+":"+cancelled);
+			}
+			in.readObject();
+		} catch (IOException e) {
+			getLog().log(Level.ERROR, "Unable to cancel an iteration on "+Connection.describe(to),e);
+		} catch (ClassNotFoundException e) {
+			getLog().log(Level.ERROR, "Unable to cancel an iteration on "+Connection.describe(to),e);
+		}
+		finally{
+			if(c != null){
+				try {
+					c.close();
+				} catch (IOException e) {
+				}
+			}
+		}
+	}
+	
+	
+	/**
+	 * Stream all the entries in the remote database, a chunk at a time, over a new connection. See ScanIterator.
+	 * @return an Iterator over the entries which must be closed if it isn't read to the end.
+	 */
+	public ScanIterator<K,V> scan(){
+		return(scan(null));
+	}
+	
+	
+	/**
+	 * Stream the entries in the remote database, a chunk at a time, over a new connection. See ScanIterator.
+	 * @param from where to resume an earlier scan from, null to start at the beginning
+	 * @return an Iterator over the entries which must be closed if it isn't read to the end.
+	 */
+	public ScanIterator<K,V> scan(ScanCursor from){
+		return(scan(from,128,4));
+	}
+	
+	
+	/**
+	 * Stream the entries in the remote database, a chunk at a time, over a new connection. See ScanIterator.
+	 * Operations which were requested before the scan are completed before it starts.
+	 * @param from where to resume an earlier scan from, null to start at the beginning
+	 * @param chunkSize how many entries are sent at a time
+	 * @param window how many chunks may be in flight at once
+	 * @return an Iterator over the entries which must be closed if it isn't read to the end.
+	 */
+	public synchronized ScanIterator<K,V> scan(ScanCursor from,int chunkSize,int window){
+		call(new Runnable(){
+			public void run() {
+			}
+		},timeout,"earlier operations",true);
+		
+		try {
+			return(new ScanIterator<K,V>(endpoint,database,from,chunkSize,window,timeout));
+		} catch (IOException e) {
+			getLog().log(Level.ERROR, "Unable to open a connection for a scan",e);
+			throw new RuntimeException("Unable to open a connection for a scan to "+Connection.describe(endpoint),e);
+		}
+	}
+	
+	
+	private class SizeWrapper implements Runnable{
+		Long result = null;
+
+		public void run() {
+			LUCI_Butler.InProcess<K,V> direct = root.inProcess;
+			if(direct != null){
+				result = direct.sizeLong();
+				return;
+			}
+
+			try{
+				oos.writeObject(LUCI_Butler.ServerCommands.SIZE);
+				oos.flush();
+			} catch (IOException e) {
+				getLog().log(Level.ERROR, "Unable to write "+LUCI_Butler.ServerCommands.SIZE+" command",e);
+			}
+			
+			try {
+				result = (Long) readReply();
+			} catch (IOException e) {
+				getLog().log(Level.ERROR, "Unable to read a result from object input stream",e);
+			} catch (ClassNotFoundException e) {
 				getLog().log(Level.ERROR, "Unable to read a result from object input stream",e);
 			}
 			
@@ -596,14 +1678,42 @@ public class LUCICabinetMap_Remote<K extends Serializable,V extends Serializable
 	 */
 	public synchronized Long sizeLong(){
 		SizeWrapper wrapper = new SizeWrapper();
-		Future<?> f = threadExecutor.submit(wrapper);
-		try {
-			f.get();
-		} catch (InterruptedException e) {
-			getLog().log(Level.ERROR, "Interrupted while waiting for iterate to complete",e);
-		} catch (ExecutionException e) {
-			getLog().log(Level.ERROR, "Iterate failed",e);
-		}
+		call(wrapper,timeout,"size",true);
+		return(wrapper.result);
+	}
+
+	
+	private class StatsWrapper implements Runnable{
+		LUCI_ButlerStats result = null;
+
+		public void run() {
+
+			try{
+				oos.writeObject(LUCI_Butler.ServerCommands.STATS);
+				oos.flush();
+			} catch (IOException e) {
+				getLog().log(Level.ERROR, "Unable to write "+LUCI_Butler.ServerCommands.STATS+" command",e);
+			}
+			
+			try {
+				result = (LUCI_ButlerStats) readReply();
+			} catch (IOException e) {
+				getLog().log(Level.ERROR, "Unable to read a result from object input stream",e);
+			} catch (ClassNotFoundException e) {
+				getLog().log(Level.ERROR, "Unable to read a result from object input stream",e);
+			}
+			
+			checkForError(ois);
+		};
+	}
+	
+	/**
+	 * Get the operational statistics of the remote LUCI_Butler and its database.
+	 * @return a snapshot of the statistics
+	 */
+	public synchronized LUCI_ButlerStats getStats(){
+		StatsWrapper wrapper = new StatsWrapper();
+		call(wrapper,timeout,"stats",true);
 		return(wrapper.result);
 	}
 
@@ -611,6 +1721,11 @@ public class LUCICabinetMap_Remote<K extends Serializable,V extends Serializable
 	private class ClearWrapper implements Runnable{
 
 		public void run() {
+			LUCI_Butler.InProcess<K,V> direct = root.inProcess;
+			if(direct != null){
+				direct.clear();
+				return;
+			}
 
 			try{
 				oos.writeObject(LUCI_Butler.ServerCommands.CLEAR);
@@ -628,18 +1743,932 @@ public class LUCICabinetMap_Remote<K extends Serializable,V extends Serializable
 	 * Erase all the entries in the remote database.
 	 */
 	public synchronized void clear(){
+		if(nearCache != null){
+			nearCache.invalidateAll();
+		}
 		ClearWrapper wrapper = new ClearWrapper();
-		Future<?> f = threadExecutor.submit(wrapper);
+		call(wrapper,timeout,"clear",true);
+	}
+	
+
+	
+	private class TrackWrapper implements Runnable{
+		private Long subscriber;
+
+		public TrackWrapper(Long subscriber){
+			this.subscriber = subscriber;
+		}
+		
+		public void run() {
+			try{
+				oos.writeObject(LUCI_Butler.ServerCommands.TRACK);
+				oos.writeObject(subscriber);
+				oos.flush();
+			} catch (IOException e) {
+				getLog().log(Level.ERROR, "Unable to write "+LUCI_Butler.ServerCommands.TRACK+" command",e);
+			}
+			
+			checkForError(ois);
+		};
+	}
+	
+	
+	/**
+	 * Reads invalidations pushed by the LUCI_Butler and applies them to the near cache
+	 */
+	private static class InvalidationReader implements Runnable{
+		private ObjectInputStream in;
+		private NearCache cache;
+
+		public InvalidationReader(ObjectInputStream in,NearCache cache){
+			this.in = in;
+			this.cache = cache;
+		}
+		
+		public void run() {
+			try{
+				while(true){
+					Object o = in.readObject();
+					if(o instanceof byte[]){
+						cache.invalidate((byte[]) o);
+					}
+					else{
+						cache.invalidateAll();
+					}
+				}
+			} catch (IOException e) {
+				if(!cache.isDisabled()){
+					getLog().log(Level.ERROR, "Lost the connection for near cache invalidations, turning the near cache off",e);
+				}
+			} catch (ClassNotFoundException e) {
+				getLog().log(Level.ERROR, "Unable to read an invalidation, turning the near cache off",e);
+			}
+			/* Without invalidations nothing cached can be trusted */
+			cache.disable();
+		};
+	}
+	
+	
+	/**
+	 * Start keeping recently read entries on this side of the connection so that reading them again doesn't
+	 * need a round trip. This opens a second connection to the LUCI_Butler, which pushes an invalidation whenever
+	 * a cached key is written by any client of the LUCI_Butler. Writes made directly to the database on the
+	 * server, without going through the LUCI_Butler, are not seen and are only picked up when entries expire.
+	 * 
+	 * @param maxEntries the most entries to keep
+	 * @param ttl how long in milliseconds an entry may be used for, 0 to keep entries until they are invalidated or evicted
+	 * @return the near cache, which reports hit rates
+	 */
+	public synchronized NearCache enableNearCache(int maxEntries,long ttl){
+		if(root != this){
+			throw new RuntimeException("The near cache can only be enabled on the map which opened the connection");
+		}
+		if(nearCache != null){
+			throw new RuntimeException("The near cache is already enabled");
+		}
+		NearCache cache = new NearCache(maxEntries,ttl);
+		
+		Long subscriber = null;
+		ObjectInputStream in = null;
+		try{
+			subscription = Connection.open(endpoint,(int) timeout);
+			subscribedTo = endpoint;
+			ObjectOutputStream out = new ObjectOutputStream(subscription.getOutputStream());
+			in = new ObjectInputStream(subscription.getInputStream());
+			
+			Object okay = in.readObject();
+			if(!ServerResponse.CONNECTION_OKAY_OPTIMIZE.equals(okay) && !ServerResponse.CONNECTION_OKAY_UNOPTIMIZE.equals(okay)){
+				throw new IOException("Remote host did not send a connection okay signal");
+			}
+			
+			out.writeObject(LUCI_Butler.ServerCommands.SUBSCRIBE);
+			out.flush();
+			subscriber = (Long) in.readObject();
+			/* Invalidations may be a long time coming */
+			subscription.setReadTimeout(0);
+		} catch (IOException e) {
+			getLog().log(Level.ERROR, "Unable to subscribe to invalidations",e);
+		} catch (ClassNotFoundException e) {
+			getLog().log(Level.ERROR, "Unable to subscribe to invalidations",e);
+		}
+		
+		if(subscriber == null){
+			try {
+				if (subscription != null) {
+					subscription.close();
+					subscription = null;
+				}
+			} catch (IOException e) {
+			}
+			throw new RuntimeException("Unable to subscribe to invalidations from "+Connection.describe(endpoint));
+		}
+		
+		Thread t = new Thread(new InvalidationReader(in,cache));
+		t.setName("LUCICabinetMap_Remote Invalidation Thread");
+		t.setDaemon(true);
+		t.start();
+		
+		/* Ask the server to remember what this connection gets from now on */
+		this.subscriber = subscriber;
+		call(new TrackWrapper(subscriber),timeout,"track",true);
+		
+		nearCache = cache;
+		return(nearCache);
+	}
+	
+	
+	/**
+	 * @return the near cache, or null if it hasn't been enabled
+	 */
+	public synchronized NearCache getNearCache(){
+		return(nearCache);
+	}
+	
+	
+	private void evict(Object key){
+		if(nearCache != null){
+			nearCache.invalidate(Serialization.serialize(key));
+		}
+	}
+	
+	
+	private void evictRaw(byte[] key){
+		if(nearCache != null){
+			nearCache.invalidate(key);
+		}
+	}
+	
+	
+	private class BatchWrapper implements Runnable{
+		private WriteBatch<K,V> batch;
+
+		public BatchWrapper(WriteBatch<K,V> batch){
+			this.batch = batch;
+		}
+		
+		public void run() {
+			LUCI_Butler.InProcess<K,V> direct = root.inProcess;
+			if(direct != null){
+				direct.apply(batch);
+				return;
+			}
+			
+			try {
+				oos.writeObject(LUCI_Butler.ServerCommands.BATCH);
+			} catch (IOException e) {
+				getLog().log(Level.ERROR, "Unable to write "+LUCI_Butler.ServerCommands.BATCH+" command",e);
+			}
+			
+			try {
+				oos.writeObject(batch);
+				oos.flush();
+				/* Don't hold on to every key and value that has been sent */
+				oos.reset();
+			} catch (IOException e) {
+				getLog().log(Level.ERROR, "Unable to write "+LUCI_Butler.ServerCommands.BATCH+" command parameter",e);
+			}
+			
+			checkForError(ois);
+		};
+	}
+	
+	
+	/**
+	 * @return the batch that asynchronous writes are currently being added to
+	 */
+	private WriteBatch<K,V> batch(){
+		if(pending == null){
+			pending = new WriteBatch<K,V>(batchSize);
+		}
+		return pending;
+	}
+	
+	
+	/**
+	 * Called after a write has been added to the pending batch.  Sends the batch if it is full, otherwise makes sure
+	 * that it will be sent once it has lingered long enough.
+	 */
+	private void batched(){
+		if(pending.size() >= batchSize){
+			flush();
+		}
+		else if((lingerFlush == null) && (lingerTimer != null)){
+			lingerFlush = lingerTimer.schedule(new Runnable(){
+				public void run() {
+					try{
+						flush();
+					} catch (RejectedExecutionException e) {
+						getLog().log(Level.ERROR, "Unable to queue a batch of writes, they were not applied",e);
+					}
+				}
+			}, batchLinger, TimeUnit.MILLISECONDS);
+		}
+	}
+	
+	
+	/**
+	 * Send any asynchronous writes which are waiting to be batched. This doesn't wait for them to be completed.
+	 */
+	public synchronized void flush(){
+		if(lingerFlush != null){
+			lingerFlush.cancel(false);
+			lingerFlush = null;
+		}
+		if((pending != null) && (threadExecutor != null)){
+			WriteBatch<K,V> b = pending;
+			pending = null;
+			try{
+				root.enqueue(threadExecutor,new Replayed(new BatchWrapper(b),b.size(),"a batch of writes"));
+			} catch (RejectedExecutionException e) {
+				root.failedWrites.addAndGet(b.size());
+				throw e;
+			}
+		}
+	}
+	
+	
+	/**
+	 * Queue a job behind any pending batch so that operations happen in the order they were requested.
+	 */
+	private synchronized void execute(Runnable job){
+		flush();
+		try{
+			root.enqueue(threadExecutor,new Replayed(job,1,"an asynchronous operation"));
+		} catch (RejectedExecutionException e) {
+			root.failedWrites.incrementAndGet();
+			throw e;
+		}
+	}
+	
+	
+	/**
+	 * Queue a job behind any pending batch so that operations happen in the order they were requested.
+	 * @return a Future to wait on for the job to complete
+	 */
+	private synchronized Future<?> submit(Runnable job){
+		flush();
+		FutureTask<Object> f = new FutureTask<Object>(new Connected(job),null);
+		root.enqueue(threadExecutor,f);
+		return f;
+	}
+	
+	
+	/**
+	 * Send a job and wait for it. If it fails because the connection was lost and it is safe to send again, it is
+	 * retried on a new connection.
+	 * @param job the job to send
+	 * @param timeout how long to wait for each attempt in milliseconds, 0 to wait forever
+	 * @param what the operation, for messages
+	 * @param idempotent true if sending the job twice does no harm
+	 */
+	private synchronized void call(Runnable job,long timeout,String what,boolean idempotent){
+		int attempt = 0;
+		int busy = 0;
+		long backoff = root.reconnectBackoff;
+		while(true){
+			try{
+				if(waitFor(submit(job),timeout,what)){
+					return;
+				}
+			} catch (ServerBusyException e) {
+				/* It wasn't run, so it can be sent again whatever it was */
+				if(busy >= root.reconnectAttempts){
+					throw new ServerBusyException(what+" was turned away by "+Connection.describe(endpoint)+" "+(busy+1)+" times, it is busy");
+				}
+				busy++;
+				backOff(backoff);
+				backoff = Math.min(backoff * 2, MAX_RECONNECT_BACKOFF);
+				continue;
+			}
+			
+			if(!idempotent){
+				throw new RuntimeException(what+" failed on the connection to "+Connection.describe(endpoint)+", it may or may not have been applied");
+			}
+			if(root.healthy || (attempt >= root.reconnectAttempts)){
+				throw new RuntimeException(what+" failed on the connection to "+Connection.describe(endpoint)+" after "+(attempt+1)+" attempts");
+			}
+			attempt++;
+			getLog().log(Level.WARN, what+" failed because the connection to "+Connection.describe(endpoint)+" was lost, retrying");
+		}
+	}
+	
+	
+	/**
+	 * Wait before sending a command again to a busy LUCI_Butler. The wait is between half and all of backoff, so that
+	 * clients which were turned away together don't all come back together.
+	 */
+	private static void backOff(long backoff){
 		try {
-			f.get();
+			Thread.sleep((backoff / 2) + (long) (Math.random() * ((backoff / 2) + 1)));
 		} catch (InterruptedException e) {
-			getLog().log(Level.ERROR, "Interrupted while waiting for iterate to complete",e);
+			Thread.currentThread().interrupt();
+			throw new RuntimeException("Interrupted while backing off from a busy server",e);
+		}
+	}
+	
+	
+	/**
+	 * @return the most asynchronous writes that will be sent in one batch
+	 */
+	public synchronized int getBatchSize(){
+		return batchSize;
+	}
+	
+	
+	/**
+	 * Set the most asynchronous writes that will be sent in one batch.
+	 * @param batchSize A value of 1 turns batching off and sends every write by itself.
+	 */
+	public synchronized void setBatchSize(int batchSize){
+		if(batchSize < 1){
+			throw new IllegalArgumentException("Batch size must be at least 1:"+batchSize);
+		}
+		this.batchSize = batchSize;
+		if((pending != null) && (pending.size() >= batchSize)){
+			flush();
+		}
+	}
+	
+	
+	/**
+	 * @return the longest time in milliseconds that an asynchronous write waits for its batch to fill up
+	 */
+	public synchronized long getBatchLinger(){
+		return batchLinger;
+	}
+	
+	
+	/**
+	 * Set the longest time that an asynchronous write waits for its batch to fill up before it is sent anyway.
+	 * @param batchLinger the time in milliseconds
+	 */
+	public synchronized void setBatchLinger(long batchLinger){
+		if(batchLinger < 0){
+			throw new IllegalArgumentException("Batch linger must not be negative:"+batchLinger);
+		}
+		this.batchLinger = batchLinger;
+	}
+	
+	
+	/**
+	 * @return the longest time in milliseconds that a blocking call waits for the remote database. 0 means forever.
+	 */
+	public synchronized long getTimeout(){
+		return timeout;
+	}
+	
+	
+	/**
+	 * Set the default longest time that a blocking call waits for the remote database. This is also the socket read
+	 * timeout, so asynchronous operations can't hang forever either. The socket read timeout is only set by the map
+	 * which opened the connection.
+	 * @param timeout the time in milliseconds, 0 to wait forever
+	 */
+	public synchronized void setTimeout(long timeout){
+		if((timeout < 0) || (timeout > Integer.MAX_VALUE)){
+			throw new IllegalArgumentException("Timeout out of range:"+timeout);
+		}
+		this.timeout = timeout;
+		try {
+			/* Views share the socket of the root, which keeps its own read timeout */
+			if((root == this) && (connection != null)){
+				connection.setReadTimeout((int) timeout);
+			}
+		} catch (SocketException e) {
+			getLog().log(Level.ERROR, "Unable to set the socket timeout",e);
+		}
+	}
+	
+	
+	/**
+	 * Choose whether to call a LUCI_Butler in this JVM directly. By default a connection which turns out to be to a
+	 * LUCI_Butler in the same JVM skips the object streams and the socket for gets, puts, removes, batches, sizes and
+	 * clears, and runs them on the worker thread against the LUCI_Butler's database. They are still sent in order,
+	 * asynchronous writes are still asynchronous, and the LUCI_Butler still counts, rate limits and schedules them.
+	 * Iterations, scans, statistics and near cache subscriptions always go over the connection. Connections over a
+	 * Unix domain socket aren't called directly. This is shared by all the maps on the connection.
+	 * @param inProcess false to send everything over the connection
+	 */
+	public void setInProcess(final boolean inProcess){
+		root.inProcessAllowed = inProcess;
+		/* Switch on the worker thread, so that operations already queued are sent the way they were meant to be */
+		call(new Runnable(){
+			public void run() {
+				if(!inProcess){
+					root.inProcess = null;
+				}
+				else if(root.healthy && (root.inProcess == null) && (root.connection != null)){
+					root.inProcess = lookUpInProcess();
+				}
+			}
+		},timeout,"switching in process calls",true);
+	}
+	
+	
+	/**
+	 * @return true if operations are being run directly on a LUCI_Butler in this JVM, see setInProcess
+	 */
+	public boolean isInProcess(){
+		return root.inProcess != null;
+	}
+	
+	
+	/**
+	 * @return false if the connection has failed and will be replaced before the next operation
+	 */
+	public boolean isHealthy(){
+		return root.healthy;
+	}
+	
+	
+	/**
+	 * @return the endpoints this connects to, in order of preference
+	 */
+	public List<SocketAddress> getEndpoints(){
+		return Collections.unmodifiableList(endpoints);
+	}
+	
+	
+	/**
+	 * @return the endpoint of the LUCI_Butler this is, or was last, connected to
+	 */
+	public SocketAddress getEndpoint(){
+		return endpoint;
+	}
+	
+	
+	/**
+	 * @return how many more rounds through the endpoints are tried after the first fails, and how many times a
+	 * failed operation is retried
+	 */
+	public int getReconnectAttempts(){
+		return root.reconnectAttempts;
+	}
+	
+	
+	/**
+	 * @param reconnectAttempts how many more rounds through the endpoints are tried after the first fails, and how
+	 * many times a failed operation is retried. 0 to give up straight away. This is shared by all the maps on the
+	 * connection.
+	 */
+	public void setReconnectAttempts(int reconnectAttempts){
+		if(reconnectAttempts < 0){
+			throw new IllegalArgumentException("Reconnect attempts out of range:"+reconnectAttempts);
+		}
+		root.reconnectAttempts = reconnectAttempts;
+	}
+	
+	
+	/**
+	 * @return how long in milliseconds to wait before the second round through the endpoints
+	 */
+	public long getReconnectBackoff(){
+		return root.reconnectBackoff;
+	}
+	
+	
+	/**
+	 * @param reconnectBackoff how long in milliseconds to wait before the second round through the endpoints. The wait
+	 * doubles each round, up to 5 seconds. This is shared by all the maps on the connection.
+	 */
+	public void setReconnectBackoff(long reconnectBackoff){
+		if(reconnectBackoff < 0){
+			throw new IllegalArgumentException("Reconnect backoff out of range:"+reconnectBackoff);
+		}
+		root.reconnectBackoff = reconnectBackoff;
+	}
+	
+	
+	/**
+	 * @return how many asynchronous writes have been given up on because they couldn't be sent, on any of the maps
+	 * sharing the connection
+	 */
+	public long getFailedWrites(){
+		return root.failedWrites.get();
+	}
+	
+	
+	/**
+	 * Limit how many operations may wait to be sent on the connection. This is shared by all the maps on the
+	 * connection. A queued batch of asynchronous writes counts as one operation.
+	 * @param queueLimit the most operations that may wait, 0 for no limit. 10000 by default.
+	 * @param queuePolicy what happens to an operation when the queue is full. BLOCK by default.
+	 */
+	public void setQueueLimit(int queueLimit,QueuePolicy queuePolicy){
+		if(queueLimit < 0){
+			throw new IllegalArgumentException("Queue limit must not be negative:"+queueLimit);
+		}
+		if(queuePolicy == null){
+			throw new IllegalArgumentException("A queue policy is needed");
+		}
+		synchronized(queue){
+			root.queueLimit = queueLimit;
+			root.queuePolicy = queuePolicy;
+			queue.notifyAll();
+		}
+	}
+	
+	
+	/**
+	 * @return the most operations that may wait to be sent on the connection, 0 for no limit
+	 */
+	public int getQueueLimit(){
+		synchronized(queue){
+			return root.queueLimit;
+		}
+	}
+	
+	
+	/**
+	 * @return what happens to an operation when the queue is full
+	 */
+	public QueuePolicy getQueuePolicy(){
+		synchronized(queue){
+			return root.queuePolicy;
+		}
+	}
+	
+	
+	/**
+	 * Be told when the queue reaches a high water mark, and when it has drained to half of it. This is shared by all
+	 * the maps on the connection.
+	 * @param queueListener the listener, null for none
+	 * @param highWater how many waiting operations count as high water
+	 */
+	public void setQueueListener(QueueListener queueListener,int highWater){
+		if((queueListener != null) && (highWater < 1)){
+			throw new IllegalArgumentException("High water mark must be at least 1:"+highWater);
+		}
+		synchronized(queue){
+			root.queueListener = queueListener;
+			root.highWater = (queueListener == null) ? 0 : highWater;
+			root.aboveHighWater = false;
+		}
+	}
+	
+	
+	/**
+	 * @return how many operations are waiting to be sent on the connection now
+	 */
+	public int getQueueDepth(){
+		return queue.size();
+	}
+	
+	
+	/**
+	 * @return the most operations that have been waiting to be sent on the connection at once
+	 */
+	public int getQueuePeak(){
+		synchronized(queue){
+			return root.queuePeak;
+		}
+	}
+	
+	
+	/**
+	 * @return how many operations have been turned away because the queue was full, by FAIL_FAST or by waiting too
+	 * long with BLOCK
+	 */
+	public long getQueueRejections(){
+		synchronized(queue){
+			return root.queueRejections;
+		}
+	}
+	
+	
+	/**
+	 * @return how many asynchronous operations have been dropped by DROP_OLDEST to make room in the queue
+	 */
+	public long getQueueDrops(){
+		synchronized(queue){
+			return root.queueDrops;
+		}
+	}
+	
+	
+	/**
+	 * Wait for a job to finish.  If it takes too long then it and everything queued behind it is cancelled and
+	 * the connection is abandoned, since the server may still send the late reply.
+	 * @param f the job to wait for
+	 * @param timeout how long to wait in milliseconds, 0 to wait forever
+	 * @param what the operation, for messages
+	 * @return true if the job completed, false if it failed
+	 * @throws ServerBusyException if the LUCI_Butler turned the job away
+	 * @throws CommandFailedException if the LUCI_Butler ran the job and it failed
+	 */
+	private boolean waitFor(Future<?> f,long timeout,String what){
+		try {
+			if(timeout == 0){
+				f.get();
+			}
+			else{
+				f.get(timeout,TimeUnit.MILLISECONDS);
+			}
+			return true;
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+			throw new RuntimeException("Interrupted while waiting for "+what+" to complete",e);
 		} catch (ExecutionException e) {
-			getLog().log(Level.ERROR, "Iterate failed",e);
+			if(e.getCause() instanceof ServerBusyException){
+				throw (ServerBusyException) e.getCause();
+			}
+			if(e.getCause() instanceof CommandFailedException){
+				throw (CommandFailedException) e.getCause();
+			}
+			getLog().log(Level.ERROR, what+" failed",e);
+			return false;
+		} catch (CancellationException e) {
+			/* The connection was abandoned while it was queued */
+			getLog().log(Level.ERROR, what+" was cancelled",e);
+			return false;
+		} catch (TimeoutException e) {
+			f.cancel(true);
+			root.abandonConnection("Timed out after "+timeout+" milliseconds waiting for "+what);
+			throw new RuntimeException("Timed out after "+timeout+" milliseconds waiting for "+what+" from "+Connection.describe(endpoint));
+		}
+	}
+	
+	
+	/**
+	 * Give up on the current connection. Queued jobs are cancelled and the socket is closed, which stops the job
+	 * that is running. A new connection is made before the next job is sent. Views call this on their root while
+	 * holding their own lock, so it locks the queue rather than the root.
+	 */
+	private void abandonConnection(String reason){
+		synchronized(queue){
+			healthy = false;
+			
+			List<Runnable> dropped = new ArrayList<Runnable>();
+			queue.drainTo(dropped);
+			for(Runnable r:dropped){
+				if(r instanceof Future<?>){
+					((Future<?>) r).cancel(false);
+				}
+				else if(r instanceof LUCICabinetMap_Remote.Replayed){
+					failedWrites.addAndGet(((LUCICabinetMap_Remote<?,?>.Replayed) r).writes);
+				}
+			}
+			getLog().log(Level.ERROR, reason+", abandoning the connection to "+Connection.describe(endpoint)+" and cancelling "+dropped.size()+" queued operations");
+			
+			closeSocket();
+			queue.notifyAll();
+		}
+		dequeued();
+	}
+	
+	
+	/**
+	 * Hand a job to the worker thread once the queue limit lets it in. Only called on the root, while the map
+	 * queuing the job holds its own lock.
+	 * @param executor the worker thread of the map queuing the job
+	 */
+	private void enqueue(ExecutorService executor,Runnable job){
+		int depth;
+		boolean high = false;
+		synchronized(queue){
+			if((queueLimit > 0) && (queue.size() >= queueLimit)){
+				if(queuePolicy.equals(QueuePolicy.FAIL_FAST)){
+					queueRejections++;
+					throw new RejectedExecutionException(queue.size()+" operations are already waiting to be sent to "+Connection.describe(endpoint));
+				}
+				if(!queuePolicy.equals(QueuePolicy.DROP_OLDEST) || !dropOldest()){
+					waitForRoom();
+				}
+			}
+			executor.execute(job);
+			
+			depth = queue.size();
+			queuePeak = Math.max(queuePeak,depth);
+			if((highWater > 0) && !aboveHighWater && (depth >= highWater)){
+				aboveHighWater = true;
+				high = (queueListener != null);
+			}
+		}
+		if(high){
+			queueListener.highWater(this,depth);
+		}
+	}
+	
+	
+	/**
+	 * Wait, holding the queue's lock, until the worker thread has taken enough from the queue to make room
+	 */
+	private void waitForRoom(){
+		long wait = timeout;
+		long deadline = System.currentTimeMillis() + wait;
+		while((queueLimit > 0) && (queue.size() >= queueLimit)){
+			if(wait != 0){
+				long left = deadline - System.currentTimeMillis();
+				if(left <= 0){
+					queueRejections++;
+					throw new RejectedExecutionException("Waited "+wait+" milliseconds for room among the "+queue.size()+" operations waiting to be sent to "+Connection.describe(endpoint));
+				}
+				try {
+					queue.wait(left);
+				} catch (InterruptedException e) {
+					Thread.currentThread().interrupt();
+					throw new RejectedExecutionException("Interrupted while waiting for room in the queue");
+				}
+			}
+			else{
+				try {
+					queue.wait();
+				} catch (InterruptedException e) {
+					Thread.currentThread().interrupt();
+					throw new RejectedExecutionException("Interrupted while waiting for room in the queue");
+				}
+			}
+		}
+	}
+	
+	
+	/**
+	 * Drop the oldest asynchronous operation in the queue, holding the queue's lock. Operations that a caller is
+	 * waiting for are left alone.
+	 * @return true if one was dropped
+	 */
+	private boolean dropOldest(){
+		for(Runnable r:queue){
+			if((r instanceof LUCICabinetMap_Remote.Replayed) && queue.remove(r)){
+				LUCICabinetMap_Remote<?,?>.Replayed dropped = (LUCICabinetMap_Remote<?,?>.Replayed) r;
+				failedWrites.addAndGet(dropped.writes);
+				queueDrops++;
+				getLog().log(Level.WARN, "Dropped "+dropped.what+" from the full queue to "+Connection.describe(endpoint)+", "+dropped.writes+" writes were not applied");
+				return true;
+			}
+		}
+		return false;
+	}
+	
+	
+	/**
+	 * Called on the worker thread as it takes a job from the queue, and after the queue is emptied
+	 */
+	private void dequeued(){
+		int depth;
+		boolean low = false;
+		synchronized(queue){
+			queue.notifyAll();
+			depth = queue.size();
+			if(aboveHighWater && (depth <= highWater / 2)){
+				aboveHighWater = false;
+				low = (queueListener != null);
+			}
+		}
+		if(low){
+			queueListener.lowWater(this,depth);
+		}
+	}
+	
+	
+	private void closeSocket(){
+		try {
+			if (connection != null) {
+				connection.close();
+			}
+		} catch (IOException e) {
+		}
+	}
+	
+	
+	/**
+	 * Replace a lost connection, trying each endpoint in order and backing off between rounds. This runs on the
+	 * worker thread ahead of the job that needs the connection.
+	 */
+	private void ensureConnected(){
+		if(healthy){
+			return;
+		}
+		closeSocket();
+		
+		long backoff = reconnectBackoff;
+		for(int attempt = 0; attempt <= reconnectAttempts; attempt++){
+			if(attempt > 0){
+				try {
+					Thread.sleep(backoff);
+				} catch (InterruptedException e) {
+					Thread.currentThread().interrupt();
+					throw new RuntimeException("Interrupted while reconnecting",e);
+				}
+				backoff = Math.min(backoff * 2, MAX_RECONNECT_BACKOFF);
+			}
+			
+			String lost = Connection.describe(endpoint);
+			if(connectToAny()){
+				healthy = true;
+				getLog().log(Level.WARN, "Reconnected to "+Connection.describe(endpoint)+" after losing "+lost);
+				
+				/* Whatever was read on the old connection is no longer being tracked */
+				if(nearCache != null){
+					nearCache.invalidateAll();
+					if(subscriber != null){
+						if(endpoint.equals(subscribedTo)){
+							new TrackWrapper(subscriber).run();
+						}
+						else{
+							/* The subscription is to a different LUCI_Butler, which won't see writes to this one */
+							getLog().log(Level.WARN, "Failed over to "+Connection.describe(endpoint)+", turning the near cache off");
+							nearCache.disable();
+							subscriber = null;
+						}
+					}
+				}
+				return;
+			}
 		}
+		throw new RuntimeException("Unable to reconnect to any of "+endpoints);
 	}
 	
+	
+	/**
+	 * Makes sure there is a connection, using this map's database, before running a job.
+	 */
+	private class Connected implements Runnable{
+		private Runnable job;
 
+		public Connected(Runnable job){
+			this.job = job;
+		}
+		
+		public void run() {
+			root.ensureConnected();
+			select();
+			job.run();
+		};
+	}
+	
+	
+	/**
+	 * Runs an asynchronous job, sending it again on a new connection if the connection is lost. Nobody is waiting for
+	 * the result, so if it can't be sent at all it is counted in failedWrites and logged.
+	 */
+	private class Replayed implements Runnable{
+		private Runnable job;
+		private int writes;
+		private String what;
+
+		public Replayed(Runnable job,int writes,String what){
+			this.job = job;
+			this.writes = writes;
+			this.what = what;
+		}
+		
+		public void run() {
+			int attempt = 0;
+			int busy = 0;
+			long backoff = root.reconnectBackoff;
+			while(true){
+				try{
+					root.ensureConnected();
+					select();
+					job.run();
+					return;
+				} catch (ServerBusyException e) {
+					/* Turned away without being run, so back off and send it again */
+					if((busy >= root.reconnectAttempts) || Thread.currentThread().isInterrupted()){
+						root.failedWrites.addAndGet(writes);
+						getLog().log(Level.ERROR, "Gave up on "+what+" after it was turned away "+(busy+1)+" times, "+writes+" writes were not applied",e);
+						return;
+					}
+					busy++;
+					try{
+						backOff(backoff);
+					} catch (RuntimeException interrupted) {
+						root.failedWrites.addAndGet(writes);
+						getLog().log(Level.ERROR, "Gave up on "+what+" while backing off, "+writes+" writes were not applied",interrupted);
+						return;
+					}
+					backoff = Math.min(backoff * 2, MAX_RECONNECT_BACKOFF);
+				} catch (CommandFailedException e) {
+					/* The server ran it and it failed, sending it again would fail the same way */
+					root.failedWrites.addAndGet(writes);
+					getLog().log(Level.ERROR, "Gave up on "+what+" after it failed on the server, "+writes+" writes were not applied",e);
+					return;
+				} catch (RuntimeException e) {
+					if(root.healthy || (attempt >= root.reconnectAttempts) || Thread.currentThread().isInterrupted()){
+						root.failedWrites.addAndGet(writes);
+						getLog().log(Level.ERROR, "Gave up on "+what+" after "+(attempt+1)+" attempts, "+writes+" writes were not applied",e);
+						return;
+					}
+					attempt++;
+					getLog().log(Level.WARN, "Lost the connection while sending "+what+", replaying it",e);
+				}
+			}
+		};
+	}
+	
+	
+	/**
+	 * Read the result of a command. A busy LUCI_Butler sends a busy response, and nothing else, in its place.
+	 */
+	private Object readReply() throws IOException, ClassNotFoundException{
+		Object o = ois.readObject();
+		if(ServerResponse.BUSY.equals(o)){
+			throw new ServerBusyException(Connection.describe(endpoint)+" is busy");
+		}
+		return o;
+	}
+	
 	
 	private void checkForError(ObjectInputStream ois){
 		ServerResponse okay = null;
@@ -651,19 +2680,33 @@ public class LUCICabinetMap_Remote<K extends Serializable,V extends Serializable
 			getLog().log(Level.ERROR, "Unable to read a result from object input stream",e);
 		}
 		
-		if(okay.equals(ServerResponse.COMMAND_SUCCESSFUL)){
+		if(ServerResponse.COMMAND_SUCCESSFUL.equals(okay)){
 			return;
 		}
 		
+		/* A busy server turned the command away without running it, and the connection is still good */
+		if(ServerResponse.BUSY.equals(okay)){
+			throw new ServerBusyException(Connection.describe(endpoint)+" is busy");
+		}
+		
+		/* The server hangs up after a failure, and after a failed read the stream can't be trusted */
+		root.healthy = false;
+		
+		if(!ServerResponse.COMMAND_FAILED.equals(okay)){
+			throw new RuntimeException("Bad Response from server:"+okay);
+		}
+		
+		/* A failed command is followed by a description of what went wrong */
+		Object reason = okay;
 		try {
-			okay = (ServerResponse) ois.readObject();
+			reason = ois.readObject();
 		} catch (IOException e) {
 			getLog().log(Level.ERROR, "Unable to read a result from object input stream",e);
 		} catch (ClassNotFoundException e) {
 			getLog().log(Level.ERROR, "Unable to read a result from object input stream",e);
 		}
 		
-		throw new RuntimeException("Bad Response from server:"+okay);
+		throw new CommandFailedException("Command failed on "+Connection.describe(endpoint)+":"+reason);
 	}
 
 }
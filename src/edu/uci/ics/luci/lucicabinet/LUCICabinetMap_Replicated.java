@@ -0,0 +1,643 @@
+package edu.uci.ics.luci.lucicabinet;
+
+import java.io.Serializable;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.SortedMap;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.Callable;
+import java.util.concurrent.CompletionService;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorCompletionService;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+import org.apache.log4j.Logger;
+
+/**
+ * A group of databases, called replicas, which all hold the same entries. A replicated database keeps working
+ * while some of its replicas are slow or down, so it can be used as one of the shards of a LUCICabinetMap_Shard
+ * to keep one bad LUCI_Butler from stalling everything routed to it.
+ *
+ * <p>
+ * With N replicas, a write is sent to all of them and returns once W of them have done it. The others finish in the
+ * background. The writes to each replica are queued in the order they were made, so every replica ends up applying
+ * the same writes in the same order.
+ *
+ * <p>
+ * A read is sent to the R replicas that have been answering fastest. If not enough of them have answered after the
+ * hedge delay, or one of them fails, the read is also sent to the next fastest replica, and so on, and the first R
+ * answers are used. Replicas don't keep versions, so when the answers differ the one from a replica that had
+ * finished all the writes made through this map when the read was sent is used, and otherwise the one most replicas
+ * gave. Iterations and sizes only need one replica, since each has every entry.
+ *
+ * <p>
+ * If the database is optimized its replicas usually are too, and a remote replica then acknowledges a write as soon
+ * as it is queued on its connection rather than when it has been written.
+ */
+public class LUCICabinetMap_Replicated<K extends Serializable,V extends Serializable> extends LUCICabinetMap<K,V>{
+
+	/** How much the latest time counts in the running average of a replica's response time, out of 8 */
+	private static final int LATENCY_WEIGHT = 2;
+	/** What a failure counts as in the running average, in nanoseconds */
+	private static final long FAILURE_LATENCY = 1000000000L;
+
+	private final List<LUCICabinetMap<K,V>> replicas;
+	private final int readQuorum;
+	private final int writeQuorum;
+	private volatile boolean optimize;
+	private volatile long hedgeDelay = 10;
+	private volatile boolean closed = false;
+
+	/* A running average of how long each replica takes to answer, in nanoseconds */
+	private final AtomicLong[] latency;
+	/* How many writes are queued or running on each replica */
+	private final AtomicInteger[] pending;
+	/* One thread per replica, so that its writes are made in order */
+	private final ExecutorService[] writers;
+	private final ExecutorService readers;
+	/* Held while a write is queued on every replica, so that they all get the writes in the same order */
+	private final Object writeOrder = new Object();
+
+	private final AtomicLong hedgedReads = new AtomicLong(0);
+	private final AtomicLong replicaFailures = new AtomicLong(0);
+
+	private static transient volatile Logger log = null;
+	public static Logger getLog(){
+		if(log == null){
+			log = Logger.getLogger(LUCICabinetMap_Replicated.class);
+		}
+		return log;
+	}
+
+	/**
+	 * @param replicas the databases which hold the same entries. They should start out the same.
+	 * @param readQuorum R, how many replicas have to answer a read
+	 * @param writeQuorum W, how many replicas have to do a write before it returns
+	 * @param optimize If the database is "optimized" then put and removes will be non-blocking and will always return null.
+	 * This is a violation of the java Map contract, but cuts the database operations in half.
+	 */
+	public LUCICabinetMap_Replicated(List<LUCICabinetMap<K,V>> replicas,int readQuorum,int writeQuorum,boolean optimize){
+		super();
+		if(replicas.isEmpty()){
+			throw new IllegalArgumentException("A replicated database needs at least one replica");
+		}
+		if((readQuorum < 1) || (readQuorum > replicas.size())){
+			throw new IllegalArgumentException("The read quorum must be from 1 to "+replicas.size()+":"+readQuorum);
+		}
+		if((writeQuorum < 1) || (writeQuorum > replicas.size())){
+			throw new IllegalArgumentException("The write quorum must be from 1 to "+replicas.size()+":"+writeQuorum);
+		}
+		this.replicas = new ArrayList<LUCICabinetMap<K,V>>(replicas);
+		this.readQuorum = readQuorum;
+		this.writeQuorum = writeQuorum;
+		this.optimize = optimize;
+
+		latency = new AtomicLong[replicas.size()];
+		pending = new AtomicInteger[replicas.size()];
+		writers = new ExecutorService[replicas.size()];
+		for(int i = 0; i < replicas.size(); i++){
+			latency[i] = new AtomicLong(0);
+			pending[i] = new AtomicInteger(0);
+			writers[i] = Executors.newSingleThreadExecutor(threads("LUCICabinetMap_Replicated Writer Thread "+i));
+		}
+		readers = Executors.newCachedThreadPool(threads("LUCICabinetMap_Replicated Reader Thread"));
+	}
+
+	private static ThreadFactory threads(final String name){
+		return new ThreadFactory(){
+			public Thread newThread(Runnable r) {
+				Thread t = new Thread(r);
+				t.setName(name);
+				t.setDaemon(true);
+				return t;
+			}
+		};
+	}
+
+
+	/**
+	 * An operation to run on a replica
+	 */
+	private abstract class ReplicaOp<T>{
+		abstract T call(LUCICabinetMap<K,V> replica) throws Exception;
+	}
+
+	/**
+	 * What one replica made of a write
+	 */
+	private static class Answer{
+		final Object value;
+		final Throwable failure;
+
+		Answer(Object value,Throwable failure){
+			this.value = value;
+			this.failure = failure;
+		}
+	}
+
+
+	private void check(){
+		if(closed){
+			throw new RuntimeException("The replicated database is closed");
+		}
+	}
+
+	private void record(int which,long nanos){
+		AtomicLong l = latency[which];
+		long old = l.get();
+		/* Not worth a retry if another thread got in first */
+		l.compareAndSet(old,(old == 0) ? nanos : old + ((nanos - old) * LATENCY_WEIGHT) / 8);
+	}
+
+	private void failed(int which,Throwable t){
+		replicaFailures.incrementAndGet();
+		record(which,FAILURE_LATENCY);
+		getLog().error("Replica "+which+" failed:"+t);
+	}
+
+	/**
+	 * @return the replicas, those without writes outstanding first and then the fastest first
+	 */
+	private Integer[] order(){
+		final long[] l = new long[replicas.size()];
+		final boolean[] busy = new boolean[replicas.size()];
+		Integer[] ret = new Integer[replicas.size()];
+		for(int i = 0; i < ret.length; i++){
+			ret[i] = i;
+			l[i] = latency[i].get();
+			busy[i] = pending[i].get() > 0;
+		}
+		Arrays.sort(ret,new Comparator<Integer>(){
+			public int compare(Integer a, Integer b) {
+				if(busy[a] != busy[b]){
+					return busy[a] ? 1 : -1;
+				}
+				return (l[a] < l[b]) ? -1 : ((l[a] > l[b]) ? 1 : 0);
+			}
+		});
+		return ret;
+	}
+
+	private static String describe(Map<Integer,Throwable> failures){
+		StringBuilder sb = new StringBuilder();
+		for(Map.Entry<Integer,Throwable> e:failures.entrySet()){
+			sb.append(", replica ").append(e.getKey()).append(": ").append(e.getValue());
+		}
+		return sb.toString();
+	}
+
+
+	/**
+	 * Run an operation on enough replicas to get <param>need</param> answers, hedging on more replicas when they are
+	 * slow or fail
+	 */
+	private <T> T read(final ReplicaOp<T> op,int need,String operation){
+		check();
+		Integer[] order = order();
+		CompletionService<T> cs = new ExecutorCompletionService<T>(readers);
+		Map<Future<T>,Integer> outstanding = new HashMap<Future<T>,Integer>();
+		List<T> answers = new ArrayList<T>(need);
+		List<Integer> from = new ArrayList<Integer>(need);
+		Map<Integer,Throwable> failures = new HashMap<Integer,Throwable>();
+		boolean[] caughtUp = new boolean[replicas.size()];
+		for(int i = 0; i < caughtUp.length; i++){
+			caughtUp[i] = (pending[i].get() == 0);
+		}
+
+		int sent = 0;
+		try{
+			for(; sent < need; sent++){
+				outstanding.put(send(cs,op,order[sent]),order[sent]);
+			}
+			while(answers.size() < need){
+				if(outstanding.isEmpty()){
+					if(sent == order.length){
+						throw new RuntimeException(operation+" got "+answers.size()+" of the "+need+" answers it needs from "+
+								replicas.size()+" replicas"+describe(failures));
+					}
+					outstanding.put(send(cs,op,order[sent]),order[sent]);
+					sent++;
+				}
+				Future<T> f = cs.poll(hedgeDelay,TimeUnit.MILLISECONDS);
+				if(f == null){
+					if(sent < order.length){
+						/* Slow, ask another replica as well */
+						hedgedReads.incrementAndGet();
+						outstanding.put(send(cs,op,order[sent]),order[sent]);
+						sent++;
+						continue;
+					}
+					f = cs.take();
+				}
+				Integer which = outstanding.remove(f);
+				try{
+					answers.add(f.get());
+					from.add(which);
+				}
+				catch(ExecutionException e){
+					failures.put(which,e.getCause());
+					if(sent < order.length){
+						outstanding.put(send(cs,op,order[sent]),order[sent]);
+						sent++;
+					}
+				}
+			}
+		}
+		catch(InterruptedException e){
+			throw new RuntimeException("Interrupted while waiting for a replica",e);
+		}
+
+		/* Whatever is still outstanding finishes on its own and is ignored */
+		return pick(answers,from,caughtUp);
+	}
+
+	private <T> Future<T> send(CompletionService<T> cs,final ReplicaOp<T> op,final int which){
+		return cs.submit(new Callable<T>(){
+			public T call() throws Exception {
+				long start = System.nanoTime();
+				try{
+					T ret = op.call(replicas.get(which));
+					record(which,System.nanoTime()-start);
+					return ret;
+				}
+				catch(Exception e){
+					failed(which,e);
+					throw e;
+				}
+			}
+		});
+	}
+
+	/**
+	 * @return the answer of a replica which had every write made through this map, or else the most common answer
+	 */
+	private static <T> T pick(List<T> answers,List<Integer> from,boolean[] caughtUp){
+		for(int i = 0; i < answers.size(); i++){
+			if(caughtUp[from.get(i)]){
+				return answers.get(i);
+			}
+		}
+		T best = answers.get(0);
+		int bestVotes = 0;
+		for(T a:answers){
+			int votes = 0;
+			for(T b:answers){
+				if(same(a,b)){
+					votes++;
+				}
+			}
+			if(votes > bestVotes){
+				best = a;
+				bestVotes = votes;
+			}
+		}
+		return best;
+	}
+
+	private static boolean same(Object a,Object b){
+		if((a instanceof byte[]) && (b instanceof byte[])){
+			return Arrays.equals((byte[]) a,(byte[]) b);
+		}
+		return (a == null) ? (b == null) : a.equals(b);
+	}
+
+
+	/**
+	 * Queue an operation on every replica and wait until the write quorum has done it
+	 * @return the answer of the first replica to do it
+	 */
+	@SuppressWarnings("unchecked")
+	private <T> T write(final ReplicaOp<T> op,String operation){
+		check();
+		final BlockingQueue<Answer> answers = new LinkedBlockingQueue<Answer>();
+		synchronized(writeOrder){
+			for(int i = 0; i < replicas.size(); i++){
+				final int which = i;
+				pending[which].incrementAndGet();
+				writers[which].execute(new Runnable(){
+					public void run() {
+						long start = System.nanoTime();
+						try{
+							T ret = op.call(replicas.get(which));
+							record(which,System.nanoTime()-start);
+							answers.add(new Answer(ret,null));
+						}
+						catch(Throwable t){
+							failed(which,t);
+							answers.add(new Answer(null,t));
+						}
+						finally{
+							pending[which].decrementAndGet();
+						}
+					}
+				});
+			}
+		}
+
+		int done = 0;
+		int failures = 0;
+		T ret = null;
+		Throwable firstFailure = null;
+		try{
+			while(done < writeQuorum){
+				Answer a = answers.take();
+				if(a.failure == null){
+					if(done == 0){
+						ret = (T) a.value;
+					}
+					done++;
+				}
+				else{
+					if(firstFailure == null){
+						firstFailure = a.failure;
+					}
+					failures++;
+					if(failures > replicas.size() - writeQuorum){
+						throw new RuntimeException(operation+" failed on "+failures+" of "+replicas.size()+
+								" replicas, "+writeQuorum+" had to succeed",firstFailure);
+					}
+				}
+			}
+		}
+		catch(InterruptedException e){
+			throw new RuntimeException("Interrupted while waiting for replicas",e);
+		}
+		return ret;
+	}
+
+
+	/**
+	 * @param hedgeDelay how long to wait for the replicas a read was sent to before sending it to another one as
+	 * well, in milliseconds
+	 */
+	public void setHedgeDelay(long hedgeDelay){
+		if(hedgeDelay < 0){
+			throw new IllegalArgumentException("The hedge delay must not be negative:"+hedgeDelay);
+		}
+		this.hedgeDelay = hedgeDelay;
+	}
+
+	public long getHedgeDelay(){
+		return hedgeDelay;
+	}
+
+	public int getReplicationFactor(){
+		return replicas.size();
+	}
+
+	public int getReadQuorum(){
+		return readQuorum;
+	}
+
+	public int getWriteQuorum(){
+		return writeQuorum;
+	}
+
+	/**
+	 * @return how many reads were sent to another replica because the first ones were slow
+	 */
+	public long getHedgedReads(){
+		return hedgedReads.get();
+	}
+
+	/**
+	 * @return how many operations have failed on a replica
+	 */
+	public long getReplicaFailures(){
+		return replicaFailures.get();
+	}
+
+	/**
+	 * @return the running average of how long a replica takes to answer, in nanoseconds
+	 */
+	public long getReplicaLatency(int replica){
+		return latency[replica].get();
+	}
+
+	/**
+	 * @return how many writes are queued or running on a replica
+	 */
+	public int getReplicaBacklog(int replica){
+		return pending[replica].get();
+	}
+
+
+	@Override
+	public boolean getOptimize() {
+		return optimize;
+	}
+
+	@Override
+	public void setOptimize(final boolean optimize){
+		this.optimize = optimize;
+		write(new ReplicaOp<Object>(){
+			Object call(LUCICabinetMap<K,V> replica) throws Exception {
+				replica.setOptimize(optimize);
+				return null;
+			}
+		},"setOptimize");
+	}
+
+	@Override
+	public V get(final Object key){
+		return read(new ReplicaOp<V>(){
+			V call(LUCICabinetMap<K,V> replica) throws Exception {
+				return replica.get(key);
+			}
+		},readQuorum,"get");
+	}
+
+	@Override
+	public byte[] getRaw(final byte[] key){
+		return read(new ReplicaOp<byte[]>(){
+			byte[] call(LUCICabinetMap<K,V> replica) throws Exception {
+				return replica.getRaw(key);
+			}
+		},readQuorum,"getRaw");
+	}
+
+	@Override
+	public Map<K,V> getAll(final Collection<? extends K> keys){
+		return read(new ReplicaOp<Map<K,V>>(){
+			Map<K,V> call(LUCICabinetMap<K,V> replica) throws Exception {
+				return replica.getAll(keys);
+			}
+		},readQuorum,"getAll");
+	}
+
+	@Override
+	public SortedMap<K,V> getRange(final K from,final boolean fromInclusive,final K to,final int max){
+		return read(new ReplicaOp<SortedMap<K,V>>(){
+			SortedMap<K,V> call(LUCICabinetMap<K,V> replica) throws Exception {
+				return replica.getRange(from,fromInclusive,to,max);
+			}
+		},readQuorum,"getRange");
+	}
+
+	/**
+	 * Get the next chunk of a scan from one replica. The replicas may not keep their entries in the same order, so a
+	 * scan that moves to another replica part of the way through picks up after the same key, not the same place.
+	 */
+	@Override
+	ScanChunk<K,V> scanChunk(final ScanCursor from,final int max){
+		return read(new ReplicaOp<ScanChunk<K,V>>(){
+			ScanChunk<K,V> call(LUCICabinetMap<K,V> replica) throws Exception {
+				return replica.scanChunk(from,max);
+			}
+		},1,"scanChunk");
+	}
+
+	@Override
+	public V put(final K key,final V value){
+		return write(new ReplicaOp<V>(){
+			V call(LUCICabinetMap<K,V> replica) throws Exception {
+				return replica.put(key,value);
+			}
+		},"put");
+	}
+
+	/**
+	 * Change the value of a key on every replica with a Remapper, see LUCICabinetMap.update. Each replica runs it
+	 * atomically, and since every replica applies the writes made through this map in the same order, they all
+	 * end up with the same value. The change returned is the one the first replica to finish made.
+	 */
+	@Override
+	public Change<V> update(final K key,final Remapper<? super K,V> remapper){
+		return write(new ReplicaOp<Change<V>>(){
+			Change<V> call(LUCICabinetMap<K,V> replica) throws Exception {
+				return replica.update(key,remapper);
+			}
+		},"update");
+	}
+
+	@Override
+	public byte[] putRaw(final byte[] key,final byte[] value){
+		return write(new ReplicaOp<byte[]>(){
+			byte[] call(LUCICabinetMap<K,V> replica) throws Exception {
+				return replica.putRaw(key,value);
+			}
+		},"putRaw");
+	}
+
+	@Override
+	public V remove(final Object key){
+		return write(new ReplicaOp<V>(){
+			V call(LUCICabinetMap<K,V> replica) throws Exception {
+				return replica.remove(key);
+			}
+		},"remove");
+	}
+
+	@Override
+	public byte[] removeRaw(final byte[] key){
+		return write(new ReplicaOp<byte[]>(){
+			byte[] call(LUCICabinetMap<K,V> replica) throws Exception {
+				return replica.removeRaw(key);
+			}
+		},"removeRaw");
+	}
+
+	@Override
+	public void putAll(Map<? extends K,? extends V> map){
+		/* Copied, the caller may change the map before every replica has it */
+		final Map<K,V> copy = new HashMap<K,V>(map);
+		write(new ReplicaOp<Object>(){
+			Object call(LUCICabinetMap<K,V> replica) throws Exception {
+				replica.putAll(copy);
+				return null;
+			}
+		},"putAll");
+	}
+
+	@Override
+	public void apply(final WriteBatch<K,V> batch){
+		write(new ReplicaOp<Object>(){
+			Object call(LUCICabinetMap<K,V> replica) throws Exception {
+				replica.apply(batch);
+				return null;
+			}
+		},"apply");
+	}
+
+	@Override
+	public void clear(){
+		write(new ReplicaOp<Object>(){
+			Object call(LUCICabinetMap<K,V> replica) throws Exception {
+				replica.clear();
+				return null;
+			}
+		},"clear");
+	}
+
+	@Override
+	public Long sizeLong(){
+		return read(new ReplicaOp<Long>(){
+			Long call(LUCICabinetMap<K,V> replica) throws Exception {
+				return replica.sizeLong();
+			}
+		},1,"sizeLong");
+	}
+
+	@Override
+	public IteratorWorker<K,V> iterate(Class<? extends IteratorWorker<K,V>> iwClass,IteratorWorkerConfig iwConfig) throws InstantiationException, IllegalAccessException{
+		return iterate(iwClass,iwConfig,new StopSignal());
+	}
+
+	/**
+	 * Iterate over one replica, the fastest that answers. Iterations are never hedged, since they take as long as
+	 * they take, but one that fails is tried on the next replica.
+	 */
+	@Override
+	public IteratorWorker<K,V> iterate(Class<? extends IteratorWorker<K,V>> iwClass,IteratorWorkerConfig iwConfig,StopSignal stop) throws InstantiationException, IllegalAccessException{
+		check();
+		Map<Integer,Throwable> failures = new HashMap<Integer,Throwable>();
+		for(Integer which:order()){
+			long start = System.nanoTime();
+			try{
+				IteratorWorker<K,V> ret = replicas.get(which).iterate(iwClass,iwConfig,stop);
+				record(which,System.nanoTime()-start);
+				return ret;
+			}
+			catch(RuntimeException e){
+				failed(which,e);
+				failures.put(which,e);
+			}
+		}
+		throw new RuntimeException("iterate failed on every replica"+describe(failures),failures.get(0));
+	}
+
+	/**
+	 * Close every replica, after the writes queued on it
+	 */
+	@Override
+	public void close(){
+		if(closed){
+			return;
+		}
+		closed = true;
+		readers.shutdown();
+		for(int i = 0; i < replicas.size(); i++){
+			writers[i].shutdown();
+			try {
+				if(!writers[i].awaitTermination(60,TimeUnit.SECONDS)){
+					getLog().error("Writes to replica "+i+" didn't finish before it was closed");
+				}
+			} catch (InterruptedException e) {
+				getLog().error("Interrupted while waiting for writes to replica "+i+":"+e);
+			}
+			replicas.get(i).close();
+		}
+	}
+}
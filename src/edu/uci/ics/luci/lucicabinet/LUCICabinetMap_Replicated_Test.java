@@ -0,0 +1,301 @@
+package edu.uci.ics.luci.lucicabinet;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+import java.io.IOException;
+import java.io.ObjectOutputStream;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.util.ArrayList;
+import java.util.List;
+
+import org.apache.log4j.BasicConfigurator;
+import org.junit.After;
+import org.junit.AfterClass;
+import org.junit.Before;
+import org.junit.BeforeClass;
+import org.junit.Test;
+
+import edu.uci.ics.luci.lucicabinet.library.IteratorWorkerCountEntries;
+import edu.uci.ics.luci.lucicabinet.library.ShardFunctionSimple;
+import edu.uci.ics.luci.lucicabinet.library.SimplerAccessControl;
+
+public class LUCICabinetMap_Replicated_Test {
+
+	int numberOfReplicas = 3;
+	List<LUCICabinetMap<Integer,String>> backing = null;
+	List<LUCI_Butler<Integer,String>> butlers = null;
+	List<LUCICabinetMap<Integer,String>> remotes = null;
+
+	LUCICabinetMap_Replicated<Integer,String> replicated = null;
+
+	@BeforeClass
+	public static void setUpBeforeClass() throws Exception {
+		BasicConfigurator.configure();
+	}
+
+	@AfterClass
+	public static void tearDownAfterClass() throws Exception {
+	}
+
+
+	@Before
+	public void setUp() throws Exception {
+		backing = new ArrayList<LUCICabinetMap<Integer,String>>(this.numberOfReplicas);
+		butlers = new ArrayList<LUCI_Butler<Integer,String>>(this.numberOfReplicas);
+		remotes = new ArrayList<LUCICabinetMap<Integer,String>>(this.numberOfReplicas);
+
+		try{
+			for(int i = 0; i < this.numberOfReplicas; i++){
+				backing.add(new LUCICabinetHDB<Integer,String>("eraseme"+i+"Replica.tch",false));
+				LUCI_Butler<Integer,String> b = new LUCI_Butler<Integer,String>(backing.get(i),8191+i,new SimplerAccessControl());
+				b.initialize();
+				butlers.add(b);
+				remotes.add(new LUCICabinetHDB_Remote<Integer,String>("localhost",8191+i,false));
+			}
+		}
+		catch(RuntimeException e){
+			fail("This shouldn't throw an exception"+e);
+		}
+	}
+
+	@After
+	public void tearDown() throws Exception {
+		/* Closing the replicated database closes the remote replicas */
+		if(replicated != null){
+			replicated.close();
+			replicated = null;
+		}
+		else if(remotes != null){
+			for(LUCICabinetMap<Integer,String> r:remotes){
+				r.close();
+			}
+		}
+		remotes = null;
+
+		if(butlers != null){
+			for(LUCI_Butler<Integer,String> b:butlers){
+				b.shutdown();
+			}
+			butlers = null;
+		}
+
+		if(backing != null){
+			for(LUCICabinetMap<Integer,String> b:backing){
+				b.clear();
+				b.close();
+			}
+			backing = null;
+		}
+	}
+
+
+	@SuppressWarnings("unchecked")
+	@Test
+	public void testPutGetRemove() {
+		replicated = new LUCICabinetMap_Replicated<Integer,String>(remotes,2,3,false);
+		assertEquals(3,replicated.getReplicationFactor());
+
+		for(Integer key=0; key< 200; key++){
+			assertEquals(null,replicated.put(key,"foo"+key));
+		}
+
+		/* Every replica had to acknowledge, so every replica has them */
+		for(LUCICabinetMap<Integer,String> b:backing){
+			for(Integer key=0; key< 200; key++){
+				assertEquals("foo"+key,b.get(key));
+			}
+		}
+
+		for(Integer key=0; key< 200; key++){
+			assertEquals("foo"+key,replicated.get(key));
+		}
+		assertEquals(Long.valueOf(200),replicated.sizeLong());
+
+		IteratorWorkerCountEntries<Integer,String> iw = null;
+		try{
+			iw = (IteratorWorkerCountEntries<Integer, String>) replicated.iterate((Class<? extends IteratorWorker<Integer, String>>) IteratorWorkerCountEntries.class,null);
+		} catch (InstantiationException e) {
+			fail("This shouldn't throw an exception"+e);
+		} catch (IllegalAccessException e) {
+			fail("This shouldn't throw an exception"+e);
+		}
+		assertEquals(200,iw.count);
+
+		/* Conditional writes are run on every replica */
+		assertEquals("foo1",replicated.putIfAbsent(1,"bar1"));
+		assertTrue(replicated.replace(1,"foo1","bar1"));
+		for(LUCICabinetMap<Integer,String> b:backing){
+			assertEquals("bar1",b.get(1));
+		}
+		assertTrue(replicated.replace(1,"bar1","foo1"));
+
+		for(Integer key=0; key< 200; key+=2){
+			assertEquals("foo"+key,replicated.remove(key));
+		}
+		for(Integer key=0; key< 200; key++){
+			assertEquals(((key % 2) == 0) ? null : "foo"+key,replicated.get(key));
+		}
+
+		replicated.clear();
+		assertEquals(Long.valueOf(0),replicated.sizeLong());
+
+		try{
+			new LUCICabinetMap_Replicated<Integer,String>(remotes,4,1,false);
+			fail("There are only three replicas to read from");
+		}
+		catch(IllegalArgumentException e){
+			/* Expected */
+		}
+	}
+
+
+	@Test
+	public void testStuckReplica() {
+		/* A butler which says hello and then never answers */
+		final List<Socket> accepted = new ArrayList<Socket>();
+		ServerSocket stuck = null;
+		try {
+			stuck = new ServerSocket(8194);
+		} catch (IOException e) {
+			fail("This shouldn't throw an exception"+e);
+		}
+		final ServerSocket server = stuck;
+		Thread t = new Thread(new Runnable(){
+			public void run() {
+				try {
+					while(true){
+						Socket s = server.accept();
+						synchronized(accepted){
+							accepted.add(s);
+						}
+						ObjectOutputStream out = new ObjectOutputStream(s.getOutputStream());
+						out.writeObject(LUCI_Butler.ServerResponse.CONNECTION_OKAY_UNOPTIMIZE);
+						out.flush();
+					}
+				} catch (IOException e) {
+					/* Closed */
+				}
+			}
+		});
+		t.setDaemon(true);
+		t.start();
+
+		LUCICabinetHDB_Remote<Integer,String> stuckRemote = null;
+		try{
+			stuckRemote = new LUCICabinetHDB_Remote<Integer,String>("localhost",8194,false);
+		} catch (IOException e) {
+			fail("This shouldn't throw an exception"+e);
+		}
+		stuckRemote.setTimeout(1000);
+
+		for(int i = 0; i < this.numberOfReplicas; i++){
+			backing.get(i).put(1,"one");
+		}
+
+		/* The stuck replica comes first, so the first read has to be hedged */
+		List<LUCICabinetMap<Integer,String>> replicas = new ArrayList<LUCICabinetMap<Integer,String>>();
+		replicas.add(stuckRemote);
+		replicas.add(remotes.get(0));
+		replicas.add(remotes.get(1));
+		replicated = new LUCICabinetMap_Replicated<Integer,String>(replicas,1,2,false);
+		replicated.setHedgeDelay(20);
+
+		long start = System.currentTimeMillis();
+		assertEquals("one",replicated.get(1));
+		assertTrue(System.currentTimeMillis()-start < 500);
+		assertEquals(1,replicated.getHedgedReads());
+
+		/* Once the stuck replica has failed it is asked last */
+		long wait = System.currentTimeMillis();
+		while((replicated.getReplicaFailures() == 0) && (System.currentTimeMillis()-wait < 5000)){
+			try {
+				Thread.sleep(50);
+			} catch (InterruptedException e) {
+			}
+		}
+		assertEquals(1,replicated.getReplicaFailures());
+		assertTrue(replicated.getReplicaLatency(0) > replicated.getReplicaLatency(1));
+		for(int i = 0; i < 10; i++){
+			assertEquals("one",replicated.get(1));
+		}
+		assertEquals(1,replicated.getHedgedReads());
+
+		/* Two of the three is enough for a write */
+		start = System.currentTimeMillis();
+		assertEquals("one",replicated.put(1,"uno"));
+		assertTrue(System.currentTimeMillis()-start < 500);
+		assertEquals("uno",backing.get(0).get(1));
+		assertEquals("uno",backing.get(1).get(1));
+		assertEquals("uno",replicated.get(1));
+
+		/* But not if one of the two left fails too */
+		butlers.get(0).shutdown();
+		butlers.set(0,null);
+		remotes.get(0).close();
+		try{
+			replicated.put(2,"two");
+			fail("Only one replica can take the write");
+		}
+		catch(RuntimeException e){
+			/* Expected */
+		}
+
+		replicated.close();
+		replicated = null;
+		remotes.get(2).close();
+		remotes = null;
+		butlers.remove(0);
+		try {
+			server.close();
+			synchronized(accepted){
+				for(Socket s:accepted){
+					s.close();
+				}
+			}
+		} catch (IOException e) {
+			fail("This shouldn't throw an exception"+e);
+		}
+	}
+
+
+	@Test
+	public void testAsShard() {
+		/* Two shards, each kept on a remote and a local replica */
+		List<LUCICabinetMap<Integer,String>> local = new ArrayList<LUCICabinetMap<Integer,String>>();
+		List<LUCICabinetMap<Integer,String>> shards = new ArrayList<LUCICabinetMap<Integer,String>>();
+		for(int i = 0; i < 2; i++){
+			local.add(new LUCICabinetHDB<Integer,String>("eraseme"+i+"ReplicaLocal.tch",false));
+			List<LUCICabinetMap<Integer,String>> group = new ArrayList<LUCICabinetMap<Integer,String>>();
+			group.add(remotes.get(i));
+			group.add(local.get(i));
+			shards.add(new LUCICabinetMap_Replicated<Integer,String>(group,1,2,false));
+		}
+
+		ShardFunctionSimple sf = new ShardFunctionSimple(2);
+		LUCICabinetMap_Shard<Integer,String> sharded = new LUCICabinetMap_Shard<Integer,String>(shards,sf,false);
+		for(Integer key=0; key< 100; key++){
+			sharded.put(key,"foo"+key);
+		}
+		for(Integer key=0; key< 100; key++){
+			assertEquals("foo"+key,sharded.get(key));
+			int which = sf.pickShard(key);
+			assertEquals("foo"+key,backing.get(which).get(key));
+			assertEquals("foo"+key,local.get(which).get(key));
+			assertEquals(null,backing.get(1-which).get(key));
+			assertEquals(null,local.get(1-which).get(key));
+		}
+		assertEquals(Long.valueOf(100),sharded.sizeLong());
+
+		sharded.clear();
+		assertEquals(Long.valueOf(0),local.get(0).sizeLong());
+		assertEquals(Long.valueOf(0),local.get(1).sizeLong());
+
+		/* Closing the shards closes every replica */
+		sharded.close();
+		remotes.get(2).close();
+		remotes = null;
+	}
+}
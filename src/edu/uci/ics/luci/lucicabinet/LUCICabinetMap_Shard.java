@@ -1,7 +1,27 @@
 package edu.uci.ics.luci.lucicabinet;
 
+import java.io.File;
 import java.io.Serializable;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.IdentityHashMap;
+import java.util.Iterator;
 import java.util.List;
+import java.util.Map;
+import java.util.SortedMap;
+import java.util.TreeMap;
+import java.util.concurrent.Callable;
+import java.util.concurrent.CompletionService;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorCompletionService;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.atomic.AtomicLongArray;
+import java.util.concurrent.locks.ReentrantReadWriteLock;
 
 import org.apache.log4j.Logger;
 
@@ -12,13 +32,61 @@ import edu.uci.ics.luci.lucicabinet.library.ShardFunctionSimple;
  * based on a function of their key.  A sharded database speeds up concurrent access and enables scaling to
  * large databases (in theory).
  * 
+ * <p>
+ * Operations are routed to their shard under a shared read lock, so callers working on different shards run at the
+ * same time, and each shard does its own locking. Only close and setOptimize take the write lock, which waits for
+ * the operations already in progress to finish.
+ * 
+ * <p>
+ * Operations which go to every shard, iterate, sizeLong and clear, are sent to all of the shards at once on an
+ * executor, see setExecutor, and their results are put together as each shard answers, so a scan over many remote
+ * shards takes about as long as the slowest of them. containsValue, keySet and the other Map methods built on
+ * iterate fan out the same way. When some shards fail the others are still waited for, and a ShardException
+ * reports which shards failed and why. Once the IteratorWorker on any shard asks to stop, the others are told to
+ * stop as well, so containsValue returns soon after any shard finds the value.
+ * 
+ * <p>
+ * Range reads, getRange and range, go only to the shards the ShardFunction says can hold keys in the range, which
+ * with ShardFunctionRange is usually one or two of them, and to every shard with a hash. The shards are read at the
+ * same time and their entries merged into key order as they are read, so every shard has to keep its keys in order.
+ * 
+ * <p>
+ * Every key operation is counted against its shard, see getShardLoad, so skewed traffic shows up as one shard
+ * doing far more than the others. setHotKeyTracking also counts the keys themselves, in a small sketch, to find
+ * which keys are to blame, and setHotKeyCache keeps copies of the values of those keys here, so reads of them
+ * don't all land on the one shard.
+ * 
+ * <p>
+ * openHDB opens or creates many hash database files at once and reads ahead through them, and close closes the
+ * shards at once, so that starting and stopping a service with many shards on a cold disk takes about as long as
+ * its slowest shard rather than all of them added up.
+ * 
+ * <p>
+ * The shards and the ShardFunction can be changed while the map is in use with reshard. Keys move to their new
+ * shards in the background while reads look in both places, see ShardMigration.
  */
 public class LUCICabinetMap_Shard<K extends Serializable,V extends Serializable> extends LUCICabinetMap<K,V>{
 
 	private List<LUCICabinetMap<K,V>> shards = null;
 	private ShardFunction shardFunction;
 
-	private boolean optimize = true;
+	private volatile boolean optimize = true;
+	private final ReentrantReadWriteLock rwlock = new ReentrantReadWriteLock(true);
+	
+	/* While resharding, moves keys to the new layout, see reshard */
+	private volatile ShardMigration<K,V> migration = null;
+	
+	/* Runs the per-shard pieces of multi-key operations at the same time */
+	private ExecutorService shardExecutor = null;
+	/* The thread pool made by this map, which it shuts down when it is closed */
+	private ExecutorService ownExecutor = null;
+	
+	/* How many key operations have gone to each shard of the current layout */
+	private volatile AtomicLongArray load;
+	/* Counts how often each key is used, see setHotKeyTracking */
+	private volatile HotKeys<K> hotKeys = null;
+	/* Copies of the values of the hottest keys, see setHotKeyCache */
+	private volatile NearCache hotCache = null;
 	
 	private static transient volatile Logger log = null;
 	public static Logger getLog(){
@@ -56,6 +124,328 @@ public class LUCICabinetMap_Shard<K extends Serializable,V extends Serializable>
 		this.shards = shard;
 		this.shardFunction = sf;
 		this.optimize = optimize;
+		this.load = new AtomicLongArray(shard.size());
+		
+		ownExecutor = Executors.newCachedThreadPool(new ThreadFactory(){
+			public Thread newThread(Runnable r) {
+				Thread t = new Thread(r);
+				t.setName("LUCICabinetMap_Shard Worker Thread");
+				t.setDaemon(true);
+				return t;
+			}
+		});
+		shardExecutor = ownExecutor;
+	}
+	
+	
+	/**
+	 * Open or create hash database files as the shards of a sharded database, several of them at once, and read ahead
+	 * through each of them, see warmUp. The sharded database is returned once every shard is open and warmed up, so
+	 * it is ready for traffic. If any file can't be opened, the ones that were opened are closed again.
+	 * @param files the names of the files, one per shard
+	 * @param sf how to associate keys with shards, null for the default based on a modulo of the hash function
+	 * @param optimize If the database is "optimized" then put and removes will be non-blocking and will always return null.
+	 * @param mappedBytes how many bytes of each file to memory map, 0 for tokyo cabinet's default
+	 * @param warmUpBytes the most of each file to read ahead, 0 to not read ahead
+	 * @param threads how many files to open at once
+	 * @return the sharded database
+	 * @throws ShardException when some of the files can't be opened
+	 */
+	public static <K extends Serializable,V extends Serializable> LUCICabinetMap_Shard<K,V> openHDB(List<String> files,ShardFunction sf,final boolean optimize,final long mappedBytes,final long warmUpBytes,int threads){
+		if(threads < 1){
+			throw new IllegalArgumentException("At least one thread is needed to open the shards:"+threads);
+		}
+		long start = System.currentTimeMillis();
+		ExecutorService pool = Executors.newFixedThreadPool(Math.min(threads,Math.max(1,files.size())),new ThreadFactory(){
+			public Thread newThread(Runnable r) {
+				Thread t = new Thread(r);
+				t.setName("LUCICabinetMap_Shard Open Thread");
+				t.setDaemon(true);
+				return t;
+			}
+		});
+		
+		List<Future<LUCICabinetMap<K,V>>> opening = new ArrayList<Future<LUCICabinetMap<K,V>>>(files.size());
+		for(final String file:files){
+			opening.add(pool.submit(new Callable<LUCICabinetMap<K,V>>(){
+				public LUCICabinetMap<K,V> call() throws Exception {
+					LUCICabinetMap<K,V> shard = new LUCICabinetHDB<K,V>(file,optimize,mappedBytes);
+					if(warmUpBytes > 0){
+						shard.warmUp(warmUpBytes);
+					}
+					return shard;
+				}
+			}));
+		}
+		
+		List<LUCICabinetMap<K,V>> shards = new ArrayList<LUCICabinetMap<K,V>>(files.size());
+		Map<Integer,Throwable> failures = new HashMap<Integer,Throwable>();
+		try{
+			for(int i = 0; i < opening.size(); i++){
+				try{
+					shards.add(opening.get(i).get());
+				}
+				catch(ExecutionException e){
+					getLog().error("Shard "+i+", "+files.get(i)+", failed to open:"+e.getCause());
+					failures.put(i,e.getCause());
+					shards.add(null);
+				}
+				catch(InterruptedException e){
+					failures.put(i,e);
+					shards.add(null);
+				}
+			}
+		}
+		finally{
+			pool.shutdown();
+		}
+		
+		if(!failures.isEmpty()){
+			for(LUCICabinetMap<K,V> shard:shards){
+				if(shard != null){
+					shard.close();
+				}
+			}
+			throw new ShardException("open",files.size(),failures);
+		}
+		
+		getLog().info("Opened "+files.size()+" shards in "+(System.currentTimeMillis()-start)+" milliseconds");
+		return new LUCICabinetMap_Shard<K,V>(shards,(sf == null) ? new ShardFunctionSimple(files.size()) : sf,optimize);
+	}
+	
+	
+	/**
+	 * Set the executor that the per-shard pieces of operations run on. The executor isn't shut down when the map is
+	 * closed. An executor with fewer threads than there are shards limits how many shards are worked on at once, and
+	 * the calling thread must not be one of its threads or the operation may wait forever.
+	 * @param executor the executor to use, or null to go back to the map's own thread pool
+	 */
+	public void setExecutor(ExecutorService executor){
+		rwlock.writeLock().lock();
+		try{
+			open();
+			shardExecutor = (executor == null) ? ownExecutor : executor;
+		}
+		finally{
+			rwlock.writeLock().unlock();
+		}
+	}
+	
+	
+	/**
+	 * @return the executor that the per-shard pieces of operations run on
+	 */
+	public ExecutorService getExecutor(){
+		rwlock.readLock().lock();
+		try{
+			return shardExecutor;
+		}
+		finally{
+			rwlock.readLock().unlock();
+		}
+	}
+	
+	
+	/**
+	 * Move to a new list of shards and ShardFunction while the map stays in use, with two background threads, moving
+	 * 100 keys at a time and as fast as they can. See ShardMigration for how this works.
+	 * @param newShards the shards of the new layout. A shard that is in both layouts must be the same object in both.
+	 * @param newFunction how keys are given to the new shards
+	 * @param checkpoint where progress is kept, so that a migration that was interrupted can be picked up again by
+	 * calling this with the same layouts and checkpoint. Null to not keep it.
+	 * @return the migration, which can be watched, slowed down and cancelled
+	 */
+	public ShardMigration<K,V> reshard(List<LUCICabinetMap<K,V>> newShards,ShardFunction newFunction,File checkpoint){
+		return(reshard(newShards,newFunction,checkpoint,2,100,0));
+	}
+	
+	
+	/**
+	 * Move to a new list of shards and ShardFunction while the map stays in use. Until the migration finishes, reads
+	 * look in both layouts and writes go to the new one. Once it finishes the map uses only the new layout, and shards
+	 * that are only in the old one are closed.
+	 * @param newShards the shards of the new layout. A shard that is in both layouts must be the same object in both.
+	 * @param newFunction how keys are given to the new shards
+	 * @param checkpoint where progress is kept, so that a migration that was interrupted can be picked up again by
+	 * calling this with the same layouts and checkpoint. Null to not keep it.
+	 * @param threads how many old shards have their keys moved at once
+	 * @param batchSize how many keys are moved at a time
+	 * @param keysPerSecond the most keys to move a second, 0 for no limit
+	 * @return the migration, which can be watched, slowed down and cancelled
+	 */
+	public ShardMigration<K,V> reshard(List<LUCICabinetMap<K,V>> newShards,ShardFunction newFunction,File checkpoint,int threads,int batchSize,int keysPerSecond){
+		/* The threads of a cancelled migration have to be out of the way before another one starts moving keys */
+		ShardMigration<K,V> previous = migration;
+		if(previous != null){
+			if(!previous.isCancelled()){
+				throw new RuntimeException("The sharded database is already being resharded");
+			}
+			try {
+				previous.waitFor(0);
+			} catch (InterruptedException e) {
+				throw new RuntimeException("Interrupted while waiting for a cancelled migration to stop",e);
+			}
+		}
+		
+		ShardMigration<K,V> m;
+		rwlock.writeLock().lock();
+		try{
+			List<LUCICabinetMap<K,V>> shards = open();
+			if(migration != previous){
+				throw new RuntimeException("The sharded database is already being resharded");
+			}
+			m = new ShardMigration<K,V>(this,shards,shardFunction,newShards,newFunction,checkpoint,batchSize);
+			m.setKeysPerSecond(keysPerSecond);
+			for(LUCICabinetMap<K,V> shard:m.getToShards()){
+				shard.setOptimize(optimize);
+			}
+			migration = m;
+		}
+		finally{
+			rwlock.writeLock().unlock();
+		}
+		m.start(threads);
+		return(m);
+	}
+	
+	
+	/**
+	 * @return the migration to a new layout, if there is one in progress or cancelled, otherwise null
+	 */
+	public ShardMigration<K,V> getMigration(){
+		return migration;
+	}
+	
+	
+	/**
+	 * Start or stop counting how often each key is used, to find the few keys that most of the traffic is for. Each
+	 * key operation then costs a few more hashes and atomic increments, see HotKeys.
+	 * @param topK how many of the hottest keys to keep track of, 0 to stop counting
+	 */
+	public void setHotKeyTracking(int topK){
+		if(topK == 0){
+			hotCache = null;
+			hotKeys = null;
+		}
+		else{
+			hotKeys = new HotKeys<K>(topK);
+		}
+	}
+	
+	
+	/**
+	 * @return the counts of how often keys are used, with the hottest keys, or null if they aren't being counted
+	 */
+	public HotKeys<K> getHotKeys(){
+		return hotKeys;
+	}
+	
+	
+	/**
+	 * Keep copies here of the values of the hottest keys, so that reads of them are answered without going to their
+	 * shard. Writes made through this map replace the copy straight away. Writes made any other way, and writes to
+	 * optimized remote shards which haven't landed yet, are only seen once the copy has expired, so the time to live
+	 * bounds how old a value a read can return.
+	 * @param maxEntries how many values to keep, 0 to stop keeping them
+	 * @param ttl how long a copy may be used for in milliseconds, 0 for no limit
+	 */
+	public void setHotKeyCache(int maxEntries,long ttl){
+		if(maxEntries == 0){
+			hotCache = null;
+			return;
+		}
+		if(hotKeys == null){
+			throw new RuntimeException("Hot keys have to be tracked before their values can be kept, see setHotKeyTracking");
+		}
+		hotCache = new NearCache(maxEntries,ttl);
+	}
+	
+	
+	/**
+	 * @return the copies of the values of the hottest keys, for their hit rate, or null if they aren't being kept
+	 */
+	public NearCache getHotKeyCache(){
+		return hotCache;
+	}
+	
+	
+	/**
+	 * @return how many key operations have gone to each shard since the shards were last changed. Operations made
+	 * while resharding aren't counted, and reads answered from the hot key cache don't count against a shard.
+	 */
+	public long[] getShardLoad(){
+		AtomicLongArray l = load;
+		long[] ret = new long[l.length()];
+		for(int i = 0; i < ret.length; i++){
+			ret[i] = l.get(i);
+		}
+		return ret;
+	}
+	
+	
+	/**
+	 * Count a use of a key, if keys are being counted
+	 */
+	private void observe(Object key){
+		HotKeys<K> h = hotKeys;
+		if(h != null){
+			h.record(key);
+		}
+	}
+	
+	
+	/**
+	 * Pick the shard of a key for a key operation, and count the operation against the key and the shard
+	 */
+	private int route(Object key){
+		observe(key);
+		int which = shardFunction.pickShard(key);
+		load.incrementAndGet(which);
+		return which;
+	}
+	
+	
+	/**
+	 * Drop the copy of a key's value once it has been written through this map
+	 */
+	private void written(Object key){
+		NearCache c = hotCache;
+		if(c != null){
+			c.invalidate(Serialization.serialize(key));
+		}
+	}
+	
+	
+	/**
+	 * Called by a migration when every key that moves has been moved
+	 */
+	void finishMigration(ShardMigration<K,V> m){
+		rwlock.writeLock().lock();
+		try{
+			if((migration != m) || (shards == null)){
+				return;
+			}
+			List<LUCICabinetMap<K,V>> gone = new ArrayList<LUCICabinetMap<K,V>>();
+			for(LUCICabinetMap<K,V> shard:shards){
+				boolean kept = false;
+				for(LUCICabinetMap<K,V> to:m.getToShards()){
+					kept |= (to == shard);
+				}
+				if(!kept){
+					gone.add(shard);
+				}
+			}
+			shards = m.getToShards();
+			shardFunction = m.getToFunction();
+			load = new AtomicLongArray(shards.size());
+			migration = null;
+			for(LUCICabinetMap<K,V> shard:gone){
+				shard.close();
+			}
+		}
+		finally{
+			rwlock.writeLock().unlock();
+		}
 	}
 	
 
@@ -63,7 +453,7 @@ public class LUCICabinetMap_Shard<K extends Serializable,V extends Serializable>
     * Getter for the optimize setting of this database
 	*/
 	@Override
-	public synchronized boolean getOptimize() {
+	public boolean getOptimize() {
 		return optimize;
 	}
 	
@@ -72,29 +462,115 @@ public class LUCICabinetMap_Shard<K extends Serializable,V extends Serializable>
 	 * Set optimization for the sharded database.
 	 */
 	@Override
-	public synchronized void setOptimize(boolean optimize){
-		this.optimize = optimize;
-
-		for(LUCICabinetMap<K,V> shard:shards){
-			shard.setOptimize(optimize);
+	public void setOptimize(boolean optimize){
+		rwlock.writeLock().lock();
+		try{
+			this.optimize = optimize;
+	
+			for(LUCICabinetMap<K,V> shard:everyShard()){
+				shard.setOptimize(optimize);
+			}
+		}
+		finally{
+			rwlock.writeLock().unlock();
 		}
 	}
 	
 	
 	
 	/**
-	 * Close all sharded databases. 
+	 * Close all sharded databases, all at once, so that each can flush its writes to disk while the others do.
+	 * @throws ShardException when some of the shards fail to close, after the others have been closed
 	 */
 	@Override
-	public synchronized void close() {
-		/* Close the shards */ 
-		if(shards != null){
-			for(LUCICabinetMap<K,V> db:shards){
-				db.close();
+	public void close() {
+		/* The migration threads may be waiting to finish, which needs the lock */
+		ShardMigration<K,V> m = migration;
+		if(m != null){
+			m.cancel();
+			try {
+				m.waitFor(0);
+			} catch (InterruptedException e) {
+				getLog().error("Interrupted while waiting for a migration to stop:"+e);
 			}
+		}
 		
-			shards.clear();
-			shards = null;
+		Map<Integer,Throwable> failures = null;
+		int closed = 0;
+		rwlock.writeLock().lock();
+		try{
+			/* Close the shards */ 
+			if(shards != null){
+				List<LUCICabinetMap<K,V>> every = everyShard();
+				closed = every.size();
+				failures = fanOut(every,new FanOut<Object>(){
+					Object call(LUCICabinetMap<K,V> shard) throws Exception {
+						shard.close();
+						return null;
+					}
+				});
+			
+				shards.clear();
+				shards = null;
+			}
+			migration = null;
+			hotCache = null;
+			
+			if(ownExecutor != null){
+				ownExecutor.shutdown();
+				ownExecutor = null;
+			}
+			shardExecutor = null;
+		}
+		finally{
+			rwlock.writeLock().unlock();
+		}
+		if((failures != null) && !failures.isEmpty()){
+			throw new ShardException("close",closed,failures);
+		}
+	}
+	
+	
+	/**
+	 * @return the shards, called while holding a lock
+	 */
+	private List<LUCICabinetMap<K,V>> open(){
+		if(shards == null){
+			throw new RuntimeException("The sharded database is closed");
+		}
+		return shards;
+	}
+	
+	
+	/**
+	 * @return the shards, and while resharding the new shards too, called while holding a lock
+	 */
+	private List<LUCICabinetMap<K,V>> everyShard(){
+		List<LUCICabinetMap<K,V>> shards = open();
+		if(migration != null){
+			return migration.allShards();
+		}
+		return shards;
+	}
+	
+	
+	/**
+	 * While resharding, keep keys from moving so that none is counted or iterated over twice, called while holding
+	 * the read lock
+	 * @return the migration to pass to releaseKeys, or null if there isn't one
+	 */
+	private ShardMigration<K,V> holdKeys(){
+		ShardMigration<K,V> m = migration;
+		if(m != null){
+			m.holdKeys();
+		}
+		return m;
+	}
+	
+	
+	private void releaseKeys(ShardMigration<K,V> m){
+		if(m != null){
+			m.releaseKeys();
 		}
 	}
 	
@@ -117,9 +593,24 @@ public class LUCICabinetMap_Shard<K extends Serializable,V extends Serializable>
 	 * @return the removed value, or null if optimize is true
 	 */
 	@Override
-	public synchronized V remove(Object key){
-		int which = shardFunction.pickShard(key);
-		return(shards.get(which).remove(key));
+	public V remove(Object key){
+		rwlock.readLock().lock();
+		try{
+			List<LUCICabinetMap<K,V>> shards = open();
+			V ret;
+			if(migration != null){
+				observe(key);
+				ret = migration.remove(key);
+			}
+			else{
+				ret = shards.get(route(key)).remove(key);
+			}
+			written(key);
+			return(ret);
+		}
+		finally{
+			rwlock.readLock().unlock();
+		}
 	}
 	
 
@@ -130,21 +621,448 @@ public class LUCICabinetMap_Shard<K extends Serializable,V extends Serializable>
 	 * @return The value previously associated with key, or null if optimize is true
 	 */
 	@Override
-	public synchronized V put(K key,V value){
-		int which = shardFunction.pickShard(key);
-		return(shards.get(which).put(key, value));
+	public V put(K key,V value){
+		rwlock.readLock().lock();
+		try{
+			List<LUCICabinetMap<K,V>> shards = open();
+			V ret;
+			if(migration != null){
+				observe(key);
+				ret = migration.put(key,value);
+			}
+			else{
+				ret = shards.get(route(key)).put(key, value);
+			}
+			written(key);
+			return(ret);
+		}
+		finally{
+			rwlock.readLock().unlock();
+		}
+	}
+
+	
+	
+	/**
+	 * Change the value of a key to what a Remapper makes of it, atomically, on the key's shard, see
+	 * LUCICabinetMap.update. While resharding the key is moved to its new shard first, under the key's lock.
+	 * @param key the key to change
+	 * @param remapper given the key and its value, or null if it has none, gives the new value, or null to remove it
+	 * @return the value the key had before and the value it has now
+	 */
+	@Override
+	public Change<V> update(K key,Remapper<? super K,V> remapper){
+		rwlock.readLock().lock();
+		try{
+			List<LUCICabinetMap<K,V>> shards = open();
+			Change<V> ret;
+			if(migration != null){
+				observe(key);
+				ret = migration.update(key,remapper);
+			}
+			else{
+				ret = shards.get(route(key)).update(key,remapper);
+			}
+			if(ret.isChanged()){
+				written(key);
+			}
+			return(ret);
+		}
+		finally{
+			rwlock.readLock().unlock();
+		}
+	}
+
+
+	/**
+	 * Remove an entry using its serialized key. The key has to be deserialized to pick its shard.
+	 * @param key the serialized key
+	 * @return the serialized value that was removed, or null if optimize is true
+	 */
+	@Override
+	public byte[] removeRaw(byte[] key){
+		Object k = Serialization.deserialize(key);
+		rwlock.readLock().lock();
+		try{
+			List<LUCICabinetMap<K,V>> shards = open();
+			byte[] ret;
+			if(migration != null){
+				observe(k);
+				ret = migration.removeRaw(k,key);
+			}
+			else{
+				ret = shards.get(route(k)).removeRaw(key);
+			}
+			NearCache c = hotCache;
+			if(c != null){
+				c.invalidate(key);
+			}
+			return(ret);
+		}
+		finally{
+			rwlock.readLock().unlock();
+		}
+	}
+	
+	
+	/**
+	 * Put an entry using its serialized key and value. The key has to be deserialized to pick its shard.
+	 * @param key the serialized key
+	 * @param value the serialized value
+	 * @return the serialized value previously associated with key, or null if optimize is true
+	 */
+	@Override
+	public byte[] putRaw(byte[] key,byte[] value){
+		Object k = Serialization.deserialize(key);
+		rwlock.readLock().lock();
+		try{
+			List<LUCICabinetMap<K,V>> shards = open();
+			byte[] ret;
+			if(migration != null){
+				observe(k);
+				ret = migration.putRaw(k,key,value);
+			}
+			else{
+				ret = shards.get(route(k)).putRaw(key,value);
+			}
+			NearCache c = hotCache;
+			if(c != null){
+				c.invalidate(key);
+			}
+			return(ret);
+		}
+		finally{
+			rwlock.readLock().unlock();
+		}
 	}
 	
+	
+	/**
+	 * Get an entry using its serialized key. The key has to be deserialized to pick its shard.
+	 * @param key the serialized key
+	 * @return the serialized value, or null if there is no entry
+	 */
+	@Override
+	public byte[] getRaw(byte[] key){
+		Object k = Serialization.deserialize(key);
+		rwlock.readLock().lock();
+		try{
+			List<LUCICabinetMap<K,V>> shards = open();
+			if(migration != null){
+				observe(k);
+				return(migration.getRaw(k,key));
+			}
+			return(shards.get(route(k)).getRaw(key));
+		}
+		finally{
+			rwlock.readLock().unlock();
+		}
+	}
+
+
+	/**
+	 * Split a batch of puts and removes up by shard and apply each piece to its shard. The order of the
+	 * operations for any one key is preserved.
+	 * @param batch the operations to apply
+	 */
+	@Override
+	public void apply(WriteBatch<K,V> batch){
+		rwlock.readLock().lock();
+		try{
+			List<LUCICabinetMap<K,V>> shards = open();
+			if(migration != null){
+				/* Each key has to be written in the new layout and taken out of the old one under its lock */
+				for(WriteBatch.Operation<K,V> op:batch.getOperations()){
+					observe(op.key);
+					if(op.remove){
+						migration.remove(op.key);
+					}
+					else{
+						migration.put(op.key,op.value);
+					}
+					written(op.key);
+				}
+				return;
+			}
+			List<WriteBatch<K,V>> split = new ArrayList<WriteBatch<K,V>>(Collections.<WriteBatch<K,V>>nCopies(shards.size(),null));
+			for(WriteBatch.Operation<K,V> op:batch.getOperations()){
+				int which = route(op.key);
+				if(split.get(which) == null){
+					split.set(which,new WriteBatch<K,V>());
+				}
+				if(op.remove){
+					split.get(which).remove(op.key);
+				}
+				else{
+					split.get(which).put(op.key,op.value);
+				}
+			}
+			for(int i = 0; i < split.size(); i++){
+				if(split.get(i) != null){
+					shards.get(i).apply(split.get(i));
+				}
+			}
+			for(WriteBatch.Operation<K,V> op:batch.getOperations()){
+				written(op.key);
+			}
+		}
+		finally{
+			rwlock.readLock().unlock();
+		}
+	}
 
+
+	/**
+	 * Split the keys up by shard and get each group from its shard. The shards are asked at the same time.
+	 * @param keys the keys to look up
+	 * @return a map from each key that has a value in the database to that value. Keys without an entry are left out.
+	 */
+	@Override
+	public Map<K,V> getAll(Collection<? extends K> keys){
+		rwlock.readLock().lock();
+		try{
+			List<LUCICabinetMap<K,V>> shards = open();
+			if(migration != null){
+				Map<K,V> ret = new HashMap<K,V>(keys.size());
+				for(K key:keys){
+					observe(key);
+					V value = migration.get(key);
+					if(value != null){
+						ret.put(key,value);
+					}
+				}
+				return(ret);
+			}
+			List<List<K>> split = new ArrayList<List<K>>(Collections.<List<K>>nCopies(shards.size(),null));
+			for(K key:keys){
+				int which = route(key);
+				if(split.get(which) == null){
+					split.set(which,new ArrayList<K>());
+				}
+				split.get(which).add(key);
+			}
+			
+			List<Future<Map<K,V>>> futures = new ArrayList<Future<Map<K,V>>>(split.size());
+			for(int i = 0; i < split.size(); i++){
+				if(split.get(i) != null){
+					final LUCICabinetMap<K,V> shard = shards.get(i);
+					final List<K> group = split.get(i);
+					futures.add(shardExecutor.submit(new Callable<Map<K,V>>(){
+						public Map<K,V> call() throws Exception {
+							return shard.getAll(group);
+						}
+					}));
+				}
+			}
+			
+			Map<K,V> ret = new HashMap<K,V>(keys.size());
+			for(Future<Map<K,V>> f:futures){
+				ret.putAll(waitFor(f));
+			}
+			return(ret);
+		}
+		finally{
+			rwlock.readLock().unlock();
+		}
+	}
+	
+	
+	/**
+	 * Split the entries up by shard and put each group into its shard. The shards are written at the same time.
+	 * @param map the entries to put
+	 */
+	@Override
+	public void putAll(Map<? extends K,? extends V> map){
+		rwlock.readLock().lock();
+		try{
+			List<LUCICabinetMap<K,V>> shards = open();
+			if(migration != null){
+				for(Entry<? extends K, ? extends V> e:map.entrySet()){
+					observe(e.getKey());
+					migration.put(e.getKey(),e.getValue());
+					written(e.getKey());
+				}
+				return;
+			}
+			List<Map<K,V>> split = new ArrayList<Map<K,V>>(Collections.<Map<K,V>>nCopies(shards.size(),null));
+			for(Entry<? extends K, ? extends V> e:map.entrySet()){
+				int which = route(e.getKey());
+				if(split.get(which) == null){
+					split.set(which,new HashMap<K,V>());
+				}
+				split.get(which).put(e.getKey(),e.getValue());
+			}
+			
+			List<Future<Object>> futures = new ArrayList<Future<Object>>(split.size());
+			for(int i = 0; i < split.size(); i++){
+				if(split.get(i) != null){
+					final LUCICabinetMap<K,V> shard = shards.get(i);
+					final Map<K,V> group = split.get(i);
+					futures.add(shardExecutor.submit(new Callable<Object>(){
+						public Object call() throws Exception {
+							shard.putAll(group);
+							return null;
+						}
+					}));
+				}
+			}
+			
+			for(Future<Object> f:futures){
+				waitFor(f);
+			}
+			for(K key:map.keySet()){
+				written(key);
+			}
+		}
+		finally{
+			rwlock.readLock().unlock();
+		}
+	}
+	
+	
+	/**
+	 * Wait for a piece of a multi-key operation to finish on its shard and pass on any failure.
+	 */
+	private <T> T waitFor(Future<T> f){
+		try {
+			return f.get();
+		} catch (InterruptedException e) {
+			throw new RuntimeException("Interrupted while waiting for a shard",e);
+		} catch (ExecutionException e) {
+			if(e.getCause() instanceof RuntimeException){
+				throw (RuntimeException) e.getCause();
+			}
+			throw new RuntimeException("Shard operation failed",e.getCause());
+		}
+	}
+	
+	
+	/**
+	 * The work of an operation that goes to every shard
+	 */
+	private abstract class FanOut<T>{
+		/**
+		 * Do the operation on one shard, called on a thread of the executor, or on the calling thread by inTurn
+		 */
+		abstract T call(LUCICabinetMap<K,V> shard) throws Exception;
+		
+		/**
+		 * Take the answer of one shard, called on the calling thread in the order the shards finish
+		 */
+		void gather(T result){
+		}
+	}
+	
+	
+	/**
+	 * Send an operation to every shard at once and gather the answers as they come in. Every shard is waited for,
+	 * even after one fails, so that nothing is still running on a shard when the lock is given up.
+	 * Called while holding the read lock.
+	 * @return what each failed shard threw, by shard number. Empty if they all succeeded.
+	 */
+	private <T> Map<Integer,Throwable> fanOut(List<LUCICabinetMap<K,V>> shards,final FanOut<T> work){
+		CompletionService<T> cs = new ExecutorCompletionService<T>(shardExecutor);
+		Map<Future<T>,Integer> pending = new HashMap<Future<T>,Integer>(shards.size());
+		for(int i = 0; i < shards.size(); i++){
+			final LUCICabinetMap<K,V> shard = shards.get(i);
+			pending.put(cs.submit(new Callable<T>(){
+				public T call() throws Exception {
+					return work.call(shard);
+				}
+			}),i);
+		}
+		
+		Map<Integer,Throwable> failures = new HashMap<Integer,Throwable>();
+		try{
+			while(!pending.isEmpty()){
+				Future<T> f = cs.take();
+				Integer which = pending.remove(f);
+				try{
+					work.gather(f.get());
+				}
+				catch(ExecutionException e){
+					getLog().error("Shard "+which+" failed:"+e.getCause());
+					failures.put(which,e.getCause());
+				}
+			}
+		}
+		catch(InterruptedException e){
+			for(Future<T> f:pending.keySet()){
+				f.cancel(true);
+			}
+			throw new RuntimeException("Interrupted while waiting for a shard",e);
+		}
+		return failures;
+	}
+	
+	
+	/**
+	 * Send an operation to every shard one after another on the calling thread, in shard order, for work which can't
+	 * run on several shards at once. Like fanOut, the rest of the shards are still tried after one fails.
+	 * Called while holding the read lock.
+	 * @return what each failed shard threw, by shard number. Empty if they all succeeded.
+	 */
+	private <T> Map<Integer,Throwable> inTurn(List<LUCICabinetMap<K,V>> shards,FanOut<T> work){
+		Map<Integer,Throwable> failures = new HashMap<Integer,Throwable>();
+		for(int i = 0; i < shards.size(); i++){
+			try{
+				work.gather(work.call(shards.get(i)));
+			}
+			catch(Exception e){
+				getLog().error("Shard "+i+" failed:"+e);
+				failures.put(i,e);
+			}
+		}
+		return failures;
+	}
+	
+	
 	/** Get an entry from the database
 	 * 
 	 * @param key
 	 * @return the value in the database. null if there is no entry
 	 */
+	@SuppressWarnings("unchecked")
 	@Override
-	public synchronized V get(Object key){
-		int which = shardFunction.pickShard(key);
-		return(shards.get(which).get(key));
+	public V get(Object key){
+		rwlock.readLock().lock();
+		try{
+			List<LUCICabinetMap<K,V>> shards = open();
+			
+			/* A hot key may have a copy here */
+			HotKeys<K> h = hotKeys;
+			NearCache cache = hotCache;
+			byte[] cacheKey = null;
+			long epoch = 0;
+			if(h != null){
+				h.record(key);
+				if((cache != null) && h.isHot(key)){
+					cacheKey = Serialization.serialize(key);
+					byte[] cached = cache.get(cacheKey);
+					if(cached != null){
+						return((V) Serialization.deserialize(cached));
+					}
+					epoch = cache.epoch();
+				}
+			}
+			
+			V ret;
+			if(migration != null){
+				ret = migration.get(key);
+			}
+			else{
+				int which = shardFunction.pickShard(key);
+				load.incrementAndGet(which);
+				ret = shards.get(which).get(key);
+			}
+			if((cacheKey != null) && (ret != null)){
+				cache.put(cacheKey,Serialization.serialize(ret),epoch);
+			}
+			return(ret);
+		}
+		finally{
+			rwlock.readLock().unlock();
+		}
 	}
 	
 
@@ -157,38 +1075,335 @@ public class LUCICabinetMap_Shard<K extends Serializable,V extends Serializable>
 	 * @throws IllegalAccessException 
 	 * @throws InstantiationException 
 	 */
-	public synchronized IteratorWorker<K,V> iterate(Class<? extends IteratorWorker<K, V>> iwClass, IteratorWorkerConfig iwConfig) throws InstantiationException, IllegalAccessException {
-		
-		IteratorWorker<K, V> ret = shards.get(0).iterate(iwClass, iwConfig);
-		
-		for(int i = 1; i < shards.size();i++){
-			ret.combine(shards.get(i).iterate(iwClass, iwConfig));
+	public IteratorWorker<K,V> iterate(Class<? extends IteratorWorker<K, V>> iwClass, IteratorWorkerConfig iwConfig) throws InstantiationException, IllegalAccessException {
+		return(iterate(iwClass,iwConfig,new StopSignal()));
+	}
+	
+	
+	/** Synchronously iterate over the entries in the database as one piece of an iteration spread over several
+	 * databases, see LUCICabinetMap.iterate. The signal is shared with every shard, so as soon as the IteratorWorker
+	 * on one of them asks to stop, the scans still running on the others stop and those not started yet skip their
+	 * entries. The shards are iterated over at once, each with its own copy of the config, unless the config says
+	 * it can't be copied, see IteratorWorkerConfig.isParallel, in which case they are iterated over one after
+	 * another on the calling thread.
+	 * @param iwClass the class to instantiate to do the work
+	 * @param iwConfig any configuration parameters to pass to iwClass after it is instantiated during initialization
+	 * @param stop shared by all the pieces of the iteration
+	 * @return the IteratorWorker after the work is complete.  
+	 * @throws IllegalAccessException 
+	 * @throws InstantiationException 
+	 */
+	@Override
+	public IteratorWorker<K,V> iterate(Class<? extends IteratorWorker<K, V>> iwClass, IteratorWorkerConfig iwConfig,StopSignal stop) throws InstantiationException, IllegalAccessException {
+		rwlock.readLock().lock();
+		ShardMigration<K,V> m = holdKeys();
+		try{
+			List<LUCICabinetMap<K,V>> shards = everyShard();
+			final List<IteratorWorker<K,V>> ret = new ArrayList<IteratorWorker<K,V>>(1);
+			
+			final Class<? extends IteratorWorker<K, V>> _iwClass = iwClass;
+			final IteratorWorkerConfig _iwConfig = iwConfig;
+			final StopSignal _stop = stop;
+			final boolean parallel = (iwConfig == null) || iwConfig.isParallel();
+			FanOut<IteratorWorker<K,V>> work = new FanOut<IteratorWorker<K,V>>(){
+				IteratorWorker<K,V> call(LUCICabinetMap<K,V> shard) throws Exception {
+					if(parallel){
+						/* Every shard gets its own copy of the config, as a remote shard would */
+						return shard.iterate(_iwClass,(IteratorWorkerConfig) Serialization.deserialize(Serialization.serialize(_iwConfig)),_stop);
+					}
+					return shard.iterate(_iwClass,_iwConfig,_stop);
+				}
+				
+				void gather(IteratorWorker<K,V> iw){
+					if(ret.isEmpty()){
+						ret.add(iw);
+					}
+					else{
+						ret.get(0).combine(iw);
+					}
+				}
+			};
+			Map<Integer,Throwable> failures = parallel ? fanOut(shards,work) : inTurn(shards,work);
+			
+			if(!failures.isEmpty()){
+				/* The worker class can't be made anywhere, not a problem with a shard */
+				for(Throwable t:failures.values()){
+					if(t instanceof InstantiationException){
+						throw (InstantiationException) t;
+					}
+					if(t instanceof IllegalAccessException){
+						throw (IllegalAccessException) t;
+					}
+				}
+				throw new ShardException("iterate",shards.size(),failures);
+			}
+			
+			return(ret.get(0));
+		}
+		finally{
+			releaseKeys(m);
+			rwlock.readLock().unlock();
+		}
+	}
+	
+	
+	/**
+	 * Get the next chunk of a scan, see LUCICabinetMap.scanChunk. The shards are scanned one after another and a
+	 * chunk that runs off the end of one shard is filled up from the next. A scan picks up again on the shard which
+	 * holds the last key of the cursor, or if that key has gone, on the shard the position of the cursor falls in.
+	 * @param from where the last chunk ended, null to start at the beginning
+	 * @param max the most entries to collect
+	 * @return the entries, marked as the last chunk if there were fewer than <param>max</param> left
+	 */
+	@Override
+	ScanChunk<K,V> scanChunk(ScanCursor from,int max){
+		rwlock.readLock().lock();
+		ShardMigration<K,V> m = holdKeys();
+		try{
+			List<LUCICabinetMap<K,V>> shards = everyShard();
+			ScanChunk<K,V> ret = new ScanChunk<K,V>((from == null) ? 0 : from.getPosition(),max);
+			
+			int which = 0;
+			ScanCursor inner = null;
+			if(from != null){
+				which = holder(shards,from.getLastKey());
+				if(which < 0){
+					long position = from.getPosition();
+					which = 0;
+					while((which < shards.size()) && (position >= shards.get(which).sizeLong())){
+						position -= shards.get(which).sizeLong();
+						which++;
+					}
+					inner = new ScanCursor(position,null);
+				}
+				else{
+					long before = 0;
+					for(int i = 0; i < which; i++){
+						before += shards.get(i).sizeLong();
+					}
+					inner = new ScanCursor(Math.max(0,from.getPosition()-before),from.getLastKey());
+				}
+			}
+			
+			while(which < shards.size()){
+				ScanChunk<K,V> part = shards.get(which).scanChunk(inner,max-ret.size());
+				ret.keys.addAll(part.keys);
+				ret.values.addAll(part.values);
+				if(ret.size() >= max){
+					break;
+				}
+				which++;
+				inner = null;
+			}
+			ret.last = (ret.size() < max);
+			return(ret);
+		}
+		finally{
+			releaseKeys(m);
+			rwlock.readLock().unlock();
+		}
+	}
+	
+	
+	/**
+	 * @return the index in <param>shards</param> of the shard which holds a key, or -1 if none of them do. Called
+	 * while holding a lock.
+	 */
+	private int holder(List<LUCICabinetMap<K,V>> shards,Object key){
+		if(key == null){
+			return -1;
+		}
+		if(migration == null){
+			int which = shardFunction.pickShard(key);
+			return(shards.get(which).containsKey(key) ? which : -1);
+		}
+		for(int i = 0; i < shards.size(); i++){
+			if(shards.get(i).containsKey(key)){
+				return i;
+			}
+		}
+		return -1;
+	}
+	
+	/**
+	 * @return the shards that can hold keys in a range, called while holding a lock
+	 */
+	private List<LUCICabinetMap<K,V>> rangeShards(Object from,Object to){
+		List<LUCICabinetMap<K,V>> shards = open();
+		if(migration != null){
+			return migration.allShards();
+		}
+		int[] which = shardFunction.pickShards(from,to);
+		if(which == null){
+			return shards;
+		}
+		List<LUCICabinetMap<K,V>> ret = new ArrayList<LUCICabinetMap<K,V>>(which.length);
+		for(int i:which){
+			ret.add(shards.get(i));
+		}
+		return ret;
+	}
+	
+	
+	/**
+	 * Start a range read on each shard that can hold keys in it and merge them. The first page of every shard is
+	 * fetched at once, the rest as the merge gets to them.
+	 */
+	private Iterator<Map.Entry<K,V>> merge(final K from,final boolean fromInclusive,final K to,final int pageSize){
+		if(pageSize < 1){
+			throw new IllegalArgumentException("Range page size must be at least 1:"+pageSize);
+		}
+		rwlock.readLock().lock();
+		try{
+			List<LUCICabinetMap<K,V>> shards = rangeShards(from,to);
+			final Map<LUCICabinetMap<K,V>,Iterator<Map.Entry<K,V>>> reads = new IdentityHashMap<LUCICabinetMap<K,V>,Iterator<Map.Entry<K,V>>>();
+			List<Iterator<Map.Entry<K,V>>> sources = new ArrayList<Iterator<Map.Entry<K,V>>>(shards.size());
+			for(LUCICabinetMap<K,V> shard:shards){
+				Iterator<Map.Entry<K,V>> read = (fromInclusive) ? shard.range(from,to,pageSize) : new RangeIterator<K,V>(shard,from,false,to,pageSize);
+				reads.put(shard,read);
+				sources.add(read);
+			}
+			
+			Map<Integer,Throwable> failures = fanOut(shards,new FanOut<Object>(){
+				Object call(LUCICabinetMap<K,V> shard) throws Exception {
+					reads.get(shard).hasNext();
+					return null;
+				}
+			});
+			if(!failures.isEmpty()){
+				throw new ShardException("range",shards.size(),failures);
+			}
+			return new MergedRangeIterator<K,V>(sources);
+		}
+		finally{
+			rwlock.readLock().unlock();
+		}
+	}
+	
+	
+	/**
+	 * Get the entries whose keys fall in a range, in key order, from the shards that can hold them. Every one of
+	 * those shards has to keep its keys in order.
+	 * @param from the lowest key, null to start at the first key
+	 * @param fromInclusive true if an entry whose key is <param>from</param> is wanted
+	 * @param to the key to stop before, null to go on to the last key
+	 * @param max the most entries to return
+	 * @return the entries in key order
+	 */
+	@Override
+	public SortedMap<K,V> getRange(K from,boolean fromInclusive,K to,int max){
+		SortedMap<K,V> ret = new TreeMap<K,V>();
+		Iterator<Map.Entry<K,V>> merged = merge(from,fromInclusive,to,max);
+		while((ret.size() < max) && merged.hasNext()){
+			Map.Entry<K,V> e = merged.next();
+			ret.put(e.getKey(),e.getValue());
 		}
-		
 		return(ret);
 	}
 	
+	
+	/**
+	 * Read the entries whose keys are at least <param>from</param> and less than <param>to</param>, in key order,
+	 * from the shards that can hold them. Each shard is read a page at a time as the merge gets to it, rather than
+	 * every shard being asked for a page for each page that is returned.
+	 * @param from the lowest key, null to start at the first key
+	 * @param to the key to stop before, null to go on to the last key
+	 * @param pageSize how many entries to fetch from a shard at a time
+	 */
+	@Override
+	public Iterator<Map.Entry<K,V>> range(K from,K to,int pageSize){
+		return merge(from,true,to,pageSize);
+	}
+	
 	/**
 	 * @return the total number of records across all the databases.
 	 */
-	public synchronized Long sizeLong(){
-		Long total = 0L;
-		
-		for(int i = 0; i < shards.size();i++){
-			total += shards.get(i).sizeLong(); 
+	public Long sizeLong(){
+		rwlock.readLock().lock();
+		ShardMigration<K,V> m = holdKeys();
+		try{
+			List<LUCICabinetMap<K,V>> shards = everyShard();
+			final long[] total = new long[1];
+			
+			Map<Integer,Throwable> failures = fanOut(shards,new FanOut<Long>(){
+				Long call(LUCICabinetMap<K,V> shard) throws Exception {
+					return shard.sizeLong();
+				}
+				
+				void gather(Long size){
+					total[0] += size;
+				}
+			});
+			if(!failures.isEmpty()){
+				throw new ShardException("sizeLong",shards.size(),failures);
+			}
+			
+			return(total[0]);
+		}
+		finally{
+			releaseKeys(m);
+			rwlock.readLock().unlock();
 		}
-		
-		return(total);
 	}
 	
 	
 
+	/**
+	 * Read ahead through the files of all of the shards at once, see LUCICabinetMap.warmUp
+	 * @param maxBytes the most of each shard's file to read
+	 * @return how many bytes were read from all of the shards
+	 */
+	@Override
+	public long warmUp(final long maxBytes){
+		rwlock.readLock().lock();
+		try{
+			List<LUCICabinetMap<K,V>> shards = everyShard();
+			final long[] total = new long[1];
+			
+			Map<Integer,Throwable> failures = fanOut(shards,new FanOut<Long>(){
+				Long call(LUCICabinetMap<K,V> shard) throws Exception {
+					return shard.warmUp(maxBytes);
+				}
+				
+				void gather(Long read){
+					total[0] += read;
+				}
+			});
+			if(!failures.isEmpty()){
+				throw new ShardException("warmUp",shards.size(),failures);
+			}
+			
+			return(total[0]);
+		}
+		finally{
+			rwlock.readLock().unlock();
+		}
+	}
+	
+	
 	/**
 	 * Optimized clear operation.  This erases all records in the sharded databases
 	 */
-	public synchronized void clear(){
-		for(int i = 0; i < shards.size();i++){
-			shards.get(i).clear();
+	public void clear(){
+		rwlock.readLock().lock();
+		try{
+			List<LUCICabinetMap<K,V>> shards = everyShard();
+			Map<Integer,Throwable> failures = fanOut(shards,new FanOut<Object>(){
+				Object call(LUCICabinetMap<K,V> shard) throws Exception {
+					shard.clear();
+					return null;
+				}
+			});
+			NearCache c = hotCache;
+			if(c != null){
+				c.invalidateAll();
+			}
+			if(!failures.isEmpty()){
+				throw new ShardException("clear",shards.size(),failures);
+			}
+		}
+		finally{
+			rwlock.readLock().unlock();
 		}
 	}
 
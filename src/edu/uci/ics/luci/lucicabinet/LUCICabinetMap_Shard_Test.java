@@ -4,9 +4,20 @@ import static org.junit.Assert.assertEquals;
 import static org.junit.Assert.assertTrue;
 import static org.junit.Assert.fail;
 
+import java.io.File;
 import java.io.Serializable;
 import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Iterator;
 import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.SortedMap;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
 
 import org.apache.log4j.BasicConfigurator;
 import org.junit.After;
@@ -16,6 +27,12 @@ import org.junit.BeforeClass;
 import org.junit.Test;
 
 import edu.uci.ics.luci.lucicabinet.library.IteratorWorkerCountEntries;
+import edu.uci.ics.luci.lucicabinet.library.IteratorWorkerFindValue;
+import edu.uci.ics.luci.lucicabinet.library.ShardFunctionConsistent;
+import edu.uci.ics.luci.lucicabinet.library.ShardFunctionJump;
+import edu.uci.ics.luci.lucicabinet.library.ShardFunctionRange;
+import edu.uci.ics.luci.lucicabinet.library.ShardFunctionRendezvous;
+import edu.uci.ics.luci.lucicabinet.library.ShardFunctionSimple;
 import edu.uci.ics.luci.lucicabinet.library.SimplerAccessControl;
 
 public class LUCICabinetMap_Shard_Test {
@@ -174,6 +191,108 @@ public class LUCICabinetMap_Shard_Test {
 		sharded_DB.close();
 	}
 
+	@Test
+	public void testMultiGetPut() {
+		List<LUCICabinetMap<Integer,String>> shards = new ArrayList<LUCICabinetMap<Integer,String>>(this.numberOfShards*2);
+		shards.addAll(localShards);
+		shards.addAll(remoteShards);
+		sharded_DB = new LUCICabinetMap_Shard<Integer,String>(shards,false);
+		
+		Map<Integer,String> entries = new HashMap<Integer,String>();
+		for(Integer key=0; key< 1000; key++){
+			entries.put(key,"foo"+key);
+		}
+		sharded_DB.putAll(entries);
+		assertEquals(1000,sharded_DB.size());
+		
+		/* Ask for some keys that aren't there too */
+		List<Integer> keys = new ArrayList<Integer>();
+		for(Integer key=500; key< 1500; key++){
+			keys.add(key);
+		}
+		Map<Integer,String> values = sharded_DB.getAll(keys);
+		assertEquals(500,values.size());
+		for(Integer key=500; key< 1000; key++){
+			assertEquals("foo"+key,values.get(key));
+		}
+		
+		sharded_DB.clear();
+		sharded_DB.close();
+	}
+
+	@Test
+	public void testConcurrentClose() {
+		final LUCICabinetMap_Shard<Integer,String> db = new LUCICabinetMap_Shard<Integer,String>(new ArrayList<LUCICabinetMap<Integer,String>>(localShards),false);
+		
+		/* Callers on different shards run at once, and close waits for them rather than pulling the shards away */
+		final List<Throwable> problems = new ArrayList<Throwable>();
+		final int[] finished = new int[1];
+		List<Thread> threads = new ArrayList<Thread>();
+		for(int t = 0; t < 4; t++){
+			final int offset = t * 1000;
+			Thread thread = new Thread(new Runnable(){
+				public void run() {
+					try{
+						for(int i = 0; ; i = (i + 1) % 1000){
+							db.put(offset+i,"foo"+i);
+							assertEquals("foo"+i,db.get(offset+i));
+						}
+					}
+					catch(RuntimeException e){
+						if(!"The sharded database is closed".equals(e.getMessage())){
+							synchronized(problems){
+								problems.add(e);
+							}
+						}
+					}
+					catch(Throwable e){
+						synchronized(problems){
+							problems.add(e);
+						}
+					}
+					synchronized(finished){
+						finished[0]++;
+					}
+				}
+			});
+			threads.add(thread);
+			thread.start();
+		}
+		
+		try {
+			Thread.sleep(200);
+		} catch (InterruptedException e) {
+			fail("This shouldn't throw an exception"+e);
+		}
+		db.setOptimize(true);
+		assertTrue(db.getOptimize());
+		db.setOptimize(false);
+		db.close();
+		
+		for(Thread t:threads){
+			try {
+				t.join(10000);
+			} catch (InterruptedException e) {
+				fail("This shouldn't throw an exception"+e);
+			}
+		}
+		assertEquals(4,finished[0]);
+		assertTrue(problems.toString(),problems.isEmpty());
+		
+		try{
+			db.get(1);
+			fail("The sharded database is closed");
+		}
+		catch(RuntimeException e){
+		}
+		
+		/* Leave the shards empty for the other tests */
+		for(int i = 0; i < this.numberOfShards; i++){
+			localShards.set(i,new LUCICabinetHDB<Integer,String>("eraseme"+i+".tch",false));
+			localShards.get(i).clear();
+		}
+	}
+
 	@SuppressWarnings("unchecked")
 	@Test
 	public void testIterate() {
@@ -202,9 +321,731 @@ public class LUCICabinetMap_Shard_Test {
 		assertEquals(1000,iw.count);
 		assertEquals(1000,sharded_DB.size());
 		
+		sharded_DB.clear();
 		sharded_DB.close();
 	}
 		
+	@SuppressWarnings("unchecked")
+	@Test
+	public void testScan() throws Exception {
+		List<LUCICabinetMap<Integer,String>> shards = new ArrayList<LUCICabinetMap<Integer,String>>(localShards);
+		sharded_DB = new LUCICabinetMap_Shard<Integer,String>(shards,false);
+		for(Integer key=0; key< 1000; key++){
+			sharded_DB.put(key,"foo"+key);
+		}
+		
+		/* A ScanWorker goes through the shards one at a time, carrying on from shard to shard */
+		ScanWorker<Integer,String> iw = (ScanWorker<Integer,String>) sharded_DB.iterate((Class<? extends IteratorWorker<Integer, String>>) ScanWorker.class,new ScanWorker.ScanConfig(null,300));
+		ScanChunk<Integer,String> chunk = iw.getChunk();
+		assertEquals(300,chunk.size());
+		assertTrue(!chunk.last);
+		Set<Integer> seen = new HashSet<Integer>(chunk.keys);
+		assertEquals(300,seen.size());
+		iw = (ScanWorker<Integer,String>) sharded_DB.iterate((Class<? extends IteratorWorker<Integer, String>>) ScanWorker.class,new ScanWorker.ScanConfig(new ScanCursor(300,chunk.keys.get(299)),300));
+		assertEquals(300,iw.getChunk().size());
+		for(Integer key:iw.getChunk().keys){
+			assertTrue(seen.add(key));
+		}
+		assertEquals(600,seen.size());
+		
+		/* SCAN against a LUCI_Butler serving the sharded database */
+		LUCI_Butler<Integer,String> butler = new LUCI_Butler<Integer,String>(sharded_DB,8086,new SimplerAccessControl());
+		butler.initialize();
+		LUCICabinetHDB_Remote<Integer,String> remote = new LUCICabinetHDB_Remote<Integer,String>("localhost",8086,false);
+		try{
+			seen.clear();
+			ScanIterator<Integer,String> scan = remote.scan(null,7,2);
+			for(int i = 0; i < 321; i++){
+				assertTrue(scan.hasNext());
+				Map.Entry<Integer,String> e = scan.next();
+				assertEquals("foo"+e.getKey(),e.getValue());
+				assertTrue(seen.add(e.getKey()));
+			}
+			ScanCursor cursor = scan.getCursor();
+			scan.close();
+			
+			scan = remote.scan(cursor,7,2);
+			while(scan.hasNext()){
+				Map.Entry<Integer,String> e = scan.next();
+				assertEquals("foo"+e.getKey(),e.getValue());
+				assertTrue(seen.add(e.getKey()));
+			}
+			scan.close();
+			assertEquals(1000,seen.size());
+		}
+		finally{
+			remote.close();
+			butler.shutdown();
+		}
+		
+		sharded_DB.clear();
+		sharded_DB.close();
+	}
+	
+	@SuppressWarnings("unchecked")
+	@Test
+	public void testFanOut() {
+		List<LUCICabinetMap<Integer,String>> shards = new ArrayList<LUCICabinetMap<Integer,String>>(this.numberOfShards*2);
+		shards.addAll(localShards);
+		shards.addAll(remoteShards);
+		LUCICabinetMap_Shard<Integer,String> db = new LUCICabinetMap_Shard<Integer,String>(shards,false);
+		
+		for(Integer key=0; key< 1000; key++){
+			db.put(key, "foo"+key);
+		}
+		
+		/* Fewer threads than shards still reaches every shard */
+		ExecutorService executor = Executors.newFixedThreadPool(3);
+		db.setExecutor(executor);
+		assertTrue(db.getExecutor() == executor);
+		try{
+			IteratorWorkerCountEntries<Integer,String> iw = (IteratorWorkerCountEntries<Integer, String>) db.iterate((Class<? extends IteratorWorker<Integer, String>>) IteratorWorkerCountEntries.class,null);
+			assertEquals(1000,iw.count);
+		} catch (InstantiationException e) {
+			fail("This shouldn't throw an exception"+e);
+		} catch (IllegalAccessException e) {
+			fail("This shouldn't throw an exception"+e);
+		}
+		assertEquals(1000,db.size());
+		assertTrue(db.containsValue("foo500"));
+		assertTrue(!db.containsValue("bar"));
+		db.setExecutor(null);
+		assertTrue(db.getExecutor() != executor);
+		
+		db.clear();
+		assertEquals(0,db.size());
+		
+		/* A broken shard is named, the others still answer */
+		localShards.get(1).close();
+		localShards.get(3).close();
+		try{
+			db.sizeLong();
+			fail("Two shards are closed");
+		}
+		catch(ShardException e){
+			assertEquals(2,e.getFailures().size());
+			assertTrue(e.getFailures().containsKey(1));
+			assertTrue(e.getFailures().containsKey(3));
+			assertTrue(e.getMessage(),e.getMessage().contains("shard 1"));
+		}
+		localShards.set(1,new LUCICabinetHDB<Integer,String>("eraseme1.tch",false));
+		localShards.set(3,new LUCICabinetHDB<Integer,String>("eraseme3.tch",false));
+		
+		db.close();
+		assertTrue(!executor.isShutdown());
+		executor.shutdown();
+	}
+		
+	@Test
+	public void testRange() {
+		/* Keys below 0 and from 2000 up go to hash databases, which can't be read in order */
+		List<LUCICabinetMap<Integer,String>> shards = new ArrayList<LUCICabinetMap<Integer,String>>();
+		shards.add(localShards.get(0));
+		shards.add(new LUCICabinetBDB<Integer,String>("erasemeRange1.tcb",false,true));
+		shards.add(new LUCICabinetBDB<Integer,String>("erasemeRange2.tcb",false,true));
+		shards.add(localShards.get(1));
+		List<Integer> splits = new ArrayList<Integer>();
+		splits.add(0);
+		splits.add(1000);
+		splits.add(2000);
+		ShardFunctionRange sf = new ShardFunctionRange(splits);
+		assertEquals(4,sf.getNumberOfShards());
+		assertEquals(0,sf.pickShard(-1));
+		assertEquals(1,sf.pickShard(0));
+		assertEquals(2,sf.pickShard(1999));
+		assertEquals(3,sf.pickShard(2000));
+		assertTrue(Arrays.equals(new int[]{1,2},sf.pickShards(500,1500)));
+		assertTrue(Arrays.equals(new int[]{1},sf.pickShards(0,1000)));
+		assertTrue(Arrays.equals(new int[]{0,1,2,3},sf.pickShards(null,null)));
+		
+		LUCICabinetMap_Shard<Integer,String> db = new LUCICabinetMap_Shard<Integer,String>(shards,sf,false);
+		for(int key = -100; key < 2100; key++){
+			db.put(key,"foo"+key);
+		}
+		
+		/* Only the two ordered shards are asked */
+		Iterator<Map.Entry<Integer,String>> range = db.range(500,1500,64);
+		Integer expected = 500;
+		while(range.hasNext()){
+			assertEquals(expected,range.next().getKey());
+			expected++;
+		}
+		assertEquals(Integer.valueOf(1500),expected);
+		
+		SortedMap<Integer,String> page = db.getRange(990,false,2000,20);
+		assertEquals(20,page.size());
+		assertEquals(Integer.valueOf(991),page.firstKey());
+		assertEquals(Integer.valueOf(1010),page.lastKey());
+		
+		try{
+			db.range(null,null,64);
+			fail("The hash shards can't be read in order");
+		}
+		catch(ShardException e){
+			assertEquals(2,e.getFailures().size());
+		}
+		db.clear();
+		
+		/* With a hash every ordered shard has some of any range, and the merge puts them back in order */
+		List<LUCICabinetMap<Integer,String>> hashed = new ArrayList<LUCICabinetMap<Integer,String>>();
+		hashed.add(shards.get(1));
+		hashed.add(shards.get(2));
+		hashed.add(new LUCICabinetBDB<Integer,String>("erasemeRange3.tcb",false,true));
+		LUCICabinetMap_Shard<Integer,String> hashedDb = new LUCICabinetMap_Shard<Integer,String>(hashed,new ShardFunctionJump(3),false);
+		for(int key = -500; key < 500; key++){
+			hashedDb.put(key,"bar"+key);
+		}
+		for(LUCICabinetMap<Integer,String> shard:hashed){
+			assertTrue(shard.sizeLong() > 250);
+		}
+		range = hashedDb.range(-300,null,5);
+		expected = -300;
+		while(range.hasNext()){
+			Map.Entry<Integer,String> e = range.next();
+			assertEquals(expected,e.getKey());
+			assertEquals("bar"+expected,e.getValue());
+			expected++;
+		}
+		assertEquals(Integer.valueOf(500),expected);
+		
+		hashedDb.clear();
+		db.close();
+		hashedDb.close();
+		localShards.set(0,new LUCICabinetHDB<Integer,String>("eraseme0.tch",false));
+		localShards.set(1,new LUCICabinetHDB<Integer,String>("eraseme1.tch",false));
+	}
+		
+	@Test
+	public void testShardFunctions() {
+		ShardFunction[] small = {new ShardFunctionSimple(10),new ShardFunctionConsistent(10),new ShardFunctionJump(10),new ShardFunctionRendezvous(10)};
+		ShardFunction[] big = {new ShardFunctionSimple(11),new ShardFunctionConsistent(11),new ShardFunctionJump(11),new ShardFunctionRendezvous(11)};
+		
+		for(int f = 0; f < small.length; f++){
+			int[] load = new int[10];
+			int moved = 0;
+			for(int key = -5000; key < 5000; key++){
+				int which = small[f].pickShard(key);
+				assertTrue(small[f]+" picked "+which,(which >= 0) && (which < 10));
+				load[which]++;
+				
+				int grown = big[f].pickShard(key);
+				if(grown != which){
+					moved++;
+					/* Simple moves keys anywhere, the others only to the new shard */
+					if(f > 0){
+						assertEquals(10,grown);
+					}
+				}
+			}
+			for(int l:load){
+				assertTrue(small[f]+" put "+l,(l > 700) && (l < 1300));
+			}
+			if(f > 0){
+				assertTrue(small[f]+" moved "+moved,moved < 1300);
+			}
+		}
+		
+		/* Negative keys are stored and found on a sharded database */
+		LUCICabinetMap_Shard<Integer,String> db = new LUCICabinetMap_Shard<Integer,String>(new ArrayList<LUCICabinetMap<Integer,String>>(localShards),new ShardFunctionJump(this.numberOfShards),false);
+		for(int key = -100; key < 100; key++){
+			db.put(key,"foo"+key);
+		}
+		for(int key = -100; key < 100; key++){
+			assertEquals("foo"+key,db.get(key));
+		}
+		assertEquals(200,db.size());
+		db.clear();
+		db.close();
+		for(int i = 0; i < this.numberOfShards; i++){
+			localShards.set(i,new LUCICabinetHDB<Integer,String>("eraseme"+i+".tch",false));
+		}
+	}
+	
+	@Test
+	public void testHotKeys() {
+		ShardFunction sf = new ShardFunctionJump(this.numberOfShards);
+		LUCICabinetMap_Shard<Integer,String> db = new LUCICabinetMap_Shard<Integer,String>(new ArrayList<LUCICabinetMap<Integer,String>>(localShards),sf,false);
+		db.setHotKeyTracking(4);
+		for(Integer key = 0; key < 1000; key++){
+			db.put(key,"foo"+key);
+		}
+		
+		/* Most of the reads are for two keys */
+		for(int i = 0; i < 5000; i++){
+			assertEquals("foo7",db.get(7));
+			if(i < 3000){
+				assertEquals("foo13",db.get(13));
+			}
+			assertEquals("foo"+(i % 1000),db.get(i % 1000));
+		}
+		
+		Iterator<Map.Entry<Integer,Long>> top = db.getHotKeys().getTop().entrySet().iterator();
+		Map.Entry<Integer,Long> hottest = top.next();
+		assertEquals(Integer.valueOf(7),hottest.getKey());
+		assertTrue(hottest.getValue() >= 5006);
+		assertEquals(Integer.valueOf(13),top.next().getKey());
+		assertTrue(db.getHotKeys().isHot(7));
+		assertTrue(!db.getHotKeys().isHot(500));
+		
+		/* The shard with key 7 is the busiest */
+		long[] load = db.getShardLoad();
+		assertEquals(this.numberOfShards,load.length);
+		long total = 0;
+		for(int i = 0; i < load.length; i++){
+			total += load[i];
+			assertTrue(load[sf.pickShard(7)] >= load[i]);
+		}
+		assertEquals(1000+5000+3000+5000,total);
+		
+		/* Reads of hot keys are answered without going to their shard */
+		db.setHotKeyCache(10,0);
+		assertEquals("foo7",db.get(7));
+		assertEquals("foo7",db.get(7));
+		assertEquals("foo7",db.get(7));
+		assertEquals(2,db.getHotKeyCache().getHits());
+		assertEquals(load[sf.pickShard(7)]+1,db.getShardLoad()[sf.pickShard(7)]);
+		
+		/* A putIfAbsent that changes nothing leaves the copy alone */
+		assertEquals("foo7",db.putIfAbsent(7,"bar7"));
+		assertEquals(0,db.getHotKeyCache().getInvalidations());
+		assertEquals("foo7",db.get(7));
+		assertEquals(3,db.getHotKeyCache().getHits());
+		
+		/* Writes through the sharded database are seen straight away */
+		assertEquals("foo7",db.put(7,"seven"));
+		assertEquals("seven",db.get(7));
+		assertEquals("seven",db.remove(7));
+		assertEquals(null,db.get(7));
+		
+		db.setHotKeyTracking(0);
+		assertEquals(null,db.getHotKeys());
+		assertEquals(null,db.getHotKeyCache());
+		try{
+			db.setHotKeyCache(10,0);
+			fail("Hot keys aren't being tracked");
+		}
+		catch(RuntimeException e){
+			/* Expected */
+		}
+		
+		db.clear();
+		db.close();
+		for(int i = 0; i < this.numberOfShards; i++){
+			localShards.set(i,new LUCICabinetHDB<Integer,String>("eraseme"+i+".tch",false));
+		}
+	}
+	
+	@Test
+	public void testOpenHDB() {
+		List<String> files = new ArrayList<String>();
+		for(int i = 0; i < 8; i++){
+			files.add("erasemeOpen"+i+".tch");
+		}
+		
+		LUCICabinetMap_Shard<Integer,String> db = LUCICabinetMap_Shard.openHDB(files,new ShardFunctionJump(8),false,1 << 20,1 << 20,4);
+		for(Integer key = 0; key < 1000; key++){
+			db.put(key,"foo"+key);
+		}
+		assertEquals(1000,db.size());
+		db.close();
+		try{
+			db.get(1);
+			fail("The sharded database is closed");
+		}
+		catch(RuntimeException e){
+			/* Expected */
+		}
+		
+		/* Everything is still there when the files are opened again */
+		db = LUCICabinetMap_Shard.openHDB(files,new ShardFunctionJump(8),false,0,0,8);
+		assertEquals(1000,db.size());
+		for(Integer key = 0; key < 1000; key++){
+			assertEquals("foo"+key,db.get(key));
+		}
+		
+		/* Every file has at least its header read */
+		long read = db.warmUp(1 << 20);
+		assertTrue(read >= 8 * 256);
+		assertTrue(read <= 8 * (1 << 20));
+		
+		try{
+			LUCICabinetMap_Shard.openHDB(files,null,false,0,0,0);
+			fail("No threads to open the files with");
+		}
+		catch(IllegalArgumentException e){
+			/* Expected */
+		}
+		
+		db.clear();
+		db.close();
+	}
+	
+	@Test
+	public void testConditional() {
+		List<LUCICabinetMap<Integer,String>> shards = new ArrayList<LUCICabinetMap<Integer,String>>(this.numberOfShards*2);
+		shards.addAll(localShards);
+		shards.addAll(remoteShards);
+		final ShardFunction sf = new ShardFunctionJump(shards.size());
+		final LUCICabinetMap_Shard<Integer,String> db = new LUCICabinetMap_Shard<Integer,String>(shards,sf,false);
+		
+		/* Each conditional operation goes to the key's shard only */
+		for(Integer key = 0; key < 100; key++){
+			assertEquals(null,db.putIfAbsent(key,"foo"+key));
+			assertEquals("foo"+key,db.putIfAbsent(key,"bar"+key));
+			assertEquals("foo"+key,shards.get(sf.pickShard(key)).get(key));
+		}
+		assertEquals(100,db.size());
+		for(Integer key = 0; key < 100; key++){
+			assertTrue(db.replace(key,"foo"+key,"bar"+key));
+			assertTrue(!db.remove(key,"foo"+key));
+			assertTrue(db.remove(key,"bar"+key));
+		}
+		assertEquals(0,db.size());
+		
+		/* Counters on every shard counted from many threads */
+		Thread[] t = new Thread[4];
+		for(int i = 0; i < t.length; i++){
+			t[i] = new Thread(new Runnable(){
+				public void run() {
+					for(int j = 0; j < 50; j++){
+						for(Integer key = 0; key < 20; key++){
+							db.computeAtomic(key,new LUCICabinetHDB_Remote_Test.Increment());
+						}
+					}
+				}
+			});
+			t[i].start();
+		}
+		for(int i = 0; i < t.length; i++){
+			try {
+				t[i].join();
+			} catch (InterruptedException e) {
+				fail("This shouldn't be interrupted"+e);
+			}
+		}
+		for(Integer key = 0; key < 20; key++){
+			assertEquals("200",db.get(key));
+		}
+		
+		db.clear();
+		db.close();
+	}
+	
+	@Test
+	public void testReshard() {
+		/* Grow from the local shards to twice as many, keeping the old ones */
+		List<LUCICabinetMap<Integer,String>> oldShards = new ArrayList<LUCICabinetMap<Integer,String>>(localShards);
+		List<LUCICabinetMap<Integer,String>> newShards = new ArrayList<LUCICabinetMap<Integer,String>>(localShards);
+		for(int i = 0; i < this.numberOfShards; i++){
+			LUCICabinetMap<Integer,String> shard = new LUCICabinetHDB<Integer,String>("erasemeNew"+i+".tch",false);
+			shard.clear();
+			newShards.add(shard);
+		}
+		File checkpoint = new File("erasemeMigration.properties");
+		checkpoint.delete();
+		
+		final LUCICabinetMap_Shard<Integer,String> db = new LUCICabinetMap_Shard<Integer,String>(oldShards,new ShardFunctionJump(this.numberOfShards),false);
+		for(int key = 0; key < 2000; key++){
+			db.put(key,"foo"+key);
+		}
+		
+		/* One key a second, so after the first batch it waits long enough to be interrupted, like a crash */
+		ShardMigration<Integer,String> m = db.reshard(newShards,new ShardFunctionJump(this.numberOfShards*2),checkpoint,1,20,1);
+		long giveUp = System.currentTimeMillis() + 10000;
+		while((m.getKeysMoved() == 0) && (System.currentTimeMillis() < giveUp)){
+			try {
+				Thread.sleep(10);
+			} catch (InterruptedException e) {
+				fail("This shouldn't throw an exception"+e);
+			}
+		}
+		assertEquals(20,m.getKeysMoved());
+		
+		/* Keys that have moved aren't counted or seen twice */
+		assertEquals(2000,db.size());
+		assertEquals(2000,countEntries(db));
+		
+		/* Reads find every key wherever it is, and writes during the move stick */
+		for(int key = 0; key < 2000; key++){
+			assertEquals("foo"+key,db.get(key));
+		}
+		for(int key = 0; key < 2000; key += 7){
+			db.put(key,"bar"+key);
+		}
+		db.remove(3);
+		assertEquals("foo1",db.putIfAbsent(1,"baz"));
+		assertTrue(db.replace(2,"foo2","foo2"));
+		
+		m.cancel();
+		try {
+			assertTrue(m.waitFor(10000));
+		} catch (InterruptedException e) {
+			fail("This shouldn't throw an exception"+e);
+		}
+		assertTrue(!m.isFinished());
+		assertTrue(m.getKeysMoved() > 0);
+		assertTrue(!ShardMigration.isFinished(checkpoint));
+		assertEquals(1999,db.size());
+		
+		/* Picked up again, from the checkpoint, a key at a time so the count can be checked while keys move */
+		m = db.reshard(newShards,new ShardFunctionJump(this.numberOfShards*2),checkpoint,1,1,0);
+		while(!m.isFinished() && (m.getFailure() == null)){
+			assertEquals(1999,db.size());
+			assertEquals(1999,countEntries(db));
+		}
+		try {
+			assertTrue(m.waitFor(60000));
+		} catch (InterruptedException e) {
+			fail("This shouldn't throw an exception"+e);
+		}
+		assertTrue(m.isFinished());
+		assertTrue(m.getFailure() == null);
+		assertTrue(m.getKeysPerSecond() > 0);
+		assertTrue(ShardMigration.isFinished(checkpoint));
+		assertTrue(db.getMigration() == null);
+		
+		/* Every key is on the shard the new layout gives it */
+		ShardFunction sf = new ShardFunctionJump(this.numberOfShards*2);
+		for(int key = 0; key < 2000; key++){
+			String expected = (key == 3) ? null : (((key % 7) == 0) ? "bar"+key : "foo"+key);
+			assertEquals(expected,db.get(key));
+			assertEquals(expected,newShards.get(sf.pickShard(key)).get(key));
+		}
+		assertEquals(1999,db.size());
+		
+		db.clear();
+		db.close();
+		checkpoint.delete();
+		for(int i = 0; i < this.numberOfShards; i++){
+			localShards.set(i,new LUCICabinetHDB<Integer,String>("eraseme"+i+".tch",false));
+		}
+	}
+	
+	/**
+	 * A shard that doesn't let a migration find the keys to move off it until it is let go
+	 */
+	public static class BlockingHDB<K extends Serializable,V extends Serializable> extends LUCICabinetHDB<K,V>{
+		
+		public final CountDownLatch letGo = new CountDownLatch(1);
+		
+		public BlockingHDB(String filePathAndName,boolean optimize) {
+			super(filePathAndName,optimize);
+		}
+		
+		@Override
+		public IteratorWorker<K,V> iterate(Class<? extends IteratorWorker<K,V>> iw,IteratorWorkerConfig iwc) throws InstantiationException, IllegalAccessException{
+			if(ShardMigration.MovingKeys.class.equals(iw)){
+				try {
+					letGo.await();
+				} catch (InterruptedException e) {
+				}
+			}
+			return super.iterate(iw,iwc);
+		}
+	}
+	
+	@Test
+	public void testReshardAfterCrash() {
+		ShardFunction oldFunction = new ShardFunctionJump(this.numberOfShards);
+		ShardFunction newFunction = new ShardFunctionJump(this.numberOfShards*2);
+		File checkpoint = new File("erasemeCrash.properties");
+		checkpoint.delete();
+		
+		/* The second old shard holds up the migration, so it stops with only the first one done */
+		BlockingHDB<Integer,String> blocking = null;
+		List<LUCICabinetMap<Integer,String>> oldShards = new ArrayList<LUCICabinetMap<Integer,String>>();
+		for(int i = 0; i < this.numberOfShards; i++){
+			LUCICabinetMap<Integer,String> shard;
+			if(i == 1){
+				blocking = new BlockingHDB<Integer,String>("erasemeCrash"+i+".tch",false);
+				shard = blocking;
+			}
+			else{
+				shard = new LUCICabinetHDB<Integer,String>("erasemeCrash"+i+".tch",false);
+			}
+			shard.clear();
+			oldShards.add(shard);
+		}
+		List<LUCICabinetMap<Integer,String>> newShards = new ArrayList<LUCICabinetMap<Integer,String>>(oldShards);
+		for(int i = 0; i < this.numberOfShards; i++){
+			LUCICabinetMap<Integer,String> shard = new LUCICabinetHDB<Integer,String>("erasemeCrashNew"+i+".tch",false);
+			shard.clear();
+			newShards.add(shard);
+		}
+		
+		LUCICabinetMap_Shard<Integer,String> db = new LUCICabinetMap_Shard<Integer,String>(oldShards,oldFunction,false);
+		int[] movers = new int[this.numberOfShards];
+		int allMovers = 0;
+		for(int key = 0; key < 2000; key++){
+			db.put(key,"foo"+key);
+			if(newFunction.pickShard(key) != oldFunction.pickShard(key)){
+				movers[oldFunction.pickShard(key)]++;
+				allMovers++;
+			}
+		}
+		
+		ShardMigration<Integer,String> m = db.reshard(newShards,newFunction,checkpoint,1,20,0);
+		long giveUp = System.currentTimeMillis() + 10000;
+		while((m.getShardsMigrated() == 0) && (System.currentTimeMillis() < giveUp)){
+			try {
+				Thread.sleep(10);
+			} catch (InterruptedException e) {
+				fail("This shouldn't throw an exception"+e);
+			}
+		}
+		assertEquals(1,m.getShardsMigrated());
+		assertEquals(movers[0],m.getKeysMoved());
+		m.cancel();
+		blocking.letGo.countDown();
+		try {
+			assertTrue(m.waitFor(10000));
+		} catch (InterruptedException e) {
+			fail("This shouldn't throw an exception"+e);
+		}
+		assertEquals(movers[0],m.getKeysMoved());
+		
+		/* Crash part of the way through moving a key off the third old shard, after it was copied */
+		Integer halfMoved = null;
+		for(int key = 0; (key < 2000) && (halfMoved == null); key++){
+			if((oldFunction.pickShard(key) == 2) && (newFunction.pickShard(key) != 2)){
+				halfMoved = key;
+			}
+		}
+		newShards.get(newFunction.pickShard(halfMoved)).put(halfMoved,"foo"+halfMoved);
+		for(LUCICabinetMap<Integer,String> shard:newShards){
+			shard.close();
+		}
+		
+		/* Start again with the files as they were left and a map made with the old layout */
+		oldShards = new ArrayList<LUCICabinetMap<Integer,String>>();
+		for(int i = 0; i < this.numberOfShards; i++){
+			oldShards.add(new LUCICabinetHDB<Integer,String>("erasemeCrash"+i+".tch",false));
+		}
+		newShards = new ArrayList<LUCICabinetMap<Integer,String>>(oldShards);
+		for(int i = 0; i < this.numberOfShards; i++){
+			newShards.add(new LUCICabinetHDB<Integer,String>("erasemeCrashNew"+i+".tch",false));
+		}
+		db = new LUCICabinetMap_Shard<Integer,String>(oldShards,oldFunction,false);
+		m = db.reshard(newShards,newFunction,checkpoint);
+		try {
+			assertTrue(m.waitFor(60000));
+		} catch (InterruptedException e) {
+			fail("This shouldn't throw an exception"+e);
+		}
+		assertTrue(m.isFinished());
+		assertTrue(m.getFailure() == null);
+		assertTrue(ShardMigration.isFinished(checkpoint));
+		
+		/* The first old shard was skipped, and every key ended up only on the shard the new layout gives it */
+		assertEquals(allMovers-movers[0],m.getKeysMoved());
+		for(int key = 0; key < 2000; key++){
+			assertEquals("foo"+key,db.get(key));
+			assertEquals("foo"+key,newShards.get(newFunction.pickShard(key)).get(key));
+			if(newFunction.pickShard(key) != oldFunction.pickShard(key)){
+				assertTrue(newShards.get(oldFunction.pickShard(key)).get(key) == null);
+			}
+		}
+		assertEquals(2000,db.size());
+		
+		db.clear();
+		db.close();
+		checkpoint.delete();
+	}
+	
+	@SuppressWarnings("unchecked")
+	private static int countEntries(LUCICabinetMap<Integer,String> db){
+		try{
+			return ((IteratorWorkerCountEntries<Integer, String>) db.iterate((Class<? extends IteratorWorker<Integer, String>>) IteratorWorkerCountEntries.class,null)).count;
+		} catch (InstantiationException e) {
+			fail("This shouldn't throw an exception"+e);
+		} catch (IllegalAccessException e) {
+			fail("This shouldn't throw an exception"+e);
+		}
+		return 0;
+	}
+	
+	/**
+	 * Looks for a value slowly enough that the shards are still scanning when one of them finds it
+	 */
+	public static class SlowFindValue<K extends Serializable,V extends Serializable> extends IteratorWorkerFindValue<K,V>{
+		private static final long serialVersionUID = -2315793360451268094L;
+		
+		public int visited = 0;
+		
+		@Override
+		protected boolean iterate(K key,V value) {
+			visited++;
+			try {
+				Thread.sleep(1);
+			} catch (InterruptedException e) {
+			}
+			return super.iterate(key,value);
+		}
+		
+		@Override
+		protected void combine(IteratorWorker<K,V> iw) {
+			super.combine(iw);
+			visited += ((SlowFindValue<K,V>)iw).visited;
+		}
+	}
+	
+	@SuppressWarnings("unchecked")
+	@Test
+	public void testStopAcrossShards() {
+		List<LUCICabinetMap<Integer,String>> shards = new ArrayList<LUCICabinetMap<Integer,String>>(this.numberOfShards*2);
+		shards.addAll(localShards);
+		shards.addAll(remoteShards);
+		
+		/* The value is alone on the first shard, so it is found straight away while the others have plenty left */
+		shards.get(0).put(-1,"needle");
+		for(int i = 1; i < shards.size(); i++){
+			for(int j = 0; j < 300; j++){
+				shards.get(i).put(i*1000+j,"hay"+j);
+			}
+		}
+		LUCICabinetMap_Shard<Integer,String> db = new LUCICabinetMap_Shard<Integer,String>(shards,false);
+		
+		SlowFindValue<Integer,String> iw = null;
+		try{
+			iw = (SlowFindValue<Integer, String>) db.iterate((Class<? extends IteratorWorker<Integer, String>>) SlowFindValue.class,new IteratorWorkerFindValue.FindValueConfig<String>("needle"));
+		} catch (InstantiationException e) {
+			fail("This shouldn't throw an exception"+e);
+		} catch (IllegalAccessException e) {
+			fail("This shouldn't throw an exception"+e);
+		}
+		assertTrue(iw.found);
+		assertTrue("Visited "+iw.visited,iw.visited < 9*300/2);
+		
+		/* Nothing asks to stop, so everything is visited */
+		try{
+			iw = (SlowFindValue<Integer, String>) db.iterate((Class<? extends IteratorWorker<Integer, String>>) SlowFindValue.class,new IteratorWorkerFindValue.FindValueConfig<String>("pin"));
+		} catch (InstantiationException e) {
+			fail("This shouldn't throw an exception"+e);
+		} catch (IllegalAccessException e) {
+			fail("This shouldn't throw an exception"+e);
+		}
+		assertTrue(!iw.found);
+		assertEquals(1+9*300,iw.visited);
+		
+		assertTrue(db.containsValue("needle"));
+		assertTrue(db.containsValue("hay299"));
+		
+		/* A signal given before a remote iteration starts is kept for it */
+		StopSignal stop = new StopSignal();
+		stop.stop();
+		try{
+			iw = (SlowFindValue<Integer, String>) remoteShards.get(2).iterate((Class<? extends IteratorWorker<Integer, String>>) SlowFindValue.class,new IteratorWorkerFindValue.FindValueConfig<String>("pin"),stop);
+		} catch (InstantiationException e) {
+			fail("This shouldn't throw an exception"+e);
+		} catch (IllegalAccessException e) {
+			fail("This shouldn't throw an exception"+e);
+		}
+		assertEquals(0,iw.visited);
+		
+		db.clear();
+		db.close();
+	}
+		
 	@Test
 	public void testForDeadlock() {
 		List<LUCICabinetMap<Integer,String>> shards = new ArrayList<LUCICabinetMap<Integer,String>>(this.numberOfShards*2);
@@ -1,12 +1,24 @@
 package edu.uci.ics.luci.lucicabinet;
 
+import java.io.File;
 import java.io.IOException;
 import java.io.ObjectInputStream;
 import java.io.ObjectOutputStream;
 import java.io.Serializable;
 import java.net.ServerSocket;
 import java.net.Socket;
+import java.net.SocketAddress;
 import java.net.SocketException;
+import java.nio.channels.ServerSocketChannel;
+import java.nio.channels.SocketChannel;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.Set;
+import java.util.SortedMap;
+import java.util.TreeMap;
+import java.util.TreeSet;
+import java.util.concurrent.ConcurrentHashMap;
 
 import org.apache.log4j.Level;
 import org.apache.log4j.Logger;
@@ -18,13 +30,65 @@ import org.apache.log4j.Logger;
  */
 public class LUCI_Butler<K extends Serializable,V extends Serializable> implements Runnable{
 	
-	enum ServerCommands {PUT,GET,REMOVE,ITERATE, CLOSE, SIZE, CLEAR, SET_OPTIMIZE};
-	enum ServerResponse {CONNECTION_OKAY_OPTIMIZE, CONNECTION_OKAY_UNOPTIMIZE,COMMAND_SUCCESSFUL,COMMAND_FAILED};
+	enum ServerCommands {PUT,GET,REMOVE,ITERATE, CLOSE, SIZE, CLEAR, SET_OPTIMIZE, BATCH, MULTI_GET, MULTI_PUT, SCAN, SCAN_CREDIT, SCAN_END, GET_RAW, PUT_RAW, REMOVE_RAW, SUBSCRIBE, TRACK, STATS, USE, IDENTIFY, ITERATE_CANCEL, RANGE, UPDATE};
+	enum ServerResponse {CONNECTION_OKAY_OPTIMIZE, CONNECTION_OKAY_UNOPTIMIZE,COMMAND_SUCCESSFUL,COMMAND_FAILED,INVALIDATE_ALL,BUSY};
+	
+	/**
+	 * The lanes commands are scheduled in, see configureLane. POINT is for commands which touch a few keys, BULK is
+	 * for iterate, scan and clear, which work on the whole database.
+	 */
+	public enum Lane {POINT, BULK};
+	
+	/**
+	 * The LUCI_Butler end of a connection from a LUCICabinetMap_Remote in the same JVM. The client calls it directly
+	 * instead of sending commands over the connection, which skips the object streams and the socket. The commands
+	 * are still counted, rate limited, scheduled in their lanes and run on the database the connection is using, the
+	 * same as if they had been sent. A command which is turned away throws a ServerBusyException.
+	 */
+	interface InProcess<K extends Serializable,V extends Serializable>{
+		byte[] getRaw(byte[] key);
+		byte[] putRaw(byte[] key,byte[] value);
+		byte[] removeRaw(byte[] key);
+		void apply(WriteBatch<K,V> batch);
+		Map<K,V> getAll(ArrayList<K> keys);
+		SortedMap<K,V> getRange(K from,boolean fromInclusive,K to,int max);
+		Change<V> update(K key,Remapper<? super K,V> remapper);
+		void putAll(HashMap<K,V> entries);
+		Long sizeLong();
+		void clear();
+		Boolean use(String name);
+		void identify(String id);
+	}
+	
+	/** The connections accepted by any LUCI_Butler in this JVM, by their two ends, see Connection.pair */
+	private static final ConcurrentHashMap<String,InProcess<?,?>> inProcess = new ConcurrentHashMap<String,InProcess<?,?>>();
+	
+	/** How long a scan waits for the client to ask for more before giving up, in milliseconds */
+	private static final int SCAN_CREDIT_TIMEOUT = 60000;
+	
+	/** The most keys that are tracked for one near cache before it is told to drop everything */
+	private static final int MAX_TRACKED_KEYS = 100000;
+	/** The most invalidations that can wait to be sent to one near cache before it is told to drop everything */
+	private static final int MAX_QUEUED_INVALIDATIONS = 10000;
+	/** How long a cancel that arrived before its iteration is remembered, in milliseconds */
+	private static final long EARLY_CANCEL_TIMEOUT = 600000;
 	
 	private boolean shuttingDown = false;
 	protected LUCICabinetMap<K,V> db;
+	protected ConcurrentHashMap<String,LUCICabinetMap<K,V>> databases = new ConcurrentHashMap<String,LUCICabinetMap<K,V>>();
 	protected AccessControl checker;
+	protected volatile RateLimiter limiter = null;
 	private ServerSocket serverSocket = null;
+	private InvalidationTracker tracker = new InvalidationTracker(MAX_TRACKED_KEYS,MAX_QUEUED_INVALIDATIONS);
+	private LUCI_ButlerStats stats = new LUCI_ButlerStats();
+	private CommandScheduler scheduler = new CommandScheduler();
+	private MetricsEndpoint metrics = null;
+	private ServerSocketChannel unixChannel = null;
+	private String unixPath = null;
+	/* Iterations which can be cancelled with ITERATE_CANCEL, by the id the client gave them */
+	private final ConcurrentHashMap<String,StopSignal> iterations = new ConcurrentHashMap<String,StopSignal>();
+	/* Cancels for iterations that haven't started yet, which may be waiting for a slot in their lane */
+	private final ConcurrentHashMap<String,Long> earlyCancels = new ConcurrentHashMap<String,Long>();
 	
 	private static transient volatile Logger log = null;
 	public static Logger getLog(){
@@ -49,17 +113,272 @@ public class LUCI_Butler<K extends Serializable,V extends Serializable> implemen
 				getLog().log(Level.ERROR,"Could not close Server Socket");
 			}
 		}
+		if(metrics != null){
+			metrics.shutdown();
+			metrics = null;
+		}
+		if(unixChannel != null){
+			try {
+				unixChannel.close();
+			} catch (IOException e) {
+				getLog().log(Level.ERROR,"Could not close Unix domain socket");
+			}
+			new File(unixPath).delete();
+			unixChannel = null;
+		}
 	}
 	
 	/**
-	 * 
+	 * Also accept connections on a Unix domain socket. Clients on the same host avoid the TCP stack by connecting
+	 * to it, see LUCICabinetMap_Remote.unixSocket. Access is controlled by the permissions of the socket file rather
+	 * than by the AccessControl. Needs Java 16 or later.
+	 * @param path The file to create the socket at. A file left there by an earlier butler is replaced.
+	 */
+	public synchronized void initializeUnixSocket(String path){
+		if(unixChannel != null){
+			throw new RuntimeException("Already listening on a Unix domain socket:"+unixPath);
+		}
+		try {
+			unixChannel = Connection.listen(path);
+		} catch (IOException e) {
+			getLog().log(Level.ERROR,"Could not listen on Unix domain socket:"+path,e);
+			throw new RuntimeException("Unable to listen on Unix domain socket:"+path);
+		}
+		unixPath = path;
+		
+		final ServerSocketChannel channel = unixChannel;
+		final SocketAddress address = Connection.unixAddress(path);
+		Thread t = new Thread(new Runnable(){
+			public void run() {
+				while(!shuttingDown && channel.isOpen()){
+					try {
+						SocketChannel c = channel.accept();
+						Thread h = new Thread(new Handler(new Connection(c,address)));
+						h.setDaemon(false);
+						h.start();
+					} catch (IOException e) {
+						if(channel.isOpen()){
+							getLog().log(Level.ERROR, "Unable to accept a Unix domain socket connection",e);
+						}
+					}
+				}
+			}
+		});
+		t.setName("LUCI_Butler Unix Socket Accept Thread");
+		t.setDaemon(false); /*Force an explicit shutdown call */
+		t.start();
+	}
+	
+	/**
+	 * @return a snapshot of the statistics for this butler service and its database
+	 */
+	public LUCI_ButlerStats getStats(){
+		return stats.snapshot(db,databases,tracker,scheduler);
+	}
+	
+	/**
+	 * Limit how many commands of a lane run at once, across all connections, and set the thread priority they run
+	 * at. Commands wait for a free slot in their lane. By default point operations are not limited and run at normal
+	 * priority, while at most 4 bulk operations run at once at the lowest priority, so that long iterations and scans
+	 * don't crowd out point operations.
+	 * @param lane The lane to change
+	 * @param concurrency The most commands of the lane that may run at once, 0 for no limit
+	 * @param priority The thread priority, from Thread.MIN_PRIORITY to Thread.MAX_PRIORITY
+	 */
+	public void configureLane(Lane lane,int concurrency,int priority){
+		scheduler.configure(lane,concurrency,priority);
+	}
+	
+	/**
+	 * Limit how many commands may wait for a slot in a lane. Commands that arrive when that many are already waiting
+	 * are sent a busy response instead of being run, and the client backs off and tries again. By default 1000 point
+	 * operations and 16 bulk operations may wait.
+	 * @param lane The lane to change
+	 * @param queueLimit The most commands of the lane that may wait, 0 for no limit
+	 */
+	public void setLaneQueueLimit(Lane lane,int queueLimit){
+		scheduler.setQueueLimit(lane,queueLimit);
+	}
+	
+	/**
+	 * @return the most commands of a lane that may wait for a slot, 0 if there is no limit
+	 */
+	public int getLaneQueueLimit(Lane lane){
+		return scheduler.getQueueLimit(lane);
+	}
+	
+	/**
+	 * Change how much work each client may ask for. Commands from a client which is over its limit are sent a busy
+	 * response instead of being run.
+	 * @param limiter The new limits, null for none
+	 */
+	public void setRateLimiter(RateLimiter limiter){
+		this.limiter = limiter;
+	}
+	
+	/**
+	 * Remember a cancel for an iteration that hasn't started, so that it stops as soon as it does. The iteration
+	 * may never come if it was turned away, so cancels that are old enough are forgotten.
+	 */
+	private void cancelEarly(String id){
+		long now = System.currentTimeMillis();
+		for(Map.Entry<String,Long> e:earlyCancels.entrySet()){
+			if(now - e.getValue() > EARLY_CANCEL_TIMEOUT){
+				earlyCancels.remove(e.getKey(),e.getValue());
+			}
+		}
+		earlyCancels.put(id,now);
+		/* It may have started in the meantime */
+		StopSignal stop = iterations.get(id);
+		if(stop != null){
+			earlyCancels.remove(id);
+			stop.stop();
+		}
+	}
+	
+	/**
+	 * Find the LUCI_Butler end of a connection, if it was accepted by a LUCI_Butler in this JVM
+	 * @param pair the two ends of the connection, see Connection.pair
+	 * @return the end to call directly, or null if the LUCI_Butler is somewhere else
+	 */
+	static InProcess<?,?> inProcess(String pair){
+		if(pair == null){
+			return null;
+		}
+		return inProcess.get(pair);
+	}
+	
+	/**
+	 * @return how many objects follow a command on the connection, so that a command which is turned away can be
+	 * skipped without losing track of the stream
+	 */
+	static int parameters(ServerCommands command){
+		switch(command){
+			case PUT:
+			case PUT_RAW:
+			case UPDATE:
+				return 2;
+			case ITERATE:
+			case SCAN:
+				return 3;
+			case RANGE:
+				return 4;
+			case CLOSE:
+			case SIZE:
+			case CLEAR:
+			case SCAN_END:
+			case SUBSCRIBE:
+			case STATS:
+				return 0;
+			default:
+				return 1;
+		}
+	}
+	
+	/**
+	 * @return true if a command counts against the client's rate limit. Commands which only set up the connection
+	 * don't.
+	 */
+	static boolean isRateLimited(ServerCommands command){
+		return (CommandScheduler.laneOf(command) != null) && !command.equals(ServerCommands.USE) &&
+				!command.equals(ServerCommands.TRACK) && !command.equals(ServerCommands.SET_OPTIMIZE);
+	}
+	
+	/**
+	 * @return the most commands of a lane that may run at once, 0 if there is no limit
+	 */
+	public int getLaneConcurrency(Lane lane){
+		return scheduler.getConcurrency(lane);
+	}
+	
+	/**
+	 * @return the thread priority commands of a lane run at
+	 */
+	public int getLanePriority(Lane lane){
+		return scheduler.getPriority(lane);
+	}
+	
+	/**
+	 * Also serve a database under a name. A client picks it with the USE command, see LUCICabinetMap_Remote.database,
+	 * which lets one connection reach many databases, for example all the shards of a LUCICabinetMap_Shard.
+	 * @param name The name clients select the database by
 	 * @param db The database to expose
+	 */
+	public void addDatabase(String name,LUCICabinetMap<K,V> db){
+		if((name == null) || (db == null)){
+			throw new IllegalArgumentException("A named database needs a name and a database");
+		}
+		if(databases.putIfAbsent(name,db) != null){
+			throw new RuntimeException("There is already a database named "+name);
+		}
+	}
+	
+	/**
+	 * Stop serving a named database. Connections which have already selected it keep using it until they select another.
+	 * @param name The name the database was added with
+	 * @return The database which was served under the name, or null if there wasn't one
+	 */
+	public LUCICabinetMap<K,V> removeDatabase(String name){
+		return databases.remove(name);
+	}
+	
+	/**
+	 * @return The names of the databases added with addDatabase, in order
+	 */
+	public Set<String> getDatabaseNames(){
+		return new TreeSet<String>(databases.keySet());
+	}
+	
+	/**
+	 * Start answering HTTP requests on the loopback interface with the statistics for this butler service in the
+	 * OpenMetrics text format, so that they can be scraped by Prometheus. It is stopped by shutdown.
+	 * @param port The port to accept HTTP requests on
+	 */
+	public synchronized void startMetricsEndpoint(int port){
+		if(metrics != null){
+			throw new RuntimeException("The metrics endpoint is already started");
+		}
+		try {
+			metrics = new MetricsEndpoint(this,port,checker);
+		} catch (IOException e) {
+			getLog().log(Level.ERROR,"Could not listen for metrics on port:"+port,e);
+			throw new RuntimeException("Unable to start the metrics endpoint on port:"+port);
+		}
+		metrics.initialize();
+	}
+	
+	/**
+	 * A butler service which only serves named databases, see addDatabase. Clients have to select one before
+	 * anything else.
+	 * @param port The port to accept commands on
+	 * @param checker An object which tells us which connections are allowed. Examples are in the library package
+	 */
+	public LUCI_Butler(int port,AccessControl checker){
+		this(null,port,checker);
+	}
+	
+	/**
+	 * 
+	 * @param db The database to expose, which is the one clients use until they select a named database
 	 * @param port The port to accept commands on
 	 * @param checker An object which tells us which connections are allowed. Examples are in the library package
 	 */
 	public LUCI_Butler(LUCICabinetMap<K,V> db,int port,AccessControl checker){
+		this(db,port,checker,null);
+	}
+	
+	/**
+	 * 
+	 * @param db The database to expose, which is the one clients use until they select a named database
+	 * @param port The port to accept commands on
+	 * @param checker An object which tells us which connections are allowed. Examples are in the library package
+	 * @param limiter An object which tells us how much work each client may ask for, null for no limits. An example
+	 * is in the library package
+	 */
+	public LUCI_Butler(LUCICabinetMap<K,V> db,int port,AccessControl checker,RateLimiter limiter){
 		this.db = db;
 		this.checker = checker;
+		this.limiter = limiter;
 		try {
 		    serverSocket = new ServerSocket(port);
 		} catch (IOException e) {
@@ -81,30 +400,407 @@ public class LUCI_Butler<K extends Serializable,V extends Serializable> implemen
 		t.start();
 	}
 
+	/**
+	 * Writes the chunks of a scan to a client, waiting for the client to give credit before each one.
+	 */
+	private class ScanSender{
+		
+		private ObjectInputStream ois;
+		private ObjectOutputStream oos;
+		private int credit;
+		private boolean ended = false;
+		
+		ScanSender(ObjectInputStream ois,ObjectOutputStream oos,int window){
+			this.ois = ois;
+			this.oos = oos;
+			this.credit = window;
+		}
+
+		public boolean send(ScanChunk<K,V> chunk) {
+			while(credit <= 0){
+				try {
+					ServerCommands command = (ServerCommands) ois.readObject();
+					if(command.equals(ServerCommands.SCAN_CREDIT)){
+						credit += (Integer) ois.readObject();
+					}
+					else if(command.equals(ServerCommands.SCAN_END)){
+						ended = true;
+						return false;
+					}
+					else{
+						getLog().log(Level.ERROR, "Unexpected command sent to LUCI_Butler during a scan:"+command);
+						return false;
+					}
+				} catch (IOException e) {
+					getLog().log(Level.ERROR, "Unable to read scan credit from object input stream",e);
+					return false;
+				} catch (ClassNotFoundException e) {
+					getLog().log(Level.ERROR, "Unable to read scan credit from object input stream",e);
+					return false;
+				} catch(RuntimeException e){
+					getLog().log(Level.ERROR, "Unable to read scan credit from object input stream",e);
+					return false;
+				}
+			}
+			
+			try {
+				oos.writeObject(chunk);
+				oos.flush();
+				/* Don't hold on to every entry that has been sent */
+				oos.reset();
+			} catch (IOException e) {
+				getLog().log(Level.ERROR, "Unable to write a scan chunk to object output stream",e);
+				return false;
+			}
+			credit--;
+			return true;
+		}
+		
+		/**
+		 * Read anything the client still sends until it says the scan is over.  Closing a socket without reading
+		 * everything on it resets the connection, which could throw away the end of the scan before the client sees it.
+		 */
+		void waitForEnd(){
+			while(!ended){
+				try {
+					ServerCommands command = (ServerCommands) ois.readObject();
+					if(command.equals(ServerCommands.SCAN_CREDIT)){
+						ois.readObject();
+					}
+					else{
+						ended = true;
+					}
+				} catch (IOException e) {
+					ended = true;
+				} catch (ClassNotFoundException e) {
+					getLog().log(Level.ERROR, "Unable to read the end of a scan from object input stream",e);
+					ended = true;
+				} catch(RuntimeException e){
+					getLog().log(Level.ERROR, "Unable to read the end of a scan from object input stream",e);
+					ended = true;
+				}
+			}
+		}
+	}
+	
+	
 	/**
 	 * Class to handle requests to LUCI_Butler
 	 *
 	 */
-	private class Handler implements Runnable{
+	private class Handler implements Runnable, InProcess<K,V>{
+		
+		private Connection connection = null;
+		/* The fields below are also used by a client in the same JVM calling directly, on its own thread */
+		/* The near cache subscription that gets are tracked for on this connection */
+		private volatile Long subscriber = null;
+		/* The database this connection is using, which starts as the default one and is changed with USE */
+		private volatile LUCICabinetMap<K,V> db = LUCI_Butler.this.db;
+		/* Who the client says it is, for rate limits */
+		private volatile String clientId = null;
+		/* The two ends of the connection, while a client in the same JVM can find it */
+		private String pair = null;
+		private volatile boolean closed = false;
 		
-		private Socket clientSocket = null;
+		/**
+		 * @return who the rate limits of this connection are kept for
+		 */
+		private String rateKey(){
+			return (clientId != null) ? clientId : connection.getSource();
+		}
+		
+		/**
+		 * Take the rest of a command's cost out of the client's rate limit, once the size of the command is known
+		 */
+		private void charge(int cost){
+			RateLimiter l = limiter;
+			if((l != null) && (cost > 0)){
+				l.charge(rateKey(),cost);
+			}
+		}
 
-		public Handler(Socket clientSocket){
-			this.clientSocket = clientSocket;
+		public Handler(Connection connection){
+			this.connection = connection;
+		}
+		
+		/**
+		 * Tell the near caches that a key has been written
+		 */
+		private void invalidate(Object key){
+			if(tracker.hasSubscribers()){
+				tracker.invalidate(Serialization.serialize(key));
+			}
+		}
+
+		/**
+		 * Let in a command from a client in the same JVM, the way the command loop lets in one sent over the connection
+		 * @return the ticket for its lane, or null if it doesn't have one
+		 * @throws ServerBusyException if the rate limit or the lane turned it away
+		 */
+		private CommandScheduler.Ticket enter(ServerCommands command){
+			if(closed){
+				throw new RuntimeException("The connection from "+connection.getSource()+" is closed");
+			}
+			stats.commandStarted();
+			
+			boolean busy = false;
+			CommandScheduler.Ticket ticket = null;
+			RateLimiter l = limiter;
+			Lane lane = CommandScheduler.laneOf(command);
+			if((l != null) && isRateLimited(command) && !l.admit(rateKey(),1)){
+				busy = true;
+			}
+			else if(lane != null){
+				try {
+					ticket = scheduler.enter(lane);
+					busy = (ticket == null);
+				} catch (InterruptedException e) {
+					Thread.currentThread().interrupt();
+					stats.commandFinished(command,0,true);
+					throw new RuntimeException("Interrupted while waiting to run "+command,e);
+				}
+			}
+			if(busy){
+				stats.commandRejected(command);
+				throw new ServerBusyException("LUCI_Butler is too busy to run "+command);
+			}
+			return ticket;
+		}
+		
+		/**
+		 * Finish a command from a client in the same JVM
+		 */
+		private void leave(ServerCommands command,CommandScheduler.Ticket ticket,long start,boolean failed){
+			if(ticket != null){
+				scheduler.leave(ticket);
+			}
+			stats.commandFinished(command,System.nanoTime()-start,failed);
+		}
+		
+		/**
+		 * @return the database the connection is using
+		 */
+		private LUCICabinetMap<K,V> selected(ServerCommands command){
+			LUCICabinetMap<K,V> d = db;
+			if(d == null){
+				throw new RuntimeException("No database selected for "+command);
+			}
+			return d;
+		}
+		
+		public byte[] getRaw(byte[] key){
+			long start = System.nanoTime();
+			CommandScheduler.Ticket ticket = enter(ServerCommands.GET_RAW);
+			boolean failed = true;
+			try{
+				Long s = subscriber;
+				if(s != null){
+					tracker.track(s,key);
+				}
+				byte[] value = selected(ServerCommands.GET_RAW).getRaw(key);
+				failed = false;
+				return value;
+			}
+			finally{
+				leave(ServerCommands.GET_RAW,ticket,start,failed);
+			}
+		}
+		
+		public byte[] putRaw(byte[] key,byte[] value){
+			long start = System.nanoTime();
+			CommandScheduler.Ticket ticket = enter(ServerCommands.PUT_RAW);
+			boolean failed = true;
+			try{
+				byte[] thing = selected(ServerCommands.PUT_RAW).putRaw(key,value);
+				failed = false;
+				return thing;
+			}
+			finally{
+				tracker.invalidate(key);
+				leave(ServerCommands.PUT_RAW,ticket,start,failed);
+			}
+		}
+		
+		public byte[] removeRaw(byte[] key){
+			long start = System.nanoTime();
+			CommandScheduler.Ticket ticket = enter(ServerCommands.REMOVE_RAW);
+			boolean failed = true;
+			try{
+				byte[] thing = selected(ServerCommands.REMOVE_RAW).removeRaw(key);
+				failed = false;
+				return thing;
+			}
+			finally{
+				tracker.invalidate(key);
+				leave(ServerCommands.REMOVE_RAW,ticket,start,failed);
+			}
+		}
+		
+		public void apply(WriteBatch<K,V> batch){
+			long start = System.nanoTime();
+			CommandScheduler.Ticket ticket = enter(ServerCommands.BATCH);
+			boolean failed = true;
+			try{
+				charge(batch.size()-1);
+				selected(ServerCommands.BATCH).apply(batch);
+				failed = false;
+			}
+			finally{
+				for(WriteBatch.Operation<K,V> op:batch.getOperations()){
+					invalidate(op.key);
+				}
+				leave(ServerCommands.BATCH,ticket,start,failed);
+			}
+		}
+		
+		public Map<K,V> getAll(ArrayList<K> keys){
+			long start = System.nanoTime();
+			CommandScheduler.Ticket ticket = enter(ServerCommands.MULTI_GET);
+			boolean failed = true;
+			try{
+				charge(keys.size()-1);
+				Map<K,V> values = new HashMap<K,V>(selected(ServerCommands.MULTI_GET).getAll(keys));
+				failed = false;
+				return values;
+			}
+			finally{
+				leave(ServerCommands.MULTI_GET,ticket,start,failed);
+			}
+		}
+		
+		public SortedMap<K,V> getRange(K from,boolean fromInclusive,K to,int max){
+			long start = System.nanoTime();
+			CommandScheduler.Ticket ticket = enter(ServerCommands.RANGE);
+			boolean failed = true;
+			try{
+				SortedMap<K,V> values = new TreeMap<K,V>(selected(ServerCommands.RANGE).getRange(from,fromInclusive,to,max));
+				charge(values.size()-1);
+				failed = false;
+				return values;
+			}
+			finally{
+				leave(ServerCommands.RANGE,ticket,start,failed);
+			}
+		}
+		
+		public Change<V> update(K key,Remapper<? super K,V> remapper){
+			long start = System.nanoTime();
+			CommandScheduler.Ticket ticket = enter(ServerCommands.UPDATE);
+			boolean failed = true;
+			try{
+				Change<V> change = selected(ServerCommands.UPDATE).update(key,remapper);
+				failed = false;
+				if(change.isChanged()){
+					invalidate(key);
+				}
+				return change;
+			}
+			finally{
+				leave(ServerCommands.UPDATE,ticket,start,failed);
+			}
+		}
+		
+		public void putAll(HashMap<K,V> entries){
+			long start = System.nanoTime();
+			CommandScheduler.Ticket ticket = enter(ServerCommands.MULTI_PUT);
+			boolean failed = true;
+			try{
+				charge(entries.size()-1);
+				selected(ServerCommands.MULTI_PUT).putAll(entries);
+				failed = false;
+			}
+			finally{
+				for(K key:entries.keySet()){
+					invalidate(key);
+				}
+				leave(ServerCommands.MULTI_PUT,ticket,start,failed);
+			}
+		}
+		
+		public Long sizeLong(){
+			long start = System.nanoTime();
+			CommandScheduler.Ticket ticket = enter(ServerCommands.SIZE);
+			boolean failed = true;
+			try{
+				Long size = selected(ServerCommands.SIZE).sizeLong();
+				failed = false;
+				return size;
+			}
+			finally{
+				leave(ServerCommands.SIZE,ticket,start,failed);
+			}
+		}
+		
+		public void clear(){
+			long start = System.nanoTime();
+			CommandScheduler.Ticket ticket = enter(ServerCommands.CLEAR);
+			boolean failed = true;
+			try{
+				selected(ServerCommands.CLEAR).clear();
+				failed = false;
+			}
+			finally{
+				tracker.invalidateAll();
+				leave(ServerCommands.CLEAR,ticket,start,failed);
+			}
+		}
+		
+		public Boolean use(String name){
+			long start = System.nanoTime();
+			CommandScheduler.Ticket ticket = enter(ServerCommands.USE);
+			boolean failed = true;
+			try{
+				LUCICabinetMap<K,V> selected = (name == null) ? LUCI_Butler.this.db : databases.get(name);
+				if(selected == null){
+					throw new RuntimeException((name == null) ? "There is no default database" : "There is no database named "+name);
+				}
+				db = selected;
+				failed = false;
+				return db.getOptimize();
+			}
+			finally{
+				leave(ServerCommands.USE,ticket,start,failed);
+			}
+		}
+		
+		public void identify(String id){
+			long start = System.nanoTime();
+			CommandScheduler.Ticket ticket = enter(ServerCommands.IDENTIFY);
+			clientId = id;
+			leave(ServerCommands.IDENTIFY,ticket,start,false);
 		}
 
 		@SuppressWarnings("unchecked")
 		public void run() {
 			boolean done = false;
+			boolean counted = false;
+			CommandScheduler.Ticket ticket = null;
 			ObjectInputStream ois = null;
 			ObjectOutputStream oos = null;
 			
 			try{
-				String source = clientSocket.getInetAddress().toString();
-				if(checker.allowSource(source)){
+				String source = connection.getSource();
+				/* Anyone who can open the file of a Unix domain socket is allowed */
+				if(connection.isUnix() || checker.allowSource(source)){
+					stats.connectionOpened();
+					counted = true;
+					
+					/* A client in the same JVM finds this end of the connection once it has heard hello */
+					pair = Connection.pair(connection.getRemoteAddress(),connection.getLocalAddress());
+					if(pair != null){
+						inProcess.put(pair,this);
+					}
+					
+					/* Responses are flushed explicitly once per command, so don't let Nagle hold them back */
+					try {
+						connection.setNoDelay();
+					} catch (SocketException e) {
+						getLog().log(Level.ERROR, "Unable to disable Nagle's algorithm on a client socket",e);
+					}
+					
 					/* Get the object input stream */
 					try {
-						ois = new ObjectInputStream(clientSocket.getInputStream());
+						ois = new ObjectInputStream(stats.countIn(connection.getInputStream()));
 					} catch (IOException e) {
 						getLog().log(Level.ERROR, "Unable to create object input stream",e);
 						return;
@@ -112,14 +808,14 @@ public class LUCI_Butler<K extends Serializable,V extends Serializable> implemen
 				
 					/* Get the object output stream */
 					try {
-						oos = new ObjectOutputStream(clientSocket.getOutputStream());
+						oos = new ObjectOutputStream(stats.countOut(connection.getOutputStream()));
 					} catch (IOException e) {
 						getLog().log(Level.ERROR, "Unable to create object output stream",e);
 						return;
 					}
 					
 					try {
-						if(db.getOptimize()){
+						if((db != null) && db.getOptimize()){
 							oos.writeObject(ServerResponse.CONNECTION_OKAY_OPTIMIZE);
 						}
 						else{
@@ -140,89 +836,427 @@ public class LUCI_Butler<K extends Serializable,V extends Serializable> implemen
 						} catch (IOException e) {
 							getLog().log(Level.ERROR, "Unable to read a command from object input stream",e);
 							response += e;
+							done = true;
 						} catch (ClassNotFoundException e) {
 							getLog().log(Level.ERROR, "Unable to read a command from object input stream",e);
 							response += e;
+							done = true;
 						}
 					
 						/*Process the command */
+						ScanSender scanSender = null;
 						if(command != null){
-							if(command.equals(LUCI_Butler.ServerCommands.REMOVE)){
+							long start = System.nanoTime();
+							stats.commandStarted();
+							
+							boolean busy = false;
+							RateLimiter l = limiter;
+							Lane lane = CommandScheduler.laneOf(command);
+							if((l != null) && isRateLimited(command) && !l.admit(rateKey(),1)){
+								busy = true;
+							}
+							else if(lane != null){
+								try {
+									ticket = scheduler.enter(lane);
+									busy = (ticket == null);
+								} catch (InterruptedException e) {
+									getLog().log(Level.ERROR, "Interrupted while waiting to run "+command,e);
+									response += e.toString();
+								}
+							}
+							
+							if(busy){
+								/* Skip the parameters so that the connection can carry on after the busy response */
+								for(int i = 0; i < parameters(command); i++){
+									try {
+										ois.readObject();
+									} catch (IOException e) {
+										getLog().log(Level.ERROR, "Unable to skip the parameters of "+command,e);
+										response += e.toString();
+									} catch (ClassNotFoundException e) {
+										getLog().log(Level.ERROR, "Unable to skip the parameters of "+command,e);
+										response += e.toString();
+									}
+								}
+							}
+							else if(!response.equals("")){
+								/* The command was never let in, its parameters are left unread since failing closes the connection */
+							}
+							else if((db == null) && !command.equals(LUCI_Butler.ServerCommands.USE) &&
+									!command.equals(LUCI_Butler.ServerCommands.CLOSE) &&
+									!command.equals(LUCI_Butler.ServerCommands.SUBSCRIBE) &&
+									!command.equals(LUCI_Butler.ServerCommands.STATS) &&
+									!command.equals(LUCI_Butler.ServerCommands.IDENTIFY) &&
+									!command.equals(LUCI_Butler.ServerCommands.ITERATE_CANCEL)){
+								/* The parameters are left unread, failing closes the connection anyway */
+								getLog().log(Level.ERROR, "No database selected for "+command);
+								response += "No database selected for "+command;
+							}
+							else if(command.equals(LUCI_Butler.ServerCommands.REMOVE)){
 								Serializable key= null;
 								try {
-									key  = (K) ois.readObject();
+									key  = (K) ois.readObject();
+								} catch (IOException e) {
+									getLog().log(Level.ERROR, "Unable to read the key to remove from object input stream",e);
+									response += e.toString();
+								} catch (ClassNotFoundException e) {
+									getLog().log(Level.ERROR, "Unable to read the key to remove from object input stream",e);
+									response += e.toString();
+								}
+					
+								if(key != null){
+									/*Execute remove */
+									V thing = null;
+									try{
+										thing = db.remove(key);
+									}
+									catch(RuntimeException e){
+										getLog().log(Level.ERROR, "Unable to read the remove object from database",e);
+										response += e.toString();
+									}
+									invalidate(key);
+
+									if(!db.getOptimize()){
+										try {
+											oos.writeObject(thing);
+										} catch (IOException e) {
+											getLog().log(Level.ERROR, "Unable to write a result to object output stream",e);
+											response += e.toString();
+										}
+									}
+								}
+							}
+							else if(command.equals(LUCI_Butler.ServerCommands.PUT)){
+								K key= null;
+								try {
+									key  =  (K) ois.readObject();
+								} catch (IOException e) {
+									getLog().log(Level.ERROR, "Unable to read the key to put from object input stream",e);
+									response += e.toString();
+								} catch (ClassNotFoundException e) {
+									getLog().log(Level.ERROR, "Unable to read the key to put from object input stream",e);
+									response += e.toString();
+								}
+					
+								V value = null;
+								try {
+									value = (V) ois.readObject();
+								} catch (IOException e) {
+									getLog().log(Level.ERROR, "Unable to read the value to put from object input stream",e);
+									response += e.toString();
+								} catch (ClassNotFoundException e) {
+									getLog().log(Level.ERROR, "Unable to read the value to put from object input stream",e);
+									response += e.toString();
+								}
+				
+								/*Execute put */
+								V thing = null;
+
+								try{
+									thing = db.put(key,value);
+								}
+								catch(RuntimeException e){
+									getLog().log(Level.ERROR, "Unable to put key-value pair into database",e);
+									response += e.toString();
+								}
+								invalidate(key);
+								
+								if(!db.getOptimize()){
+									try {
+										oos.writeObject(thing);
+									} catch (IOException e) {
+										getLog().log(Level.ERROR, "Unable to write a result to object output stream",e);
+										response += e.toString();
+									}
+								}
+								
+							}
+							else if(command.equals(LUCI_Butler.ServerCommands.BATCH)){
+								WriteBatch<K,V> batch = null;
+								try {
+									batch = (WriteBatch<K,V>) ois.readObject();
+								} catch (IOException e) {
+									getLog().log(Level.ERROR, "Unable to read a batch from object input stream",e);
+									response += e.toString();
+								} catch (ClassNotFoundException e) {
+									getLog().log(Level.ERROR, "Unable to read a batch from object input stream",e);
+									response += e.toString();
+								} catch(RuntimeException e){
+									getLog().log(Level.ERROR, "Unable to read a batch from object input stream",e);
+									response += e.toString();
+								}
+								
+								/*Execute the whole batch at once */
+								if(batch != null){
+									charge(batch.size()-1);
+									try{
+										db.apply(batch);
+									}
+									catch(RuntimeException e){
+										getLog().log(Level.ERROR, "Unable to apply a batch to the database",e);
+										response += e.toString();
+									}
+									for(WriteBatch.Operation<K,V> op:batch.getOperations()){
+										invalidate(op.key);
+									}
+								}
+							}
+							else if(command.equals(LUCI_Butler.ServerCommands.GET_RAW)){
+								byte[] key = null;
+								try {
+									key = (byte[]) ois.readObject();
+								} catch (IOException e) {
+									getLog().log(Level.ERROR, "Unable to read a key to get from object input stream",e);
+									response += e.toString();
+								} catch (ClassNotFoundException e) {
+									getLog().log(Level.ERROR, "Unable to read a key to get from object input stream",e);
+									response += e.toString();
+								} catch(RuntimeException e){
+									getLog().log(Level.ERROR, "Unable to read a key to get from object input stream",e);
+									response += e.toString();
+								}
+								
+								/*Execute get, the stored bytes go straight back out */
+								byte[] value = null;
+								if(key != null){
+									try{
+										if(subscriber != null){
+											tracker.track(subscriber,key);
+										}
+										value = db.getRaw(key);
+									}
+									catch(RuntimeException e){
+										getLog().log(Level.ERROR, "Unable to get a key from the database",e);
+										response += e.toString();
+									}
+								}
+								try {
+									oos.writeObject(value);
+								} catch (IOException e) {
+									getLog().log(Level.ERROR, "Unable to write a result to object output stream",e);
+									response += e.toString();
+								}
+							}
+							else if(command.equals(LUCI_Butler.ServerCommands.PUT_RAW)){
+								byte[] key = null;
+								byte[] value = null;
+								try {
+									key = (byte[]) ois.readObject();
+									value = (byte[]) ois.readObject();
+								} catch (IOException e) {
+									getLog().log(Level.ERROR, "Unable to read the key-value pair to put from object input stream",e);
+									response += e.toString();
+								} catch (ClassNotFoundException e) {
+									getLog().log(Level.ERROR, "Unable to read the key-value pair to put from object input stream",e);
+									response += e.toString();
+								} catch(RuntimeException e){
+									getLog().log(Level.ERROR, "Unable to read the key-value pair to put from object input stream",e);
+									response += e.toString();
+								}
+								
+								/*Execute put */
+								byte[] thing = null;
+								if((key != null) && (value != null)){
+									try{
+										thing = db.putRaw(key,value);
+									}
+									catch(RuntimeException e){
+										getLog().log(Level.ERROR, "Unable to put key-value pair into database",e);
+										response += e.toString();
+									}
+									tracker.invalidate(key);
+								}
+								
+								if(!db.getOptimize()){
+									try {
+										oos.writeObject(thing);
+									} catch (IOException e) {
+										getLog().log(Level.ERROR, "Unable to write a result to object output stream",e);
+										response += e.toString();
+									}
+								}
+							}
+							else if(command.equals(LUCI_Butler.ServerCommands.REMOVE_RAW)){
+								byte[] key = null;
+								try {
+									key = (byte[]) ois.readObject();
 								} catch (IOException e) {
 									getLog().log(Level.ERROR, "Unable to read the key to remove from object input stream",e);
 									response += e.toString();
 								} catch (ClassNotFoundException e) {
 									getLog().log(Level.ERROR, "Unable to read the key to remove from object input stream",e);
 									response += e.toString();
+								} catch(RuntimeException e){
+									getLog().log(Level.ERROR, "Unable to read the key to remove from object input stream",e);
+									response += e.toString();
 								}
-					
+								
+								/*Execute remove */
+								byte[] thing = null;
 								if(key != null){
-									/*Execute remove */
-									V thing = null;
 									try{
-										thing = db.remove(key);
+										thing = db.removeRaw(key);
 									}
 									catch(RuntimeException e){
-										getLog().log(Level.ERROR, "Unable to read the remove object from database",e);
+										getLog().log(Level.ERROR, "Unable to remove a key from the database",e);
 										response += e.toString();
 									}
-
-									if(!db.getOptimize()){
-										try {
-											oos.writeObject(thing);
-										} catch (IOException e) {
-											getLog().log(Level.ERROR, "Unable to write a result to object output stream",e);
-											response += e.toString();
-										}
+									tracker.invalidate(key);
+								}
+								
+								if(!db.getOptimize()){
+									try {
+										oos.writeObject(thing);
+									} catch (IOException e) {
+										getLog().log(Level.ERROR, "Unable to write a result to object output stream",e);
+										response += e.toString();
 									}
 								}
 							}
-							else if(command.equals(LUCI_Butler.ServerCommands.PUT)){
-								K key= null;
+							else if(command.equals(LUCI_Butler.ServerCommands.MULTI_GET)){
+								ArrayList<K> keys = null;
 								try {
-									key  =  (K) ois.readObject();
+									keys = (ArrayList<K>) ois.readObject();
 								} catch (IOException e) {
-									getLog().log(Level.ERROR, "Unable to read the key to put from object input stream",e);
+									getLog().log(Level.ERROR, "Unable to read keys to get from object input stream",e);
 									response += e.toString();
 								} catch (ClassNotFoundException e) {
-									getLog().log(Level.ERROR, "Unable to read the key to put from object input stream",e);
+									getLog().log(Level.ERROR, "Unable to read keys to get from object input stream",e);
+									response += e.toString();
+								} catch(RuntimeException e){
+									getLog().log(Level.ERROR, "Unable to read keys to get from object input stream",e);
 									response += e.toString();
 								}
-					
-								V value = null;
+								
+								/*Execute all the gets at once */
+								if(keys != null){
+									charge(keys.size()-1);
+									HashMap<K,V> values = null;
+									try{
+										values = new HashMap<K,V>(db.getAll(keys));
+									}
+									catch(RuntimeException e){
+										getLog().log(Level.ERROR, "Unable to get many keys from the database",e);
+										response += e.toString();
+									}
+									
+									try {
+										oos.writeObject(values);
+									} catch (IOException e) {
+										getLog().log(Level.ERROR, "Unable to write a result to object output stream",e);
+										response += e.toString();
+									}
+								}
+							}
+							else if(command.equals(LUCI_Butler.ServerCommands.RANGE)){
+								K from = null;
+								Boolean fromInclusive = null;
+								K to = null;
+								Integer max = null;
 								try {
-									value = (V) ois.readObject();
+									from = (K) ois.readObject();
+									fromInclusive = (Boolean) ois.readObject();
+									to = (K) ois.readObject();
+									max = (Integer) ois.readObject();
 								} catch (IOException e) {
-									getLog().log(Level.ERROR, "Unable to read the value to put from object input stream",e);
+									getLog().log(Level.ERROR, "Unable to read a range to get from object input stream",e);
 									response += e.toString();
 								} catch (ClassNotFoundException e) {
-									getLog().log(Level.ERROR, "Unable to read the value to put from object input stream",e);
+									getLog().log(Level.ERROR, "Unable to read a range to get from object input stream",e);
+									response += e.toString();
+								} catch(RuntimeException e){
+									getLog().log(Level.ERROR, "Unable to read a range to get from object input stream",e);
 									response += e.toString();
 								}
-				
-								/*Execute put */
-								V thing = null;
-
-								try{
-									thing = db.put(key,value);
+								
+								/*Execute the range read, answered in key order */
+								if((fromInclusive != null) && (max != null)){
+									TreeMap<K,V> values = null;
+									try{
+										values = new TreeMap<K,V>(db.getRange(from,fromInclusive,to,max));
+										charge(values.size()-1);
+									}
+									catch(RuntimeException e){
+										getLog().log(Level.ERROR, "Unable to get a range of keys from the database",e);
+										response += e.toString();
+									}
+									
+									try {
+										oos.writeObject(values);
+									} catch (IOException e) {
+										getLog().log(Level.ERROR, "Unable to write a result to object output stream",e);
+										response += e.toString();
+									}
 								}
-								catch(RuntimeException e){
-									getLog().log(Level.ERROR, "Unable to put key-value pair into database",e);
+							}
+							else if(command.equals(LUCI_Butler.ServerCommands.UPDATE)){
+								K key = null;
+								Remapper<? super K,V> remapper = null;
+								try {
+									key = (K) ois.readObject();
+									remapper = (Remapper<? super K,V>) ois.readObject();
+								} catch (IOException e) {
+									getLog().log(Level.ERROR, "Unable to read a key and Remapper from object input stream",e);
+									response += e.toString();
+								} catch (ClassNotFoundException e) {
+									getLog().log(Level.ERROR, "Unable to read a key and Remapper from object input stream",e);
+									response += e.toString();
+								} catch(RuntimeException e){
+									getLog().log(Level.ERROR, "Unable to read a key and Remapper from object input stream",e);
 									response += e.toString();
 								}
 								
-								if(!db.getOptimize()){
+								/*Execute the update, whose change is always sent back */
+								if(remapper != null){
+									Change<V> change = null;
+									try{
+										change = db.update(key,remapper);
+									}
+									catch(RuntimeException e){
+										getLog().log(Level.ERROR, "Unable to update a key in the database",e);
+										response += e.toString();
+									}
+									if((change != null) && change.isChanged()){
+										invalidate(key);
+									}
+									
 									try {
-										oos.writeObject(thing);
+										oos.writeObject(change);
 									} catch (IOException e) {
 										getLog().log(Level.ERROR, "Unable to write a result to object output stream",e);
 										response += e.toString();
 									}
 								}
+							}
+							else if(command.equals(LUCI_Butler.ServerCommands.MULTI_PUT)){
+								HashMap<K,V> entries = null;
+								try {
+									entries = (HashMap<K,V>) ois.readObject();
+								} catch (IOException e) {
+									getLog().log(Level.ERROR, "Unable to read entries to put from object input stream",e);
+									response += e.toString();
+								} catch (ClassNotFoundException e) {
+									getLog().log(Level.ERROR, "Unable to read entries to put from object input stream",e);
+									response += e.toString();
+								} catch(RuntimeException e){
+									getLog().log(Level.ERROR, "Unable to read entries to put from object input stream",e);
+									response += e.toString();
+								}
 								
+								/*Execute all the puts at once */
+								if(entries != null){
+									charge(entries.size()-1);
+									try{
+										db.putAll(entries);
+									}
+									catch(RuntimeException e){
+										getLog().log(Level.ERROR, "Unable to put many key-value pairs into database",e);
+										response += e.toString();
+									}
+									for(K key:entries.keySet()){
+										invalidate(key);
+									}
+								}
 							}
 							else if(command.equals(LUCI_Butler.ServerCommands.GET)){
 								Serializable key= null;
@@ -277,9 +1311,32 @@ public class LUCI_Butler<K extends Serializable,V extends Serializable> implemen
 									response += e.toString();
 								}
 								
+								String id = null;
+								try {
+									id  = (String) ois.readObject();
+								} catch (IOException e) {
+									getLog().log(Level.ERROR, "Unable to read an iteration id from object input stream",e);
+									response += e.toString();
+								} catch (ClassNotFoundException e) {
+									getLog().log(Level.ERROR, "Unable to read an iteration id from object input stream",e);
+									response += e.toString();
+								} catch(RuntimeException e){
+									getLog().log(Level.ERROR, "Unable to read an iteration id from object input stream",e);
+									response += e.toString();
+								}
+								
+								/* An iteration with an id is one piece of an iteration over several databases */
+								StopSignal stop = new StopSignal();
+								if(id != null){
+									iterations.put(id,stop);
+									if(earlyCancels.remove(id) != null){
+										stop.stop();
+									}
+								}
+								
 								IteratorWorker iw = null;
 								try{
-									iw = db.iterate((Class<? extends IteratorWorker<K, V>>) iwClass,iwConfig);
+									iw = db.iterate((Class<? extends IteratorWorker<K, V>>) iwClass,iwConfig,stop);
 								} catch (InstantiationException e) {
 									getLog().log(Level.ERROR, "Unable to iterate on a database",e);
 									response += e.toString();
@@ -291,14 +1348,99 @@ public class LUCI_Butler<K extends Serializable,V extends Serializable> implemen
 									getLog().log(Level.ERROR, "Unable to iterate on a database",e);
 									response += e.toString();
 								}
+								finally{
+									if(id != null){
+										iterations.remove(id);
+									}
+								}
+								/* An IteratorWorker can write anything in initialize and shutdown */
+								tracker.invalidateAll();
 
 								try {
 									oos.writeObject(iw);
+									/* Whether the other pieces of the iteration should stop too */
+									if(id != null){
+										oos.writeObject(Boolean.valueOf(stop.isStopped()));
+									}
 								} catch (IOException e) {
 									getLog().log(Level.ERROR, "Unable to write a result to object output stream",e);
 									response += e.toString();
 								}
 							}
+							else if(command.equals(LUCI_Butler.ServerCommands.ITERATE_CANCEL)){
+								try {
+									String id = (String) ois.readObject();
+									StopSignal stop = iterations.get(id);
+									if(stop != null){
+										stop.stop();
+									}
+									else{
+										cancelEarly(id);
+									}
+								} catch (IOException e) {
+									getLog().log(Level.ERROR, "Unable to read an iteration id from object input stream",e);
+									response += e.toString();
+								} catch (ClassNotFoundException e) {
+									getLog().log(Level.ERROR, "Unable to read an iteration id from object input stream",e);
+									response += e.toString();
+								} catch(RuntimeException e){
+									getLog().log(Level.ERROR, "Unable to read an iteration id from object input stream",e);
+									response += e.toString();
+								}
+							}
+							else if(command.equals(LUCI_Butler.ServerCommands.SCAN)){
+								ScanCursor from = null;
+								Integer chunkSize = null;
+								Integer window = null;
+								try {
+									from = (ScanCursor) ois.readObject();
+									chunkSize = (Integer) ois.readObject();
+									window = (Integer) ois.readObject();
+								} catch (IOException e) {
+									getLog().log(Level.ERROR, "Unable to read scan parameters from object input stream",e);
+									response += e.toString();
+								} catch (ClassNotFoundException e) {
+									getLog().log(Level.ERROR, "Unable to read scan parameters from object input stream",e);
+									response += e.toString();
+								} catch(RuntimeException e){
+									getLog().log(Level.ERROR, "Unable to read scan parameters from object input stream",e);
+									response += e.toString();
+								}
+								
+								if((chunkSize != null) && (chunkSize < 1)){
+									response += "Scan chunk size must be at least 1:"+chunkSize;
+								}
+								else if((chunkSize != null) && (window != null)){
+									/* A client that stops asking for more would otherwise tie up this connection forever. Over a
+									 * Unix domain socket the client is on this host and the scan ends when it goes away. */
+									try {
+										connection.setReadTimeout(SCAN_CREDIT_TIMEOUT);
+									} catch (SocketException e) {
+										getLog().log(Level.ERROR, "Unable to set a timeout on a client socket",e);
+									}
+									
+									/* Each chunk is collected under the database's lock and sent after the lock is let go, so
+									 * waiting for credit doesn't hold up writers. The next chunk picks up after the last key. */
+									scanSender = new ScanSender(ois,oos,window);
+									try{
+										ScanCursor cursor = from;
+										ScanChunk<K,V> chunk;
+										do{
+											chunk = db.scanChunk(cursor,chunkSize);
+											if(chunk.size() > 0){
+												cursor = new ScanCursor(chunk.position+chunk.size(),chunk.keys.get(chunk.size()-1));
+											}
+										}while(scanSender.send(chunk) && !chunk.last);
+									}
+									catch(RuntimeException e){
+										getLog().log(Level.ERROR, "Unable to scan a database",e);
+										response += e.toString();
+									}
+								}
+								
+								/* A scan uses up the rest of the connection */
+								done = true;
+							}
 							else if(command.equals(LUCI_Butler.ServerCommands.CLOSE)){
 								done = true;
 							}
@@ -312,8 +1454,116 @@ public class LUCI_Butler<K extends Serializable,V extends Serializable> implemen
 									response += e.toString();
 								}
 							}
+							else if(command.equals(LUCI_Butler.ServerCommands.STATS)){
+								LUCI_ButlerStats ret = null;
+								try{
+									ret = getStats();
+								}
+								catch(RuntimeException e){
+									getLog().log(Level.ERROR, "Unable to gather statistics",e);
+									response += e.toString();
+								}
+								
+								try {
+									oos.writeObject(ret);
+								} catch (IOException e) {
+									getLog().log(Level.ERROR, "Unable to write a result to object output stream",e);
+									response += e.toString();
+								}
+							}
 							else if(command.equals(LUCI_Butler.ServerCommands.CLEAR)){
 								db.clear();
+								tracker.invalidateAll();
+							}
+							else if(command.equals(LUCI_Butler.ServerCommands.TRACK)){
+								try {
+									subscriber = (Long) ois.readObject();
+								} catch (IOException e) {
+									getLog().log(Level.ERROR, "Unable to read a subscription from object input stream",e);
+									response += e.toString();
+								} catch (ClassNotFoundException e) {
+									getLog().log(Level.ERROR, "Unable to read a subscription from object input stream",e);
+									response += e.toString();
+								} catch(RuntimeException e){
+									getLog().log(Level.ERROR, "Unable to read a subscription from object input stream",e);
+									response += e.toString();
+								}
+							}
+							else if(command.equals(LUCI_Butler.ServerCommands.SUBSCRIBE)){
+								long id = tracker.subscribe();
+								/* Only the subscribing is timed, the connection is then left to push invalidations */
+								stats.commandFinished(command,System.nanoTime()-start,false);
+								try{
+									oos.writeObject(Long.valueOf(id));
+									oos.flush();
+									
+									/* Push invalidations until the client goes away */
+									boolean subscribed = true;
+									while(subscribed && !shuttingDown){
+										Object next = tracker.next(id,1000);
+										if(next == InvalidationTracker.END){
+											subscribed = false;
+										}
+										else if(next != null){
+											oos.writeObject(next);
+											oos.flush();
+											oos.reset();
+										}
+									}
+								} catch (IOException e) {
+									/* The client closed the connection */
+								} catch (InterruptedException e) {
+									getLog().log(Level.ERROR, "Interrupted while waiting for invalidations",e);
+								}
+								finally{
+									tracker.unsubscribe(id);
+								}
+								/* The subscription uses up the connection, nobody is waiting for a response */
+								return;
+							}
+							else if(command.equals(LUCI_Butler.ServerCommands.USE)){
+								Boolean ret = null;
+								try {
+									String name = (String) ois.readObject();
+									LUCICabinetMap<K,V> selected = (name == null) ? LUCI_Butler.this.db : databases.get(name);
+									if(selected == null){
+										response += (name == null) ? "There is no default database" : "There is no database named "+name;
+									}
+									else{
+										db = selected;
+										ret = db.getOptimize();
+									}
+								} catch (IOException e) {
+									getLog().log(Level.ERROR, "Unable to read a database name from object input stream",e);
+									response += e.toString();
+								} catch (ClassNotFoundException e) {
+									getLog().log(Level.ERROR, "Unable to read a database name from object input stream",e);
+									response += e.toString();
+								} catch(RuntimeException e){
+									getLog().log(Level.ERROR, "Unable to read a database name from object input stream",e);
+									response += e.toString();
+								}
+								
+								try {
+									oos.writeObject(ret);
+								} catch (IOException e) {
+									getLog().log(Level.ERROR, "Unable to write a result to object output stream",e);
+									response += e.toString();
+								}
+							}
+							else if(command.equals(LUCI_Butler.ServerCommands.IDENTIFY)){
+								try {
+									clientId = (String) ois.readObject();
+								} catch (IOException e) {
+									getLog().log(Level.ERROR, "Unable to read a client id from object input stream",e);
+									response += e.toString();
+								} catch (ClassNotFoundException e) {
+									getLog().log(Level.ERROR, "Unable to read a client id from object input stream",e);
+									response += e.toString();
+								} catch(RuntimeException e){
+									getLog().log(Level.ERROR, "Unable to read a client id from object input stream",e);
+									response += e.toString();
+								}
 							}
 							else if(command.equals(LUCI_Butler.ServerCommands.SET_OPTIMIZE)){
 								try {
@@ -335,39 +1585,74 @@ public class LUCI_Butler<K extends Serializable,V extends Serializable> implemen
 								getLog().log(Level.ERROR, "Unknown command sent to LUCI_Butler:"+command);
 							}
 							
+							/* Counted before the client hears about it, so the count is there when it asks */
+							if(busy && response.equals("")){
+								stats.commandRejected(command);
+							}
+							else{
+								stats.commandFinished(command,System.nanoTime()-start,!response.equals(""));
+							}
+							
 							/* Return result */
-							if(response.equals("")){
+							if(busy && response.equals("")){
 								try{
-									oos.writeObject(ServerResponse.COMMAND_SUCCESSFUL);
+									oos.writeObject(ServerResponse.BUSY);
 									oos.flush();
 								} catch (IOException e) {
 									getLog().log(Level.ERROR, "Unable to write a result to object output stream",e);
-									return;
+									done = true;
+								}
+								/* The client gives up on a scan that is turned away */
+								if(command.equals(LUCI_Butler.ServerCommands.SCAN)){
+									done = true;
 								}
 							}
-							else{
+							else if(response.equals("")){
 								try{
-									oos.writeObject(ServerResponse.COMMAND_FAILED);
+									oos.writeObject(ServerResponse.COMMAND_SUCCESSFUL);
 									oos.flush();
 								} catch (IOException e) {
 									getLog().log(Level.ERROR, "Unable to write a result to object output stream",e);
-									return;
+									done = true;
 								}
-						
-								try {
+							}
+							else{
+								try{
+									oos.writeObject(ServerResponse.COMMAND_FAILED);
+									oos.flush();
 									oos.writeObject(response);
 								} catch (IOException e) {
 									getLog().log(Level.ERROR, "Unable to write a result to object output stream",e);
-									return;
 								}
 								
 								done = true;
 							}
+							if(ticket != null){
+								scheduler.leave(ticket);
+								ticket = null;
+							}
+							
+							if(scanSender != null){
+								scanSender.waitForEnd();
+							}
 						}
 					}
 				}
 			}
 			finally{
+				closed = true;
+				if(pair != null){
+					inProcess.remove(pair,this);
+				}
+				if(ticket != null){
+					scheduler.leave(ticket);
+				}
+				if(counted){
+					stats.connectionClosed();
+				}
+				if(subscriber != null){
+					tracker.unsubscribe(subscriber);
+				}
 				if(oos != null){
 					try {
 						oos.close();
@@ -382,9 +1667,9 @@ public class LUCI_Butler<K extends Serializable,V extends Serializable> implemen
 						getLog().log(Level.ERROR, "Unable to close ois",e);
 					}
 				}
-				if(clientSocket != null){
+				if(connection != null){
 					try {
-						clientSocket.close();
+						connection.close();
 					} catch (IOException e) {
 						getLog().log(Level.ERROR, "Unable to close clientSocket",e);
 					}
@@ -411,7 +1696,7 @@ public class LUCI_Butler<K extends Serializable,V extends Serializable> implemen
 					}
 				}
 				if(!shuttingDown){
-					Thread t = new Thread(new Handler(clientSocket));
+					Thread t = new Thread(new Handler(new Connection(clientSocket)));
 					t.setDaemon(false);
 					t.start();
 				}
@@ -0,0 +1,537 @@
+package edu.uci.ics.luci.lucicabinet;
+
+import java.io.FilterInputStream;
+import java.io.FilterOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.io.Serializable;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.TreeSet;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+import edu.uci.ics.luci.lucicabinet.LUCI_Butler.ServerCommands;
+
+/**
+ * Operational statistics for a LUCI_Butler: how many of each command have been run, how long they took, how many
+ * connections are open, how many bytes have gone in and out and how much work is waiting.  A snapshot also carries
+ * statistics from the database engine, see LUCICabinetMap.getEngineStats.
+ *
+ * <p>
+ * Recording is lock free so that it can be left on. Latencies are counted in buckets rather than kept, four buckets
+ * for every power of two microseconds, so percentiles are accurate to within 25%.
+ */
+public class LUCI_ButlerStats implements Serializable{
+
+	private static final long serialVersionUID = -4411738196536270562L;
+
+	private static final ServerCommands[] COMMANDS = ServerCommands.values();
+	/** Enough buckets for latencies of up to about 19 hours */
+	private static final int BUCKETS = 4 + (36 * 4);
+
+	private final AtomicLongArray counts;
+	private final AtomicLongArray failures;
+	private final AtomicLongArray rejections;
+	private final AtomicLongArray nanos;
+	private final AtomicLongArray latencies;
+
+	private final AtomicInteger activeConnections;
+	private final AtomicLong connections;
+	private final AtomicInteger inFlight;
+	private final AtomicLong bytesIn;
+	private final AtomicLong bytesOut;
+
+	/* Only filled in for a snapshot */
+	private int subscribers = 0;
+	private int queuedInvalidations = 0;
+	private HashMap<String,Long> engine = null;
+	private HashMap<String,HashMap<String,Long>> databaseEngines = null;
+	private int[] laneRunning = null;
+	private int[] laneWaiting = null;
+	private long taken = 0;
+
+	LUCI_ButlerStats(){
+		counts = new AtomicLongArray(COMMANDS.length);
+		failures = new AtomicLongArray(COMMANDS.length);
+		rejections = new AtomicLongArray(COMMANDS.length);
+		nanos = new AtomicLongArray(COMMANDS.length);
+		latencies = new AtomicLongArray(COMMANDS.length * BUCKETS);
+		activeConnections = new AtomicInteger(0);
+		connections = new AtomicLong(0);
+		inFlight = new AtomicInteger(0);
+		bytesIn = new AtomicLong(0);
+		bytesOut = new AtomicLong(0);
+	}
+
+	private static AtomicLongArray copy(AtomicLongArray a){
+		AtomicLongArray ret = new AtomicLongArray(a.length());
+		for(int i = 0; i < a.length(); i++){
+			ret.set(i,a.get(i));
+		}
+		return ret;
+	}
+
+	private LUCI_ButlerStats(LUCI_ButlerStats live){
+		counts = copy(live.counts);
+		failures = copy(live.failures);
+		rejections = copy(live.rejections);
+		nanos = copy(live.nanos);
+		latencies = copy(live.latencies);
+		activeConnections = new AtomicInteger(live.activeConnections.get());
+		connections = new AtomicLong(live.connections.get());
+		inFlight = new AtomicInteger(live.inFlight.get());
+		bytesIn = new AtomicLong(live.bytesIn.get());
+		bytesOut = new AtomicLong(live.bytesOut.get());
+	}
+
+	/**
+	 * Copy the statistics as they are now, along with statistics from the database engines
+	 * @param db the default database the LUCI_Butler serves, null if it only serves named databases
+	 * @param databases the named databases the LUCI_Butler serves
+	 * @param tracker the near cache subscriptions of the LUCI_Butler
+	 * @param scheduler the command lanes of the LUCI_Butler
+	 */
+	LUCI_ButlerStats snapshot(LUCICabinetMap<?,?> db,Map<String,? extends LUCICabinetMap<?,?>> databases,InvalidationTracker tracker,CommandScheduler scheduler){
+		LUCI_ButlerStats ret = new LUCI_ButlerStats(this);
+		ret.subscribers = tracker.subscriberCount();
+		ret.queuedInvalidations = tracker.queued();
+		ret.laneRunning = new int[LUCI_Butler.Lane.values().length];
+		ret.laneWaiting = new int[LUCI_Butler.Lane.values().length];
+		for(LUCI_Butler.Lane lane:LUCI_Butler.Lane.values()){
+			ret.laneRunning[lane.ordinal()] = scheduler.running(lane);
+			ret.laneWaiting[lane.ordinal()] = scheduler.waiting(lane);
+		}
+		ret.engine = engineStats(db);
+		ret.databaseEngines = new HashMap<String,HashMap<String,Long>>();
+		for(Map.Entry<String,? extends LUCICabinetMap<?,?>> e:databases.entrySet()){
+			ret.databaseEngines.put(e.getKey(),engineStats(e.getValue()));
+		}
+		ret.taken = System.currentTimeMillis();
+		return ret;
+	}
+
+	private static HashMap<String,Long> engineStats(LUCICabinetMap<?,?> db){
+		HashMap<String,Long> ret = new HashMap<String,Long>();
+		if(db != null){
+			try{
+				ret.putAll(db.getEngineStats());
+			}
+			catch(RuntimeException e){
+				LUCI_Butler.getLog().error("Unable to get statistics from the database engine:"+e);
+			}
+		}
+		return ret;
+	}
+
+
+	void connectionOpened(){
+		activeConnections.incrementAndGet();
+		connections.incrementAndGet();
+	}
+
+	void connectionClosed(){
+		activeConnections.decrementAndGet();
+	}
+
+	void commandStarted(){
+		inFlight.incrementAndGet();
+	}
+
+	/**
+	 * @param command the command which was run
+	 * @param elapsed how long it took in nanoseconds
+	 * @param failed true if a failure was sent back to the client
+	 */
+	void commandFinished(ServerCommands command,long elapsed,boolean failed){
+		inFlight.decrementAndGet();
+		int c = command.ordinal();
+		counts.incrementAndGet(c);
+		if(failed){
+			failures.incrementAndGet(c);
+		}
+		nanos.addAndGet(c,elapsed);
+		latencies.incrementAndGet((c * BUCKETS) + bucket(elapsed / 1000));
+	}
+
+	/**
+	 * @param command a command which was turned away with a busy response instead of being run
+	 */
+	void commandRejected(ServerCommands command){
+		inFlight.decrementAndGet();
+		rejections.incrementAndGet(command.ordinal());
+	}
+
+	/**
+	 * @param micros a latency
+	 * @return which bucket it is counted in
+	 */
+	static int bucket(long micros){
+		if(micros < 4){
+			return (int) Math.max(micros,0);
+		}
+		int exp = 63 - Long.numberOfLeadingZeros(micros);
+		int sub = (int) ((micros >> (exp - 2)) & 3);
+		return Math.min(4 + ((exp - 2) * 4) + sub, BUCKETS - 1);
+	}
+
+	/**
+	 * @param bucket a bucket
+	 * @return the largest latency in microseconds that is counted in it
+	 */
+	static long bucketLimit(int bucket){
+		if(bucket < 4){
+			return bucket;
+		}
+		int exp = ((bucket - 4) / 4) + 2;
+		int sub = (bucket - 4) % 4;
+		return ((5L + sub) << (exp - 2)) - 1;
+	}
+
+	/**
+	 * Wrap a stream so that the bytes read from it are counted
+	 */
+	InputStream countIn(InputStream in){
+		return new FilterInputStream(in){
+			public int read() throws IOException {
+				int ret = super.read();
+				if(ret >= 0){
+					bytesIn.incrementAndGet();
+				}
+				return ret;
+			}
+
+			public int read(byte[] b,int off,int len) throws IOException {
+				int ret = super.read(b,off,len);
+				if(ret > 0){
+					bytesIn.addAndGet(ret);
+				}
+				return ret;
+			}
+
+			public long skip(long n) throws IOException {
+				long ret = super.skip(n);
+				if(ret > 0){
+					bytesIn.addAndGet(ret);
+				}
+				return ret;
+			}
+		};
+	}
+
+	/**
+	 * Wrap a stream so that the bytes written to it are counted
+	 */
+	OutputStream countOut(OutputStream out){
+		return new FilterOutputStream(out){
+			public void write(int b) throws IOException {
+				out.write(b);
+				bytesOut.incrementAndGet();
+			}
+
+			public void write(byte[] b,int off,int len) throws IOException {
+				out.write(b,off,len);
+				bytesOut.addAndGet(len);
+			}
+		};
+	}
+
+
+	private static int ordinal(String command){
+		try{
+			return ServerCommands.valueOf(command).ordinal();
+		}
+		catch(IllegalArgumentException e){
+			return -1;
+		}
+	}
+
+	/**
+	 * @return the names of the commands which have been run at least once
+	 */
+	public List<String> getCommands(){
+		List<String> ret = new ArrayList<String>();
+		for(ServerCommands c:COMMANDS){
+			if(counts.get(c.ordinal()) > 0){
+				ret.add(c.name());
+			}
+		}
+		return ret;
+	}
+
+	/**
+	 * @param command the name of a command, e.g. "GET_RAW"
+	 * @return how many times it has been run
+	 */
+	public long getCount(String command){
+		int c = ordinal(command);
+		return (c < 0) ? 0 : counts.get(c);
+	}
+
+	/**
+	 * @param command the name of a command, e.g. "GET_RAW"
+	 * @return how many times it has failed
+	 */
+	public long getFailures(String command){
+		int c = ordinal(command);
+		return (c < 0) ? 0 : failures.get(c);
+	}
+
+	/**
+	 * @param command the name of a command, e.g. "GET_RAW"
+	 * @return how many times it has been turned away because the LUCI_Butler was busy or the client was over its
+	 * rate limit. These aren't counted as runs.
+	 */
+	public long getRejections(String command){
+		int c = ordinal(command);
+		return (c < 0) ? 0 : rejections.get(c);
+	}
+
+	/**
+	 * @param command the name of a command, e.g. "GET_RAW"
+	 * @return the total time spent running it, in nanoseconds
+	 */
+	public long getTotalNanos(String command){
+		int c = ordinal(command);
+		return (c < 0) ? 0 : nanos.get(c);
+	}
+
+	/**
+	 * @param command the name of a command, e.g. "GET_RAW"
+	 * @param percentile between 0 and 100, e.g. 99.9
+	 * @return the latency in microseconds which that percentage of the runs of the command took no longer than, or
+	 * 0 if it hasn't been run
+	 */
+	public long getLatencyPercentile(String command,double percentile){
+		if((percentile < 0) || (percentile > 100)){
+			throw new IllegalArgumentException("Percentile out of range:"+percentile);
+		}
+		int c = ordinal(command);
+		if((c < 0) || (counts.get(c) == 0)){
+			return 0;
+		}
+		long total = 0;
+		for(int b = 0; b < BUCKETS; b++){
+			total += latencies.get((c * BUCKETS) + b);
+		}
+		long rank = Math.max(1, (long) Math.ceil(total * percentile / 100.0));
+		long seen = 0;
+		for(int b = 0; b < BUCKETS; b++){
+			seen += latencies.get((c * BUCKETS) + b);
+			if(seen >= rank){
+				return bucketLimit(b);
+			}
+		}
+		return bucketLimit(BUCKETS - 1);
+	}
+
+	/**
+	 * @return how many client connections are open, including near cache subscriptions
+	 */
+	public int getActiveConnections(){
+		return activeConnections.get();
+	}
+
+	/**
+	 * @return how many client connections have been accepted
+	 */
+	public long getConnections(){
+		return connections.get();
+	}
+
+	/**
+	 * @return how many commands are being run right now
+	 */
+	public int getInFlight(){
+		return inFlight.get();
+	}
+
+	/**
+	 * @return how many bytes have been read from clients
+	 */
+	public long getBytesIn(){
+		return bytesIn.get();
+	}
+
+	/**
+	 * @return how many bytes have been sent to clients
+	 */
+	public long getBytesOut(){
+		return bytesOut.get();
+	}
+
+	/**
+	 * @return how many near caches are subscribed to invalidations
+	 */
+	public int getSubscribers(){
+		return subscribers;
+	}
+
+	/**
+	 * @return how many invalidations are waiting to be sent to near caches
+	 */
+	public int getQueuedInvalidations(){
+		return queuedInvalidations;
+	}
+
+	/**
+	 * @param lane the lane, see LUCI_Butler.configureLane
+	 * @return how many commands of the lane were running
+	 */
+	public int getLaneRunning(LUCI_Butler.Lane lane){
+		return (laneRunning == null) ? 0 : laneRunning[lane.ordinal()];
+	}
+
+	/**
+	 * @param lane the lane, see LUCI_Butler.configureLane
+	 * @return how many commands were waiting for a slot in the lane
+	 */
+	public int getLaneWaiting(LUCI_Butler.Lane lane){
+		return (laneWaiting == null) ? 0 : laneWaiting[lane.ordinal()];
+	}
+
+	/**
+	 * @return the statistics from the engine of the default database, see LUCICabinetMap.getEngineStats
+	 */
+	public Map<String,Long> getEngineStats(){
+		if(engine == null){
+			return new HashMap<String,Long>();
+		}
+		return new TreeMap<String,Long>(engine);
+	}
+
+	/**
+	 * @return the names of the named databases, see LUCI_Butler.addDatabase
+	 */
+	public List<String> getDatabases(){
+		if(databaseEngines == null){
+			return new ArrayList<String>();
+		}
+		return new ArrayList<String>(new TreeSet<String>(databaseEngines.keySet()));
+	}
+
+	/**
+	 * @param database the name of a named database, null for the default database
+	 * @return the statistics from the engine of the database, empty if there is no such database
+	 */
+	public Map<String,Long> getEngineStats(String database){
+		if(database == null){
+			return getEngineStats();
+		}
+		if((databaseEngines == null) || !databaseEngines.containsKey(database)){
+			return new HashMap<String,Long>();
+		}
+		return new TreeMap<String,Long>(databaseEngines.get(database));
+	}
+
+	/**
+	 * @return when the snapshot was taken in milliseconds since the epoch
+	 */
+	public long getTaken(){
+		return taken;
+	}
+
+
+	private static StringBuilder family(Map<String,StringBuilder> families,String name){
+		StringBuilder ret = families.get(name);
+		if(ret == null){
+			ret = new StringBuilder();
+			families.put(name,ret);
+		}
+		return ret;
+	}
+
+	private static String escape(String label){
+		return label.replace("\\","\\\\").replace("\"","\\\"").replace("\n","\\n");
+	}
+
+	private static String seconds(long micros){
+		return Double.toString(micros / 1000000.0);
+	}
+
+	/**
+	 * @return the statistics in the OpenMetrics text format, which Prometheus can scrape
+	 */
+	public String toOpenMetrics(){
+		StringBuilder sb = new StringBuilder();
+		List<String> commands = getCommands();
+
+		sb.append("# TYPE luci_butler_commands counter\n");
+		sb.append("# HELP luci_butler_commands Commands run.\n");
+		for(String c:commands){
+			sb.append("luci_butler_commands_total{command=\""+c+"\"} "+getCount(c)+"\n");
+		}
+
+		sb.append("# TYPE luci_butler_command_failures counter\n");
+		sb.append("# HELP luci_butler_command_failures Commands which sent a failure back to the client.\n");
+		for(String c:commands){
+			sb.append("luci_butler_command_failures_total{command=\""+c+"\"} "+getFailures(c)+"\n");
+		}
+
+		sb.append("# TYPE luci_butler_command_rejections counter\n");
+		sb.append("# HELP luci_butler_command_rejections Commands which were sent a busy response instead of being run.\n");
+		for(ServerCommands c:COMMANDS){
+			if(rejections.get(c.ordinal()) > 0){
+				sb.append("luci_butler_command_rejections_total{command=\""+c.name()+"\"} "+rejections.get(c.ordinal())+"\n");
+			}
+		}
+
+		sb.append("# TYPE luci_butler_command_latency_seconds summary\n");
+		sb.append("# UNIT luci_butler_command_latency_seconds seconds\n");
+		sb.append("# HELP luci_butler_command_latency_seconds Time from reading a command to sending its response.\n");
+		double[] quantiles = {0.5, 0.9, 0.99, 0.999};
+		for(String c:commands){
+			for(double q:quantiles){
+				sb.append("luci_butler_command_latency_seconds{command=\""+c+"\",quantile=\""+q+"\"} "+seconds(getLatencyPercentile(c,q*100))+"\n");
+			}
+			sb.append("luci_butler_command_latency_seconds_sum{command=\""+c+"\"} "+seconds(getTotalNanos(c)/1000)+"\n");
+			sb.append("luci_butler_command_latency_seconds_count{command=\""+c+"\"} "+getCount(c)+"\n");
+		}
+
+		sb.append("# TYPE luci_butler_connections_active gauge\n");
+		sb.append("luci_butler_connections_active "+getActiveConnections()+"\n");
+		sb.append("# TYPE luci_butler_connections counter\n");
+		sb.append("luci_butler_connections_total "+getConnections()+"\n");
+		sb.append("# TYPE luci_butler_commands_in_flight gauge\n");
+		sb.append("luci_butler_commands_in_flight "+getInFlight()+"\n");
+		sb.append("# TYPE luci_butler_received_bytes counter\n");
+		sb.append("luci_butler_received_bytes_total "+getBytesIn()+"\n");
+		sb.append("# TYPE luci_butler_sent_bytes counter\n");
+		sb.append("luci_butler_sent_bytes_total "+getBytesOut()+"\n");
+		sb.append("# TYPE luci_butler_near_cache_subscribers gauge\n");
+		sb.append("luci_butler_near_cache_subscribers "+getSubscribers()+"\n");
+		sb.append("# TYPE luci_butler_queued_invalidations gauge\n");
+		sb.append("luci_butler_queued_invalidations "+getQueuedInvalidations()+"\n");
+		sb.append("# TYPE luci_butler_lane_running gauge\n");
+		for(LUCI_Butler.Lane lane:LUCI_Butler.Lane.values()){
+			sb.append("luci_butler_lane_running{lane=\""+lane+"\"} "+getLaneRunning(lane)+"\n");
+		}
+		sb.append("# TYPE luci_butler_lane_waiting gauge\n");
+		for(LUCI_Butler.Lane lane:LUCI_Butler.Lane.values()){
+			sb.append("luci_butler_lane_waiting{lane=\""+lane+"\"} "+getLaneWaiting(lane)+"\n");
+		}
+
+		/* Each engine statistic is one family, with a sample per database labelled by its name */
+		TreeMap<String,StringBuilder> families = new TreeMap<String,StringBuilder>();
+		for(Map.Entry<String,Long> e:getEngineStats().entrySet()){
+			family(families,e.getKey()).append("luci_butler_engine_"+e.getKey()+" "+e.getValue()+"\n");
+		}
+		for(String d:getDatabases()){
+			for(Map.Entry<String,Long> e:getEngineStats(d).entrySet()){
+				family(families,e.getKey()).append("luci_butler_engine_"+e.getKey()+"{database=\""+escape(d)+"\"} "+e.getValue()+"\n");
+			}
+		}
+		for(Map.Entry<String,StringBuilder> e:families.entrySet()){
+			sb.append("# TYPE luci_butler_engine_"+e.getKey()+" gauge\n");
+			sb.append(e.getValue());
+		}
+
+		sb.append("# EOF\n");
+		return sb.toString();
+	}
+}
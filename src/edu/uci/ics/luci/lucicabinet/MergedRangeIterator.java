@@ -0,0 +1,88 @@
+package edu.uci.ics.luci.lucicabinet;
+
+import java.io.Serializable;
+import java.util.Comparator;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.NoSuchElementException;
+import java.util.PriorityQueue;
+
+/**
+ * Merges range reads of several databases, each in key order, into one in key order, see LUCICabinetMap_Shard.range.
+ * The next entry of each database waits in a heap, so taking an entry costs log k comparisons for k databases and
+ * each database is only read as far as the merge has got. A key found in more than one database, as can happen
+ * while keys move between shards, is returned once, with the entry of the database that comes first in the list.
+ *
+ * K is the key type
+ * V is the value type
+ */
+class MergedRangeIterator<K extends Serializable,V extends Serializable> implements Iterator<Map.Entry<K,V>>{
+
+	/**
+	 * The next entry of one of the databases
+	 */
+	private static class Head<K,V>{
+		final int source;
+		final Iterator<Map.Entry<K,V>> rest;
+		Map.Entry<K,V> entry = null;
+
+		Head(int source,Iterator<Map.Entry<K,V>> rest){
+			this.source = source;
+			this.rest = rest;
+		}
+	}
+
+	private final PriorityQueue<Head<K,V>> heads;
+
+	/**
+	 * @param sources the range reads to merge, each in key order
+	 */
+	MergedRangeIterator(List<Iterator<Map.Entry<K,V>>> sources){
+		heads = new PriorityQueue<Head<K,V>>(Math.max(1,sources.size()),new Comparator<Head<K,V>>(){
+			public int compare(Head<K,V> a, Head<K,V> b) {
+				int c = MergedRangeIterator.compare(a.entry.getKey(),b.entry.getKey());
+				return (c != 0) ? c : ((a.source < b.source) ? -1 : ((a.source > b.source) ? 1 : 0));
+			}
+		});
+		for(int i = 0; i < sources.size(); i++){
+			advance(new Head<K,V>(i,sources.get(i)));
+		}
+	}
+
+	@SuppressWarnings("unchecked")
+	private static int compare(Object a,Object b){
+		return ((Comparable<Object>) a).compareTo(b);
+	}
+
+	/**
+	 * Move a database on to its next entry and put it back in the heap, unless it has run out
+	 */
+	private void advance(Head<K,V> head){
+		if(head.rest.hasNext()){
+			head.entry = head.rest.next();
+			heads.add(head);
+		}
+	}
+
+	public boolean hasNext(){
+		return !heads.isEmpty();
+	}
+
+	public Map.Entry<K,V> next(){
+		if(heads.isEmpty()){
+			throw new NoSuchElementException();
+		}
+		Head<K,V> head = heads.poll();
+		Map.Entry<K,V> ret = head.entry;
+		advance(head);
+		while(!heads.isEmpty() && (compare(heads.peek().entry.getKey(),ret.getKey()) == 0)){
+			advance(heads.poll());
+		}
+		return ret;
+	}
+
+	public void remove(){
+		throw new UnsupportedOperationException("Entries can't be removed during a range read, use remove on the database");
+	}
+}
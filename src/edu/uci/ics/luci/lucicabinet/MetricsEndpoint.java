@@ -0,0 +1,134 @@
+package edu.uci.ics.luci.lucicabinet;
+
+import java.io.BufferedReader;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.io.OutputStream;
+import java.net.InetAddress;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.net.SocketException;
+
+import org.apache.log4j.Level;
+import org.apache.log4j.Logger;
+
+/**
+ * A minimal HTTP listener which answers every GET with the statistics of a LUCI_Butler in the OpenMetrics text
+ * format. Scrapes are rare and quick, so they are answered one at a time on a single thread. It only listens on the
+ * loopback interface.
+ */
+class MetricsEndpoint implements Runnable{
+
+	/** How long a scraper has to send its request, in milliseconds */
+	private static final int REQUEST_TIMEOUT = 5000;
+
+	private LUCI_Butler<?,?> butler;
+	private AccessControl checker;
+	private ServerSocket serverSocket = null;
+	private volatile boolean shuttingDown = false;
+
+	private static transient volatile Logger log = null;
+	public static Logger getLog(){
+		if(log == null){
+			log = Logger.getLogger(MetricsEndpoint.class);
+		}
+		return log;
+	}
+
+	/**
+	 * @param butler the butler service to report on
+	 * @param port the port to accept HTTP requests on
+	 * @param checker which connections are allowed
+	 */
+	MetricsEndpoint(LUCI_Butler<?,?> butler,int port,AccessControl checker) throws IOException{
+		this.butler = butler;
+		this.checker = checker;
+		serverSocket = new ServerSocket(port,50,InetAddress.getByName("127.0.0.1"));
+	}
+
+	void initialize(){
+		Thread t = new Thread(this);
+		t.setName("LUCI_Butler Metrics Thread");
+		t.setDaemon(true);
+		t.start();
+	}
+
+	void shutdown(){
+		shuttingDown = true;
+		try {
+			serverSocket.close();
+		} catch (IOException e) {
+			getLog().log(Level.ERROR,"Could not close the metrics Server Socket");
+		}
+	}
+
+	public void run() {
+		while(!shuttingDown){
+			Socket clientSocket = null;
+			try{
+				clientSocket = serverSocket.accept();
+			} catch (IOException e) {
+				if(!shuttingDown){
+					getLog().log(Level.ERROR, "Unable to accept a metrics connection",e);
+				}
+			}
+			if(clientSocket != null){
+				try{
+					if(checker.allowSource(clientSocket.getInetAddress().toString())){
+						answer(clientSocket);
+					}
+				} catch (IOException e) {
+					getLog().log(Level.ERROR, "Unable to answer a metrics request",e);
+				} catch (RuntimeException e) {
+					getLog().log(Level.ERROR, "Unable to answer a metrics request",e);
+				}
+				finally{
+					try {
+						clientSocket.close();
+					} catch (IOException e) {
+					}
+				}
+			}
+		}
+	}
+
+	private void answer(Socket clientSocket) throws IOException{
+		try {
+			clientSocket.setSoTimeout(REQUEST_TIMEOUT);
+		} catch (SocketException e) {
+			getLog().log(Level.ERROR, "Unable to set a timeout on a metrics socket",e);
+		}
+
+		/* Read the request line and the headers, nothing else matters */
+		BufferedReader in = new BufferedReader(new InputStreamReader(clientSocket.getInputStream(),"US-ASCII"));
+		String request = in.readLine();
+		String line = request;
+		while((line != null) && (line.length() > 0)){
+			line = in.readLine();
+		}
+		if(request == null){
+			return;
+		}
+
+		String status;
+		byte[] body;
+		if(request.startsWith("GET ")){
+			status = "200 OK";
+			body = butler.getStats().toOpenMetrics().getBytes("UTF-8");
+		}
+		else{
+			status = "405 Method Not Allowed";
+			body = new byte[0];
+		}
+
+		OutputStream out = clientSocket.getOutputStream();
+		String headers = "HTTP/1.0 "+status+"\r\n"+
+				"Content-Type: application/openmetrics-text; version=1.0.0; charset=utf-8\r\n"+
+				"Content-Length: "+body.length+"\r\n"+
+				"Connection: close\r\n"+
+				"\r\n";
+		out.write(headers.getBytes("US-ASCII"));
+		out.write(body);
+		out.flush();
+	}
+}
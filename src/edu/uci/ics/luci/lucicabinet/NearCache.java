@@ -0,0 +1,186 @@
+package edu.uci.ics.luci.lucicabinet;
+
+import java.nio.ByteBuffer;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+/**
+ * A bounded, least-recently-used cache of serialized entries kept by a LUCICabinetMap_Remote so that repeated
+ * reads of the same keys don't go over the network. The LUCI_Butler pushes invalidations for keys that are
+ * written by any client, and entries also expire after a time to live in case one is missed. A LUCICabinetMap_Shard
+ * keeps one for the values of its hottest keys.
+ *
+ * <p>
+ * Every invalidation moves the cache on to a new epoch. A value which was fetched while an invalidation arrived
+ * is not cached because it might be the old value.
+ */
+public class NearCache{
+
+	private static class Cached{
+		final byte[] value;
+		final long expires;
+
+		Cached(byte[] value,long expires){
+			this.value = value;
+			this.expires = expires;
+		}
+	}
+
+	private final int maxEntries;
+	private final long ttl;
+	private LinkedHashMap<ByteBuffer,Cached> entries = null;
+	private long epoch = 0;
+	private boolean disabled = false;
+
+	private long hits = 0;
+	private long misses = 0;
+	private long evictions = 0;
+	private long expirations = 0;
+	private long invalidations = 0;
+
+	/**
+	 * @param maxEntries the most entries to keep
+	 * @param ttl how long an entry may be used for in milliseconds, 0 for no limit
+	 */
+	NearCache(final int maxEntries,long ttl){
+		if(maxEntries < 1){
+			throw new IllegalArgumentException("A near cache must hold at least 1 entry:"+maxEntries);
+		}
+		if(ttl < 0){
+			throw new IllegalArgumentException("Near cache time to live must not be negative:"+ttl);
+		}
+		this.maxEntries = maxEntries;
+		this.ttl = ttl;
+		entries = new LinkedHashMap<ByteBuffer,Cached>(16,0.75f,true){
+			private static final long serialVersionUID = -2853175720163931874L;
+
+			protected boolean removeEldestEntry(Map.Entry<ByteBuffer,Cached> eldest){
+				if(size() > NearCache.this.maxEntries){
+					evictions++;
+					return true;
+				}
+				return false;
+			}
+		};
+	}
+
+	/**
+	 * @param key the serialized key
+	 * @return the serialized value, or null if it isn't cached. Don't change it.
+	 */
+	synchronized byte[] get(byte[] key){
+		ByteBuffer k = ByteBuffer.wrap(key);
+		Cached e = entries.get(k);
+		if(e != null){
+			if((ttl == 0) || (System.currentTimeMillis() < e.expires)){
+				hits++;
+				return e.value;
+			}
+			entries.remove(k);
+			expirations++;
+		}
+		misses++;
+		return null;
+	}
+
+	/**
+	 * @return the current epoch, to pass to put once the value has been fetched
+	 */
+	synchronized long epoch(){
+		return epoch;
+	}
+
+	/**
+	 * Cache a value, unless something has been invalidated since it was fetched.
+	 * @param epoch what epoch() returned before the value was fetched
+	 */
+	synchronized void put(byte[] key,byte[] value,long epoch){
+		if((epoch == this.epoch) && !disabled){
+			entries.put(ByteBuffer.wrap(key),new Cached(value,System.currentTimeMillis()+ttl));
+		}
+	}
+
+	synchronized void invalidate(byte[] key){
+		epoch++;
+		if(entries.remove(ByteBuffer.wrap(key)) != null){
+			invalidations++;
+		}
+	}
+
+	synchronized void invalidateAll(){
+		epoch++;
+		invalidations += entries.size();
+		entries.clear();
+	}
+
+	/**
+	 * Drop everything and stop caching, because invalidations can't be received any more
+	 */
+	synchronized void disable(){
+		disabled = true;
+		invalidateAll();
+	}
+
+	/**
+	 * @return true if the cache has stopped caching
+	 */
+	public synchronized boolean isDisabled(){
+		return disabled;
+	}
+
+	public synchronized int size(){
+		return entries.size();
+	}
+
+	public int getMaxEntries(){
+		return maxEntries;
+	}
+
+	public long getTimeToLive(){
+		return ttl;
+	}
+
+	public synchronized long getHits(){
+		return hits;
+	}
+
+	public synchronized long getMisses(){
+		return misses;
+	}
+
+	/**
+	 * @return the fraction of reads that were answered from the cache, 0 if there haven't been any
+	 */
+	public synchronized double getHitRate(){
+		long total = hits + misses;
+		if(total == 0){
+			return 0.0;
+		}
+		return ((double)hits)/total;
+	}
+
+	/**
+	 * @return how many entries were dropped to make room
+	 */
+	public synchronized long getEvictions(){
+		return evictions;
+	}
+
+	/**
+	 * @return how many entries were dropped because they were too old
+	 */
+	public synchronized long getExpirations(){
+		return expirations;
+	}
+
+	/**
+	 * @return how many entries were dropped because they were written
+	 */
+	public synchronized long getInvalidations(){
+		return invalidations;
+	}
+
+	public synchronized String toString(){
+		return "NearCache(size="+entries.size()+",hits="+hits+",misses="+misses+",evictions="+evictions+",expirations="+expirations+",invalidations="+invalidations+")";
+	}
+}
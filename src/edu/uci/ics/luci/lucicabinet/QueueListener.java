@@ -0,0 +1,29 @@
+package edu.uci.ics.luci.lucicabinet;
+
+/**
+ * An abstract class for being told when the operations waiting to be sent on a LUCICabinetMap_Remote connection are
+ * piling up, so that whatever is producing them can be slowed down before the queue limit is reached. It should be
+ * subclassed and given to LUCICabinetMap_Remote.setQueueListener.
+ *
+ * <p>
+ * The methods are called without any locks of the map held, but on the threads that are using it, so they should
+ * return quickly.
+ */
+public abstract class QueueListener {
+
+	/**
+	 * Called by the thread queuing an operation when the queue reaches the high water mark.
+	 * @param map the map the operation was queued by
+	 * @param depth how many operations are waiting to be sent
+	 */
+	public abstract void highWater(LUCICabinetMap_Remote<?,?> map,int depth);
+
+	/**
+	 * Called by the worker thread of the connection when the queue has drained to half the high water mark, after it
+	 * had reached it. By default this does nothing.
+	 * @param map the map which opened the connection
+	 * @param depth how many operations are waiting to be sent
+	 */
+	public void lowWater(LUCICabinetMap_Remote<?,?> map,int depth){
+	}
+}
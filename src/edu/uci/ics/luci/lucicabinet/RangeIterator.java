@@ -0,0 +1,79 @@
+package edu.uci.ics.luci.lucicabinet;
+
+import java.io.Serializable;
+import java.util.Iterator;
+import java.util.Map;
+import java.util.NoSuchElementException;
+import java.util.SortedMap;
+
+/**
+ * An Iterator over the entries of a database whose keys fall in a range, in key order, see LUCICabinetMap.range.
+ * Entries are fetched with LUCICabinetMap.getRange a page at a time, each page starting just after the last key of
+ * the one before, so a remote database sends one page per round trip and nothing is locked between pages.
+ *
+ * K is the key type
+ * V is the value type
+ */
+class RangeIterator<K extends Serializable,V extends Serializable> implements Iterator<Map.Entry<K,V>>{
+
+	private final LUCICabinetMap<K,V> db;
+	private final K from;
+	private final boolean fromInclusive;
+	private final K to;
+	private final int pageSize;
+
+	private Iterator<Map.Entry<K,V>> page = null;
+	private boolean started = false;
+	private boolean lastPage = false;
+	private K lastKey = null;
+
+	/**
+	 * @param db the database to read
+	 * @param from the lowest key, null to start at the first key
+	 * @param fromInclusive true if an entry whose key is <param>from</param> is wanted
+	 * @param to the key to stop before, null to go on to the last key
+	 * @param pageSize how many entries to fetch at a time
+	 */
+	RangeIterator(LUCICabinetMap<K,V> db,K from,boolean fromInclusive,K to,int pageSize){
+		if(pageSize < 1){
+			throw new IllegalArgumentException("Range page size must be at least 1:"+pageSize);
+		}
+		this.db = db;
+		this.from = from;
+		this.fromInclusive = fromInclusive;
+		this.to = to;
+		this.pageSize = pageSize;
+	}
+
+	public boolean hasNext(){
+		while((page == null) || !page.hasNext()){
+			if(lastPage){
+				return false;
+			}
+			SortedMap<K,V> next;
+			if(!started){
+				next = db.getRange(from,fromInclusive,to,pageSize);
+				started = true;
+			}
+			else{
+				next = db.getRange(lastKey,false,to,pageSize);
+			}
+			lastPage = (next.size() < pageSize);
+			page = next.entrySet().iterator();
+		}
+		return true;
+	}
+
+	public Map.Entry<K,V> next(){
+		if(!hasNext()){
+			throw new NoSuchElementException();
+		}
+		Map.Entry<K,V> ret = page.next();
+		lastKey = ret.getKey();
+		return ret;
+	}
+
+	public void remove(){
+		throw new UnsupportedOperationException("Entries can't be removed during a range read, use remove on the database");
+	}
+}
@@ -0,0 +1,30 @@
+package edu.uci.ics.luci.lucicabinet;
+
+/**
+ * An abstract class for limiting how much work each client of a LUCI_Butler service may ask for. It should be
+ * subclassed and used to initialize LUCI_Butler alongside an AccessControl. An example is in the library package.
+ *
+ * <p>
+ * A command that isn't admitted is not run. The LUCI_Butler answers it with a busy response, and the client backs
+ * off and sends it again.
+ */
+public abstract class RateLimiter {
+	
+	/**
+	 * Decide whether a command may run now.
+	 * @param source the id the client gave, see LUCICabinetMap_Remote.setClientId, or where the connection comes from
+	 * in the form AccessControl sees it
+	 * @param cost how much work the command is, 1 for a command on a single key
+	 * @return true if the command may run
+	 */
+	public abstract boolean admit(String source,int cost);
+	
+	/**
+	 * Account for more work by a command which has already been admitted, such as the rest of the writes in a batch.
+	 * By default this does nothing.
+	 * @param source as for admit
+	 * @param cost how much more work the command turned out to be
+	 */
+	public void charge(String source,int cost){
+	}
+}
@@ -0,0 +1,23 @@
+package edu.uci.ics.luci.lucicabinet;
+
+import java.io.Serializable;
+
+/**
+ * Works out the new value of an entry from its current one, for LUCICabinetMap.update, computeAtomic and
+ * mergeAtomic. It is run while no other write to the entry can happen. For a remote database it is sent to the
+ * LUCI_Butler and run there, so its class has to be on the LUCI_Butler's classpath too, as an IteratorWorker's does.
+ * It should only depend on its arguments and its own fields, since a LUCICabinetMap_Replicated runs it on every
+ * replica.
+ * 
+ * K is the key type
+ * V is the value type
+ */
+public interface Remapper<K,V> extends Serializable{
+	
+	/**
+	 * @param key the key of the entry
+	 * @param value the value the entry has now, null if there is no entry
+	 * @return the value the entry should have, null to remove it
+	 */
+	V remap(K key,V value);
+}
@@ -0,0 +1,38 @@
+package edu.uci.ics.luci.lucicabinet;
+
+import java.io.Serializable;
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * A group of entries sent from a LUCI_Butler to a ScanIterator as one frame.
+ */
+class ScanChunk<K extends Serializable,V extends Serializable> implements Serializable{
+
+	/**
+	 *
+	 */
+	private static final long serialVersionUID = 5302794035528734571L;
+
+	/** How many entries came before the first entry in this chunk */
+	final long position;
+	final List<K> keys;
+	final List<V> values;
+	/** True if there is nothing more to scan after this chunk */
+	boolean last = false;
+
+	ScanChunk(long position,int expectedSize){
+		this.position = position;
+		keys = new ArrayList<K>(expectedSize);
+		values = new ArrayList<V>(expectedSize);
+	}
+
+	void add(K key,V value){
+		keys.add(key);
+		values.add(value);
+	}
+
+	int size(){
+		return keys.size();
+	}
+}
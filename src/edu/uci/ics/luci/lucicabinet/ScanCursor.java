@@ -0,0 +1,54 @@
+package edu.uci.ics.luci.lucicabinet;
+
+import java.io.Serializable;
+
+/**
+ * A ScanCursor marks how far a scan of a remote database got, so that a later scan can carry on from there.
+ * It can be saved, serialized or sent elsewhere and passed to LUCICabinetMap_Remote.scan to resume.
+ *
+ * <p>
+ * A cursor remembers the key of the last entry that was seen and how many entries had been seen. Resuming picks up
+ * just after that key, and only if the key has been removed are that many entries skipped instead. Databases which
+ * don't keep their entries in order may still move entries around when they are changed, so if the database has been
+ * changed in between, entries may be seen twice or missed.
+ */
+public class ScanCursor implements Serializable{
+
+	/**
+	 *
+	 */
+	private static final long serialVersionUID = -1264358726630582394L;
+
+	private final long position;
+	private final Serializable lastKey;
+
+	/**
+	 * @param position the number of entries which have already been seen
+	 * @param lastKey the key of the last entry that was seen, or null if none have been seen
+	 */
+	public ScanCursor(long position,Serializable lastKey){
+		if(position < 0){
+			throw new IllegalArgumentException("Scan position must not be negative:"+position);
+		}
+		this.position = position;
+		this.lastKey = lastKey;
+	}
+
+	/**
+	 * @return the number of entries which have already been seen
+	 */
+	public long getPosition(){
+		return position;
+	}
+
+	/**
+	 * @return the key of the last entry that was seen, or null if none have been seen
+	 */
+	public Serializable getLastKey(){
+		return lastKey;
+	}
+
+	public String toString(){
+		return "ScanCursor("+position+","+lastKey+")";
+	}
+}
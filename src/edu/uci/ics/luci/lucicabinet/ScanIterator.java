@@ -0,0 +1,317 @@
+package edu.uci.ics.luci.lucicabinet;
+
+import java.io.IOException;
+import java.io.ObjectInputStream;
+import java.io.ObjectOutputStream;
+import java.io.Serializable;
+import java.net.SocketAddress;
+import java.util.Iterator;
+import java.util.Map;
+import java.util.NoSuchElementException;
+
+import org.apache.log4j.Level;
+import org.apache.log4j.Logger;
+
+import edu.uci.ics.luci.lucicabinet.LUCI_Butler.ServerResponse;
+
+/**
+ * An Iterator over the entries of a remote database which streams them from a LUCI_Butler a chunk at a time.
+ * Each ScanIterator has its own connection so that a slow reader doesn't hold up other operations on the
+ * LUCICabinetMap_Remote that made it.
+ *
+ * <p>
+ * The LUCI_Butler only sends as many chunks as the client has given it credit for. One credit is returned each time
+ * a chunk is taken off the connection, so at most one chunk is held here and at most a window of chunks are in flight.
+ *
+ * <p>
+ * The remote database only holds its lock while it collects each chunk, but the LUCI_Butler keeps a thread on the
+ * scan until it ends, so close a ScanIterator which isn't going to be read to the end. A scan that is closed early
+ * can be resumed later from getCursor().
+ *
+ * K is the key type
+ * V is the value type
+ */
+public class ScanIterator<K extends Serializable,V extends Serializable> implements Iterator<Map.Entry<K,V>>{
+
+	private static class ScanEntry<K,V> implements Map.Entry<K,V>{
+		private final K key;
+		private final V value;
+
+		ScanEntry(K key,V value){
+			this.key = key;
+			this.value = value;
+		}
+
+		public K getKey(){
+			return key;
+		}
+
+		public V getValue(){
+			return value;
+		}
+
+		public V setValue(V value){
+			throw new UnsupportedOperationException("Scanned entries can't be changed, use put");
+		}
+
+		public String toString(){
+			return key+"="+value;
+		}
+	}
+
+	private Connection connection = null;
+	private ObjectOutputStream oos = null;
+	private ObjectInputStream ois = null;
+
+	private ScanChunk<K,V> chunk = null;
+	private int index = 0;
+	private boolean finished = false;
+	private ScanCursor cursor = null;
+
+	private static transient volatile Logger log = null;
+	public static Logger getLog(){
+		if(log == null){
+			log = Logger.getLogger(ScanIterator.class);
+		}
+		return log;
+	}
+
+	/**
+	 * Open a connection to a LUCI_Butler and start a scan.
+	 * @param endpoint The remote host and port, or Unix domain socket, to connect to
+	 * @param database The named database to scan, null for the default database of the LUCI_Butler
+	 * @param from Where to resume a scan from, null to start at the beginning
+	 * @param chunkSize How many entries are sent at a time
+	 * @param window How many chunks may be in flight at once
+	 * @param timeout How long to wait for the next chunk in milliseconds, 0 to wait forever
+	 * @throws IOException if the connection can't be made
+	 */
+	ScanIterator(SocketAddress endpoint,String database,ScanCursor from,int chunkSize,int window,long timeout) throws IOException{
+		if(chunkSize < 1){
+			throw new IllegalArgumentException("Scan chunk size must be at least 1:"+chunkSize);
+		}
+		if(window < 1){
+			throw new IllegalArgumentException("Scan window must be at least 1:"+window);
+		}
+		this.cursor = from;
+
+		connection = Connection.open(endpoint,(int) timeout);
+		try{
+			oos = new ObjectOutputStream(connection.getOutputStream());
+			ois = new ObjectInputStream(connection.getInputStream());
+
+			Object okay = ois.readObject();
+			if(!ServerResponse.CONNECTION_OKAY_OPTIMIZE.equals(okay) && !ServerResponse.CONNECTION_OKAY_UNOPTIMIZE.equals(okay)){
+				throw new IOException("Remote host did not send a connection okay signal");
+			}
+
+			if(database != null){
+				oos.writeObject(LUCI_Butler.ServerCommands.USE);
+				oos.writeObject(database);
+				oos.flush();
+				ois.readObject();
+				Object used = ois.readObject();
+				if(!ServerResponse.COMMAND_SUCCESSFUL.equals(used)){
+					throw new IOException("Unable to use database "+database+":"+ois.readObject());
+				}
+			}
+
+			oos.writeObject(LUCI_Butler.ServerCommands.SCAN);
+			oos.writeObject(from);
+			oos.writeObject(Integer.valueOf(chunkSize));
+			oos.writeObject(Integer.valueOf(window));
+			oos.flush();
+		} catch (ClassNotFoundException e) {
+			close();
+			throw new IOException("Remote host did not send a connection okay signal"+e);
+		} catch (IOException e) {
+			close();
+			throw e;
+		}
+	}
+
+	public boolean hasNext(){
+		while((chunk == null) || (index >= chunk.size())){
+			if(finished){
+				return false;
+			}
+			nextChunk();
+		}
+		return true;
+	}
+
+	public Map.Entry<K,V> next(){
+		if(!hasNext()){
+			throw new NoSuchElementException();
+		}
+		K key = chunk.keys.get(index);
+		V value = chunk.values.get(index);
+		index++;
+		cursor = new ScanCursor(chunk.position+index,key);
+		return new ScanEntry<K,V>(key,value);
+	}
+
+	public void remove(){
+		throw new UnsupportedOperationException("Entries can't be removed during a scan, use remove on the database");
+	}
+
+	/**
+	 * @return a cursor that resumes a scan just after the last entry returned by next, or the cursor this scan
+	 * was started from if next hasn't been called yet.
+	 */
+	public ScanCursor getCursor(){
+		return cursor;
+	}
+
+	/**
+	 * Stop the scan and close its connection.  Nothing more can be read after this.
+	 */
+	public void close(){
+		if(!finished){
+			finished = true;
+			end();
+		}
+		chunk = null;
+
+		try {
+			if (ois != null) {
+				ois.close();
+				ois = null;
+			}
+		} catch (IOException e) {
+		}
+
+		try {
+			if (oos != null) {
+				oos.close();
+				oos = null;
+			}
+		} catch (IOException e) {
+		}
+
+		try {
+			if (connection != null) {
+				connection.close();
+				connection = null;
+			}
+		} catch (IOException e) {
+		}
+	}
+
+	/** Wrapper for close to make sure all resources are clean up */
+	protected void finalize() throws Throwable{
+		try{
+			close();
+		} catch (Throwable e) {
+			getLog().error(e.toString());
+		}
+		finally{
+			super.finalize();
+		}
+	}
+
+	/**
+	 * Read the next chunk off the connection and give the server credit for another one.
+	 */
+	@SuppressWarnings("unchecked")
+	private void nextChunk(){
+		Object o = null;
+		try{
+			o = ois.readObject();
+		} catch (IOException e) {
+			getLog().log(Level.ERROR, "Unable to read a scan chunk from object input stream",e);
+			finished = true;
+			close();
+			throw new RuntimeException("Scan failed at "+cursor,e);
+		} catch (ClassNotFoundException e) {
+			getLog().log(Level.ERROR, "Unable to read a scan chunk from object input stream",e);
+			finished = true;
+			close();
+			throw new RuntimeException("Scan failed at "+cursor,e);
+		}
+
+		if(o instanceof ScanChunk){
+			chunk = (ScanChunk<K,V>) o;
+			index = 0;
+			if(!chunk.last){
+				try{
+					oos.writeObject(LUCI_Butler.ServerCommands.SCAN_CREDIT);
+					oos.writeObject(Integer.valueOf(1));
+					oos.flush();
+				} catch (IOException e) {
+					getLog().log(Level.ERROR, "Unable to write "+LUCI_Butler.ServerCommands.SCAN_CREDIT+" command",e);
+				}
+			}
+		}
+		else if(ServerResponse.BUSY.equals(o)){
+			/* The server turned the scan away without starting it */
+			finished = true;
+			close();
+			throw new ServerBusyException("The server was too busy to start a scan at "+cursor);
+		}
+		else{
+			/* The server is done, and says how it went */
+			finished = true;
+			Object reason = response(o);
+			close();
+			if(reason != null){
+				throw new RuntimeException("Bad Response from server during scan:"+reason);
+			}
+		}
+	}
+
+	/**
+	 * Tell the server that the scan is over and wait for it to finish up so that the connection closes cleanly.
+	 * At most a window of chunks have to be skipped.
+	 */
+	private void end(){
+		if(oos == null){
+			return;
+		}
+		try{
+			oos.writeObject(LUCI_Butler.ServerCommands.SCAN_END);
+			oos.flush();
+		} catch (IOException e) {
+			/* The server stops when it can't write to us anyway */
+			return;
+		}
+
+		try{
+			Object o = null;
+			do{
+				o = ois.readObject();
+			}while(o instanceof ScanChunk);
+			Object reason = response(o);
+			if(reason != null){
+				getLog().log(Level.ERROR, "Bad Response from server at the end of a scan:"+reason);
+			}
+		} catch (IOException e) {
+			/* Already closed */
+		} catch (ClassNotFoundException e) {
+			getLog().log(Level.ERROR, "Unable to read the end of a scan from object input stream",e);
+		}
+	}
+
+	/**
+	 * @param o what the server sent instead of a chunk
+	 * @return null if the server said the scan went well, otherwise what went wrong
+	 */
+	private Object response(Object o){
+		if(ServerResponse.COMMAND_SUCCESSFUL.equals(o)){
+			return null;
+		}
+
+		/* A failed command is followed by a description of what went wrong */
+		Object reason = o;
+		if(ServerResponse.COMMAND_FAILED.equals(o)){
+			try {
+				reason = ois.readObject();
+			} catch (IOException e) {
+				getLog().log(Level.ERROR, "Unable to read a result from object input stream",e);
+			} catch (ClassNotFoundException e) {
+				getLog().log(Level.ERROR, "Unable to read a result from object input stream",e);
+			}
+		}
+		return reason;
+	}
+}
@@ -0,0 +1,115 @@
+package edu.uci.ics.luci.lucicabinet;
+
+import java.io.Serializable;
+
+/**
+ * The IteratorWorker that LUCICabinetMap.scanChunk uses to collect one chunk of a scan from a database that can't
+ * pick up where the last chunk left off on its own.  The entries up to and including the last key of the cursor
+ * are skipped, then entries are collected until the chunk is full.
+ *
+ * <p>
+ * How far the scan has got is kept in the ScanConfig, so a database made of several databases has to iterate over
+ * them one after another with the same config, see IteratorWorkerConfig.isParallel. Each worker keeps the entries
+ * it collected, and combine puts them after its own.
+ */
+class ScanWorker<K extends Serializable,V extends Serializable> extends IteratorWorker<K,V>{
+
+	/**
+	 *
+	 */
+	private static final long serialVersionUID = -4620196314716085925L;
+
+	static class ScanConfig extends IteratorWorkerConfig{
+
+		/**
+		 *
+		 */
+		private static final long serialVersionUID = 3049586617305716432L;
+
+		private final ScanCursor from;
+		private final int chunkSize;
+
+		private transient long seen = 0;
+		private transient boolean passed = false;
+		private transient int collected = 0;
+
+		/**
+		 * @param from where to resume from, null to start at the beginning
+		 * @param chunkSize how many entries to collect
+		 */
+		ScanConfig(ScanCursor from,int chunkSize){
+			this.from = from;
+			this.chunkSize = chunkSize;
+		}
+
+		/**
+		 * A chunk is collected from one database at a time, in order
+		 */
+		@Override
+		public boolean isParallel(){
+			return false;
+		}
+
+		/**
+		 * @return true if the scan starts part of the way through
+		 */
+		boolean resumes(){
+			return (from != null) && ((from.getLastKey() != null) || (from.getPosition() > 0));
+		}
+	}
+
+	private ScanConfig config = null;
+	private boolean passed = false;
+	private ScanChunk<K,V> chunk = null;
+
+	@Override
+	protected void initialize(LUCICabinetMap<K,V> parent,IteratorWorkerConfig iwc){
+		config = (ScanConfig) iwc;
+		passed = config.passed;
+		chunk = new ScanChunk<K,V>((config.from == null) ? 0 : config.from.getPosition(),config.chunkSize);
+	}
+
+	@Override
+	protected boolean iterate(K key,V value){
+		config.seen++;
+		if(config.resumes() && !config.passed){
+			/* Resume just after the last key, or by position for a cursor that doesn't have one */
+			if(config.from.getLastKey() != null){
+				config.passed = config.from.getLastKey().equals(key);
+			}
+			else{
+				config.passed = (config.seen >= config.from.getPosition());
+			}
+			passed = config.passed;
+			return false;
+		}
+
+		chunk.add(key,value);
+		config.collected++;
+		return(config.collected >= config.chunkSize);
+	}
+
+	@Override
+	protected void combine(IteratorWorker<K,V> iw){
+		ScanWorker<K,V> other = (ScanWorker<K,V>) iw;
+		for(int i = 0; (i < other.chunk.size()) && (chunk.size() < config.chunkSize); i++){
+			chunk.add(other.chunk.keys.get(i),other.chunk.values.get(i));
+		}
+		passed |= other.passed;
+	}
+
+	/**
+	 * @return true if the last key of the cursor never came up
+	 */
+	boolean isSkipping(){
+		return config.resumes() && !passed;
+	}
+
+	/**
+	 * @return the entries collected, marked as the last chunk if there weren't enough to fill it
+	 */
+	ScanChunk<K,V> getChunk(){
+		chunk.last = (chunk.size() < config.chunkSize);
+		return chunk;
+	}
+}
@@ -0,0 +1,54 @@
+package edu.uci.ics.luci.lucicabinet;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.ObjectInputStream;
+import java.io.ObjectOutputStream;
+
+/**
+ * Turns keys and values into the bytes that are stored in a database and back again. The bytes are the same as the
+ * ones tokyocabinet.Util makes, so raw and typed access to a database can be mixed, but this class doesn't need the
+ * tokyo cabinet native library to be loaded, which matters for clients that only talk to a remote database.
+ */
+public final class Serialization{
+
+	private Serialization(){
+	}
+
+	/**
+	 * @param o the object to serialize, may be null
+	 * @return the serialized bytes
+	 */
+	public static byte[] serialize(Object o){
+		ByteArrayOutputStream baos = new ByteArrayOutputStream();
+		try{
+			ObjectOutputStream oos = new ObjectOutputStream(baos);
+			oos.writeObject(o);
+			oos.close();
+		} catch (IOException e) {
+			throw new RuntimeException("Unable to serialize "+o,e);
+		}
+		return baos.toByteArray();
+	}
+
+	/**
+	 * @param bytes the serialized bytes, may be null
+	 * @return the object, or null if bytes is null
+	 */
+	public static Object deserialize(byte[] bytes){
+		if(bytes == null){
+			return null;
+		}
+		try{
+			ObjectInputStream ois = new ObjectInputStream(new ByteArrayInputStream(bytes));
+			Object o = ois.readObject();
+			ois.close();
+			return o;
+		} catch (IOException e) {
+			throw new RuntimeException("Unable to deserialize "+bytes.length+" bytes",e);
+		} catch (ClassNotFoundException e) {
+			throw new RuntimeException("Unable to deserialize "+bytes.length+" bytes",e);
+		}
+	}
+}
@@ -0,0 +1,14 @@
+package edu.uci.ics.luci.lucicabinet;
+
+/**
+ * Thrown when a LUCI_Butler turns a command away because it is overloaded or the client has gone over its rate
+ * limit, see RateLimiter. The command was not run, so it is always safe to send it again after backing off.
+ */
+public class ServerBusyException extends RuntimeException{
+
+	private static final long serialVersionUID = 4725194480935208419L;
+
+	public ServerBusyException(String message){
+		super(message);
+	}
+}
@@ -0,0 +1,44 @@
+package edu.uci.ics.luci.lucicabinet;
+
+import java.util.Collections;
+import java.util.Map;
+import java.util.Map.Entry;
+import java.util.TreeMap;
+
+/**
+ * Thrown by LUCICabinetMap_Shard when an operation that goes to every shard fails on some of them. The shards that
+ * failed and what each of them threw are kept, so a caller can tell one bad shard from a wider problem. The cause is
+ * the failure of the lowest numbered shard.
+ */
+public class ShardException extends RuntimeException{
+
+	private static final long serialVersionUID = 3310846120875461927L;
+
+	private final Map<Integer,Throwable> failures;
+
+	/**
+	 * @param operation the name of the operation, for the message
+	 * @param shards how many shards the operation was sent to
+	 * @param failures what each failed shard threw, by shard number
+	 */
+	public ShardException(String operation,int shards,Map<Integer,Throwable> failures){
+		super(describe(operation,shards,failures),failures.isEmpty() ? null : new TreeMap<Integer,Throwable>(failures).values().iterator().next());
+		this.failures = Collections.unmodifiableMap(new TreeMap<Integer,Throwable>(failures));
+	}
+
+	private static String describe(String operation,int shards,Map<Integer,Throwable> failures){
+		StringBuilder sb = new StringBuilder();
+		sb.append(operation).append(" failed on ").append(failures.size()).append(" of ").append(shards).append(" shards");
+		for(Entry<Integer,Throwable> e:new TreeMap<Integer,Throwable>(failures).entrySet()){
+			sb.append(", shard ").append(e.getKey()).append(": ").append(e.getValue());
+		}
+		return sb.toString();
+	}
+
+	/**
+	 * @return what each failed shard threw, by shard number
+	 */
+	public Map<Integer,Throwable> getFailures(){
+		return failures;
+	}
+}
@@ -16,5 +16,39 @@ public abstract class ShardFunction implements Serializable{
 	 * @return an integer between 0 and the maximum number of shards.
 	 */
 	public abstract int pickShard(Object key);
+	
+	/**
+	 * Given a range of keys tell which shards can hold keys in it, so that a range read only goes to those. Functions
+	 * which scatter neighbouring keys, as hashes do, can't tell and return null.
+	 * @param from the lowest key, null for no lowest key
+	 * @param to the key the range stops before, null for no such key
+	 * @return the shards, in order, or null if any shard may hold keys in the range
+	 */
+	public int[] pickShards(Object from,Object to){
+		return null;
+	}
+	
+	/**
+	 * Spread the bits of a key's hashCode over a long. Hash codes of real keys are far from random, Integers hash
+	 * to themselves and Strings with a common prefix differ only in their low bits, so they should be mixed before
+	 * they are used to pick a shard.
+	 * @param key the key
+	 * @return the mixed hash of the key
+	 */
+	protected static long hash(Object key){
+		return mix(key.hashCode());
+	}
+	
+	/**
+	 * The finalizer of MurmurHash3. Every bit of the input affects every bit of the output.
+	 */
+	protected static long mix(long h){
+		h ^= h >>> 33;
+		h *= 0xff51afd7ed558ccdL;
+		h ^= h >>> 33;
+		h *= 0xc4ceb9fe1a85ec53L;
+		h ^= h >>> 33;
+		return h;
+	}
 
 }
@@ -0,0 +1,739 @@
+package edu.uci.ics.luci.lucicabinet;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.Serializable;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.IdentityHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Properties;
+import java.util.Set;
+import java.util.TreeSet;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.locks.ReentrantLock;
+import java.util.concurrent.locks.ReentrantReadWriteLock;
+
+import org.apache.log4j.Logger;
+
+/**
+ * Moves the entries of a LUCICabinetMap_Shard from one layout, a list of shards and a ShardFunction, to another
+ * while the map stays in use, see LUCICabinetMap_Shard.reshard.
+ *
+ * <p>
+ * While a migration runs every key is in exactly one place, either where the old layout puts it or where the new
+ * one does. Reads look in the old place first and then the new one. Writes go to the new place and take the key out
+ * of the old one. Background threads, one old shard at a time, find the keys that the new layout puts on a different
+ * shard and move them in batches: copy to the new shard unless a write got there first, then remove from the old
+ * one. A key is locked, by a stripe of keys, while it is written or moved, so a move never overwrites a newer write.
+ * Shards that are in both layouts are the same object in both lists, and keys that stay on them aren't touched.
+ *
+ * <p>
+ * A key that is being moved is on both shards for a moment, between the copy and the remove. The map holds off
+ * moves while it counts or iterates over every shard, see holdKeys, so no key is counted or seen twice. Writes to a
+ * key that hasn't moved yet move it, so they wait for those too.
+ *
+ * <p>
+ * Moving a key is safe to repeat, so a migration that was interrupted, by a crash or by cancel, is picked up again by
+ * calling reshard with the same two layouts and checkpoint file. The checkpoint records which old shards have been
+ * emptied of keys that move, so they are skipped. Until the migration is finished the map must be given the new
+ * layout this way before it is used, or keys that have already moved won't be found. A crash in the middle of moving
+ * a batch can leave keys on both shards, which are counted twice until their old shard has been gone over again.
+ *
+ * <p>
+ * How fast keys move can be limited with setKeysPerSecond so a migration doesn't crowd out the map's users, and the
+ * rate it is achieving can be read from getKeysPerSecond.
+ */
+public class ShardMigration<K extends Serializable,V extends Serializable>{
+
+	/** How many locks the keys are spread over */
+	private static final int STRIPES = 4096;
+	/** The most keys to move that are collected from a shard in one pass */
+	private static final int COLLECT_LIMIT = 100000;
+
+	/**
+	 * Collects the keys of a shard that the new layout puts somewhere else
+	 */
+	static class MovingKeys<K extends Serializable,V extends Serializable> extends IteratorWorker<K,V>{
+
+		/**
+		 *
+		 */
+		private static final long serialVersionUID = -1935620934787427401L;
+
+		ArrayList<K> keys = new ArrayList<K>();
+		private MovingKeysConfig config = null;
+
+		@Override
+		protected void initialize(LUCICabinetMap<K,V> parent,IteratorWorkerConfig iwc){
+			config = (MovingKeysConfig) iwc;
+		}
+
+		@Override
+		protected boolean iterate(K key,V value){
+			if(!config.staying.contains(config.to.pickShard(key))){
+				keys.add(key);
+			}
+			return(keys.size() >= config.limit);
+		}
+
+		@Override
+		protected void combine(IteratorWorker<K,V> iw){
+			keys.addAll(((MovingKeys<K,V>) iw).keys);
+		}
+	}
+
+	static class MovingKeysConfig extends IteratorWorkerConfig{
+
+		/**
+		 *
+		 */
+		private static final long serialVersionUID = 6020774416000418622L;
+
+		private ShardFunction to;
+		/* The shards of the new layout that are the shard being iterated over */
+		private HashSet<Integer> staying;
+		private int limit;
+
+		MovingKeysConfig(ShardFunction to,HashSet<Integer> staying,int limit){
+			this.to = to;
+			this.staying = staying;
+			this.limit = limit;
+		}
+	}
+
+	private final LUCICabinetMap_Shard<K,V> map;
+	private final List<LUCICabinetMap<K,V>> fromShards;
+	private final ShardFunction fromFunction;
+	private final List<LUCICabinetMap<K,V>> toShards;
+	private final ShardFunction toFunction;
+	private final File checkpoint;
+	private final int batchSize;
+
+	private final ReentrantLock[] stripes = new ReentrantLock[STRIPES];
+	/* Held for writing while keys are on both their old and new shards, and for reading to keep that from happening */
+	private final ReentrantReadWriteLock moving = new ReentrantReadWriteLock();
+	private final Set<Integer> done = new TreeSet<Integer>();
+	private final AtomicInteger next = new AtomicInteger(0);
+	private final AtomicLong moved = new AtomicLong(0);
+	private final List<Thread> workers = new ArrayList<Thread>();
+
+	private volatile int keysPerSecond = 0;
+	private volatile boolean cancelled = false;
+	private volatile boolean finished = false;
+	private volatile Throwable failure = null;
+	private long started = 0;
+	private long ended = 0;
+
+	private static transient volatile Logger log = null;
+	public static Logger getLog(){
+		if(log == null){
+			log = Logger.getLogger(ShardMigration.class);
+		}
+		return log;
+	}
+
+	/**
+	 * @param map the map whose layout is changing, told when the migration is finished
+	 * @param checkpoint where progress is kept so the migration can be picked up again, null to not keep it
+	 * @param batchSize how many keys are moved at a time
+	 */
+	ShardMigration(LUCICabinetMap_Shard<K,V> map,List<LUCICabinetMap<K,V>> fromShards,ShardFunction fromFunction,
+			List<LUCICabinetMap<K,V>> toShards,ShardFunction toFunction,File checkpoint,int batchSize){
+		if(batchSize < 1){
+			throw new IllegalArgumentException("A migration has to move at least one key at a time:"+batchSize);
+		}
+		this.map = map;
+		this.fromShards = fromShards;
+		this.fromFunction = fromFunction;
+		this.toShards = new ArrayList<LUCICabinetMap<K,V>>(toShards);
+		this.toFunction = toFunction;
+		this.checkpoint = checkpoint;
+		this.batchSize = batchSize;
+		for(int i = 0; i < STRIPES; i++){
+			stripes[i] = new ReentrantLock();
+		}
+		load();
+	}
+
+	/**
+	 * Start moving keys
+	 * @param threads how many old shards are worked on at once
+	 */
+	synchronized void start(int threads){
+		if(threads < 1){
+			throw new IllegalArgumentException("A migration needs at least one thread:"+threads);
+		}
+		started = System.currentTimeMillis();
+		for(int t = 0; t < threads; t++){
+			Thread thread = new Thread(new Runnable(){
+				public void run() {
+					work();
+				}
+			});
+			thread.setName("LUCICabinetMap_Shard Migration Thread");
+			thread.setDaemon(true);
+			workers.add(thread);
+			thread.start();
+		}
+	}
+
+	private void work(){
+		try{
+			int i;
+			while(!cancelled && ((i = next.getAndIncrement()) < fromShards.size())){
+				synchronized(this){
+					if(done.contains(i)){
+						continue;
+					}
+				}
+				long before = moved.get();
+				long start = System.currentTimeMillis();
+				migrate(i);
+				if(!cancelled){
+					synchronized(this){
+						done.add(i);
+						save();
+					}
+					getLog().info("Moved "+(moved.get()-before)+" keys off shard "+i+" in "+(System.currentTimeMillis()-start)+" milliseconds");
+				}
+			}
+		}
+		catch(Throwable t){
+			getLog().error("Migration failed, it can be picked up again with reshard:"+t);
+			failure = t;
+			cancelled = true;
+		}
+
+		boolean last;
+		synchronized(this){
+			last = (done.size() == fromShards.size()) && !finished;
+			if(last){
+				finished = true;
+				ended = System.currentTimeMillis();
+				save();
+			}
+		}
+		if(last){
+			getLog().info("Migration finished, moved "+moved.get()+" keys at "+getKeysPerSecond()+" keys per second");
+			map.finishMigration(this);
+		}
+	}
+
+	/**
+	 * Move every key of an old shard that the new layout puts somewhere else
+	 */
+	@SuppressWarnings("unchecked")
+	private void migrate(int which) throws InstantiationException, IllegalAccessException{
+		LUCICabinetMap<K,V> from = fromShards.get(which);
+		HashSet<Integer> staying = new HashSet<Integer>();
+		for(int j = 0; j < toShards.size(); j++){
+			if(toShards.get(j) == from){
+				staying.add(j);
+			}
+		}
+
+		/* Moved keys are gone from the shard and writes don't land on it, so each pass finds new keys */
+		boolean more = true;
+		while(more && !cancelled){
+			MovingKeys<K,V> iw = (MovingKeys<K,V>) from.iterate((Class<? extends IteratorWorker<K,V>>) MovingKeys.class,
+					new MovingKeysConfig(toFunction,staying,COLLECT_LIMIT));
+			List<K> keys = iw.keys;
+			for(int start = 0; (start < keys.size()) && !cancelled; start += batchSize){
+				move(from,keys.subList(start,Math.min(start+batchSize,keys.size())));
+				throttle();
+			}
+			more = (keys.size() >= COLLECT_LIMIT);
+		}
+	}
+
+	/**
+	 * Move a batch of keys off an old shard, holding the locks of all of them
+	 */
+	private void move(LUCICabinetMap<K,V> from,List<K> keys){
+		List<ReentrantLock> held = lock(keys);
+		try{
+			Map<K,V> values = from.getAll(keys);
+
+			/* Group by the shard the keys are going to */
+			Map<LUCICabinetMap<K,V>,List<K>> groups = new IdentityHashMap<LUCICabinetMap<K,V>,List<K>>();
+			for(K key:values.keySet()){
+				LUCICabinetMap<K,V> to = toShards.get(toFunction.pickShard(key));
+				List<K> group = groups.get(to);
+				if(group == null){
+					group = new ArrayList<K>();
+					groups.put(to,group);
+				}
+				group.add(key);
+			}
+
+			Map<LUCICabinetMap<K,V>,Map<K,V>> copies = new IdentityHashMap<LUCICabinetMap<K,V>,Map<K,V>>();
+			for(Map.Entry<LUCICabinetMap<K,V>,List<K>> e:groups.entrySet()){
+				/* A write since the migration started is newer than what the old shard has */
+				Map<K,V> written = e.getKey().getAll(e.getValue());
+				Map<K,V> copy = new HashMap<K,V>();
+				for(K key:e.getValue()){
+					if(!written.containsKey(key)){
+						copy.put(key,values.get(key));
+					}
+				}
+				if(!copy.isEmpty()){
+					copies.put(e.getKey(),copy);
+				}
+			}
+
+			WriteBatch<K,V> removes = new WriteBatch<K,V>(keys.size());
+			for(K key:keys){
+				removes.remove(key);
+			}
+			moving.writeLock().lock();
+			try{
+				for(Map.Entry<LUCICabinetMap<K,V>,Map<K,V>> e:copies.entrySet()){
+					e.getKey().putAll(e.getValue());
+				}
+				from.apply(removes);
+			}
+			finally{
+				moving.writeLock().unlock();
+			}
+			moved.addAndGet(values.size());
+		}
+		finally{
+			for(ReentrantLock l:held){
+				l.unlock();
+			}
+		}
+	}
+
+	/**
+	 * Wait long enough to keep to the rate limit
+	 */
+	private void throttle(){
+		int rate = keysPerSecond;
+		if(rate > 0){
+			long due = started + (moved.get() * 1000L) / rate;
+			long wait;
+			/* A little at a time, so that cancel doesn't wait for the whole of a long pause */
+			while(!cancelled && ((wait = due - System.currentTimeMillis()) > 0)){
+				try {
+					Thread.sleep(Math.min(wait,100));
+				} catch (InterruptedException e) {
+					cancelled = true;
+				}
+			}
+		}
+	}
+
+	private ReentrantLock stripe(Object key){
+		return stripes[(int) (ShardFunction.hash(key) & (STRIPES - 1))];
+	}
+
+	/**
+	 * Lock the stripes of many keys, always in the same order so two batches can't wait for each other
+	 */
+	private List<ReentrantLock> lock(Collection<K> keys){
+		TreeSet<Integer> which = new TreeSet<Integer>();
+		for(K key:keys){
+			which.add((int) (ShardFunction.hash(key) & (STRIPES - 1)));
+		}
+		List<ReentrantLock> held = new ArrayList<ReentrantLock>(which.size());
+		for(Integer i:which){
+			stripes[i].lock();
+			held.add(stripes[i]);
+		}
+		return held;
+	}
+
+	/* The map's point operations while keys are moving */
+
+	V get(Object key){
+		LUCICabinetMap<K,V> from = fromShards.get(fromFunction.pickShard(key));
+		LUCICabinetMap<K,V> to = toShards.get(toFunction.pickShard(key));
+		if(from != to){
+			/* A key is taken out of the old shard only after it is in the new one */
+			V ret = from.get(key);
+			if(ret != null){
+				return ret;
+			}
+		}
+		return to.get(key);
+	}
+
+	byte[] getRaw(Object key,byte[] raw){
+		LUCICabinetMap<K,V> from = fromShards.get(fromFunction.pickShard(key));
+		LUCICabinetMap<K,V> to = toShards.get(toFunction.pickShard(key));
+		if(from != to){
+			byte[] ret = from.getRaw(raw);
+			if(ret != null){
+				return ret;
+			}
+		}
+		return to.getRaw(raw);
+	}
+
+	V put(K key,V value){
+		ReentrantLock l = stripe(key);
+		l.lock();
+		try{
+			LUCICabinetMap<K,V> from = fromShards.get(fromFunction.pickShard(key));
+			LUCICabinetMap<K,V> to = toShards.get(toFunction.pickShard(key));
+			if((from == to) || !from.containsKey(key)){
+				return to.put(key,value);
+			}
+			/* This moves the key */
+			moving.writeLock().lock();
+			try{
+				V ret = to.put(key,value);
+				V old = from.remove(key);
+				return (ret == null) ? old : ret;
+			}
+			finally{
+				moving.writeLock().unlock();
+			}
+		}
+		finally{
+			l.unlock();
+		}
+	}
+
+	byte[] putRaw(Object key,byte[] raw,byte[] value){
+		ReentrantLock l = stripe(key);
+		l.lock();
+		try{
+			LUCICabinetMap<K,V> from = fromShards.get(fromFunction.pickShard(key));
+			LUCICabinetMap<K,V> to = toShards.get(toFunction.pickShard(key));
+			if((from == to) || (from.getRaw(raw) == null)){
+				return to.putRaw(raw,value);
+			}
+			/* This moves the key */
+			moving.writeLock().lock();
+			try{
+				byte[] ret = to.putRaw(raw,value);
+				byte[] old = from.removeRaw(raw);
+				return (ret == null) ? old : ret;
+			}
+			finally{
+				moving.writeLock().unlock();
+			}
+		}
+		finally{
+			l.unlock();
+		}
+	}
+
+	V remove(Object key){
+		ReentrantLock l = stripe(key);
+		l.lock();
+		try{
+			LUCICabinetMap<K,V> from = fromShards.get(fromFunction.pickShard(key));
+			LUCICabinetMap<K,V> to = toShards.get(toFunction.pickShard(key));
+			V ret = to.remove(key);
+			if(from != to){
+				V old = from.remove(key);
+				if(ret == null){
+					ret = old;
+				}
+			}
+			return ret;
+		}
+		finally{
+			l.unlock();
+		}
+	}
+
+	Change<V> update(K key,Remapper<? super K,V> remapper){
+		ReentrantLock l = stripe(key);
+		l.lock();
+		try{
+			LUCICabinetMap<K,V> from = fromShards.get(fromFunction.pickShard(key));
+			LUCICabinetMap<K,V> to = toShards.get(toFunction.pickShard(key));
+			V old = (from == to) ? null : from.get(key);
+			if(old == null){
+				return to.update(key,remapper);
+			}
+			
+			/* The key hasn't moved yet, so it moves with its new value, unless there isn't one to write */
+			Change<V> change = new Change<V>(old,remapper.remap(key,old));
+			if(change.isChanged()){
+				moving.writeLock().lock();
+				try{
+					if(change.getNewValue() != null){
+						to.put(key,change.getNewValue());
+					}
+					from.remove(key);
+				}
+				finally{
+					moving.writeLock().unlock();
+				}
+			}
+			return change;
+		}
+		finally{
+			l.unlock();
+		}
+	}
+
+	byte[] removeRaw(Object key,byte[] raw){
+		ReentrantLock l = stripe(key);
+		l.lock();
+		try{
+			LUCICabinetMap<K,V> from = fromShards.get(fromFunction.pickShard(key));
+			LUCICabinetMap<K,V> to = toShards.get(toFunction.pickShard(key));
+			byte[] ret = to.removeRaw(raw);
+			if(from != to){
+				byte[] old = from.removeRaw(raw);
+				if(ret == null){
+					ret = old;
+				}
+			}
+			return ret;
+		}
+		finally{
+			l.unlock();
+		}
+	}
+
+	/**
+	 * Keep keys from moving, so that none of them is on two shards, while every shard is counted or iterated over.
+	 * Must be followed by releaseKeys.
+	 */
+	void holdKeys(){
+		moving.readLock().lock();
+	}
+
+	void releaseKeys(){
+		moving.readLock().unlock();
+	}
+
+	/**
+	 * @return every shard of both layouts, once each
+	 */
+	List<LUCICabinetMap<K,V>> allShards(){
+		Map<LUCICabinetMap<K,V>,Boolean> seen = new IdentityHashMap<LUCICabinetMap<K,V>,Boolean>();
+		List<LUCICabinetMap<K,V>> ret = new ArrayList<LUCICabinetMap<K,V>>();
+		for(LUCICabinetMap<K,V> shard:fromShards){
+			if(seen.put(shard,Boolean.TRUE) == null){
+				ret.add(shard);
+			}
+		}
+		for(LUCICabinetMap<K,V> shard:toShards){
+			if(seen.put(shard,Boolean.TRUE) == null){
+				ret.add(shard);
+			}
+		}
+		return ret;
+	}
+
+	List<LUCICabinetMap<K,V>> getToShards(){
+		return toShards;
+	}
+
+	ShardFunction getToFunction(){
+		return toFunction;
+	}
+
+	/* Progress is kept as the number of shards in each layout, so a different migration isn't mistaken for this one,
+	 * and the old shards which are done */
+
+	private void load(){
+		if((checkpoint == null) || !checkpoint.exists()){
+			return;
+		}
+		Properties p = new Properties();
+		FileInputStream in = null;
+		try{
+			in = new FileInputStream(checkpoint);
+			p.load(in);
+		} catch (IOException e) {
+			throw new RuntimeException("Unable to read the migration checkpoint "+checkpoint+":"+e);
+		}
+		finally{
+			if(in != null){
+				try {
+					in.close();
+				} catch (IOException e) {
+				}
+			}
+		}
+		if(!String.valueOf(fromShards.size()).equals(p.getProperty("from")) ||
+				!String.valueOf(toShards.size()).equals(p.getProperty("to"))){
+			throw new IllegalArgumentException("The migration checkpoint "+checkpoint+" is for a migration from "+
+					p.getProperty("from")+" to "+p.getProperty("to")+" shards");
+		}
+		String d = p.getProperty("done","");
+		for(String s:d.split(",")){
+			if(s.length() > 0){
+				done.add(Integer.valueOf(s));
+			}
+		}
+	}
+
+	/**
+	 * Called holding the monitor. The file is replaced in one step so a crash can't leave half of it.
+	 */
+	private void save(){
+		if(checkpoint == null){
+			return;
+		}
+		Properties p = new Properties();
+		p.setProperty("from",String.valueOf(fromShards.size()));
+		p.setProperty("to",String.valueOf(toShards.size()));
+		StringBuilder d = new StringBuilder();
+		for(Integer i:done){
+			if(d.length() > 0){
+				d.append(',');
+			}
+			d.append(i);
+		}
+		p.setProperty("done",d.toString());
+		p.setProperty("finished",String.valueOf(finished));
+
+		File temp = new File(checkpoint.getPath()+".tmp");
+		FileOutputStream out = null;
+		try{
+			out = new FileOutputStream(temp);
+			p.store(out,"LUCICabinetMap_Shard migration");
+			out.getFD().sync();
+		} catch (IOException e) {
+			throw new RuntimeException("Unable to write the migration checkpoint "+checkpoint+":"+e);
+		}
+		finally{
+			if(out != null){
+				try {
+					out.close();
+				} catch (IOException e) {
+				}
+			}
+		}
+		if(!temp.renameTo(checkpoint)){
+			checkpoint.delete();
+			if(!temp.renameTo(checkpoint)){
+				throw new RuntimeException("Unable to replace the migration checkpoint "+checkpoint);
+			}
+		}
+	}
+
+	/**
+	 * @param checkpoint the checkpoint file of a migration
+	 * @return true if the migration it belongs to has finished, so the map should be made with the new layout
+	 */
+	public static boolean isFinished(File checkpoint){
+		if(!checkpoint.exists()){
+			return false;
+		}
+		Properties p = new Properties();
+		FileInputStream in = null;
+		try{
+			in = new FileInputStream(checkpoint);
+			p.load(in);
+		} catch (IOException e) {
+			throw new RuntimeException("Unable to read the migration checkpoint "+checkpoint+":"+e);
+		}
+		finally{
+			if(in != null){
+				try {
+					in.close();
+				} catch (IOException e) {
+				}
+			}
+		}
+		return Boolean.valueOf(p.getProperty("finished"));
+	}
+
+	/**
+	 * Stop moving keys, after the batch being moved. The map keeps looking in both layouts, since keys are split
+	 * between them, until the migration is picked up again with reshard.
+	 */
+	public void cancel(){
+		cancelled = true;
+	}
+
+	/**
+	 * Wait for the migration to finish, or to stop after being cancelled or failing
+	 * @param timeout how long to wait in milliseconds, 0 to wait forever
+	 * @return true if the background threads have all stopped
+	 */
+	public boolean waitFor(long timeout) throws InterruptedException{
+		long end = System.currentTimeMillis() + timeout;
+		for(Thread t:workers()){
+			if(timeout == 0){
+				t.join();
+			}
+			else{
+				long left = end - System.currentTimeMillis();
+				if(left > 0){
+					t.join(left);
+				}
+				if(t.isAlive()){
+					return false;
+				}
+			}
+		}
+		return true;
+	}
+
+	private synchronized List<Thread> workers(){
+		return new ArrayList<Thread>(workers);
+	}
+
+	/**
+	 * @param keysPerSecond the most keys to move a second, 0 for no limit. Takes effect straight away.
+	 */
+	public void setKeysPerSecond(int keysPerSecond){
+		if(keysPerSecond < 0){
+			throw new IllegalArgumentException("The migration rate must not be negative:"+keysPerSecond);
+		}
+		this.keysPerSecond = keysPerSecond;
+	}
+
+	public int getMaximumKeysPerSecond(){
+		return keysPerSecond;
+	}
+
+	/**
+	 * @return how many keys have been moved since the migration was started or picked up
+	 */
+	public long getKeysMoved(){
+		return moved.get();
+	}
+
+	/**
+	 * @return how many keys have been moved a second, on average, since the migration was started or picked up
+	 */
+	public synchronized double getKeysPerSecond(){
+		long elapsed = (finished ? ended : System.currentTimeMillis()) - started;
+		return (elapsed <= 0) ? 0.0 : (moved.get() * 1000.0) / elapsed;
+	}
+
+	/**
+	 * @return how many old shards have had all their moving keys moved, out of getShardsToMigrate
+	 */
+	public synchronized int getShardsMigrated(){
+		return done.size();
+	}
+
+	public int getShardsToMigrate(){
+		return fromShards.size();
+	}
+
+	public boolean isFinished(){
+		return finished;
+	}
+
+	public boolean isCancelled(){
+		return cancelled && !finished;
+	}
+
+	/**
+	 * @return what made the migration stop, or null if it hasn't failed
+	 */
+	public Throwable getFailure(){
+		return failure;
+	}
+}
@@ -0,0 +1,81 @@
+package edu.uci.ics.luci.lucicabinet;
+
+import java.util.ArrayList;
+import java.util.List;
+
+import org.apache.log4j.Logger;
+
+/**
+ * Shared by the pieces of one iteration that run on different databases, see LUCICabinetMap.iterate. As soon as
+ * the IteratorWorker on any of them asks to stop, the signal is given and the others stop at the next entry instead
+ * of scanning the rest of their database.
+ *
+ * <p>
+ * Databases which can't watch the signal themselves, such as remote ones, register a listener that is told when
+ * it is given.
+ */
+public class StopSignal{
+
+	private volatile boolean stopped = false;
+	private List<Runnable> listeners = new ArrayList<Runnable>();
+
+	private static transient volatile Logger log = null;
+	public static Logger getLog(){
+		if(log == null){
+			log = Logger.getLogger(StopSignal.class);
+		}
+		return log;
+	}
+
+	/**
+	 * Give the signal. The listeners are told on the calling thread, the first time only.
+	 */
+	public void stop(){
+		List<Runnable> tell;
+		synchronized(this){
+			if(stopped){
+				return;
+			}
+			stopped = true;
+			tell = listeners;
+			listeners = null;
+		}
+		for(Runnable r:tell){
+			try{
+				r.run();
+			}
+			catch(RuntimeException e){
+				getLog().error("Unable to pass on a stop signal:"+e);
+			}
+		}
+	}
+
+	/**
+	 * @return true once the signal has been given
+	 */
+	public boolean isStopped(){
+		return stopped;
+	}
+
+	/**
+	 * @param listener told when the signal is given, straight away if it already has been
+	 */
+	public void whenStopped(Runnable listener){
+		synchronized(this){
+			if(!stopped){
+				listeners.add(listener);
+				return;
+			}
+		}
+		listener.run();
+	}
+
+	/**
+	 * @param listener a listener that no longer needs to be told
+	 */
+	public synchronized void remove(Runnable listener){
+		if(listeners != null){
+			listeners.remove(listener);
+		}
+	}
+}
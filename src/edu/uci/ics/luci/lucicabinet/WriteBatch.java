@@ -0,0 +1,93 @@
+package edu.uci.ics.luci.lucicabinet;
+
+import java.io.Serializable;
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * A WriteBatch is an ordered list of puts and removes which are applied to a LUCICabinetMap together.
+ * The remote client uses it to send many asynchronous writes to a LUCI_Butler in a single frame and the
+ * local databases apply a batch while holding their write lock once, inside a single engine transaction.
+ *
+ * <p>
+ * Operations are applied in the order that they were added, so a put followed by a remove of the same key
+ * leaves the key removed.
+ *
+ * K is the key type
+ * V is the value type
+ */
+public class WriteBatch<K extends Serializable,V extends Serializable> implements Serializable{
+
+	/**
+	 *
+	 */
+	private static final long serialVersionUID = -3790286915262376521L;
+
+	/**
+	 * A single put or remove in a WriteBatch
+	 */
+	public static class Operation<K extends Serializable,V extends Serializable> implements Serializable{
+
+		/**
+		 *
+		 */
+		private static final long serialVersionUID = 7143098823560613208L;
+
+		public final boolean remove;
+		public final K key;
+		public final V value;
+
+		Operation(boolean remove,K key,V value){
+			this.remove = remove;
+			this.key = key;
+			this.value = value;
+		}
+	}
+
+	private List<Operation<K,V>> operations = null;
+
+	public WriteBatch(){
+		this(16);
+	}
+
+	/**
+	 * @param expectedSize a hint about how many operations are going to be added
+	 */
+	public WriteBatch(int expectedSize){
+		operations = new ArrayList<Operation<K,V>>(expectedSize);
+	}
+
+	/**
+	 * Add a put to the end of the batch
+	 * @param key
+	 * @param value
+	 */
+	public void put(K key,V value){
+		operations.add(new Operation<K,V>(false,key,value));
+	}
+
+	/**
+	 * Add a remove to the end of the batch
+	 * @param key
+	 */
+	@SuppressWarnings("unchecked")
+	public void remove(Object key){
+		operations.add(new Operation<K,V>(true,(K) key,null));
+	}
+
+	/**
+	 * @return the operations in this batch in the order that they should be applied
+	 */
+	public List<Operation<K,V>> getOperations(){
+		return operations;
+	}
+
+	public int size(){
+		return operations.size();
+	}
+
+	public boolean isEmpty(){
+		return operations.isEmpty();
+	}
+
+}
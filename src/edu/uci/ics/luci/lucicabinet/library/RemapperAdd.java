@@ -0,0 +1,27 @@
+package edu.uci.ics.luci.lucicabinet.library;
+
+import edu.uci.ics.luci.lucicabinet.Remapper;
+
+/**
+ * Adds to a counter, which starts at 0 when there is no entry yet. With computeAtomic a counter is moved on in one
+ * step, and one round trip to a remote database, however many clients are counting at once.
+ * 
+ * K is the key type
+ */
+public class RemapperAdd<K> implements Remapper<K,Long>{
+	
+	private static final long serialVersionUID = -6468206281942736102L;
+	
+	private final long amount;
+	
+	/**
+	 * @param amount how much to add, negative to take away
+	 */
+	public RemapperAdd(long amount){
+		this.amount = amount;
+	}
+	
+	public Long remap(K key,Long value){
+		return((value == null) ? amount : value + amount);
+	}
+}
@@ -0,0 +1,80 @@
+package edu.uci.ics.luci.lucicabinet.library;
+
+import java.util.Arrays;
+import java.util.Comparator;
+
+import edu.uci.ics.luci.lucicabinet.ShardFunction;
+
+/** A Shard Function that places the shards on a hash ring, each at many points called virtual nodes, and sends a
+ * key to the shard which owns the first point at or after the key's hash.
+ *
+ * <p>
+ * Adding a shard at the end of the list only moves the keys that now fall on its points, about 1/n of them, and
+ * they all move to the new shard. Removing the last shard likewise only moves its own keys. More virtual nodes give
+ * a more even spread of keys at the cost of a bigger ring to search.
+ */
+public class ShardFunctionConsistent extends ShardFunction{
+
+	/**
+	 *
+	 */
+	private static final long serialVersionUID = -6107358512230693624L;
+
+	public static final int DEFAULT_VIRTUAL_NODES = 160;
+
+	/* The points on the ring in order, and the shard that owns each */
+	private long[] points;
+	private int[] owners;
+
+	public ShardFunctionConsistent(int numberOfShards) {
+		this(numberOfShards,DEFAULT_VIRTUAL_NODES);
+	}
+
+	/**
+	 * @param numberOfShards how many shards there are
+	 * @param virtualNodes how many points each shard has on the ring
+	 */
+	public ShardFunctionConsistent(int numberOfShards,int virtualNodes) {
+		if(numberOfShards < 1){
+			throw new IllegalArgumentException("There must be at least one shard:"+numberOfShards);
+		}
+		if(virtualNodes < 1){
+			throw new IllegalArgumentException("Each shard needs at least one virtual node:"+virtualNodes);
+		}
+
+		/* A point depends only on its shard and its number, so it stays put when other shards come and go */
+		final long[] ring = new long[numberOfShards*virtualNodes];
+		Integer[] order = new Integer[ring.length];
+		for(int shard = 0; shard < numberOfShards; shard++){
+			for(int v = 0; v < virtualNodes; v++){
+				ring[shard*virtualNodes+v] = mix((((long) shard) << 32) | v);
+				order[shard*virtualNodes+v] = shard*virtualNodes+v;
+			}
+		}
+		Arrays.sort(order,new Comparator<Integer>(){
+			public int compare(Integer a, Integer b) {
+				return (ring[a] < ring[b]) ? -1 : ((ring[a] > ring[b]) ? 1 : a.compareTo(b));
+			}
+		});
+
+		points = new long[ring.length];
+		owners = new int[ring.length];
+		for(int i = 0; i < order.length; i++){
+			points[i] = ring[order[i]];
+			owners[i] = order[i] / virtualNodes;
+		}
+	}
+
+	@Override
+	public int pickShard(Object key) {
+		int at = Arrays.binarySearch(points,hash(key));
+		if(at < 0){
+			at = -at - 1;
+		}
+		if(at == points.length){
+			at = 0;
+		}
+		return owners[at];
+	}
+
+}
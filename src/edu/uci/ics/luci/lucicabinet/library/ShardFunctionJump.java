@@ -0,0 +1,42 @@
+package edu.uci.ics.luci.lucicabinet.library;
+
+import edu.uci.ics.luci.lucicabinet.ShardFunction;
+
+/** A Shard Function using the jump consistent hash of Lamping and Veach. It needs no memory beyond the number of
+ * shards and spreads keys almost perfectly evenly.
+ *
+ * <p>
+ * Adding a shard at the end of the list moves only the 1/n of the keys that go to the new shard, and removing the
+ * last shard moves only its keys. Shards can't be taken out of the middle of the list, for that use
+ * ShardFunctionConsistent or ShardFunctionRendezvous.
+ */
+public class ShardFunctionJump extends ShardFunction{
+
+	/**
+	 *
+	 */
+	private static final long serialVersionUID = 2190542118043920786L;
+
+	private int max;
+
+	public ShardFunctionJump(int numberOfShards) {
+		if(numberOfShards < 1){
+			throw new IllegalArgumentException("There must be at least one shard:"+numberOfShards);
+		}
+		max = numberOfShards;
+	}
+
+	@Override
+	public int pickShard(Object key) {
+		long h = hash(key);
+		long b = -1;
+		long j = 0;
+		while(j < max){
+			b = j;
+			h = h * 2862933555777941757L + 1;
+			j = (long) ((b + 1) * (((double) (1L << 31)) / ((double) ((h >>> 33) + 1))));
+		}
+		return (int) b;
+	}
+
+}
@@ -0,0 +1,90 @@
+package edu.uci.ics.luci.lucicabinet.library;
+
+import java.util.Arrays;
+import java.util.List;
+
+import edu.uci.ics.luci.lucicabinet.ShardFunction;
+
+/** A Shard Function that splits the keys into ranges at split points, so that neighbouring keys go to the same shard
+ * and a range of keys is on as few shards as possible. With n split points there are n+1 shards: shard 0 holds the
+ * keys below the first split point, shard i the keys from split point i-1 up to but not including split point i,
+ * and the last shard the keys from the last split point up.
+ *
+ * <p>
+ * Keys and split points must be Comparable with each other. Unlike a hash, the split points have to be chosen to
+ * suit the keys or the shards will be uneven.
+ */
+public class ShardFunctionRange extends ShardFunction{
+
+	/**
+	 *
+	 */
+	private static final long serialVersionUID = -3306958126815472618L;
+
+	private Object[] splitPoints;
+
+	/**
+	 * @param splitPoints the keys at which a new shard starts, in increasing order
+	 */
+	public ShardFunctionRange(List<? extends Comparable<?>> splitPoints) {
+		this.splitPoints = splitPoints.toArray();
+		for(int i = 1; i < this.splitPoints.length; i++){
+			if(compare(this.splitPoints[i-1],this.splitPoints[i]) >= 0){
+				throw new IllegalArgumentException("Split points must be in increasing order:"+Arrays.toString(this.splitPoints));
+			}
+		}
+	}
+
+	@SuppressWarnings("unchecked")
+	private static int compare(Object a,Object b){
+		return ((Comparable<Object>) a).compareTo(b);
+	}
+
+	/**
+	 * @return the number of split points below or at <param>key</param>, or strictly below it
+	 */
+	private int count(Object key,boolean atToo){
+		int low = 0;
+		int high = splitPoints.length;
+		while(low < high){
+			int mid = (low + high) >>> 1;
+			int c = compare(splitPoints[mid],key);
+			if((c < 0) || (atToo && (c == 0))){
+				low = mid + 1;
+			}
+			else{
+				high = mid;
+			}
+		}
+		return low;
+	}
+
+	@Override
+	public int pickShard(Object key) {
+		return count(key,true);
+	}
+
+	/**
+	 * @return the shards from the one holding <param>from</param> to the last one starting below <param>to</param>
+	 */
+	@Override
+	public int[] pickShards(Object from,Object to){
+		int first = (from == null) ? 0 : count(from,true);
+		int last = (to == null) ? splitPoints.length : count(to,false);
+		if(last < first){
+			return new int[0];
+		}
+		int[] ret = new int[last - first + 1];
+		for(int i = 0; i < ret.length; i++){
+			ret[i] = first + i;
+		}
+		return ret;
+	}
+
+	/**
+	 * @return how many shards the keys are split over
+	 */
+	public int getNumberOfShards(){
+		return splitPoints.length + 1;
+	}
+}
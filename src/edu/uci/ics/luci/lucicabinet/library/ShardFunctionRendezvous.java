@@ -0,0 +1,48 @@
+package edu.uci.ics.luci.lucicabinet.library;
+
+import edu.uci.ics.luci.lucicabinet.ShardFunction;
+
+/** A Shard Function using rendezvous, or highest random weight, hashing. Every shard gives the key a score and the
+ * key goes to the shard with the highest.
+ *
+ * <p>
+ * A key's score on a shard doesn't depend on the other shards, so adding a shard only moves the keys that now
+ * score highest on it, and removing a shard only moves its own keys. Picking a shard costs time proportional to the
+ * number of shards, which is fine for the tens of shards a LUCICabinetMap_Shard usually has.
+ */
+public class ShardFunctionRendezvous extends ShardFunction{
+
+	/**
+	 *
+	 */
+	private static final long serialVersionUID = -3807468203975584417L;
+
+	/* A different seed for each shard, so that each shard scores keys differently */
+	private long[] seeds;
+
+	public ShardFunctionRendezvous(int numberOfShards) {
+		if(numberOfShards < 1){
+			throw new IllegalArgumentException("There must be at least one shard:"+numberOfShards);
+		}
+		seeds = new long[numberOfShards];
+		for(int i = 0; i < numberOfShards; i++){
+			seeds[i] = mix(i + 0x9e3779b97f4a7c15L);
+		}
+	}
+
+	@Override
+	public int pickShard(Object key) {
+		long h = hash(key);
+		int best = 0;
+		long bestScore = Long.MIN_VALUE;
+		for(int i = 0; i < seeds.length; i++){
+			long score = mix(h ^ seeds[i]);
+			if(score > bestScore){
+				best = i;
+				bestScore = score;
+			}
+		}
+		return best;
+	}
+
+}
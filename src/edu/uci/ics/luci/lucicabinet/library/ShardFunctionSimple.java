@@ -5,6 +5,11 @@ import edu.uci.ics.luci.lucicabinet.ShardFunction;
 /** A Basic Shard Function Implementation that sends requests for a key-value pair to a shard based on the
  * hashcode of the key
  * 
+ * <p>
+ * Changing the number of shards moves almost every key, and keys with patterned hash codes, such as Integers that
+ * are all multiples of the number of shards, all land on one shard. ShardFunctionConsistent, ShardFunctionJump and
+ * ShardFunctionRendezvous don't have either problem.
+ * 
  * @author djp3
  *
  */
@@ -23,7 +28,9 @@ public class ShardFunctionSimple extends ShardFunction{
 
 	@Override
 	public int pickShard(Object key) {
-		return (key.hashCode() % max);
+		/* Negative hash codes wrap around rather than giving a negative shard, other keys stay where they were */
+		int which = key.hashCode() % max;
+		return (which < 0) ? which + max : which;
 	}
 
 }
@@ -0,0 +1,126 @@
+package edu.uci.ics.luci.lucicabinet.library;
+
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.Map;
+
+import edu.uci.ics.luci.lucicabinet.RateLimiter;
+
+/**
+ * This is an implementation of RateLimiter that gives every client its own token bucket. A bucket holds up to burst
+ * tokens and refills at rate tokens a second. A command is admitted if its client's bucket has enough tokens, and
+ * takes its cost out of the bucket. Work charged after a command was admitted can leave a bucket in debt, which holds
+ * up that client's next commands until it has been paid back.
+ *
+ * <p>
+ * Clients can be given their own limits with setLimit, by id or by address. The object can then be passed to
+ * LUCI_Butler along with an AccessControl.
+ */
+public class TokenBucketRateLimiter extends RateLimiter {
+
+	/** Buckets which have filled back up are forgotten once there are this many */
+	private static final int MAX_BUCKETS = 10000;
+
+	private static class Bucket{
+		double rate;
+		double burst;
+		double tokens;
+		long last;
+
+		Bucket(double rate,double burst,long now){
+			this.rate = rate;
+			this.burst = burst;
+			this.tokens = burst;
+			this.last = now;
+		}
+
+		void refill(long now){
+			tokens = Math.min(burst, tokens + (((now - last) / 1000000000.0) * rate));
+			last = now;
+		}
+	}
+
+	private double rate;
+	private double burst;
+	private Map<String,double[]> limits = new HashMap<String,double[]>();
+	private Map<String,Bucket> buckets = new HashMap<String,Bucket>();
+
+	/**
+	 * @param rate how many tokens a second each client gets, which is how many single key commands it may send
+	 * @param burst how many tokens a client can save up
+	 */
+	public TokenBucketRateLimiter(double rate,double burst){
+		check(rate,burst);
+		this.rate = rate;
+		this.burst = burst;
+	}
+
+	private static void check(double rate,double burst){
+		if(rate <= 0){
+			throw new IllegalArgumentException("Rate must be positive:"+rate);
+		}
+		if(burst < 1){
+			throw new IllegalArgumentException("Burst must be at least 1:"+burst);
+		}
+	}
+
+	/**
+	 * Give one client a limit of its own
+	 * @param source the client id, or the address as AccessControl sees it
+	 * @param rate how many tokens a second the client gets
+	 * @param burst how many tokens the client can save up
+	 */
+	public synchronized void setLimit(String source,double rate,double burst){
+		check(rate,burst);
+		limits.put(source,new double[]{rate,burst});
+		buckets.remove(source);
+	}
+
+	private Bucket bucket(String source,long now){
+		Bucket b = buckets.get(source);
+		if(b == null){
+			if(buckets.size() >= MAX_BUCKETS){
+				forgetFull(now);
+			}
+			double[] limit = limits.get(source);
+			b = (limit == null) ? new Bucket(rate,burst,now) : new Bucket(limit[0],limit[1],now);
+			buckets.put(source,b);
+		}
+		else{
+			b.refill(now);
+		}
+		return b;
+	}
+
+	/**
+	 * A full bucket is the same as a new one
+	 */
+	private void forgetFull(long now){
+		Iterator<Bucket> i = buckets.values().iterator();
+		while(i.hasNext()){
+			Bucket b = i.next();
+			b.refill(now);
+			if(b.tokens >= b.burst){
+				i.remove();
+			}
+		}
+	}
+
+	@Override
+	public synchronized boolean admit(String source,int cost) {
+		Bucket b = bucket(source,System.nanoTime());
+		/* A command which costs more than the bucket holds can still run when the bucket is full */
+		if(b.tokens < Math.min(cost,b.burst)){
+			return false;
+		}
+		b.tokens -= cost;
+		return true;
+	}
+
+	@Override
+	public synchronized void charge(String source,int cost) {
+		Bucket b = bucket(source,System.nanoTime());
+		/* Never more than one burst of debt, so that one huge batch can't lock a client out for long */
+		b.tokens = Math.max(b.tokens - cost, -b.burst);
+	}
+}
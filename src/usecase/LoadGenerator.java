@@ -0,0 +1,528 @@
+package usecase;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Random;
+import java.util.concurrent.locks.LockSupport;
+
+import edu.uci.ics.luci.lucicabinet.LUCICabinetHDB;
+import edu.uci.ics.luci.lucicabinet.LUCICabinetMap;
+import edu.uci.ics.luci.lucicabinet.LUCICabinetMap_Remote;
+import edu.uci.ics.luci.lucicabinet.LUCI_Butler;
+import edu.uci.ics.luci.lucicabinet.ScanCursor;
+import edu.uci.ics.luci.lucicabinet.ScanIterator;
+import edu.uci.ics.luci.lucicabinet.library.SimplestAccessControl;
+
+/**
+ * Drives local LUCI_Butlers with many concurrent LUCICabinetMap_Remote clients, the way YCSB drives a key-value
+ * store. The records are spread over the butlers by key. Each client has its own connection to every butler and
+ * picks operations from a read/update/scan mix and keys from a Zipfian or uniform distribution.
+ *
+ * <p>
+ * With a target rate the load is open loop. Operations are scheduled at fixed intervals whether or not earlier ones
+ * have finished, and response times are measured from when an operation was scheduled. A stall then shows up in the
+ * latency of every operation that should have run during it, rather than silently lowering the request rate
+ * ("coordinated omission"). Service times, measured from when an operation was actually sent, are reported too.
+ * Without a target rate each client sends its next operation as soon as the last one finishes, and the two are the
+ * same.
+ *
+ * <p>
+ * Settings are given as name=value arguments, for example:
+ * <pre>
+ * java usecase.LoadGenerator workload=B distribution=zipfian clients=32 butlers=2 target=20000 seconds=60
+ * </pre>
+ * <ul>
+ * <li>workload: A (50% reads, 50% updates), B (95% reads), C (only reads), E (95% scans, 5% updates)</li>
+ * <li>readproportion, updateproportion, scanproportion: override the mix of the workload</li>
+ * <li>recordcount: how many records are loaded before the run, 100000 by default</li>
+ * <li>distribution: zipfian (the default) or uniform</li>
+ * <li>zipfianconstant: how skewed the Zipfian distribution is, 0.99 by default</li>
+ * <li>valuesize: how many bytes each value has, 100 by default</li>
+ * <li>scanlength: how many records a scan reads, 100 by default</li>
+ * <li>clients: how many clients run at once, 16 by default</li>
+ * <li>butlers: how many LUCI_Butlers the records are spread over, 1 by default</li>
+ * <li>port: the port of the first LUCI_Butler, the rest follow it, 8181 by default</li>
+ * <li>target: the total operations a second to schedule, 0 (the default) to run closed loop</li>
+ * <li>seconds: how long to run, 30 by default</li>
+ * <li>async: true to send updates without waiting for them, false by default</li>
+ * <li>inprocess: true to let the clients call the butlers directly, since they are in the same JVM, false by default</li>
+ * </ul>
+ */
+public class LoadGenerator {
+
+	private static final String[] OPERATIONS = {"READ","UPDATE","SCAN"};
+	private static final int READ = 0;
+	private static final int UPDATE = 1;
+	private static final int SCAN = 2;
+
+	/**
+	 * Counts latencies in microseconds, sixteen buckets for every power of two, so percentiles are accurate to
+	 * within about 6%. Each client keeps its own and they are added up at the end.
+	 */
+	static class Histogram{
+		private static final int SUB = 16;
+		private static final int BUCKETS = SUB + (40 * SUB);
+
+		private long[] counts = new long[BUCKETS];
+		private long total = 0;
+		private long max = 0;
+		private double sum = 0;
+
+		private static int bucket(long micros){
+			if(micros < SUB){
+				return (int) Math.max(micros,0);
+			}
+			int exp = 63 - Long.numberOfLeadingZeros(micros);
+			int sub = (int) ((micros >> (exp - 4)) & (SUB - 1));
+			return Math.min(SUB + ((exp - 4) * SUB) + sub, BUCKETS - 1);
+		}
+
+		private static long limit(int bucket){
+			if(bucket < SUB){
+				return bucket;
+			}
+			int exp = ((bucket - SUB) / SUB) + 4;
+			int sub = (bucket - SUB) % SUB;
+			return ((long) (SUB + sub + 1) << (exp - 4)) - 1;
+		}
+
+		void record(long nanos){
+			long micros = nanos / 1000;
+			counts[bucket(micros)]++;
+			total++;
+			sum += micros;
+			max = Math.max(max,micros);
+		}
+
+		void add(Histogram h){
+			for(int i = 0; i < BUCKETS; i++){
+				counts[i] += h.counts[i];
+			}
+			total += h.total;
+			sum += h.sum;
+			max = Math.max(max,h.max);
+		}
+
+		long getCount(){
+			return total;
+		}
+
+		/**
+		 * @param percentile from 0 to 100
+		 * @return the latency in microseconds which that percent of the operations were at or under
+		 */
+		long percentile(double percentile){
+			long rank = (long) Math.ceil((percentile / 100.0) * total);
+			long seen = 0;
+			for(int i = 0; i < BUCKETS; i++){
+				seen += counts[i];
+				if((seen >= rank) && (seen > 0)){
+					return Math.min(limit(i),max);
+				}
+			}
+			return max;
+		}
+
+		String summary(){
+			if(total == 0){
+				return "none";
+			}
+			return "avg="+Math.round(sum/total)+"us p50="+percentile(50)+"us p90="+percentile(90)+"us p99="+percentile(99)+
+					"us p99.9="+percentile(99.9)+"us max="+max+"us";
+		}
+	}
+
+	/**
+	 * Picks keys from 0 to n-1, with a few keys picked far more often than the rest, following the algorithm from
+	 * Gray et al, "Quickly Generating Billion-Record Synthetic Databases", which YCSB also uses. The popular keys are
+	 * scattered over the key space by hashing, so that they don't all land on the same butler.
+	 */
+	static class ZipfianGenerator{
+		private final long n;
+		private final double theta;
+		private final double alpha;
+		private final double zetan;
+		private final double eta;
+
+		ZipfianGenerator(long n,double theta){
+			this.n = n;
+			this.theta = theta;
+			this.alpha = 1.0 / (1.0 - theta);
+			this.zetan = zeta(n,theta);
+			double zeta2 = zeta(2,theta);
+			this.eta = (1 - Math.pow(2.0 / n, 1 - theta)) / (1 - (zeta2 / zetan));
+		}
+
+		private static double zeta(long n,double theta){
+			double sum = 0;
+			for(long i = 1; i <= n; i++){
+				sum += 1 / Math.pow(i,theta);
+			}
+			return sum;
+		}
+
+		/**
+		 * @return how popular the next key is, 0 is the most popular
+		 */
+		long nextRank(Random random){
+			double u = random.nextDouble();
+			double uz = u * zetan;
+			if(uz < 1.0){
+				return 0;
+			}
+			if(uz < 1.0 + Math.pow(0.5,theta)){
+				return 1;
+			}
+			return Math.min(n - 1, (long) (n * Math.pow((eta * u) - eta + 1, alpha)));
+		}
+
+		long next(Random random){
+			return scramble(nextRank(random)) % n;
+		}
+
+		/**
+		 * FNV-1a over the bytes of a long
+		 */
+		private static long scramble(long x){
+			long h = 0xCBF29CE484222325L;
+			for(int i = 0; i < 8; i++){
+				h ^= (x & 0xff);
+				h *= 0x100000001B3L;
+				x >>= 8;
+			}
+			return h & Long.MAX_VALUE;
+		}
+	}
+
+	/** The settings for a run */
+	static class Workload{
+		double[] proportions = {0.5, 0.5, 0.0};
+		int recordCount = 100000;
+		boolean zipfian = true;
+		double zipfianConstant = 0.99;
+		int valueSize = 100;
+		int scanLength = 100;
+		int clients = 16;
+		int butlers = 1;
+		int port = 8181;
+		double target = 0;
+		int seconds = 30;
+		boolean async = false;
+		boolean inProcess = false;
+
+		Workload(Map<String,String> settings){
+			String w = settings.get("workload");
+			if(w != null){
+				if(w.equalsIgnoreCase("A")){
+					proportions = new double[]{0.5, 0.5, 0.0};
+				}
+				else if(w.equalsIgnoreCase("B")){
+					proportions = new double[]{0.95, 0.05, 0.0};
+				}
+				else if(w.equalsIgnoreCase("C")){
+					proportions = new double[]{1.0, 0.0, 0.0};
+				}
+				else if(w.equalsIgnoreCase("E")){
+					proportions = new double[]{0.0, 0.05, 0.95};
+				}
+				else{
+					throw new IllegalArgumentException("Unknown workload:"+w);
+				}
+			}
+			if(settings.containsKey("readproportion")){
+				proportions[READ] = Double.parseDouble(settings.get("readproportion"));
+			}
+			if(settings.containsKey("updateproportion")){
+				proportions[UPDATE] = Double.parseDouble(settings.get("updateproportion"));
+			}
+			if(settings.containsKey("scanproportion")){
+				proportions[SCAN] = Double.parseDouble(settings.get("scanproportion"));
+			}
+			if(settings.containsKey("distribution")){
+				String d = settings.get("distribution");
+				if(d.equalsIgnoreCase("uniform")){
+					zipfian = false;
+				}
+				else if(!d.equalsIgnoreCase("zipfian")){
+					throw new IllegalArgumentException("Unknown distribution:"+d);
+				}
+			}
+			recordCount = integer(settings,"recordcount",recordCount);
+			zipfianConstant = settings.containsKey("zipfianconstant") ? Double.parseDouble(settings.get("zipfianconstant")) : zipfianConstant;
+			valueSize = integer(settings,"valuesize",valueSize);
+			scanLength = integer(settings,"scanlength",scanLength);
+			clients = integer(settings,"clients",clients);
+			butlers = integer(settings,"butlers",butlers);
+			port = integer(settings,"port",port);
+			target = settings.containsKey("target") ? Double.parseDouble(settings.get("target")) : target;
+			seconds = integer(settings,"seconds",seconds);
+			async = settings.containsKey("async") ? Boolean.parseBoolean(settings.get("async")) : async;
+			inProcess = settings.containsKey("inprocess") ? Boolean.parseBoolean(settings.get("inprocess")) : inProcess;
+
+			double total = proportions[READ] + proportions[UPDATE] + proportions[SCAN];
+			if(total <= 0){
+				throw new IllegalArgumentException("The operation mix is empty");
+			}
+			for(int i = 0; i < proportions.length; i++){
+				proportions[i] /= total;
+			}
+			if((recordCount < 1) || (clients < 1) || (butlers < 1) || (seconds < 1) || (valueSize < 0) || (scanLength < 1)){
+				throw new IllegalArgumentException("Settings out of range:"+settings);
+			}
+		}
+
+		private static int integer(Map<String,String> settings,String name,int otherwise){
+			return settings.containsKey(name) ? Integer.parseInt(settings.get(name)) : otherwise;
+		}
+
+		public String toString(){
+			return "read="+proportions[READ]+" update="+proportions[UPDATE]+" scan="+proportions[SCAN]+" records="+recordCount+
+					" distribution="+(zipfian ? "zipfian("+zipfianConstant+")" : "uniform")+" valuesize="+valueSize+
+					" scanlength="+scanLength+" clients="+clients+" butlers="+butlers+
+					" target="+((target > 0) ? target+"/s" : "closed loop")+" seconds="+seconds+" async="+async+" inprocess="+inProcess;
+		}
+	}
+
+	/**
+	 * One client, with a connection to every butler
+	 */
+	static class Client implements Runnable{
+		private final Workload workload;
+		private final List<LUCICabinetMap_Remote<Integer,byte[]>> remotes;
+		private final ZipfianGenerator zipfian;
+		private final Random random;
+		private final long start;
+		private final long end;
+		private final long interval;
+
+		final Histogram[] service = new Histogram[OPERATIONS.length];
+		final Histogram[] response = new Histogram[OPERATIONS.length];
+		long errors = 0;
+		long late = 0;
+
+		/**
+		 * @param start when the run starts, from System.nanoTime
+		 * @param offset how far into the first interval this client's first operation is, so the clients are spread out
+		 */
+		Client(Workload workload,List<LUCICabinetMap_Remote<Integer,byte[]>> remotes,ZipfianGenerator zipfian,long seed,long start,double offset){
+			this.workload = workload;
+			this.remotes = remotes;
+			this.zipfian = zipfian;
+			this.random = new Random(seed);
+			this.interval = (workload.target > 0) ? (long) ((1000000000.0 * workload.clients) / workload.target) : 0;
+			this.start = start + (long) (offset * interval);
+			this.end = start + (workload.seconds * 1000000000L);
+			for(int i = 0; i < OPERATIONS.length; i++){
+				service[i] = new Histogram();
+				response[i] = new Histogram();
+			}
+		}
+
+		private int nextKey(){
+			if(zipfian != null){
+				return (int) zipfian.next(random);
+			}
+			return random.nextInt(workload.recordCount);
+		}
+
+		private int nextOperation(){
+			double u = random.nextDouble();
+			if(u < workload.proportions[READ]){
+				return READ;
+			}
+			if(u < workload.proportions[READ] + workload.proportions[UPDATE]){
+				return UPDATE;
+			}
+			return SCAN;
+		}
+
+		private LUCICabinetMap_Remote<Integer,byte[]> remoteFor(int key){
+			return remotes.get(key % remotes.size());
+		}
+
+		public void run() {
+			byte[] value = new byte[workload.valueSize];
+			long scheduled = start;
+			while(true){
+				long intended;
+				if(interval > 0){
+					intended = scheduled;
+					scheduled += interval;
+					long wait = intended - System.nanoTime();
+					if(wait > 0){
+						LockSupport.parkNanos(wait);
+					}
+					else if(wait < -interval){
+						late++;
+					}
+				}
+				else{
+					intended = System.nanoTime();
+				}
+				if(intended >= end){
+					break;
+				}
+
+				int op = nextOperation();
+				long sent = System.nanoTime();
+				try{
+					if(op == READ){
+						int key = nextKey();
+						remoteFor(key).get(key);
+					}
+					else if(op == UPDATE){
+						int key = nextKey();
+						random.nextBytes(value);
+						remoteFor(key).put(key,value);
+					}
+					else{
+						/* Entries aren't kept in order, so a scan starts at a random place on a random butler */
+						LUCICabinetMap_Remote<Integer,byte[]> remote = remotes.get(random.nextInt(remotes.size()));
+						long records = workload.recordCount / remotes.size();
+						long from = Math.max(0, (long) (random.nextDouble() * (records - workload.scanLength)));
+						ScanIterator<Integer,byte[]> scan = remote.scan((from == 0) ? null : new ScanCursor(from,null),workload.scanLength,1);
+						try{
+							for(int i = 0; (i < workload.scanLength) && scan.hasNext(); i++){
+								scan.next();
+							}
+						}
+						finally{
+							scan.close();
+						}
+					}
+				} catch (RuntimeException e) {
+					errors++;
+				}
+				long finished = System.nanoTime();
+				service[op].record(finished - sent);
+				response[op].record(finished - intended);
+			}
+		}
+	}
+
+	private static Map<String,String> parse(String[] args){
+		Map<String,String> settings = new HashMap<String,String>();
+		for(String arg:args){
+			int equals = arg.indexOf('=');
+			if(equals <= 0){
+				throw new IllegalArgumentException("Settings are given as name=value:"+arg);
+			}
+			settings.put(arg.substring(0,equals).toLowerCase(),arg.substring(equals+1));
+		}
+		return settings;
+	}
+
+	public static void main(String[] args) {
+		Workload workload = new Workload(parse(args));
+		System.out.println("Workload: "+workload);
+
+		/* Set up the server side databases and load the records straight into them */
+		System.out.println("Loading "+workload.recordCount+" records");
+		long loadStart = System.currentTimeMillis();
+		Random random = new Random(0);
+		byte[] value = new byte[workload.valueSize];
+		List<LUCICabinetMap<Integer,byte[]>> dbs = new ArrayList<LUCICabinetMap<Integer,byte[]>>();
+		for(int i = 0; i < workload.butlers; i++){
+			LUCICabinetMap<Integer,byte[]> db = new LUCICabinetHDB<Integer,byte[]>("loadgenerator"+i+".tch",workload.async);
+			db.clear();
+			for(int key = i; key < workload.recordCount; key += workload.butlers){
+				random.nextBytes(value);
+				db.put(key,value);
+			}
+			db.sizeLong();
+			dbs.add(db);
+		}
+		System.out.println("Loaded in "+(System.currentTimeMillis()-loadStart)+" milliseconds");
+
+		/* Put each database behind its own butler */
+		List<LUCI_Butler<Integer,byte[]>> butlers = new ArrayList<LUCI_Butler<Integer,byte[]>>();
+		for(int i = 0; i < workload.butlers; i++){
+			LUCI_Butler<Integer,byte[]> butler = new LUCI_Butler<Integer,byte[]>(dbs.get(i),workload.port+i,new SimplestAccessControl());
+			butler.initialize();
+			butlers.add(butler);
+		}
+
+		ZipfianGenerator zipfian = workload.zipfian ? new ZipfianGenerator(workload.recordCount,workload.zipfianConstant) : null;
+
+		/* Connect the clients */
+		List<List<LUCICabinetMap_Remote<Integer,byte[]>>> connections = new ArrayList<List<LUCICabinetMap_Remote<Integer,byte[]>>>();
+		for(int c = 0; c < workload.clients; c++){
+			List<LUCICabinetMap_Remote<Integer,byte[]>> remotes = new ArrayList<LUCICabinetMap_Remote<Integer,byte[]>>();
+			for(int i = 0; i < workload.butlers; i++){
+				LUCICabinetMap_Remote<Integer,byte[]> remote = new LUCICabinetMap_Remote<Integer,byte[]>("localhost",workload.port+i,workload.async);
+				/* The butlers are in this JVM, but the point is to load them the way remote clients would */
+				remote.setInProcess(workload.inProcess);
+				remotes.add(remote);
+			}
+			connections.add(remotes);
+		}
+
+		/* Run */
+		System.out.println("Running for "+workload.seconds+" seconds");
+		long start = System.nanoTime() + 100000000L;
+		Client[] clients = new Client[workload.clients];
+		Thread[] threads = new Thread[workload.clients];
+		for(int c = 0; c < workload.clients; c++){
+			clients[c] = new Client(workload,connections.get(c),zipfian,c+1,start,((double) c) / workload.clients);
+			threads[c] = new Thread(clients[c]);
+			threads[c].setName("LoadGenerator Client "+c);
+			threads[c].start();
+		}
+		for(int c = 0; c < workload.clients; c++){
+			try {
+				threads[c].join();
+			} catch (InterruptedException e) {
+				Thread.currentThread().interrupt();
+				System.out.println("Interrupted while waiting for the clients");
+			}
+		}
+		double elapsed = (System.nanoTime() - start) / 1000000000.0;
+
+		/* Report */
+		long operations = 0;
+		long errors = 0;
+		long late = 0;
+		for(Client c:clients){
+			errors += c.errors;
+			late += c.late;
+		}
+		for(int op = 0; op < OPERATIONS.length; op++){
+			Histogram service = new Histogram();
+			Histogram response = new Histogram();
+			for(Client c:clients){
+				service.add(c.service[op]);
+				response.add(c.response[op]);
+			}
+			if(service.getCount() == 0){
+				continue;
+			}
+			operations += service.getCount();
+			System.out.println(OPERATIONS[op]+": "+service.getCount()+" operations, "+Math.round(service.getCount()/elapsed)+"/s");
+			System.out.println("\tservice time:  "+service.summary());
+			if(workload.target > 0){
+				System.out.println("\tresponse time: "+response.summary());
+			}
+		}
+		System.out.println("Overall: "+operations+" operations in "+Math.round(elapsed*1000)+" milliseconds, "+Math.round(operations/elapsed)+"/s, "+errors+" errors");
+		if(workload.target > 0){
+			System.out.println("Scheduled: "+Math.round(workload.target)+"/s, "+late+" operations started more than an interval late");
+		}
+
+		/*Clean up client side */
+		for(List<LUCICabinetMap_Remote<Integer,byte[]>> remotes:connections){
+			for(LUCICabinetMap_Remote<Integer,byte[]> remote:remotes){
+				remote.close();
+			}
+		}
+
+		/*Clean up butlers and server side */
+		for(LUCI_Butler<Integer,byte[]> butler:butlers){
+			butler.shutdown();
+		}
+		for(LUCICabinetMap<Integer,byte[]> db:dbs){
+			db.close();
+		}
+	}
+}
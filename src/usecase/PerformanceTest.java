@@ -1,9 +1,13 @@
 package usecase;
 
 import java.io.IOException;
+import java.io.Serializable;
+import java.net.SocketAddress;
 import java.net.UnknownHostException;
 import java.util.ArrayList;
 import java.util.HashSet;
+import java.util.List;
+import java.util.Random;
 import java.util.Set;
 
 import org.apache.log4j.BasicConfigurator;
@@ -89,6 +93,64 @@ public class PerformanceTest {
 		butler.shutdown();
 	}
 	
+	/**
+	 * Time small synchronous gets and puts, one round trip each, and report the mean latency
+	 */
+	private static void runLatencyTest(LUCICabinetMap_Remote<Integer, Integer> db,int ops) {
+		/* Warm up the connection and the JIT */
+		for(int i=0;i<ops/10;i++){
+			db.putSync(i,i);
+			db.get(i);
+		}
+		
+		long start = System.nanoTime();
+		for(int i=0;i<ops;i++){
+			db.putSync(i,i);
+		}
+		System.out.println("\t\tput latency ("+ops+" ops) : "+((System.nanoTime()-start)/ops/1000.0)+" microseconds");
+		
+		start = System.nanoTime();
+		for(int i=0;i<ops;i++){
+			db.get(i);
+		}
+		System.out.println("\t\tget latency ("+ops+" ops) : "+((System.nanoTime()-start)/ops/1000.0)+" microseconds");
+		
+		db.clear();
+		db.close();
+	}
+	
+	private static void testMap_Remote_Unix(){
+		
+		final int ops = 100000;
+		
+		LUCICabinetMap<Integer, Integer> db = new LUCICabinetHDB<Integer,Integer>("performance.tch",false);
+		
+		LUCI_Butler<Integer,Integer> butler = new LUCI_Butler<Integer,Integer>(db,8181,new SimplestAccessControl());
+		butler.initialize();
+		
+		System.out.println("Map_Remote 127.0.0.1 TCP Latency Test:");
+		LUCICabinetMap_Remote<Integer,Integer> tcp = new LUCICabinetMap_Remote<Integer,Integer>("127.0.0.1",8181,false);
+		tcp.setInProcess(false);
+		runLatencyTest(tcp,ops);
+		
+		System.out.println("Map_Remote In Process Latency Test:");
+		runLatencyTest(new LUCICabinetMap_Remote<Integer,Integer>("127.0.0.1",8181,false),ops);
+		
+		try{
+			butler.initializeUnixSocket("performance.sock");
+			System.out.println("Map_Remote Unix Domain Socket Latency Test:");
+			List<SocketAddress> endpoints = new ArrayList<SocketAddress>();
+			endpoints.add(LUCICabinetMap_Remote.unixSocket("performance.sock"));
+			runLatencyTest(new LUCICabinetMap_Remote<Integer,Integer>(endpoints,false),ops);
+		}
+		catch(UnsupportedOperationException e){
+			System.out.println("Unix domain sockets aren't supported by this JVM:"+e.getMessage());
+		}
+		
+		butler.shutdown();
+		db.close();
+	}
+	
 	private static void testMap_Shard_Local_HDB(){
 		
 		ArrayList<LUCICabinetMap<Integer, Integer>> localShards = new ArrayList<LUCICabinetMap<Integer,Integer>>(numberOfShards);
@@ -146,6 +208,113 @@ public class PerformanceTest {
 			b.shutdown();
 		}
 	}
+	
+	private static void testMap_Shard_Remote_Named(){
+		
+		/* One butler serves every shard, and every shard is reached over one connection */
+		LUCI_Butler<Integer,Integer> butler = new LUCI_Butler<Integer,Integer>(8081,new SimplestAccessControl());
+		for(int i = 0; i < numberOfShards; i++){
+			butler.addDatabase("shard"+i,new LUCICabinetBDB<Integer,Integer>("performance"+i+".tcb",true));
+		}
+		butler.initialize();
+		
+		ArrayList<LUCICabinetMap<Integer, Integer>> remoteShards = new ArrayList<LUCICabinetMap<Integer,Integer>>(numberOfShards);
+		LUCICabinetMap_Remote<Integer, Integer> connection = new LUCICabinetMap_Remote<Integer,Integer>("localhost",8081,"shard0",true);
+		remoteShards.add(connection);
+		for(int i = 1; i < numberOfShards; i++){
+			remoteShards.add(connection.database("shard"+i,true));
+		}
+
+		LUCICabinetMap<Integer, Integer> db = new LUCICabinetMap_Shard<Integer,Integer>(remoteShards,true);
+		
+		System.out.println("Map_Shard_Remote_Named Test:");
+		runTest(db);
+		
+		butler.shutdown();
+		for(String name:butler.getDatabaseNames()){
+			butler.removeDatabase(name).close();
+		}
+	}
+
+	/**
+	 * A sharded map which lets one caller in at a time, the way LUCICabinetMap_Shard used to, to compare against
+	 */
+	private static class SerializedShard<K extends Serializable,V extends Serializable> extends LUCICabinetMap_Shard<K,V>{
+		SerializedShard(List<LUCICabinetMap<K,V>> shards,boolean optimize){
+			super(shards,optimize);
+		}
+		
+		@Override
+		public synchronized V get(Object key){
+			return super.get(key);
+		}
+		
+		@Override
+		public synchronized V put(K key,V value){
+			return super.put(key,value);
+		}
+	}
+	
+	/**
+	 * Run a mix of 90% gets and 10% puts from several threads at once and report the throughput
+	 */
+	private static void runScalingTest(final LUCICabinetMap<Integer, Integer> db,int threads,final int ops){
+		final int keys = 100000;
+		Thread[] workers = new Thread[threads];
+		long start = System.nanoTime();
+		for(int t = 0; t < threads; t++){
+			final Random random = new Random(t);
+			workers[t] = new Thread(new Runnable(){
+				public void run() {
+					for(int i = 0; i < ops; i++){
+						int key = random.nextInt(keys);
+						if(random.nextInt(10) == 0){
+							db.put(key,i);
+						}
+						else{
+							db.get(key);
+						}
+					}
+				}
+			});
+			workers[t].start();
+		}
+		for(Thread t:workers){
+			try {
+				t.join();
+			} catch (InterruptedException e) {
+				System.out.println("fail");
+			}
+		}
+		long elapsed = System.nanoTime()-start;
+		System.out.println("\t\t"+threads+" threads ("+(threads*ops)+" ops) : "+Math.round((threads*ops)/(elapsed/1000000000.0))+" ops per second");
+	}
+	
+	private static void testMap_Shard_Scaling(){
+		final int ops = 100000;
+		
+		ArrayList<LUCICabinetMap<Integer, Integer>> localShards = new ArrayList<LUCICabinetMap<Integer,Integer>>(numberOfShards);
+		for(int i = 0; i < numberOfShards; i++){
+			localShards.add(new LUCICabinetHDB<Integer,Integer>("performance"+i+".tch",true));
+		}
+		for(int i = 0; i < 100000; i++){
+			localShards.get(i % numberOfShards).put(i,i);
+		}
+		
+		/* Both maps share the same shards and list, which closing the second one closes and empties */
+		LUCICabinetMap<Integer, Integer> serialized = new SerializedShard<Integer,Integer>(localShards,true);
+		LUCICabinetMap<Integer, Integer> concurrent = new LUCICabinetMap_Shard<Integer,Integer>(localShards,true);
+		
+		for(int threads = 1; threads <= 16; threads *= 2){
+			System.out.println("Map_Shard Scaling Test, one caller at a time:");
+			runScalingTest(serialized,threads,ops);
+			System.out.println("Map_Shard Scaling Test, concurrent callers:");
+			runScalingTest(concurrent,threads,ops);
+		}
+		
+		concurrent.clear();
+		concurrent.close();
+	}
 
 	public static void main(String[] args) {
 		BasicConfigurator.configure();
@@ -153,8 +322,11 @@ public class PerformanceTest {
 		testHDB();
 		testBDB();
 		testMap_Remote();
+		testMap_Remote_Unix();
 		testMap_Shard_Local_HDB();
 		testMap_Shard_Local_BDB();
+		testMap_Shard_Scaling();
 		testMap_Shard_Remote();
+		testMap_Shard_Remote_Named();
 	}
 }
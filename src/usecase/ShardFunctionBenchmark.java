@@ -0,0 +1,177 @@
+package usecase;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+import edu.uci.ics.luci.lucicabinet.ShardFunction;
+import edu.uci.ics.luci.lucicabinet.library.ShardFunctionConsistent;
+import edu.uci.ics.luci.lucicabinet.library.ShardFunctionJump;
+import edu.uci.ics.luci.lucicabinet.library.ShardFunctionRendezvous;
+import edu.uci.ics.luci.lucicabinet.library.ShardFunctionSimple;
+
+/**
+ * Compares the ShardFunctions on sets of keys shaped like real ones rather than random ones: counters, ids handed
+ * out in blocks, timestamps, and strings that share a long prefix. For each function and key set it reports
+ * <ul>
+ * <li>balance: the fullest shard over the average shard, 1.00 is perfect</li>
+ * <li>moved: the fraction of keys that change shard when one shard is added, 1/(n+1) is the least possible</li>
+ * <li>ns/pick: how long pickShard takes</li>
+ * </ul>
+ *
+ * <p>
+ * Settings are given as name=value arguments, for example:
+ * <pre>
+ * java usecase.ShardFunctionBenchmark shards=10 keys=1000000
+ * </pre>
+ * <ul>
+ * <li>shards: how many shards the keys are spread over, 10 by default</li>
+ * <li>keys: how many keys are in each set, 200000 by default</li>
+ * </ul>
+ */
+public class ShardFunctionBenchmark {
+
+	/* Where the timed picks go, so that they aren't optimized away */
+	private static volatile long sink = 0;
+
+	/**
+	 * Makes the shard functions being compared for a number of shards
+	 */
+	private static abstract class Maker{
+		final String name;
+
+		Maker(String name){
+			this.name = name;
+		}
+
+		abstract ShardFunction make(int shards);
+	}
+
+	private static List<Maker> makers(){
+		List<Maker> ret = new ArrayList<Maker>();
+		ret.add(new Maker("simple"){
+			ShardFunction make(int shards){
+				return new ShardFunctionSimple(shards);
+			}
+		});
+		ret.add(new Maker("consistent"){
+			ShardFunction make(int shards){
+				return new ShardFunctionConsistent(shards);
+			}
+		});
+		ret.add(new Maker("jump"){
+			ShardFunction make(int shards){
+				return new ShardFunctionJump(shards);
+			}
+		});
+		ret.add(new Maker("rendezvous"){
+			ShardFunction make(int shards){
+				return new ShardFunctionRendezvous(shards);
+			}
+		});
+		return ret;
+	}
+
+	private static Map<String,Object[]> keySets(int count){
+		Map<String,Object[]> ret = new LinkedHashMap<String,Object[]>();
+
+		Object[] keys = new Object[count];
+		for(int i = 0; i < count; i++){
+			keys[i] = Integer.valueOf(i);
+		}
+		ret.put("counter",keys);
+
+		/* Ids handed out in blocks of 1000, with only the first few of each block used */
+		keys = new Object[count];
+		for(int i = 0; i < count; i++){
+			keys[i] = Integer.valueOf((i / 10) * 1000 + (i % 10));
+		}
+		ret.put("blocked ids",keys);
+
+		/* Event times to the second, in milliseconds */
+		keys = new Object[count];
+		long start = 1300000000000L;
+		for(int i = 0; i < count; i++){
+			keys[i] = Long.valueOf(start + i * 1000L);
+		}
+		ret.put("timestamps",keys);
+
+		keys = new Object[count];
+		for(int i = 0; i < count; i++){
+			keys[i] = "user:"+i;
+		}
+		ret.put("user names",keys);
+
+		keys = new Object[count];
+		for(int i = 0; i < count; i++){
+			keys[i] = "http://www.ics.uci.edu/projects/item/"+i+"/index.html";
+		}
+		ret.put("urls",keys);
+
+		return ret;
+	}
+
+	private static Map<String,String> parse(String[] args){
+		Map<String,String> ret = new HashMap<String,String>();
+		for(String arg:args){
+			int equals = arg.indexOf('=');
+			if(equals < 1){
+				throw new IllegalArgumentException("Settings are given as name=value:"+arg);
+			}
+			ret.put(arg.substring(0,equals).toLowerCase(),arg.substring(equals+1));
+		}
+		return ret;
+	}
+
+	public static void main(String[] args) {
+		Map<String,String> settings = parse(args);
+		int shards = settings.containsKey("shards") ? Integer.parseInt(settings.get("shards")) : 10;
+		int count = settings.containsKey("keys") ? Integer.parseInt(settings.get("keys")) : 200000;
+
+		System.out.println(count+" keys in each set over "+shards+" shards");
+		System.out.println(String.format("%-12s %-12s %8s %8s %8s",
+				"keys","function","balance","moved","ns/pick"));
+
+		for(Map.Entry<String,Object[]> set:keySets(count).entrySet()){
+			Object[] keys = set.getValue();
+			for(Maker maker:makers()){
+				ShardFunction sf = maker.make(shards);
+				ShardFunction grown = maker.make(shards+1);
+
+				int[] load = new int[shards];
+				int moved = 0;
+				for(Object key:keys){
+					int which = sf.pickShard(key);
+					load[which]++;
+					if(grown.pickShard(key) != which){
+						moved++;
+					}
+				}
+				int fullest = 0;
+				for(int l:load){
+					fullest = Math.max(fullest,l);
+				}
+
+				/* Warmed up by the pass above */
+				long sum = 0;
+				long before = System.nanoTime();
+				for(int repeat = 0; repeat < 5; repeat++){
+					for(Object key:keys){
+						sum += sf.pickShard(key);
+					}
+				}
+				double nanos = (System.nanoTime() - before) / (5.0 * keys.length);
+				sink += sum;
+
+				System.out.println(String.format("%-12s %-12s %8.2f %8.3f %8.1f",
+						set.getKey(),maker.name,(fullest * (double) shards) / keys.length,
+						moved / (double) keys.length,nanos));
+			}
+		}
+		System.out.println(String.format("The fewest keys that can move is %.3f",1.0/(shards+1)));
+		/* Printed so the timed picks are used */
+		System.out.println("Checksum of the timed picks "+sink);
+	}
+}